@@ -0,0 +1,127 @@
+package com.example.mapjournal.cluster;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for ClusterEngine and ClusterDiff.
+ */
+public class ClusterEngineTest extends AndroidTestCase {
+  private static final int POINTS = 2000;
+  
+  private ClusterEngine engine;
+  private long[] ids;
+  private double[] latitudes;
+  private double[] longitudes;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Random random = new Random(7);
+    ids = new long[POINTS];
+    latitudes = new double[POINTS];
+    longitudes = new double[POINTS];
+    for (int i = 0; i < POINTS; i++) {
+      ids[i] = i + 1;
+      latitudes[i] = 47.6 + random.nextGaussian();
+      longitudes[i] = -122.3 + random.nextGaussian();
+    }
+    engine = new ClusterEngine(64);
+    engine.setPoints(ids, latitudes, longitudes, POINTS);
+  }
+  
+  public void testEveryPointIsInExactlyOneCluster() {
+    for (int zoom = 0; zoom <= ClusterEngine.MAX_ZOOM; zoom++) {
+      int total = 0;
+      for (Cluster cluster : engine.getClusters(zoom, -90, -180, 90, 180)) {
+        total += cluster.getCount();
+      }
+      assertEquals("Zoom " + zoom, POINTS, total);
+    }
+  }
+  
+  public void testClustersMergeWhenZoomingOut() {
+    int previous = Integer.MAX_VALUE;
+    for (int zoom = ClusterEngine.MAX_ZOOM; zoom >= 0; zoom--) {
+      int clusters = engine.getClusters(zoom, -90, -180, 90, 180).size();
+      assertTrue(clusters <= previous);
+      previous = clusters;
+    }
+    assertEquals(1, engine.getClusters(0, -90, -180, 90, 180).size());
+  }
+  
+  public void testSinglePointsAreKeyedById() {
+    ClusterEngine sparse = new ClusterEngine(64);
+    sparse.setPoints(new long[] { 5, 6, 7 },
+                     new double[] { 10, 10, 10.00001 },
+                     new double[] { 0, 90, 90 }, 3);
+    List<Cluster> clusters = sparse.getClusters(3, -90, -180, 90, 180);
+    assertEquals(2, clusters.size());
+    Map<Long, Cluster> byKey = new HashMap<Long, Cluster>();
+    for (Cluster cluster : clusters) {
+      byKey.put(cluster.getKey(), cluster);
+    }
+    assertEquals(1, byKey.get(5L).getCount());
+    assertEquals(0, byKey.get(5L).getLongitude(), 1e-9);
+    Cluster pair = clusters.get(0) == byKey.get(5L) ? clusters.get(1)
+                                                    : clusters.get(0);
+    assertTrue(pair.getKey() < 0);
+    assertEquals(2, pair.getCount());
+  }
+  
+  public void testViewportOnlyReturnsNearbyClusters() {
+    int zoom = 10;
+    List<Cluster> all = engine.getClusters(zoom, -90, -180, 90, 180);
+    List<Cluster> visible = engine.getClusters(zoom, 47.5, -122.4, 47.7, -122.2);
+    assertTrue(visible.size() < all.size());
+    // One cell is 64 px, under 0.1 degrees at zoom 10, and the viewport is
+    // padded by a cell
+    for (Cluster cluster : visible) {
+      assertTrue(cluster.getLatitude() > 47.3 && cluster.getLatitude() < 47.9);
+      assertTrue(cluster.getLongitude() > -122.6
+                 && cluster.getLongitude() < -122.0);
+    }
+    int inside = 0;
+    for (Cluster cluster : all) {
+      if (cluster.getLatitude() > 47.5 && cluster.getLatitude() < 47.7
+          && cluster.getLongitude() > -122.4 && cluster.getLongitude() < -122.2) {
+        inside++;
+        assertTrue(visible.contains(cluster));
+      }
+    }
+    assertTrue(inside > 0);
+  }
+  
+  public void testViewportAcrossAntimeridian() {
+    ClusterEngine wrapped = new ClusterEngine(64);
+    wrapped.setPoints(new long[] { 1, 2, 3 },
+                      new double[] { 0, 0, 0 },
+                      new double[] { 179.5, -179.5, 0 }, 3);
+    List<Cluster> clusters = wrapped.getClusters(8, -1, 179, 1, -179);
+    assertEquals(2, clusters.size());
+  }
+  
+  public void testPanningOnlyDiffsEdgeClusters() {
+    int zoom = 12;
+    Map<Long, Cluster> shown = new HashMap<Long, Cluster>();
+    ClusterDiff first = ClusterDiff.apply(shown,
+        engine.getClusters(zoom, 47.5, -122.4, 47.7, -122.2));
+    assertTrue(first.getRemoved().isEmpty());
+    int initial = first.getAdded().size();
+    
+    ClusterDiff pan = ClusterDiff.apply(shown,
+        engine.getClusters(zoom, 47.5, -122.38, 47.7, -122.18));
+    assertTrue(pan.getChanged().isEmpty());
+    assertFalse(pan.getAdded().isEmpty());
+    assertFalse(pan.getRemoved().isEmpty());
+    assertTrue(pan.getAdded().size() + pan.getRemoved().size() < initial);
+    
+    ClusterDiff same = ClusterDiff.apply(shown,
+        engine.getClusters(zoom, 47.5, -122.38, 47.7, -122.18));
+    assertTrue(same.isEmpty());
+  }
+}
@@ -0,0 +1,253 @@
+package com.example.mapjournal.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointVisitor;
+import com.example.mapjournal.model.TestDatabases;
+import com.example.mapjournal.model.TrackSegment;
+import com.example.mapjournal.model.Trip;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for parsing, batching and cancellation in TrackImporter.
+ */
+public class TrackImporterTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "TrackImporterTest.db";
+  private static final double DELTA = 1e-6;
+  
+  private MapJournalDAO dao;
+  private TrackImporter importer;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = TestDatabases.open(getContext(), DATABASE_NAME);
+    importer = new TrackImporter(dao);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testIsoTime() {
+    assertEquals(0, IsoTime.parse("1970-01-01T00:00:00Z"));
+    assertEquals(1401625800000L, IsoTime.parse("2014-06-01T12:30:00Z"));
+    assertEquals(1401625800250L, IsoTime.parse("2014-06-01T12:30:00.25Z"));
+    assertEquals(1401625800000L, IsoTime.parse("2014-06-01T14:30:00+02:00"));
+    assertEquals(1401625800000L, IsoTime.parse("2014-06-01T07:30:00-0500"));
+    assertEquals(0, IsoTime.parse("June 1st"));
+    assertEquals("2014-06-01T12:30:00Z", IsoTime.format(1401625800000L));
+    assertEquals("2014-06-01T12:30:00.250Z", IsoTime.format(1401625800250L));
+    assertEquals("1969-12-31T23:59:59Z", IsoTime.format(-1000));
+    assertEquals(951782400000L, IsoTime.parse(IsoTime.format(951782400000L)));
+  }
+  
+  public void testGpx() throws Exception {
+    String gpx =
+        "<?xml version=\"1.0\"?>\n" +
+        "<gpx version=\"1.1\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n" +
+        " <wpt lat=\"47.6\" lon=\"-122.3\"><name>Camp</name>" +
+        "<desc>By the lake</desc><time>2014-06-01T12:30:00Z</time></wpt>\n" +
+        " <trk><name>Hike</name>\n" +
+        "  <trkseg>\n" +
+        "   <trkpt lat=\"47.1\" lon=\"-122.1\"><ele>100.5</ele>" +
+        "<time>2014-06-01T10:00:00Z</time></trkpt>\n" +
+        "   <trkpt lat=\"47.2\" lon=\"-122.2\"><ele>101</ele></trkpt>\n" +
+        "  </trkseg>\n" +
+        "  <trkseg><trkpt lat=\"48\" lon=\"-123\"/></trkseg>\n" +
+        " </trk>\n" +
+        "</gpx>\n";
+    TrackImporter.Result result = importer.importStream(
+        stream(gpx), -1, TrackImporter.Format.GPX, "Hike");
+    assertEquals(3, result.getFixCount());
+    assertEquals(1, result.getWaypointCount());
+    
+    Trip trip = dao.getTrip(result.getTrip().getId());
+    assertEquals("Hike", trip.getName());
+    List<TrackSegment> segments = dao.getTrackSegments(trip.getId());
+    assertEquals(2, segments.size());
+    TrackSegment first = segments.get(0).size() == 2
+                         ? segments.get(0) : segments.get(1);
+    assertEquals(47.1, first.getLatitude(0), DELTA);
+    assertEquals(-122.1, first.getLongitude(0), DELTA);
+    assertEquals(100.5f, first.getAltitude(0), 0.1f);
+    assertEquals(IsoTime.parse("2014-06-01T10:00:00Z"), first.getTime(0));
+    
+    List<Point> points = pointsOf(trip.getId());
+    assertEquals(1, points.size());
+    assertEquals("Camp", points.get(0).getTitle());
+    assertEquals("By the lake", points.get(0).getJournal());
+    assertEquals(47.6, points.get(0).getLatitude(), DELTA);
+    assertEquals(1401625800, points.get(0).getTime());
+  }
+  
+  public void testKml() throws Exception {
+    String kml =
+        "<kml xmlns=\"http://www.opengis.net/kml/2.2\"" +
+        " xmlns:gx=\"http://www.google.com/kml/ext/2.2\"><Document>\n" +
+        " <name>Doc</name>\n" +
+        " <Placemark><name>Summit</name><Point>" +
+        "<coordinates>-121.76,46.85,4392</coordinates></Point></Placemark>\n" +
+        " <Placemark><LineString><coordinates>\n" +
+        "   -122.0,47.0,10 -122.1,47.1,20\n   -122.2,47.2\n" +
+        " </coordinates></LineString></Placemark>\n" +
+        " <Placemark><gx:Track>" +
+        "<when>2014-06-01T10:00:00Z</when><when>2014-06-01T10:00:05Z</when>" +
+        "<gx:coord>-122 47 5</gx:coord><gx:coord>-122.001 47.001 6</gx:coord>" +
+        "</gx:Track></Placemark>\n" +
+        "</Document></kml>\n";
+    TrackImporter.Result result = importer.importStream(
+        stream(kml), -1, TrackImporter.Format.KML, "Kml");
+    assertEquals(5, result.getFixCount());
+    assertEquals(1, result.getWaypointCount());
+    
+    long tripId = result.getTrip().getId();
+    List<TrackSegment> segments = dao.getTrackSegments(tripId);
+    assertEquals(2, segments.size());
+    int withTimes = 0;
+    for (TrackSegment segment : segments) {
+      if (segment.getStartTime() != 0) {
+        withTimes++;
+        assertEquals(2, segment.size());
+        assertEquals(5000, segment.getEndTime() - segment.getStartTime());
+      } else {
+        assertEquals(3, segment.size());
+        assertEquals(47.2, segment.getLatitude(2), DELTA);
+      }
+    }
+    assertEquals(1, withTimes);
+    
+    List<Point> points = pointsOf(tripId);
+    assertEquals("Summit", points.get(0).getTitle());
+    assertEquals(46.85, points.get(0).getLatitude(), DELTA);
+    assertEquals(-121.76, points.get(0).getLongitude(), DELTA);
+  }
+  
+  public void testGeoJson() throws Exception {
+    String json =
+        "{\"type\":\"FeatureCollection\",\"features\":[" +
+        " {\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\"," +
+        "  \"coordinates\":[2.35,48.85]}," +
+        "  \"properties\":{\"name\":\"Paris\",\"time\":\"2014-06-01T12:30:00Z\"}}," +
+        " {\"type\":\"Feature\",\"properties\":{\"name\":\"Route\"}," +
+        "  \"geometry\":{\"type\":\"MultiLineString\",\"coordinates\":" +
+        "  [[[2.0,48.0,30],[2.1,48.1]],[[3.0,49.0],[3.1,49.1],[3.2,49.2]]]}}," +
+        " {\"type\":\"Feature\",\"geometry\":null,\"properties\":{}}" +
+        "]}";
+    TrackImporter.Result result = importer.importStream(
+        stream(json), -1, TrackImporter.Format.GEOJSON, "Json");
+    assertEquals(5, result.getFixCount());
+    assertEquals(1, result.getWaypointCount());
+    assertEquals(2, dao.getTrackSegments(result.getTrip().getId()).size());
+    
+    List<Point> points = pointsOf(result.getTrip().getId());
+    assertEquals("Paris", points.get(0).getTitle());
+    assertEquals(48.85, points.get(0).getLatitude(), DELTA);
+    assertEquals(1401625800, points.get(0).getTime());
+  }
+  
+  public void testLongTrackIsWrittenInBatches() throws Exception {
+    final int fixes = 25000;
+    final List<Long> progress = new ArrayList<Long>();
+    importer.setProgressListener(new TrackImporter.ProgressListener() {
+      @Override
+      public void onProgress(long bytesRead, long totalBytes) {
+        progress.add(bytesRead);
+      }
+    });
+    TrackImporter.Result result = importer.importStream(
+        gpxTrack(fixes), -1, TrackImporter.Format.GPX, "Long");
+    assertEquals(fixes, result.getFixCount());
+    assertTrue(progress.size() >= 3);
+    for (int i = 1; i < progress.size(); i++) {
+      assertTrue(progress.get(i) >= progress.get(i - 1));
+    }
+    
+    // Each cut repeats the last fix of the previous segment
+    List<TrackSegment> segments = dao.getTrackSegments(result.getTrip().getId());
+    assertEquals(3, segments.size());
+    int total = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      total += segments.get(i).size();
+      if (i > 0) {
+        TrackSegment previous = segments.get(i - 1);
+        assertEquals(previous.getEndTime(), segments.get(i).getStartTime());
+      }
+    }
+    assertEquals(fixes + segments.size() - 1, total);
+  }
+  
+  public void testCancelDeletesEverythingWritten() throws Exception {
+    importer.setProgressListener(new TrackImporter.ProgressListener() {
+      @Override
+      public void onProgress(long bytesRead, long totalBytes) {
+        importer.cancel();
+      }
+    });
+    String waypoints = "<gpx><wpt lat=\"1\" lon=\"2\"><name>A</name></wpt>";
+    InputStream in = new SequenceInputStream(stream(waypoints),
+                                             gpxTrack(25000));
+    try {
+      importer.importStream(in, -1, TrackImporter.Format.GPX, "Cancelled");
+      fail("Import was not cancelled");
+    } catch (CancellationException e) {
+      // Expected
+    }
+    assertTrue(dao.getAllTrips().isEmpty());
+    assertEquals(0, dao.getPointsInBounds(-90, -180, 90, 180, 100).size());
+  }
+  
+  public void testMalformedFileIsRolledBack() {
+    String gpx = "<gpx><wpt lat=\"1\" lon=\"2\"/><trk><trkseg>" +
+                 "<trkpt lat=\"north\" lon=\"2\"/></trkseg></trk></gpx>";
+    try {
+      importer.importStream(stream(gpx), -1, TrackImporter.Format.GPX, "Bad");
+      fail("Malformed file was imported");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertTrue(dao.getAllTrips().isEmpty());
+  }
+  
+  private List<Point> pointsOf(long tripId) {
+    final List<Point> points = new ArrayList<Point>();
+    dao.forEachPoint(tripId, new PointVisitor() {
+      @Override
+      public void visit(Point point) {
+        points.add(point);
+      }
+    });
+    return points;
+  }
+  
+  private static InputStream stream(String text) throws IOException {
+    return new ByteArrayInputStream(text.getBytes("UTF-8"));
+  }
+  
+  /**
+   * Builds a GPX track of the given length, one fix per second.
+   */
+  private static InputStream gpxTrack(int fixes) throws IOException {
+    StringBuilder gpx = new StringBuilder("<gpx><trk><trkseg>");
+    for (int i = 0; i < fixes; i++) {
+      gpx.append("<trkpt lat=\"").append(47 + i * 1e-5)
+         .append("\" lon=\"").append(-122 + i * 1e-5).append("\"><time>")
+         .append(IsoTime.format(1401600000000L + i * 1000L))
+         .append("</time></trkpt>");
+    }
+    return stream(gpx.append("</trkseg></trk></gpx>").toString());
+  }
+}
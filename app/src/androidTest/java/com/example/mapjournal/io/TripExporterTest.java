@@ -0,0 +1,202 @@
+package com.example.mapjournal.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.MediaItem;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointVisitor;
+import com.example.mapjournal.model.TestDatabases;
+import com.example.mapjournal.model.TrackSegment;
+import com.example.mapjournal.model.Trip;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for documents and archives written by TripExporter.
+ */
+public class TripExporterTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "TripExporterTest.db";
+  private static final double DELTA = 1e-6;
+  
+  private MapJournalDAO dao;
+  private TripExporter exporter;
+  private Trip trip;
+  private File photo;
+  private File archive;
+  private MediaItem photoItem;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = TestDatabases.open(getContext(), DATABASE_NAME);
+    exporter = new TripExporter(dao);
+    
+    trip = new Trip(-1, "Coast & Hills", "Summer", null);
+    dao.createTrip(trip);
+    Point beach = new Point(-1, "Beach <north>", trip.getId(), 0.00001, -0.5,
+                            2, 1401625800, "1 Shore Rd", "Cold \"water\"",
+                            null);
+    dao.createPoint(beach);
+    Point hill = new Point(-1, "Hill", trip.getId(), 47.5, -122.25, 300,
+                           1401629400, null, null, null);
+    dao.createPoint(hill);
+    
+    photo = new File(getContext().getCacheDir(), "TripExporterTest.jpg");
+    byte[] bytes = new byte[100000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    FileOutputStream out = new FileOutputStream(photo);
+    out.write(bytes);
+    out.close();
+    photoItem = new MediaItem(-1, beach.getId(), photo.getPath(), "Waves");
+    dao.createMedia(photoItem);
+    dao.createMedia(new MediaItem(-1, beach.getId(), "/missing/b.jpg", "Gone"));
+    
+    TrackSegment segment = new TrackSegment(-1, trip.getId());
+    for (int i = 0; i < 100; i++) {
+      segment.add(47 + i * 1e-4, -122 + i * 1e-4, 10 + i,
+                  1401620000000L + i * 1000L);
+    }
+    dao.createTrackSegment(segment);
+    archive = new File(getContext().getCacheDir(), "TripExporterTest.zip");
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    photo.delete();
+    archive.delete();
+    super.tearDown();
+  }
+  
+  public void testGpx() throws Exception {
+    String gpx = export(TripExporter.Format.GPX);
+    assertTrue(gpx.contains("lat=\"0.00001\" lon=\"-0.5\""));
+    assertFalse(gpx.contains("E-"));
+    assertTrue(gpx.contains("<name>Beach &lt;north&gt;</name>"));
+    assertTrue(gpx.contains("<time>2014-06-01T12:30:00Z</time>"));
+    assertTrue(gpx.contains("<link href=\"" + photo.getPath() + "\">"));
+    assertRoundTrip(gpx, TrackImporter.Format.GPX);
+  }
+  
+  public void testGeoJson() throws Exception {
+    String json = export(TripExporter.Format.GEOJSON);
+    assertTrue(json.startsWith("{\"type\":\"FeatureCollection\""));
+    assertTrue(json.contains("\"caption\":\"Waves\""));
+    assertTrue(json.contains("\"coordTimes\":[\"2014-06-01T10:53:20Z\""));
+    assertRoundTrip(json, TrackImporter.Format.GEOJSON);
+  }
+  
+  public void testArchive() throws Exception {
+    exporter.exportArchive(trip.getId(), TripExporter.Format.GPX, archive);
+    
+    ZipFile zip = new ZipFile(archive);
+    try {
+      List<String> names = new ArrayList<String>();
+      for (ZipEntry entry : Collections.list(zip.entries())) {
+        names.add(entry.getName());
+      }
+      String media = TripExporter.archivePath(photoItem);
+      assertEquals(2, names.size());
+      assertEquals("trip.gpx", names.get(0));
+      assertEquals(media, names.get(1));
+      
+      String gpx = new String(
+          readAll(zip.getInputStream(zip.getEntry("trip.gpx"))), "UTF-8");
+      assertTrue(gpx.contains("<link href=\"" + media + "\">"));
+      assertTrue(gpx.contains("<link href=\"/missing/b.jpg\">"));
+      assertTrue(Arrays.equals(
+          readAll(new FileInputStream(photo)),
+          readAll(zip.getInputStream(zip.getEntry(media)))));
+    } finally {
+      zip.close();
+    }
+    
+    // Streaming readers only see local headers
+    ZipInputStream in = new ZipInputStream(new FileInputStream(archive));
+    try {
+      assertEquals("trip.gpx", in.getNextEntry().getName());
+      assertTrue(readAll(in).length > 0);
+      assertEquals(TripExporter.archivePath(photoItem),
+                   in.getNextEntry().getName());
+      assertEquals(photo.length(), readAll(in).length);
+      assertNull(in.getNextEntry());
+    } finally {
+      in.close();
+    }
+  }
+  
+  public void testMissingTrip() {
+    try {
+      exporter.export(trip.getId() + 100, TripExporter.Format.GPX,
+                      new ByteArrayOutputStream());
+      fail("Exported a missing trip");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+  
+  private String export(TripExporter.Format format) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    exporter.export(trip.getId(), format, out);
+    return out.toString("UTF-8");
+  }
+  
+  /**
+   * Imports an exported document and checks it matches the trip.
+   */
+  private void assertRoundTrip(String document, TrackImporter.Format format)
+      throws IOException {
+    TrackImporter.Result result = new TrackImporter(dao).importStream(
+        new ByteArrayInputStream(document.getBytes("UTF-8")), -1, format,
+        "Copy");
+    assertEquals(2, result.getWaypointCount());
+    assertEquals(100, result.getFixCount());
+    
+    final List<Point> points = new ArrayList<Point>();
+    dao.forEachPointWithMedia(result.getTrip().getId(), new PointVisitor() {
+      @Override
+      public void visit(Point point) {
+        points.add(point);
+      }
+    });
+    assertEquals("Beach <north>", points.get(0).getTitle());
+    assertEquals("Cold \"water\"", points.get(0).getJournal());
+    assertEquals(0.00001, points.get(0).getLatitude(), DELTA);
+    assertEquals(1401625800, points.get(0).getTime());
+    assertEquals(47.5, points.get(1).getLatitude(), DELTA);
+    
+    TrackSegment copy = dao.getTrackSegments(result.getTrip().getId()).get(0);
+    TrackSegment original = dao.getTrackSegments(trip.getId()).get(0);
+    assertEquals(original.size(), copy.size());
+    assertEquals(original.getLatitude(99), copy.getLatitude(99), DELTA);
+    assertEquals(original.getAltitude(99), copy.getAltitude(99), 0.1f);
+  }
+  
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,186 @@
+package com.example.mapjournal.media;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for subsampling, cache keys and request sharing in ThumbnailLoader.
+ */
+public class ThumbnailLoaderTest extends AndroidTestCase {
+  private static final int SIZE = 128;
+  
+  private File cacheDir;
+  private File photo;
+  private ThumbnailLoader loader;
+  
+  // Runs callbacks on the decoding thread, in place of the main looper
+  private final Executor direct = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    cacheDir = new File(getContext().getCacheDir(), "ThumbnailLoaderTest");
+    deleteAll(cacheDir);
+    photo = new File(getContext().getCacheDir(), "ThumbnailLoaderTest.jpg");
+    FileOutputStream out = new FileOutputStream(photo);
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+    loader = new ThumbnailLoader(cacheDir, SIZE, 4 * 1024 * 1024,
+                                 1024 * 1024, direct);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    loader.shutdown();
+    deleteAll(cacheDir);
+    photo.delete();
+    super.tearDown();
+  }
+  
+  public void testInSampleSize() {
+    assertEquals(1, ThumbnailLoader.calculateInSampleSize(100, 100, 128));
+    assertEquals(1, ThumbnailLoader.calculateInSampleSize(255, 4000, 128));
+    assertEquals(2, ThumbnailLoader.calculateInSampleSize(256, 4000, 128));
+    assertEquals(16, ThumbnailLoader.calculateInSampleSize(4000, 3000, 128));
+    assertEquals(32, ThumbnailLoader.calculateInSampleSize(4096, 4096, 128));
+  }
+  
+  public void testCacheKeyChangesWithModification() {
+    String key = ThumbnailLoader.cacheKey("/sdcard/a.jpg", 1000, SIZE);
+    assertEquals(40, key.length());
+    assertTrue(key.matches("[0-9a-f]+"));
+    assertEquals(key, ThumbnailLoader.cacheKey("/sdcard/a.jpg", 1000, SIZE));
+    assertFalse(key.equals(ThumbnailLoader.cacheKey("/sdcard/a.jpg", 2000, SIZE)));
+    assertFalse(key.equals(ThumbnailLoader.cacheKey("/sdcard/b.jpg", 1000, SIZE)));
+    assertFalse(key.equals(ThumbnailLoader.cacheKey("/sdcard/a.jpg", 1000, 64)));
+  }
+  
+  public void testConcurrentRequestsShareOneThumbnail() throws Exception {
+    final int requests = 5;
+    final CountDownLatch done = new CountDownLatch(requests);
+    final List<Bitmap> results =
+        Collections.synchronizedList(new ArrayList<Bitmap>());
+    for (int i = 0; i < requests; i++) {
+      loader.load(photo.getPath(), new ThumbnailLoader.Callback() {
+        @Override
+        public void onThumbnail(String path, Bitmap thumbnail) {
+          results.add(thumbnail);
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotNull(results.get(0));
+    for (Bitmap b : results) {
+      assertSame(results.get(0), b);
+    }
+    assertEquals(SIZE, results.get(0).getWidth());
+    assertEquals(SIZE, results.get(0).getHeight());
+    assertEquals(1, cacheDir.listFiles().length);
+  }
+  
+  public void testThumbnailReadFromDisk() throws Exception {
+    final Bitmap[] first = new Bitmap[1];
+    final CountDownLatch done = new CountDownLatch(1);
+    loader.load(photo.getPath(), new ThumbnailLoader.Callback() {
+      @Override
+      public void onThumbnail(String path, Bitmap thumbnail) {
+        first[0] = thumbnail;
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    
+    // Memory cache hits call back straight away
+    final Bitmap[] second = new Bitmap[1];
+    loader.load(photo.getPath(), new ThumbnailLoader.Callback() {
+      @Override
+      public void onThumbnail(String path, Bitmap thumbnail) {
+        second[0] = thumbnail;
+      }
+    });
+    assertSame(first[0], second[0]);
+    
+    // A new loader finds the thumbnail written by the first
+    loader.shutdown();
+    loader = new ThumbnailLoader(cacheDir, SIZE, 4 * 1024 * 1024,
+                                 1024 * 1024, direct);
+    final Bitmap[] third = new Bitmap[1];
+    final CountDownLatch reloaded = new CountDownLatch(1);
+    loader.load(photo.getPath(), new ThumbnailLoader.Callback() {
+      @Override
+      public void onThumbnail(String path, Bitmap thumbnail) {
+        third[0] = thumbnail;
+        reloaded.countDown();
+      }
+    });
+    assertTrue(reloaded.await(5, TimeUnit.SECONDS));
+    assertNotNull(third[0]);
+    assertNotSame(first[0], third[0]);
+    assertEquals(SIZE, third[0].getWidth());
+  }
+  
+  public void testMemoryHitNeedsNoFile() throws Exception {
+    final Bitmap[] first = new Bitmap[1];
+    final CountDownLatch done = new CountDownLatch(1);
+    loader.load(photo.getPath(), new ThumbnailLoader.Callback() {
+      @Override
+      public void onThumbnail(String path, Bitmap thumbnail) {
+        first[0] = thumbnail;
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    
+    // Keyed by path, so the hit does not look at the photo
+    assertTrue(photo.delete());
+    final Bitmap[] second = new Bitmap[1];
+    loader.load(photo.getPath(), new ThumbnailLoader.Callback() {
+      @Override
+      public void onThumbnail(String path, Bitmap thumbnail) {
+        second[0] = thumbnail;
+      }
+    });
+    assertNotNull(second[0]);
+    assertSame(first[0], second[0]);
+  }
+  
+  public void testMissingPhoto() throws Exception {
+    final boolean[] called = new boolean[1];
+    final CountDownLatch done = new CountDownLatch(1);
+    loader.load(new File(cacheDir, "missing.jpg").getPath(),
+                new ThumbnailLoader.Callback() {
+      @Override
+      public void onThumbnail(String path, Bitmap thumbnail) {
+        called[0] = thumbnail == null;
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(called[0]);
+  }
+  
+  private static void deleteAll(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,198 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for threading, coalescing and cancellation in AsyncMapJournalDAO.
+ */
+public class AsyncMapJournalDAOTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "AsyncMapJournalDAOTest.db";
+  private static final String CALLBACK_THREAD = "callbacks";
+  
+  private MapJournalDbHelper helper;
+  private MapJournalDAO setupDao;
+  private ExecutorService callbackThread;
+  private AsyncMapJournalDAO async;
+  
+  // Lets tests hold getPoint() calls on the read pool
+  private final AtomicInteger getPointCalls = new AtomicInteger();
+  private volatile CountDownLatch readGate = new CountDownLatch(0);
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    setupDao = new MapJournalDAO(helper);
+    setupDao.open();
+    callbackThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, CALLBACK_THREAD);
+      }
+    });
+    MapJournalDAO gated = new MapJournalDAO(helper) {
+      @Override
+      public Point getPoint(long id) {
+        getPointCalls.incrementAndGet();
+        try {
+          readGate.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.getPoint(id);
+      }
+    };
+    async = new AsyncMapJournalDAO(gated, 2, callbackThread);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    readGate.countDown();
+    async.shutdown();
+    callbackThread.shutdown();
+    callbackThread.awaitTermination(5, TimeUnit.SECONDS);
+    setupDao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testReadDeliversOnCallbackThread() throws Exception {
+    Point point = createPoint("Read me");
+    Result<Point> result = new Result<Point>();
+    async.getPoint(point.getId(), result);
+    result.await();
+    assertEquals("Read me", result.value.getTitle());
+    assertEquals(CALLBACK_THREAD, result.thread);
+  }
+  
+  public void testDuplicateReadsAreCoalesced() throws Exception {
+    Point point = createPoint("Once");
+    readGate = new CountDownLatch(1);
+    Result<Point> first = new Result<Point>();
+    Result<Point> second = new Result<Point>();
+    async.getPoint(point.getId(), first);
+    async.getPoint(point.getId(), second);
+    readGate.countDown();
+    first.await();
+    second.await();
+    assertEquals(1, getPointCalls.get());
+    assertSame(first.value, second.value);
+  }
+  
+  public void testWriteStopsReadsJoiningOlderReads() throws Exception {
+    Point point = createPoint("Before");
+    readGate = new CountDownLatch(1);
+    Result<Point> before = new Result<Point>();
+    async.getPoint(point.getId(), before);
+    
+    point.setTitle("After");
+    Result<Point> written = new Result<Point>();
+    async.updatePoint(point, written);
+    written.await();
+    Result<Point> after = new Result<Point>();
+    async.getPoint(point.getId(), after);
+    readGate.countDown();
+    before.await();
+    after.await();
+    assertEquals(2, getPointCalls.get());
+    assertEquals("After", after.value.getTitle());
+  }
+  
+  public void testWritesRunInOrder() throws Exception {
+    final List<Integer> order = Collections.synchronizedList(
+        new ArrayList<Integer>());
+    Result<Integer> last = null;
+    for (int i = 0; i < 20; i++) {
+      final int n = i;
+      last = new Result<Integer>();
+      async.write(new AsyncMapJournalDAO.Operation<Integer>() {
+        @Override
+        public Integer run(MapJournalDAO dao) {
+          order.add(n);
+          return n;
+        }
+      }, last);
+    }
+    last.await();
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, (int) order.get(i));
+    }
+  }
+  
+  public void testCancelledCallbacksAreNotCalled() throws Exception {
+    Point point = createPoint("Cancelled");
+    readGate = new CountDownLatch(1);
+    Result<Point> cancelled = new Result<Point>();
+    AsyncMapJournalDAO.Request request = async.getPoint(point.getId(),
+                                                        cancelled);
+    assertTrue(request.isPending());
+    async.cancelAll();
+    assertFalse(request.isPending());
+    readGate.countDown();
+    
+    // A later read of the same id is not joined to the cancelled one
+    Result<Point> fresh = new Result<Point>();
+    async.getPoint(point.getId(), fresh);
+    fresh.await();
+    assertFalse(cancelled.done.await(100, TimeUnit.MILLISECONDS));
+  }
+  
+  public void testErrorsAreDelivered() throws Exception {
+    Result<Object> result = new Result<Object>();
+    async.read(new AsyncMapJournalDAO.Operation<Object>() {
+      @Override
+      public Object run(MapJournalDAO dao) {
+        throw new IllegalStateException("Broken");
+      }
+    }, result);
+    result.await();
+    assertTrue(result.error instanceof IllegalStateException);
+  }
+  
+  private Point createPoint(String title) {
+    Trip trip = new Trip(-1, "Trip", null, null);
+    setupDao.createTrip(trip);
+    Point point = new Point(-1, title, trip.getId(), 1, 2, 0, 0, null, null,
+                            new ArrayList<MediaItem>());
+    setupDao.createPoint(point);
+    return point;
+  }
+  
+  /**
+   * Records the outcome of an operation.
+   */
+  private static class Result<T> implements AsyncMapJournalDAO.Callback<T> {
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile T value;
+    volatile Exception error;
+    volatile String thread;
+    
+    @Override
+    public void onResult(T result) {
+      value = result;
+      thread = Thread.currentThread().getName();
+      done.countDown();
+    }
+    
+    @Override
+    public void onError(Exception e) {
+      error = e;
+      done.countDown();
+    }
+    
+    void await() throws InterruptedException {
+      assertTrue("Timed out", done.await(5, TimeUnit.SECONDS));
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the insert throughput of MapJournalDAO.writeBatch against calling
+ * createPoint once per row.
+ */
+public class BatchWriteBenchmark extends AndroidTestCase {
+  private static final String TAG = "BatchWriteBenchmark";
+  private static final String DATABASE_NAME = "BatchWriteBenchmark.db";
+  private static final int ROWS = 2000;
+  
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = new MapJournalDAO(new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+    trip = new Trip(-1, "Benchmark", null, null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testBatchInsertThroughput() {
+    long start = System.nanoTime();
+    for (int i = 0; i < ROWS; i++) {
+      dao.createPoint(newPoint(i));
+    }
+    double perCallRate = rowsPerSecond(System.nanoTime() - start);
+    
+    start = System.nanoTime();
+    long[] ids = dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        for (int i = 0; i < ROWS; i++) {
+          writer.insertPoint(newPoint(i));
+        }
+      }
+    });
+    double batchRate = rowsPerSecond(System.nanoTime() - start);
+    
+    Log.i(TAG, "createPoint: " + perCallRate + " rows/s, writeBatch: " +
+               batchRate + " rows/s");
+    
+    assertEquals(ROWS, ids.length);
+    for (int i = 1; i < ids.length; i++) {
+      assertTrue(ids[i] > ids[i - 1]);
+    }
+    assertEquals(2 * ROWS, dao.loadTripGraph(trip.getId()).getPoints().size());
+  }
+  
+  public void testFailedBatchIsRolledBack() {
+    try {
+      dao.writeBatch(new BatchWriter.Job() {
+        @Override
+        public void run(BatchWriter writer) {
+          writer.insertPoint(newPoint(0));
+          throw new IllegalStateException("abort");
+        }
+      });
+      fail("Expected the job's exception to propagate");
+    } catch (IllegalStateException expected) {
+      // Expected
+    }
+    assertEquals(0, dao.loadTripGraph(trip.getId()).getPoints().size());
+  }
+  
+  private Point newPoint(int i) {
+    return new Point(-1, null, trip.getId(), 47.6 + i * 1e-5, -122.3, 10.0, i,
+                     null, null, new ArrayList<MediaItem>());
+  }
+  
+  private static double rowsPerSecond(long elapsedNanos) {
+    return ROWS / (elapsedNanos / 1e9);
+  }
+}
@@ -0,0 +1,242 @@
+package com.example.mapjournal.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that the BlobStore stores each distinct media file once and
+ * collects files no MediaItem uses.
+ */
+public class BlobStoreTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "BlobStoreTest.db";
+  private static final long TIMEOUT = 5000;
+  
+  private MapJournalDbHelper helper;
+  private MapJournalDAO dao;
+  private BlobStore store;
+  private File captureDir;
+  private File storeDir;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    dao = new MapJournalDAO(helper);
+    dao.open();
+    captureDir = new File(getContext().getCacheDir(), "BlobStoreTest");
+    storeDir = new File(captureDir, "store");
+    captureDir.mkdirs();
+    store = new BlobStore(new MapJournalDAO(helper), storeDir);
+    
+    trip = new Trip(-1, "Photos", null, null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    store.shutdown();
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    delete(captureDir);
+    super.tearDown();
+  }
+  
+  public void testDuplicatesAreStoredOnce() throws IOException {
+    MediaItem first = createMedia("first.jpg", "sunset");
+    MediaItem second = createMedia("second.jpg", "sunset");
+    MediaItem other = createMedia("other.jpg", "beach");
+    
+    assertEquals(3, store.storePending());
+    first = dao.getMedia(first.getId());
+    second = dao.getMedia(second.getId());
+    other = dao.getMedia(other.getId());
+    assertEquals(first.getFilePath(), second.getFilePath());
+    assertFalse(first.getFilePath().equals(other.getFilePath()));
+    assertTrue(new File(first.getFilePath()).isFile());
+    assertEquals(2, storedFiles());
+    // The originals were moved into the store
+    assertFalse(new File(captureDir, "first.jpg").exists());
+    assertFalse(new File(captureDir, "second.jpg").exists());
+    assertEquals(0, store.storePending());
+  }
+  
+  public void testUnreferencedBlobsAreCollected() throws IOException {
+    MediaItem first = createMedia("first.jpg", "sunset");
+    MediaItem second = createMedia("second.jpg", "sunset");
+    store.storePending();
+    File stored = new File(dao.getMedia(first.getId()).getFilePath());
+    
+    dao.deleteMedia(first);
+    assertEquals(0, store.collect(1, TimeUnit.SECONDS));
+    assertTrue(stored.exists());
+    
+    dao.deleteMedia(second);
+    assertEquals(1, store.collect(1, TimeUnit.SECONDS));
+    assertFalse(stored.exists());
+    // Stored files are left to the collector rather than the sweeper
+    assertEquals(0, count(dao.getDatabase(), "MapJournalMediaSweep"));
+  }
+  
+  public void testDeletingTripReleasesBlobs() throws IOException {
+    createMedia("first.jpg", "sunset");
+    createMedia("second.jpg", "beach");
+    store.storePending();
+    
+    dao.deleteTrip(trip);
+    assertEquals(2, store.collect(1, TimeUnit.SECONDS));
+    assertEquals(0, storedFiles());
+  }
+  
+  public void testCollectStopsAfterTimeLimit() throws IOException {
+    int blobs = BlobStore.COLLECT_BATCH_SIZE * 3;
+    for (int i = 0; i < blobs; i++) {
+      createMedia("photo" + i + ".jpg", "photo " + i);
+    }
+    store.storePending();
+    dao.deleteTrip(trip);
+    
+    // A limit that has already passed still collects one batch
+    assertEquals(BlobStore.COLLECT_BATCH_SIZE,
+                 store.collect(0, TimeUnit.MILLISECONDS));
+    assertEquals(blobs - BlobStore.COLLECT_BATCH_SIZE,
+                 store.collect(1, TimeUnit.SECONDS));
+    assertEquals(0, store.collect(1, TimeUnit.SECONDS));
+  }
+  
+  public void testMissingFilesAreSkipped() throws IOException {
+    MediaItem missing = createMedia("missing.jpg", "gone");
+    new File(missing.getFilePath()).delete();
+    createMedia("present.jpg", "here");
+    
+    assertEquals(1, store.storePending());
+    assertEquals(missing.getFilePath(),
+                 dao.getMedia(missing.getId()).getFilePath());
+  }
+  
+  public void testCachedMediaIsDroppedWhenMoved() throws IOException {
+    MediaItem item = createMedia("first.jpg", "sunset");
+    CachingMapJournalDAO caching = new CachingMapJournalDAO(helper, 4096);
+    caching.open();
+    try {
+      Point point = caching.getPoint(item.getPointId());
+      MediaItem cached = caching.getMedia(item.getId());
+      final List<MediaItem> moved = new ArrayList<MediaItem>();
+      MediaMoveListener listener = new MediaMoveListener() {
+        @Override
+        public void onMediaMoved(List<MediaItem> items) {
+          moved.addAll(items);
+        }
+      };
+      helper.addMediaMoveListener(listener);
+      store.storePending();
+      helper.removeMediaMoveListener(listener);
+      
+      assertEquals(1, moved.size());
+      assertEquals(item.getId(), moved.get(0).getId());
+      MediaItem reloaded = caching.getMedia(item.getId());
+      assertNotSame(cached, reloaded);
+      assertEquals(moved.get(0).getFilePath(), reloaded.getFilePath());
+      assertTrue(new File(reloaded.getFilePath()).isFile());
+      assertNotSame(point, caching.getPoint(item.getPointId()));
+    } finally {
+      caching.close();
+    }
+  }
+  
+  public void testMediaWritesScheduleStoreAndCollect() throws Exception {
+    Point point = new Point(-1, "Point", trip.getId(), 0, 0, 0, 0, null, null,
+                            new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    dao.addPointListener(store);
+    try {
+      // Adding a photo to an existing point is enough to store it
+      File file = writeFile("added.jpg", "sunset");
+      MediaItem item = new MediaItem(-1, point.getId(), file.getPath(), null);
+      dao.createMedia(item);
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (storedFiles() == 0 || file.exists()) {
+        assertTrue("Timed out storing", System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+      
+      // Deleting the only MediaItem using a blob is enough to collect it
+      dao.deleteMedia(item);
+      deadline = System.currentTimeMillis() + TIMEOUT;
+      while (storedFiles() > 0) {
+        assertTrue("Timed out collecting",
+                   System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+    } finally {
+      dao.removePointListener(store);
+    }
+  }
+  
+  public void testOneStorePerProcess() {
+    assertSame(BlobStore.getInstance(getContext()),
+               BlobStore.getInstance(getContext()));
+  }
+  
+  private MediaItem createMedia(String name, String contents)
+      throws IOException {
+    File file = writeFile(name, contents);
+    Point point = new Point(-1, name, trip.getId(), 0, 0, 0, 0, null, null,
+                            new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    MediaItem item = new MediaItem(-1, point.getId(), file.getPath(), null);
+    dao.createMedia(item);
+    return item;
+  }
+  
+  private File writeFile(String name, String contents) throws IOException {
+    File file = new File(captureDir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+  
+  private int storedFiles() {
+    int files = 0;
+    File[] dirs = storeDir.listFiles();
+    if (dirs != null) {
+      for (File dir : dirs) {
+        files += dir.listFiles().length;
+      }
+    }
+    return files;
+  }
+  
+  private static int count(SQLiteDatabase db, String table) {
+    Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+    try {
+      c.moveToFirst();
+      return c.getInt(0);
+    } finally {
+      c.close();
+    }
+  }
+  
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,252 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the identity map in CachingMapJournalDAO.
+ */
+public class CachingMapJournalDAOTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "CachingMapJournalDAOTest.db";
+  
+  private CachingMapJournalDAO dao;
+  private Trip trip;
+  private int queryCount;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    // Counts the queries that reach the database
+    dao = new CachingMapJournalDAO(
+        new MapJournalDbHelper(getContext(), DATABASE_NAME),
+        CachingMapJournalDAO.DEFAULT_MAX_WEIGHT) {
+      @Override
+      Cursor query(String table,
+                   String[] columns,
+                   String selection,
+                   String[] selectionArgs,
+                   String orderBy,
+                   String limit) {
+        queryCount++;
+        return super.query(table, columns, selection, selectionArgs, orderBy,
+                           limit);
+      }
+      
+      @Override
+      Cursor rawQuery(String sql, String[] selectionArgs) {
+        queryCount++;
+        return super.rawQuery(sql, selectionArgs);
+      }
+    };
+    dao.open();
+    trip = new Trip(-1, "Trip", "Description", null);
+    dao.createTrip(trip);
+    dao.getCache().clear();
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testRepeatedLookupsReturnSameInstanceWithoutQuery() {
+    long id = createPoint("Journal").getId();
+    dao.getCache().clear();
+    
+    int queries = queryCount;
+    Point first = dao.getPoint(id);
+    Point second = dao.getPoint(id);
+    assertSame(first, second);
+    assertEquals(1, queryCount - queries);
+    assertEquals(1, dao.getCache().getHitCount());
+    assertEquals(1, dao.getCache().getMissCount());
+    
+    Trip a = dao.getTrip(trip.getId());
+    assertSame(a, dao.getTrip(trip.getId()));
+  }
+  
+  public void testCreatedObjectsAreCached() {
+    Point point = createPoint("Journal");
+    MediaItem item = new MediaItem(-1, point.getId(), "/sdcard/a.jpg", "A");
+    dao.createMedia(item);
+    
+    int queries = queryCount;
+    assertSame(point, dao.getPoint(point.getId()));
+    assertSame(item, dao.getMedia(item.getId()));
+    assertEquals(queries, queryCount);
+  }
+  
+  public void testUpdateAndDeleteKeepCacheCurrent() {
+    Point point = createPoint("Before");
+    dao.getCache().clear();
+    
+    // An update through another instance replaces the cached one
+    Point loaded = dao.getPoint(point.getId());
+    point.setJournal("After");
+    dao.updatePoint(point);
+    assertNotSame(loaded, dao.getPoint(point.getId()));
+    assertEquals("After", dao.getPoint(point.getId()).getJournal());
+    
+    dao.deletePoint(point);
+    assertNull(dao.getPoint(point.getId()));
+    
+    dao.deleteTrip(trip);
+    assertNull(dao.getTrip(trip.getId()));
+  }
+  
+  public void testMediaWritesReachCachedPoint() {
+    Point point = createPoint("Journal");
+    Point other = createPoint("Other");
+    dao.getCache().clear();
+    Point cached = dao.getPoint(point.getId());
+    assertEquals(0, cached.getAllMedia().size());
+    
+    MediaItem item = new MediaItem(-1, point.getId(), "/sdcard/a.jpg", "A");
+    dao.createMedia(item);
+    assertSame(cached, dao.getPoint(point.getId()));
+    assertEquals(1, cached.getAllMedia().size());
+    assertSame(item, cached.getAllMedia().get(0));
+    
+    // Moving the item takes it out of its old point
+    Point cachedOther = dao.getPoint(other.getId());
+    assertEquals(0, cachedOther.getAllMedia().size());
+    item.setPointId(other.getId());
+    dao.updateMedia(item);
+    assertEquals(0, cached.getAllMedia().size());
+    assertEquals(1, cachedOther.getAllMedia().size());
+    
+    dao.deleteMedia(item);
+    assertEquals(0, dao.getPoint(other.getId()).getAllMedia().size());
+  }
+  
+  public void testPointWritesReachCachedTrip() {
+    Point first = createPoint("First");
+    Trip graph = dao.loadTripGraph(trip.getId());
+    assertEquals(1, graph.getPoints().size());
+    
+    Point second = createPoint("Second");
+    assertEquals(2, dao.getTrip(trip.getId()).getPoints().size());
+    
+    // Moving a point to another trip takes it out of the old one
+    dao.loadTripGraph(trip.getId());
+    Trip away = new Trip(-1, "Away", null, null);
+    dao.createTrip(away);
+    dao.loadTripGraph(away.getId());
+    second.setTripId(away.getId());
+    dao.updatePoint(second);
+    assertEquals(1, dao.getTrip(trip.getId()).getPoints().size());
+    assertEquals(1, dao.getTrip(away.getId()).getPoints().size());
+    
+    dao.loadTripGraph(trip.getId());
+    dao.deletePoint(first);
+    assertEquals(0, dao.getTrip(trip.getId()).getPoints().size());
+  }
+  
+  public void testBatchWritesEmptyCache() {
+    final Point point = createPoint("Before");
+    assertEquals(1, dao.getCache().size());
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        point.setJournal("After");
+        writer.updatePoint(point);
+      }
+    });
+    assertEquals(0, dao.getCache().size());
+    assertEquals("After", dao.getPoint(point.getId()).getJournal());
+  }
+  
+  public void testListsHoldCachedInstances() {
+    Point point = createPoint("Journal");
+    MediaItem item = new MediaItem(-1, point.getId(), "/sdcard/a.jpg", "A");
+    dao.createMedia(item);
+    
+    assertSame(point, dao.getPointSummaries(trip.getId()).get(0));
+    assertSame(point, dao.getPointsPage(trip.getId(), Long.MIN_VALUE, -1, 10)
+                         .get(0));
+    assertSame(point, dao.getPointsInBounds(47, -123, 48, -122, 10).get(0));
+    assertSame(item, dao.getMediaByPoint(point.getId()).get(0));
+    
+    // Objects first read by a list are cached for later lookups
+    dao.getCache().clear();
+    Trip listed = dao.getAllTrips().get(0);
+    assertSame(listed, dao.getTrip(trip.getId()));
+    Point summary = dao.getPointSummaries(trip.getId()).get(0);
+    assertSame(summary, dao.getPoint(point.getId()));
+    assertEquals("Journal", summary.getJournal());
+  }
+  
+  public void testTripGraphReplacesCachedInstances() {
+    Point point = createPoint("Journal");
+    MediaItem item = new MediaItem(-1, point.getId(), "/sdcard/a.jpg", "A");
+    dao.createMedia(item);
+    
+    Trip graph = dao.loadTripGraph(trip.getId());
+    Point loaded = graph.getPoints().get(0);
+    assertNotSame(point, loaded);
+    assertSame(graph, dao.getTrip(trip.getId()));
+    assertSame(loaded, dao.getPoint(point.getId()));
+    assertSame(loaded.getAllMedia().get(0), dao.getMedia(item.getId()));
+  }
+  
+  public void testEvictsLeastRecentlyUsedByWeight() {
+    EntityCache cache = new EntityCache(100);
+    cache.put(String.class, 1, "a", 40);
+    cache.put(String.class, 2, "b", 40);
+    assertEquals("a", cache.get(String.class, 1));
+    cache.put(String.class, 3, "c", 40);
+    
+    // 2 was least recently used
+    assertNull(cache.get(String.class, 2));
+    assertEquals("a", cache.get(String.class, 1));
+    assertEquals("c", cache.get(String.class, 3));
+    assertEquals(80, cache.getWeight());
+    assertEquals(1, cache.getEvictionCount());
+    
+    // Too heavy to cache at all
+    cache.put(String.class, 4, "d", 101);
+    assertNull(cache.get(String.class, 4));
+    assertEquals(80, cache.getWeight());
+    
+    // Types do not collide
+    cache.put(Integer.class, 1, 7, 10);
+    assertEquals("a", cache.get(String.class, 1));
+    cache.removeAll(String.class);
+    assertEquals(1, cache.size());
+    assertEquals(10, cache.getWeight());
+  }
+  
+  public void testLongJournalsWeighMore() {
+    CachingMapJournalDAO small = new CachingMapJournalDAO(
+        new MapJournalDbHelper(getContext(), DATABASE_NAME), 4096);
+    small.open();
+    try {
+      StringBuilder journal = new StringBuilder();
+      for (int i = 0; i < 1000; i++) {
+        journal.append('x');
+      }
+      for (int i = 0; i < 5; i++) {
+        Point point = new Point(-1, "Point", trip.getId(), 0, 0, 0, 0, null,
+                                journal.toString(), new ArrayList<MediaItem>());
+        small.createPoint(point);
+      }
+      // Each Point weighs over 2000, so only one fits
+      assertEquals(1, small.getCache().size());
+      assertTrue(small.getCache().getWeight() <= 4096);
+    } finally {
+      small.close();
+    }
+  }
+  
+  private Point createPoint(String journal) {
+    Point point = new Point(-1, "Point", trip.getId(), 47.6, -122.3, 0, 0,
+                            null, journal, new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    return point;
+  }
+}
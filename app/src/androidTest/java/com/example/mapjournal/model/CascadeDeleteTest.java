@@ -0,0 +1,148 @@
+package com.example.mapjournal.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that deleting a trip or point deletes everything that refers to it,
+ * and that MediaSweeper removes the files of the deleted media.
+ */
+public class CascadeDeleteTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "CascadeDeleteTest.db";
+  private static final int POINTS = 500;
+  private static final long TIMEOUT = 5000;
+  
+  private MapJournalDbHelper helper;
+  private MapJournalDAO dao;
+  private File mediaDir;
+  private Trip trip;
+  private final List<Point> points = new ArrayList<Point>();
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    dao = new MapJournalDAO(helper);
+    dao.open();
+    mediaDir = new File(getContext().getCacheDir(), "CascadeDeleteTest");
+    mediaDir.mkdirs();
+    
+    trip = new Trip(-1, "Long walk", null, null);
+    dao.createTrip(trip);
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        for (int i = 0; i < POINTS; i++) {
+          Point point = new Point(-1, "Stop " + i, trip.getId(), i * 0.001, 0,
+                                  0, i, null, null, new ArrayList<MediaItem>());
+          writer.insertPoint(point);
+          points.add(point);
+          if (i % 50 == 0) {
+            writer.insertMedia(new MediaItem(-1, point.getId(),
+                                             mediaFile(i).getPath(), null));
+          }
+        }
+        TrackSegment segment = new TrackSegment(-1, trip.getId());
+        segment.add(0, 0, 0, 0);
+        writer.insertTrackSegment(segment);
+      }
+    });
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    for (File file : mediaDir.listFiles()) {
+      file.delete();
+    }
+    mediaDir.delete();
+    super.tearDown();
+  }
+  
+  public void testDeleteTripRemovesEverything() {
+    dao.deleteTrip(trip);
+    
+    SQLiteDatabase db = dao.getDatabase();
+    for (String table : new String[] { "MapJournalPoint",
+                                       "MapJournalMedia",
+                                       "MapJournalTrack",
+                                       "MapJournalTripStats",
+                                       "MapJournalSearch" }) {
+      assertEquals(table, 0, count(db, table));
+    }
+    assertEquals(POINTS / 50, count(db, "MapJournalMediaSweep"));
+  }
+  
+  public void testDeletePointRemovesUnlistedMedia() {
+    // The point's list of media was never loaded
+    Point point = dao.getPoint(points.get(0).getId());
+    dao.deletePoint(point);
+    
+    assertTrue(dao.getMediaByPoint(point.getId()).isEmpty());
+    TripStats stats = dao.getTripStats(trip.getId());
+    assertEquals(POINTS - 1, stats.getPointCount());
+    assertEquals(POINTS / 50 - 1, stats.getMediaCount());
+  }
+  
+  public void testSweeperRemovesFiles() throws IOException {
+    for (int i = 0; i < POINTS; i += 50) {
+      new FileOutputStream(mediaFile(i)).close();
+    }
+    // A file that is already gone is skipped
+    mediaFile(0).delete();
+    dao.deleteTrip(trip);
+    
+    MediaSweeper sweeper = new MediaSweeper(new MapJournalDAO(helper));
+    try {
+      assertEquals(POINTS / 50 - 1, sweeper.sweep());
+      assertEquals(0, sweeper.sweep());
+    } finally {
+      sweeper.shutdown();
+    }
+    assertEquals(0, mediaDir.listFiles().length);
+    assertEquals(0, count(dao.getDatabase(), "MapJournalMediaSweep"));
+  }
+  
+  public void testDeletingMediaSchedulesSweep() throws Exception {
+    File file = mediaFile(0);
+    new FileOutputStream(file).close();
+    MediaItem item = dao.getMediaByPoint(points.get(0).getId()).get(0);
+    
+    MediaSweeper sweeper = new MediaSweeper(new MapJournalDAO(helper));
+    dao.addPointListener(sweeper);
+    try {
+      dao.deleteMedia(item);
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (file.exists()) {
+        assertTrue("Timed out", System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+    } finally {
+      dao.removePointListener(sweeper);
+      sweeper.shutdown();
+    }
+  }
+  
+  private File mediaFile(int i) {
+    return new File(mediaDir, "photo" + i + ".jpg");
+  }
+  
+  private static int count(SQLiteDatabase db, String table) {
+    Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+    try {
+      c.moveToFirst();
+      return c.getInt(0);
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Stress test for the shared database: map-style readers run while a writer
+ * records track points, and DAOs open and close independently.
+ */
+public class ConcurrentAccessTest extends AndroidTestCase {
+  private static final String TAG = "ConcurrentAccessTest";
+  private static final String DATABASE_NAME = "ConcurrentAccessTest.db";
+  private static final int READERS = 4;
+  private static final int BATCHES = 50;
+  private static final int POINTS_PER_BATCH = 100;
+  
+  private MapJournalDbHelper helper;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    helper.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testClosingOneDaoLeavesOthersOpen() {
+    MapJournalDAO first = new MapJournalDAO(helper);
+    MapJournalDAO second = new MapJournalDAO(helper);
+    first.open();
+    second.open();
+    
+    first.close();
+    first.close();  // Closing twice must not release the second DAO's hold
+    Trip trip = new Trip(-1, "Still open", null, null);
+    second.createTrip(trip);
+    assertEquals("Still open", second.loadTripGraph(trip.getId()).getName());
+    second.close();
+  }
+  
+  public void testTripGraphSkipsMediaOfUnreadPoints() {
+    MapJournalDAO writer = new MapJournalDAO(helper);
+    writer.open();
+    try {
+      Trip trip = createTripWithMedia(writer);
+      MapJournalDAO reader = racingReader(writer, trip);
+      reader.open();
+      try {
+        Trip graph = reader.loadTripGraph(trip.getId());
+        assertEquals(2, graph.getPoints().size());
+        for (Point point : graph.getPoints()) {
+          assertEquals(1, point.getAllMedia().size());
+        }
+      } finally {
+        reader.close();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+  
+  public void testMergeSkipsMediaOfUnreadPoints() {
+    MapJournalDAO writer = new MapJournalDAO(helper);
+    writer.open();
+    try {
+      Trip trip = createTripWithMedia(writer);
+      MapJournalDAO reader = racingReader(writer, trip);
+      reader.open();
+      try {
+        final List<Integer> mediaCounts = new ArrayList<Integer>();
+        reader.forEachPointWithMedia(trip.getId(), new PointVisitor() {
+          @Override
+          public void visit(Point point) {
+            mediaCounts.add(point.getAllMedia().size());
+          }
+        });
+        assertFalse(mediaCounts.isEmpty());
+        for (int count : mediaCounts) {
+          assertEquals(1, count);
+        }
+      } finally {
+        reader.close();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+  
+  public void testReadersRunWhileWriterRecords() throws Exception {
+    MapJournalDAO writerDao = new MapJournalDAO(helper);
+    writerDao.open();
+    final Trip trip = new Trip(-1, "Stress", null, null);
+    writerDao.createTrip(trip);
+    
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicInteger reads = new AtomicInteger();
+    final CountDownLatch writerDone = new CountDownLatch(1);
+    
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int i = 0; i < READERS; i++) {
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          MapJournalDAO dao = new MapJournalDAO(helper);
+          dao.open();
+          try {
+            int lastSize = 0;
+            while (writerDone.getCount() > 0) {
+              int size = dao.getPointsInBounds(40, -130, 50, -120, 100000).size();
+              // Committed batches never disappear or show up half-written
+              assertTrue(size >= lastSize);
+              assertEquals(0, size % POINTS_PER_BATCH);
+              lastSize = size;
+              reads.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          } finally {
+            dao.close();
+          }
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    
+    long start = System.nanoTime();
+    try {
+      for (int b = 0; b < BATCHES; b++) {
+        final int batch = b;
+        writerDao.writeBatch(new BatchWriter.Job() {
+          @Override
+          public void run(BatchWriter writer) {
+            for (int i = 0; i < POINTS_PER_BATCH; i++) {
+              writer.insertPoint(new Point(-1, null, trip.getId(),
+                  45 + i * 1e-4, -125 + batch * 1e-3, 0,
+                  batch * POINTS_PER_BATCH + i, null, null, null));
+            }
+          }
+        });
+      }
+    } finally {
+      writerDone.countDown();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    Log.i(TAG, reads.get() + " reads during " + BATCHES + " batches in " +
+               (System.nanoTime() - start) / 1000000 + " ms");
+    
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(BATCHES * POINTS_PER_BATCH,
+                 writerDao.loadTripGraph(trip.getId()).getPoints().size());
+    writerDao.close();
+  }
+  
+  /**
+   * Helper method that creates a Trip of two Points with one MediaItem each.
+   */
+  private static Trip createTripWithMedia(MapJournalDAO dao) {
+    Trip trip = new Trip(-1, "Race", null, null);
+    dao.createTrip(trip);
+    createPointWithMedia(dao, trip, 10);
+    createPointWithMedia(dao, trip, 20);
+    return trip;
+  }
+  
+  private static void createPointWithMedia(MapJournalDAO dao,
+                                           Trip trip,
+                                           int time) {
+    Point point = new Point(-1, "At " + time, trip.getId(), 0, 0, 0, time,
+                            null, null, new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    dao.createMedia(new MediaItem(-1, point.getId(), "/sdcard/" + time,
+                                  null));
+  }
+  
+  /**
+   * Helper method that returns a DAO which, just before each media query,
+   * has the writer add an earlier Point with a MediaItem to the trip. This
+   * stands in for a write that commits after the points have been read.
+   */
+  private MapJournalDAO racingReader(final MapJournalDAO writer,
+                                     final Trip trip) {
+    return new MapJournalDAO(helper) {
+      @Override
+      Cursor rawQuery(String sql, String[] selectionArgs) {
+        createPointWithMedia(writer, trip, 5);
+        return super.rawQuery(sql, selectionArgs);
+      }
+    };
+  }
+}
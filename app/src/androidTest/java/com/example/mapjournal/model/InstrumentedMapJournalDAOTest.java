@@ -0,0 +1,168 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the counters, histograms and slow query log of
+ * InstrumentedMapJournalDAO.
+ */
+public class InstrumentedMapJournalDAOTest extends AndroidTestCase {
+  private static final String DATABASE_NAME =
+      "InstrumentedMapJournalDAOTest.db";
+  
+  private DaoMetrics metrics;
+  private InstrumentedMapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    metrics = new DaoMetrics();
+    metrics.setSlowQueryThreshold(1, TimeUnit.HOURS);
+    dao = new InstrumentedMapJournalDAO(
+        new MapJournalDbHelper(getContext(), DATABASE_NAME), metrics);
+    dao.open();
+    trip = new Trip(-1, "Trip", "Description", null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testCountsCallsQueriesRowsAndBytes() {
+    for (int i = 0; i < 3; i++) {
+      createPoint("Journal " + i);
+    }
+    assertNotNull(dao.loadTripGraph(trip.getId()));
+    
+    DaoMetrics.Snapshot snapshot = metrics.snapshot();
+    DaoMetrics.OperationSnapshot create = snapshot.getOperation("createPoint");
+    assertEquals(3, create.getCalls());
+    assertEquals(0, create.getQueries());
+    assertTrue(create.getP50Nanos() > 0);
+    assertTrue(create.getMaxNanos() >= create.getP50Nanos());
+    
+    // The trip, its three points, and no media
+    DaoMetrics.OperationSnapshot load = snapshot.getOperation("loadTripGraph");
+    assertEquals(1, load.getCalls());
+    assertEquals(0, load.getErrors());
+    assertEquals(3, load.getQueries());
+    assertEquals(4, load.getRows());
+    assertTrue(load.getBytes() >= 3 * "Journal 0".length());
+    assertNull(snapshot.getOperation("getPoint"));
+  }
+  
+  public void testIteratorBytesAreRecordedWhenClosed() {
+    createPoint("Journal");
+    PointIterator points = dao.iteratePoints(trip.getId(), false);
+    assertEquals(0, metrics.snapshot().getOperation("iteratePoints").getBytes());
+    while (points.hasNext()) {
+      points.next();
+    }
+    points.close();
+    DaoMetrics.OperationSnapshot iterate =
+        metrics.snapshot().getOperation("iteratePoints");
+    assertEquals(1, iterate.getRows());
+    assertTrue(iterate.getBytes() > 0);
+  }
+  
+  public void testNestedCallsCountAsPartOfTheOuterCall() {
+    createPoint("Journal");
+    
+    // forEachPoint reads through iteratePoints
+    dao.forEachPoint(trip.getId(), new PointVisitor() {
+      @Override
+      public void visit(Point p) {
+      }
+    });
+    DaoMetrics.Snapshot snapshot = metrics.snapshot();
+    assertEquals(1, snapshot.getOperation("forEachPoint").getCalls());
+    assertEquals(1, snapshot.getOperation("forEachPoint").getQueries());
+    assertEquals(1, snapshot.getOperation("forEachPoint").getRows());
+    assertNull(snapshot.getOperation("iteratePoints"));
+  }
+  
+  public void testFailedCallsAreCounted() {
+    try {
+      dao.search("\"unbalanced", 10, 0);
+      fail("Malformed query should throw");
+    } catch (SQLiteException expected) {
+    }
+    DaoMetrics.OperationSnapshot search =
+        metrics.snapshot().getOperation("search");
+    assertEquals(1, search.getCalls());
+    assertEquals(1, search.getErrors());
+    
+    // The failure does not leak into the next call on this thread
+    createPoint("Journal");
+    assertEquals(0, metrics.snapshot().getOperation("createPoint").getErrors());
+  }
+  
+  public void testSlowQueriesKeepTheirPlan() {
+    createPoint("Journal");
+    metrics.setSlowQueryThreshold(0, TimeUnit.MILLISECONDS);
+    dao.getPointsInBounds(47, -123, 48, -122, 100);
+    
+    DaoMetrics.Snapshot snapshot = metrics.snapshot();
+    assertEquals(1, snapshot.getSlowQueries().size());
+    DaoMetrics.SlowQuery query = snapshot.getSlowQueries().get(0);
+    assertEquals("getPointsInBounds", query.getOperation());
+    assertTrue(query.getSql().startsWith("SELECT "));
+    assertTrue(query.getSql().contains(" LIMIT 100"));
+    assertFalse(query.getPlan().isEmpty());
+    assertTrue(snapshot.toString().contains(query.getSql()));
+    
+    // Only the most recent slow queries are kept
+    for (int i = 0; i < 100; i++) {
+      dao.getPoint(1);
+    }
+    snapshot = metrics.snapshot();
+    assertEquals(32, snapshot.getSlowQueries().size());
+    assertEquals("getPoint",
+        snapshot.getSlowQueries().get(31).getOperation());
+  }
+  
+  public void testHistogramPercentilesAreWithinASixteenth() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000, histogram.getMax());
+    assertWithinSixteenth(500000, histogram.getValueAtPercentile(50));
+    assertWithinSixteenth(990000, histogram.getValueAtPercentile(99));
+    assertWithinSixteenth(1000, histogram.getValueAtPercentile(0));
+    
+    // Every bucket's largest value maps back to the bucket
+    for (int i = 0; i < 592; i++) {
+      assertEquals(i, LatencyHistogram.indexOf(
+          LatencyHistogram.highestValueOf(i)));
+    }
+    
+    // Values past the range are counted in the last bucket
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.getMax());
+    assertEquals(0, new LatencyHistogram().getValueAtPercentile(50));
+  }
+  
+  private static void assertWithinSixteenth(long expected, long actual) {
+    assertTrue(expected + " vs " + actual,
+               Math.abs(actual - expected) <= expected / 16);
+  }
+  
+  private Point createPoint(String journal) {
+    Point point = new Point(-1, "Point", trip.getId(), 47.6, -122.3, 0, 0,
+                            null, journal, new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    return point;
+  }
+}
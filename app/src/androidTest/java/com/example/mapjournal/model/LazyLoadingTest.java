@@ -0,0 +1,176 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that the Points and Trips returned by the DAO read their journal,
+ * media and points on first use.
+ */
+public class LazyLoadingTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "LazyLoadingTest.db";
+  
+  private MapJournalDbHelper helper;
+  private DaoMetrics metrics;
+  private MapJournalDAO dao;
+  private Trip trip;
+  private Point point;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    metrics = new DaoMetrics();
+    dao = new InstrumentedMapJournalDAO(helper, metrics);
+    dao.open();
+    
+    trip = new Trip(-1, "Coast", null, null);
+    dao.createTrip(trip);
+    point = new Point(-1, "Beach", trip.getId(), 47.6, -122.3, 12.5, 100,
+                      "1 Shore Rd", "Cold water", new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    dao.createMedia(new MediaItem(-1, point.getId(), "/beach.jpg", "Waves"));
+    dao.createPoint(new Point(-1, "Pier", trip.getId(), 47.7, -122.4, 0, 50,
+                              null, null, new ArrayList<MediaItem>()));
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testPointLoadsDetailAndMediaOnDemand() {
+    Point loaded = dao.getPoint(point.getId());
+    assertEquals("Beach", loaded.getTitle());
+    assertEquals(47.6, loaded.getLatitude(), 1e-9);
+    assertFalse(loaded.isDetailLoaded());
+    assertFalse(loaded.isMediaLoaded());
+    
+    assertEquals("Cold water", loaded.getJournal());
+    assertEquals("1 Shore Rd", loaded.getAddress());
+    assertEquals(12.5, loaded.getAltitude(), 1e-9);
+    assertTrue(loaded.isDetailLoaded());
+    assertFalse(loaded.isMediaLoaded());
+    
+    List<MediaItem> media = loaded.getAllMedia();
+    assertEquals(1, media.size());
+    assertEquals("Waves", media.get(0).getCaption());
+    assertSame(media, loaded.getAllMedia());
+  }
+  
+  public void testLoadsGoThroughOwningDao() {
+    Point loaded = dao.getPoint(point.getId());
+    Trip loadedTrip = dao.getTrip(trip.getId());
+    long before = queries();
+    loaded.getJournal();
+    loaded.getAllMedia();
+    loadedTrip.getPoints();
+    assertEquals(before + 3, queries());
+  }
+  
+  public void testLoadsFailAfterDaoIsClosed() {
+    Point loaded = dao.getPoint(point.getId());
+    Trip loadedTrip = dao.getTrip(trip.getId());
+    assertEquals("Cold water", loaded.getJournal());
+    dao.close();
+    try {
+      // Loaded fields are still there
+      assertEquals("1 Shore Rd", loaded.getAddress());
+      try {
+        loaded.getAllMedia();
+        fail("Loaded media through a closed DAO");
+      } catch (IllegalStateException e) {
+        // Expected
+      }
+      try {
+        loadedTrip.getPoints();
+        fail("Loaded points through a closed DAO");
+      } catch (IllegalStateException e) {
+        // Expected
+      }
+    } finally {
+      dao.open();
+    }
+  }
+  
+  public void testMapAndPageQueriesReadSummaries() {
+    List<Point> inBounds = dao.getPointsInBounds(47, -123, 48, -122, 10);
+    assertEquals(2, inBounds.size());
+    assertFalse(inBounds.get(0).isDetailLoaded());
+    List<Point> page = dao.getPointsPage(trip.getId(), Long.MIN_VALUE, -1, 10);
+    assertEquals(2, page.size());
+    assertFalse(page.get(1).isDetailLoaded());
+    assertEquals("Cold water", page.get(1).getJournal());
+  }
+  
+  public void testSetterIsNotOverwrittenByLoad() {
+    Point loaded = dao.getPoint(point.getId());
+    loaded.setJournal("Warm water");
+    assertEquals("1 Shore Rd", loaded.getAddress());
+    assertEquals("Warm water", loaded.getJournal());
+    
+    dao.updatePoint(loaded);
+    assertEquals("Warm water", dao.getPoint(point.getId()).getJournal());
+    assertEquals(12.5, dao.getPoint(point.getId()).getAltitude(), 1e-9);
+  }
+  
+  public void testAddMediaItemLoadsList() {
+    Point loaded = dao.getPoint(point.getId());
+    loaded.AddMediaItem(new MediaItem(-1, point.getId(), "/pier.jpg", null));
+    assertEquals(2, loaded.getAllMedia().size());
+  }
+  
+  public void testTripLoadsPointSummaries() {
+    Trip loaded = dao.getTrip(trip.getId());
+    assertEquals("Coast", loaded.getName());
+    List<Point> points = loaded.getPoints();
+    assertSame(points, loaded.getPoints());
+    
+    // In the order they were visited, with their heavy columns unread
+    assertEquals(2, points.size());
+    assertEquals("Pier", points.get(0).getTitle());
+    assertEquals("Beach", points.get(1).getTitle());
+    assertFalse(points.get(1).isDetailLoaded());
+    assertEquals("Cold water", points.get(1).getJournal());
+    
+    assertEquals(2, dao.getAllTrips().get(0).getPoints().size());
+    assertEquals(2, dao.getTripStats(trip.getId()).getTrip()
+                       .getPoints().size());
+  }
+  
+  public void testPointSummariesAreOneQuery() {
+    long before = queries();
+    List<Point> points = dao.getPointSummaries(trip.getId());
+    assertEquals(2, points.size());
+    assertEquals(100, points.get(1).getTime());
+    assertEquals(before + 1, queries());
+  }
+  
+  public void testCachingDaoDoesNotLoadToWeighOrDelete() {
+    CachingMapJournalDAO caching = new CachingMapJournalDAO(helper, 1024);
+    caching.open();
+    try {
+      Point loaded = caching.getPoint(point.getId());
+      assertFalse(loaded.isDetailLoaded());
+      caching.deletePoint(loaded);
+      assertFalse(loaded.isMediaLoaded());
+      assertNull(caching.getPoint(point.getId()));
+    } finally {
+      caching.close();
+    }
+  }
+  
+  // Every query issued, including loads made outside of any DAO method
+  private long queries() {
+    long total = 0;
+    for (DaoMetrics.OperationSnapshot op : metrics.snapshot().getOperations()) {
+      total += op.getQueries();
+    }
+    return total;
+  }
+}
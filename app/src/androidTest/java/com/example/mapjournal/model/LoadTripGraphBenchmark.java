@@ -0,0 +1,90 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures MapJournalDAO.loadTripGraph on trips of increasing size. The number
+ * of queries issued, as counted by InstrumentedMapJournalDAO, must not depend
+ * on the number of points in the trip.
+ */
+public class LoadTripGraphBenchmark extends AndroidTestCase {
+  private static final String TAG = "LoadTripGraphBenchmark";
+  private static final String DATABASE_NAME = "LoadTripGraphBenchmark.db";
+  private static final int MEDIA_PER_POINT = 2;
+  private static final int[] TRIP_SIZES = { 10, 100, 1000 };
+  
+  private MapJournalDbHelper helper;
+  private DaoMetrics metrics;
+  private MapJournalDAO dao;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    metrics = new DaoMetrics();
+    dao = new InstrumentedMapJournalDAO(helper, metrics);
+    dao.open();
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testQueryCountIsIndependentOfTripSize() {
+    long expectedQueries = -1;
+    for (int size : TRIP_SIZES) {
+      long tripId = createTrip(size);
+      
+      long queriesBefore = loadQueries();
+      long start = System.nanoTime();
+      Trip trip = dao.loadTripGraph(tripId);
+      long elapsed = System.nanoTime() - start;
+      long queries = loadQueries() - queriesBefore;
+      
+      Log.i(TAG, size + " points: " + queries + " queries, " +
+                 (elapsed / 1000000.0) + " ms");
+      
+      assertEquals(size, trip.getPoints().size());
+      for (Point point : trip.getPoints()) {
+        assertEquals(MEDIA_PER_POINT, point.getAllMedia().size());
+      }
+      if (expectedQueries < 0) {
+        expectedQueries = queries;
+      }
+      assertEquals("Query count grew with trip size", expectedQueries, queries);
+    }
+  }
+  
+  public void testMissingTripReturnsNull() {
+    assertNull(dao.loadTripGraph(-1));
+  }
+  
+  private long loadQueries() {
+    DaoMetrics.OperationSnapshot load =
+        metrics.snapshot().getOperation("loadTripGraph");
+    return load == null ? 0 : load.getQueries();
+  }
+  
+  private long createTrip(int size) {
+    Trip trip = new Trip(-1, "Trip of " + size, null, null);
+    dao.createTrip(trip);
+    for (int i = 0; i < size; i++) {
+      Point point = new Point(-1, "Point " + i, trip.getId(), 47.6, -122.3, 0,
+                              i, null, "Journal entry " + i,
+                              new ArrayList<MediaItem>());
+      dao.createPoint(point);
+      for (int j = 0; j < MEDIA_PER_POINT; j++) {
+        dao.createMedia(new MediaItem(-1, point.getId(), "/sdcard/" + i + "_" + j,
+                                      null));
+      }
+    }
+    return trip.getId();
+  }
+}
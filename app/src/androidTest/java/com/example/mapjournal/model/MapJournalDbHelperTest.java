@@ -0,0 +1,248 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that MapJournalDbHelper upgrades a version 1 database to the current
+ * schema, and that the lookups the DAO depends on use an index.
+ */
+public class MapJournalDbHelperTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "MapJournalDbHelperTest.db";
+  
+  // The schema shipped in version 1, including the missing spaces that
+  // created "_countINTEGER" columns
+  private static final String[] VERSION_1_SCHEMA = {
+      "CREATE TABLE MapJournalTrips(_id INTEGER PRIMARY KEY,_countINTEGER," +
+      "Name TEXT,Description TEXT)",
+      "CREATE TABLE MapJournalPoint(_id INTEGER PRIMARY KEY,_countINTEGER," +
+      "TripId INTEGER,Title TEXT,Latitude REAL,Longitude REAL,Altitude REAL," +
+      "Time INTEGER,Address TEXT,Journal TEXT," +
+      "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id))",
+      "CREATE TABLE MapJournalMedia(_id INTEGER PRIMARY KEY,_countINTEGER," +
+      "PointId INTEGER,Caption TEXT,Path TEXT," +
+      "FOREIGN KEY (PointId) REFERENCES MapJournalPoint(_id))"
+  };
+  
+  private MapJournalDbHelper helper;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    helper.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testUpgradeFromVersion1KeepsData() {
+    createVersion1Database();
+    
+    MapJournalDAO dao = new MapJournalDAO(helper);
+    dao.open();
+    Trip trip = dao.loadTripGraph(1);
+    assertEquals("Road trip", trip.getName());
+    assertEquals(1, trip.getPoints().size());
+    Point point = trip.getPoints().get(0);
+    assertEquals("Crater Lake", point.getTitle());
+    assertEquals(1, point.getAllMedia().size());
+    assertEquals("Blue water", point.getAllMedia().get(0).getCaption());
+    
+    // Columns and indexes added by the migrations are populated
+    assertEquals(1, dao.getPointsInBounds(42, -123, 43, -122, 10).size());
+    assertEquals(1, dao.search("crater", 10, 0).size());
+    assertEquals(1, dao.search("water", 10, 0).size());
+    dao.close();
+  }
+  
+  public void testUpgradeComputesTripStats() {
+    createVersion1Database();
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+        getContext().getDatabasePath(DATABASE_NAME), null);
+    db.execSQL("INSERT INTO MapJournalPoint(_id, TripId, Title, Latitude, " +
+               "Longitude, Altitude, Time) VALUES (2, 1, 'Rim', 43.0, " +
+               "-122.0, 50, 200)");
+    db.execSQL("INSERT INTO MapJournalTrips(_id, Name) VALUES (2, 'Empty')");
+    db.close();
+    
+    MapJournalDAO dao = new MapJournalDAO(helper);
+    dao.open();
+    TripStats upgraded = dao.getTripStats(1);
+    assertEquals(0, dao.getTripStats(2).getPointCount());
+    dao.rebuildAllTripStats();
+    TripStats rebuilt = dao.getTripStats(1);
+    assertEquals(2, upgraded.getPointCount());
+    assertEquals(rebuilt.getMediaCount(), upgraded.getMediaCount());
+    assertEquals(rebuilt.getDistance(), upgraded.getDistance(), 1e-6);
+    assertTrue(upgraded.getDistance() > 0);
+    assertEquals(50, upgraded.getElevationGain(), 1e-9);
+    assertEquals(rebuilt.getStartTime(), upgraded.getStartTime());
+    assertEquals(rebuilt.getEndTime(), upgraded.getEndTime());
+    assertEquals(rebuilt.getMinLongitude(), upgraded.getMinLongitude(), 1e-9);
+    assertEquals(rebuilt.getMaxLatitude(), upgraded.getMaxLatitude(), 1e-9);
+    dao.close();
+  }
+  
+  public void testUpgradeDropsBrokenCountColumns() {
+    createVersion1Database();
+    SQLiteDatabase db = helper.getWritableDatabase();
+    for (String table : new String[] { "MapJournalTrips",
+                                       "MapJournalPoint",
+                                       "MapJournalMedia" }) {
+      assertFalse(table, columns(db, table).contains("_countINTEGER"));
+    }
+    assertTrue(columns(db, "MapJournalPoint").contains("Geohash"));
+  }
+  
+  public void testUpgradedSchemaMatchesNewInstall() {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    List<String> created = schema(db);
+    helper.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    
+    createVersion1Database();
+    db = helper.getWritableDatabase();
+    assertEquals(created, schema(db));
+  }
+  
+  public void testUpgradeRemovesOrphansAndCascades() {
+    createVersion1Database();
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+        getContext().getDatabasePath(DATABASE_NAME), null);
+    // A point left behind by a trip deleted before deletes cascaded
+    db.execSQL("INSERT INTO MapJournalPoint(_id, TripId, Title) " +
+               "VALUES (2, 99, 'Orphan')");
+    db.execSQL("INSERT INTO MapJournalMedia(_id, PointId, Path) " +
+               "VALUES (2, 2, '/sdcard/orphan.jpg')");
+    db.close();
+    
+    MapJournalDAO dao = new MapJournalDAO(helper);
+    dao.open();
+    assertNull(dao.getPoint(2));
+    assertNull(dao.getMedia(2));
+    List<String> swept = new ArrayList<String>();
+    dao.readMediaSweep(10, swept);
+    assertEquals(1, swept.size());
+    assertEquals("/sdcard/orphan.jpg", swept.get(0));
+    
+    dao.deleteTrip(dao.getTrip(1));
+    assertNull(dao.getPoint(1));
+    assertNull(dao.getMedia(1));
+    swept.clear();
+    dao.readMediaSweep(10, swept);
+    assertEquals(2, swept.size());
+    dao.close();
+  }
+  
+  public void testUpgradedBlobTriggersCountReferences() {
+    createVersion1Database();
+    SQLiteDatabase db = helper.getWritableDatabase();
+    db.execSQL("INSERT INTO MapJournalBlob(_id, Hash, Size) " +
+               "VALUES (1, 'abc', 10)");
+    db.execSQL("UPDATE MapJournalMedia SET BlobId = 1 WHERE _id = 1");
+    assertEquals(1, refCount(db));
+    db.execSQL("DELETE FROM MapJournalMedia WHERE _id = 1");
+    assertEquals(0, refCount(db));
+    
+    // Files in the store are left to its collector, not the sweeper
+    Cursor c = db.rawQuery("SELECT COUNT(*) FROM MapJournalMediaSweep", null);
+    try {
+      c.moveToFirst();
+      assertEquals(0, c.getInt(0));
+    } finally {
+      c.close();
+    }
+  }
+  
+  public void testLookupsUseIndexes() {
+    createVersion1Database();
+    SQLiteDatabase db = helper.getWritableDatabase();
+    assertUsesIndex(db, "MapJournalPointTripTimeIndex",
+        "SELECT _id FROM MapJournalPoint WHERE TripId = 1 ORDER BY Time");
+    assertUsesIndex(db, "MapJournalMediaPointIndex",
+        "SELECT * FROM MapJournalMedia WHERE PointId = 1");
+    assertUsesIndex(db, "MapJournalPointGeohashIndex",
+        "SELECT * FROM MapJournalPoint WHERE Geohash BETWEEN 1 AND 100");
+  }
+  
+  private void createVersion1Database() {
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+        getContext().getDatabasePath(DATABASE_NAME), null);
+    for (String statement : VERSION_1_SCHEMA) {
+      db.execSQL(statement);
+    }
+    db.execSQL("INSERT INTO MapJournalTrips(_id, Name) VALUES (1, 'Road trip')");
+    db.execSQL("INSERT INTO MapJournalPoint(_id, TripId, Title, Latitude, " +
+               "Longitude, Time) VALUES (1, 1, 'Crater Lake', 42.94, " +
+               "-122.10, 100)");
+    db.execSQL("INSERT INTO MapJournalMedia(_id, PointId, Caption, Path) " +
+               "VALUES (1, 1, 'Blue water', '/sdcard/lake.jpg')");
+    db.setVersion(1);
+    db.close();
+  }
+  
+  private static int refCount(SQLiteDatabase db) {
+    Cursor c = db.rawQuery("SELECT RefCount FROM MapJournalBlob WHERE _id = 1",
+                           null);
+    try {
+      c.moveToFirst();
+      return c.getInt(0);
+    } finally {
+      c.close();
+    }
+  }
+  
+  private static List<String> columns(SQLiteDatabase db, String table) {
+    List<String> columns = new ArrayList<String>();
+    Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+    try {
+      while (c.moveToNext()) {
+        columns.add(c.getString(c.getColumnIndexOrThrow("name")));
+      }
+    } finally {
+      c.close();
+    }
+    return columns;
+  }
+  
+  private static List<String> schema(SQLiteDatabase db) {
+    List<String> schema = new ArrayList<String>();
+    Cursor c = db.rawQuery("SELECT type, name, tbl_name FROM sqlite_master" +
+                           " WHERE name NOT LIKE 'sqlite_%'" +
+                           " AND name NOT LIKE 'android_%'" +
+                           " ORDER BY type, name", null);
+    try {
+      while (c.moveToNext()) {
+        schema.add(c.getString(0) + " " + c.getString(1) + " " + c.getString(2));
+      }
+    } finally {
+      c.close();
+    }
+    return schema;
+  }
+  
+  private static void assertUsesIndex(SQLiteDatabase db,
+                                      String index,
+                                      String query) {
+    StringBuilder plan = new StringBuilder();
+    Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+    try {
+      while (c.moveToNext()) {
+        plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+      }
+    } finally {
+      c.close();
+    }
+    assertTrue("Expected " + index + " in plan:\n" + plan,
+               plan.toString().contains(index));
+  }
+}
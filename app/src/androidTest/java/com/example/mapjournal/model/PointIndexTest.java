@@ -0,0 +1,206 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks PointIndex queries against a linear scan, and that the index follows
+ * the DAO's writes.
+ */
+public class PointIndexTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "PointIndexTest.db";
+  private static final int POINTS = 3000;
+  
+  private List<Point> points;
+  private PointIndex index;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // Clumps around a city, the antimeridian and the north pole, plus noise
+    Random random = new Random(3);
+    double[][] centres = { { 47.6, -122.3 }, { -17.0, 179.9 }, { 89.5, 0 } };
+    points = new ArrayList<Point>();
+    for (int i = 0; i < POINTS; i++) {
+      double lat;
+      double lng;
+      if (i % 4 == 3) {
+        lat = random.nextDouble() * 180 - 90;
+        lng = random.nextDouble() * 360 - 180;
+      } else {
+        double[] centre = centres[i % 4];
+        lat = Math.max(-90, Math.min(90, centre[0] + random.nextGaussian()));
+        lng = centre[1] + random.nextGaussian();
+        lng = lng > 180 ? lng - 360 : lng < -180 ? lng + 360 : lng;
+      }
+      points.add(newPoint(i, i % 5, lat, lng));
+    }
+    index = new PointIndex(points);
+  }
+  
+  public void testNearestMatchesLinearScan() {
+    double[][] queries = { { 47.61, -122.31 }, { -17.2, -179.95 },
+                           { 90, 45 }, { 0, 0 }, { -60, 100 } };
+    for (double[] q : queries) {
+      List<Point> expected = sortedByDistance(points, q[0], q[1]);
+      List<Point> actual = index.nearest(q[0], q[1], 25);
+      assertEquals(25, actual.size());
+      for (int i = 0; i < 25; i++) {
+        assertEquals(distance(expected.get(i), q), distance(actual.get(i), q),
+                     1e-6);
+      }
+    }
+  }
+  
+  public void testWithinDistanceMatchesLinearScan() {
+    double[][] queries = { { 47.6, -122.3 }, { -17.0, 180 }, { 89.9, 170 } };
+    for (double[] q : queries) {
+      for (double metres : new double[] { 500, 20000, 150000 }) {
+        Set<Long> expected = new HashSet<Long>();
+        for (Point point : points) {
+          if (distance(point, q) <= metres) {
+            expected.add(point.getId());
+          }
+        }
+        List<Point> actual = index.withinDistance(q[0], q[1], metres);
+        assertEquals(expected, ids(actual));
+        for (int i = 1; i < actual.size(); i++) {
+          assertTrue(distance(actual.get(i - 1), q) <= distance(actual.get(i), q));
+        }
+      }
+    }
+  }
+  
+  public void testInBoundsMatchesLinearScan() {
+    assertEquals(boxScan(47, -123, 48, -122), ids(index.inBounds(47, -123, 48, -122)));
+    // Across the antimeridian
+    assertEquals(boxScan(-18, 179, -16, -179),
+                 ids(index.inBounds(-18, 179, -16, -179)));
+    assertFalse(index.inBounds(-18, 179, -16, -179).isEmpty());
+  }
+  
+  public void testInsertAndRemove() {
+    PointIndex incremental = new PointIndex();
+    for (Point point : points) {
+      incremental.insert(point);
+    }
+    assertEquals(POINTS, incremental.size());
+    for (int i = 0; i < POINTS; i += 2) {
+      assertTrue(incremental.remove(i));
+    }
+    assertFalse(incremental.remove(0));
+    assertEquals(POINTS / 2, incremental.size());
+    
+    List<Point> odd = new ArrayList<Point>();
+    for (Point point : points) {
+      if (point.getId() % 2 == 1) {
+        odd.add(point);
+      }
+    }
+    double[] q = { 47.6, -122.3 };
+    assertEquals(ids(sortedByDistance(odd, q[0], q[1]).subList(0, 10)),
+                 ids(incremental.nearest(q[0], q[1], 10)));
+    assertEquals(POINTS / 2, incremental.inBounds(-90, -180, 90, 180).size());
+  }
+  
+  public void testFollowsDaoWrites() {
+    getContext().deleteDatabase(DATABASE_NAME);
+    MapJournalDAO dao = new MapJournalDAO(
+        new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+    try {
+      PointIndex live = new PointIndex();
+      dao.addPointListener(live);
+      Trip trip = new Trip(-1, "Trip", null, null);
+      dao.createTrip(trip);
+      
+      final Point a = newPoint(-1, trip.getId(), 10, 10);
+      dao.createPoint(a);
+      assertEquals(1, live.size());
+      assertEquals(1, live.getChangeCount());
+      
+      // Moving a Point in place re-indexes it at its new location
+      a.setLatitude(20);
+      dao.updatePoint(a);
+      assertTrue(live.inBounds(9, 9, 11, 11).isEmpty());
+      assertEquals(1, live.inBounds(19, 9, 21, 11).size());
+      
+      final Point b = newPoint(-1, trip.getId(), 30, 30);
+      dao.writeBatch(new BatchWriter.Job() {
+        @Override
+        public void run(BatchWriter writer) {
+          writer.insertPoint(b);
+        }
+      });
+      assertEquals(2, live.size());
+      assertSame(b, live.nearest(30, 30, 1).get(0));
+      
+      dao.deletePoint(a);
+      assertEquals(1, live.size());
+      live.onTripDeleted(trip.getId());
+      assertEquals(0, live.size());
+      assertEquals(5, live.getChangeCount());
+      
+      // Bulk loads are not changes reported by a DAO
+      live.bulkLoad(Collections.singletonList(b));
+      assertEquals(5, live.getChangeCount());
+    } finally {
+      dao.close();
+      getContext().deleteDatabase(DATABASE_NAME);
+    }
+  }
+  
+  private Set<Long> boxScan(double minLat, double minLng,
+                            double maxLat, double maxLng) {
+    Set<Long> ids = new HashSet<Long>();
+    for (Point point : points) {
+      double lat = point.getLatitude();
+      double lng = point.getLongitude();
+      boolean inLng = minLng <= maxLng ? lng >= minLng && lng <= maxLng
+                                       : lng >= minLng || lng <= maxLng;
+      if (lat >= minLat && lat <= maxLat && inLng) {
+        ids.add(point.getId());
+      }
+    }
+    return ids;
+  }
+  
+  private static List<Point> sortedByDistance(List<Point> list,
+                                              final double lat,
+                                              final double lng) {
+    List<Point> sorted = new ArrayList<Point>(list);
+    Collections.sort(sorted, new Comparator<Point>() {
+      @Override
+      public int compare(Point a, Point b) {
+        return Double.compare(distance(a, new double[] { lat, lng }),
+                              distance(b, new double[] { lat, lng }));
+      }
+    });
+    return sorted;
+  }
+  
+  private static double distance(Point point, double[] q) {
+    return PointIndex.distance(q[0], q[1], point.getLatitude(),
+                               point.getLongitude());
+  }
+  
+  private static Set<Long> ids(List<Point> list) {
+    Set<Long> ids = new HashSet<Long>();
+    for (Point point : list) {
+      ids.add(point.getId());
+    }
+    return ids;
+  }
+  
+  private static Point newPoint(long id, long tripId, double lat, double lng) {
+    return new Point(id, "Point " + id, tripId, lat, lng, 0, 0, null, null,
+                     new ArrayList<MediaItem>());
+  }
+}
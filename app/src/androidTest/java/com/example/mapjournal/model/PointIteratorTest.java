@@ -0,0 +1,74 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the streaming point APIs of MapJournalDAO.
+ */
+public class PointIteratorTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "PointIteratorTest.db";
+  
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = new MapJournalDAO(new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+    trip = new Trip(-1, "Streaming", null, null);
+    dao.createTrip(trip);
+    // Inserted out of order to check that points come back sorted by time
+    for (int time : new int[] { 30, 10, 20 }) {
+      dao.createPoint(new Point(-1, "At " + time, trip.getId(), 1, 2, 3, time,
+                                null, null, null));
+    }
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testForEachPointVisitsInTimeOrderWithOneInstance() {
+    final List<Integer> times = new ArrayList<Integer>();
+    final List<Point> instances = new ArrayList<Point>();
+    dao.forEachPoint(trip.getId(), new PointVisitor() {
+      @Override
+      public void visit(Point point) {
+        times.add(point.getTime());
+        if (!instances.contains(point)) {
+          instances.add(point);
+        }
+      }
+    });
+    assertEquals("[10, 20, 30]", times.toString());
+    assertEquals(1, instances.size());
+  }
+  
+  public void testIteratorWithoutReuseReturnsDistinctPoints() {
+    PointIterator points = dao.iteratePoints(trip.getId(), false);
+    Point first = points.next();
+    Point second = points.next();
+    assertNotSame(first, second);
+    assertEquals(10, first.getTime());
+    assertEquals("At 20", second.getTitle());
+    assertTrue(points.hasNext());
+    points.close();
+    assertFalse(points.hasNext());
+    points.close();
+  }
+  
+  public void testGetMissingRowsReturnNull() {
+    assertNull(dao.getPoint(-1));
+    assertNull(dao.getMedia(-1));
+    assertNull(dao.getTrip(-1));
+    assertEquals(1, dao.getAllTrips().size());
+  }
+}
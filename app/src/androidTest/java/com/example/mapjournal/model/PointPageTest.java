@@ -0,0 +1,119 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for keyset pagination of a trip's points and the page prefetcher.
+ */
+public class PointPageTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "PointPageTest.db";
+  private static final int POINTS = 250;
+  private static final int PAGE_SIZE = 50;
+  
+  private MapJournalDbHelper helper;
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    dao = new MapJournalDAO(helper);
+    dao.open();
+    trip = new Trip(-1, "Timeline", null, null);
+    dao.createTrip(trip);
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        // Three points share every timestamp, so pages split ties
+        for (int i = 0; i < POINTS; i++) {
+          writer.insertPoint(new Point(-1, null, trip.getId(), 0, 0, 0,
+                                       (POINTS - i) / 3, null, null, null));
+        }
+      }
+    });
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testPagesCoverEveryPointInOrder() {
+    List<Point> all = new ArrayList<Point>();
+    List<Point> page = dao.getPointsPage(trip.getId(), Long.MIN_VALUE, -1,
+                                         PAGE_SIZE);
+    while (!page.isEmpty()) {
+      all.addAll(page);
+      Point last = page.get(page.size() - 1);
+      page = dao.getPointsPage(trip.getId(), last.getTime(), last.getId(),
+                               PAGE_SIZE);
+    }
+    assertOrderedAndComplete(all);
+  }
+  
+  public void testPrefetcherReturnsEveryPage() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      PointPagePrefetcher pages =
+          new PointPagePrefetcher(dao, trip.getId(), PAGE_SIZE, executor);
+      List<Point> all = new ArrayList<Point>();
+      List<Point> page = pages.nextPage();
+      while (!page.isEmpty()) {
+        assertTrue(page.size() <= PAGE_SIZE);
+        all.addAll(page);
+        page = pages.nextPage();
+      }
+      assertOrderedAndComplete(all);
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  public void testPageQuerySeeksIndex() {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    Cursor c = db.rawQuery(
+        "EXPLAIN QUERY PLAN SELECT * FROM MapJournalPoint" +
+        " WHERE TripId = 1 AND Time >= 5 AND (Time > 5 OR _id > 10)" +
+        " ORDER BY Time, _id LIMIT 50", null);
+    StringBuilder plan = new StringBuilder();
+    try {
+      while (c.moveToNext()) {
+        plan.append(c.getString(c.getColumnIndexOrThrow("detail")));
+      }
+    } finally {
+      c.close();
+    }
+    String detail = plan.toString();
+    assertTrue(detail, detail.contains("MapJournalPointTripTimeIndex"));
+    assertTrue(detail, detail.contains("Time>?"));
+    assertFalse(detail, detail.contains("TEMP B-TREE"));
+  }
+  
+  private static void assertOrderedAndComplete(List<Point> points) {
+    assertEquals(POINTS, points.size());
+    Set<Long> ids = new HashSet<Long>();
+    for (int i = 0; i < points.size(); i++) {
+      assertTrue(ids.add(points.get(i).getId()));
+      if (i > 0) {
+        Point previous = points.get(i - 1);
+        Point current = points.get(i);
+        assertTrue(previous.getTime() < current.getTime() ||
+                   (previous.getTime() == current.getTime() &&
+                    previous.getId() < current.getId()));
+      }
+    }
+  }
+}
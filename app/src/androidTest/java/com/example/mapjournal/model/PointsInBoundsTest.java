@@ -0,0 +1,94 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for MapJournalDAO.getPointsInBounds and the geohash cover it uses.
+ */
+public class PointsInBoundsTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "PointsInBoundsTest.db";
+  
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = new MapJournalDAO(new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+    trip = new Trip(-1, "Bounds", null, null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testPointsInsideBoxAreReturned() {
+    Point seattle = createPoint("Seattle", 47.61, -122.33);
+    Point tacoma = createPoint("Tacoma", 47.25, -122.44);
+    createPoint("Portland", 45.52, -122.68);
+    
+    Set<Long> ids = ids(dao.getPointsInBounds(47.0, -123.0, 48.0, -122.0, 100));
+    assertEquals(2, ids.size());
+    assertTrue(ids.contains(seattle.getId()));
+    assertTrue(ids.contains(tacoma.getId()));
+  }
+  
+  public void testBoxAcrossAntimeridian() {
+    Point fiji = createPoint("Fiji", -17.7, 178.0);
+    Point samoa = createPoint("Samoa", -13.8, -172.1);
+    createPoint("Sydney", -33.9, 151.2);
+    
+    Set<Long> ids = ids(dao.getPointsInBounds(-20.0, 170.0, -10.0, -170.0, 100));
+    assertEquals(2, ids.size());
+    assertTrue(ids.contains(fiji.getId()));
+    assertTrue(ids.contains(samoa.getId()));
+  }
+  
+  public void testLimit() {
+    for (int i = 0; i < 10; i++) {
+      createPoint("Point " + i, 10.0 + i * 0.01, 20.0);
+    }
+    assertEquals(3, dao.getPointsInBounds(9.0, 19.0, 11.0, 21.0, 3).size());
+  }
+  
+  public void testCoveringRangesContainEveryPointInBox() {
+    long[] ranges = GeoHash.coveringRanges(-1.0, -1.0, 1.0, 1.0, 16);
+    assertTrue(ranges.length <= 2 * 16);
+    for (double lat = -1.0; lat <= 1.0; lat += 0.05) {
+      for (double lng = -1.0; lng <= 1.0; lng += 0.05) {
+        long hash = GeoHash.encode(lat, lng);
+        boolean covered = false;
+        for (int i = 0; i < ranges.length; i += 2) {
+          covered |= hash >= ranges[i] && hash <= ranges[i + 1];
+        }
+        assertTrue("Not covered: " + lat + "," + lng, covered);
+      }
+    }
+  }
+  
+  private Point createPoint(String title, double lat, double lng) {
+    Point point = new Point(-1, title, trip.getId(), lat, lng, 0, 0, null, null,
+                            new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    return point;
+  }
+  
+  private static Set<Long> ids(List<Point> points) {
+    Set<Long> ids = new HashSet<Long>();
+    for (Point point : points) {
+      ids.add(point.getId());
+    }
+    return ids;
+  }
+}
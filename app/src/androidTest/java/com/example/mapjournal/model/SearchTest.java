@@ -0,0 +1,80 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for MapJournalDAO.search and the triggers that maintain the search
+ * table.
+ */
+public class SearchTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "SearchTest.db";
+  
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = new MapJournalDAO(new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+    trip = new Trip(-1, "Search", null, null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testTitleMatchesRankAboveJournalMatches() {
+    Point inJournal = createPoint("Lunch", "Walked along the beach after lunch");
+    Point inTitle = createPoint("Beach", "Sunny all day");
+    createPoint("Museum", "Rainy");
+    
+    List<SearchResult> results = dao.search("beach", 10, 0);
+    assertEquals(2, results.size());
+    assertEquals(inTitle.getId(), results.get(0).getPointId());
+    assertEquals(inJournal.getId(), results.get(1).getPointId());
+    assertTrue(results.get(1).getSnippet().contains("<b>beach</b>"));
+  }
+  
+  public void testIndexFollowsUpdatesAndDeletes() {
+    Point point = createPoint("Harbor", null);
+    point.setJournal("Ferry ride");
+    dao.updatePoint(point);
+    assertEquals(1, dao.search("harbor", 10, 0).size());
+    assertEquals(1, dao.search("ferry", 10, 0).size());
+    
+    MediaItem item = new MediaItem(-1, point.getId(), "/sdcard/1.jpg", "Seagulls");
+    dao.createMedia(item);
+    assertEquals(1, dao.search("seagulls", 10, 0).size());
+    dao.deleteMedia(item);
+    assertEquals(0, dao.search("seagulls", 10, 0).size());
+    
+    point.setTitle("Pier");
+    dao.updatePoint(point);
+    assertEquals(0, dao.search("harbor", 10, 0).size());
+  }
+  
+  public void testPaging() {
+    for (int i = 0; i < 5; i++) {
+      createPoint("Hike " + i, null);
+    }
+    assertEquals(2, dao.search("hike", 2, 0).size());
+    assertEquals(1, dao.search("hike", 2, 4).size());
+    assertEquals(0, dao.search("hike", 2, 5).size());
+  }
+  
+  private Point createPoint(String title, String journal) {
+    Point point = new Point(-1, title, trip.getId(), 0, 0, 0, 0, null, journal,
+                            new ArrayList<MediaItem>());
+    dao.createPoint(point);
+    return point;
+  }
+}
@@ -0,0 +1,25 @@
+package com.example.mapjournal.model;
+
+import android.content.Context;
+
+/**
+ * Opens DAOs on scratch databases for tests outside the model package, which
+ * cannot reach the MapJournalDbHelper constructor that takes a name.
+ */
+public final class TestDatabases {
+  private TestDatabases() {
+  }
+  
+  /**
+   * Opens a DAO on a database of its own rather than the app's.
+   * @param context The test's context
+   * @param name The file name of the database
+   * @return An open DAO
+   */
+  public static MapJournalDAO open(Context context, String name) {
+    MapJournalDAO dao =
+        new MapJournalDAO(new MapJournalDbHelper(context, name));
+    dao.open();
+    return dao;
+  }
+}
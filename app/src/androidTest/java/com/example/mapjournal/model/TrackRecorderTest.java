@@ -0,0 +1,162 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.example.mapjournal.service.TrackRecorder;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for buffering and batched writing in TrackRecorder.
+ */
+public class TrackRecorderTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "TrackRecorderTest.db";
+  private static final long TIMEOUT = 5000;
+  
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = new MapJournalDAO(new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+    trip = new Trip(-1, "Walk", null, null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testFullBatchesAreWrittenWithoutStopping() throws Exception {
+    TrackRecorder recorder = newRecorder(trip, 100, 10, 60 * 1000);
+    recorder.start();
+    for (int i = 0; i < 25; i++) {
+      assertTrue(offer(recorder, i));
+    }
+    waitForFixes(20);
+    
+    recorder.stop();
+    assertTrue(recorder.awaitTermination(TIMEOUT));
+    List<TrackSegment> segments = dao.getTrackSegments(trip.getId());
+    assertEquals(3, segments.size());
+    assertEquals(10, segments.get(0).size());
+    assertEquals(5, segments.get(2).size());
+    assertEquals(24000L, segments.get(2).getEndTime());
+  }
+  
+  public void testPartialBatchIsWrittenAfterInterval() throws Exception {
+    TrackRecorder recorder = newRecorder(trip, 100, 50, 50);
+    recorder.start();
+    offer(recorder, 0);
+    offer(recorder, 1);
+    waitForFixes(2);
+    
+    recorder.stop();
+    assertTrue(recorder.awaitTermination(TIMEOUT));
+    assertEquals(2, countFixes());
+  }
+  
+  public void testFullBufferRejectsFixes() throws Exception {
+    // Not started, so nothing drains the buffer
+    TrackRecorder recorder = newRecorder(trip, 4, 2, 60 * 1000);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(offer(recorder, i));
+    }
+    assertFalse(offer(recorder, 4));
+    assertEquals(1, recorder.getDroppedCount());
+    
+    recorder.start();
+    recorder.stop();
+    assertTrue(recorder.awaitTermination(TIMEOUT));
+    assertEquals(4, countFixes());
+    assertFalse(offer(recorder, 5));
+  }
+  
+  public void testRedundantFixesAreNotStored() throws Exception {
+    TrackRecorder recorder = newRecorder(trip, 100, 10, 60 * 1000);
+    recorder.simplifyWithin(1);
+    recorder.start();
+    // A straight line, then a turn
+    for (int i = 0; i < 50; i++) {
+      assertTrue(offer(recorder, i));
+    }
+    assertTrue(recorder.offer(47.0 + 49 * 1e-5, -121.999, 10f, 50000L));
+    recorder.stop();
+    assertTrue(recorder.awaitTermination(TIMEOUT));
+    
+    TrackSegment segment = dao.getTrackSegments(trip.getId()).get(0);
+    assertEquals(3, segment.size());
+    assertEquals(0L, segment.getTime(0));
+    assertEquals(49000L, segment.getTime(1));
+    assertEquals(50000L, segment.getTime(2));
+  }
+  
+  public void testUnsavedTripIsCreated() throws Exception {
+    Trip newTrip = new Trip(-1, "Recorded", "", null);
+    TrackRecorder recorder = newRecorder(newTrip, 10, 5, 60 * 1000);
+    recorder.start();
+    offer(recorder, 0);
+    recorder.stop();
+    assertTrue(recorder.awaitTermination(TIMEOUT));
+    
+    assertTrue(newTrip.getId() >= 0);
+    assertEquals("Recorded", dao.getTrip(newTrip.getId()).getName());
+    assertEquals(1, dao.getTrackSegments(newTrip.getId()).size());
+  }
+  
+  public void testTripListenerSeesCreatedTrip() throws Exception {
+    Trip newTrip = new Trip(-1, "Recorded", "", null);
+    final List<Trip> created = new ArrayList<Trip>();
+    TrackRecorder recorder = newRecorder(newTrip, 10, 5, 60 * 1000);
+    recorder.setTripListener(new TrackRecorder.TripListener() {
+      @Override
+      public void onTripCreated(Trip trip) {
+        created.add(trip);
+      }
+    });
+    recorder.start();
+    offer(recorder, 0);
+    recorder.stop();
+    assertTrue(recorder.awaitTermination(TIMEOUT));
+    
+    assertEquals(1, created.size());
+    assertSame(newTrip, created.get(0));
+    assertTrue(created.get(0).getId() >= 0);
+  }
+  
+  private TrackRecorder newRecorder(Trip t,
+                                    int capacity,
+                                    int batchSize,
+                                    long flushInterval) {
+    MapJournalDAO writerDao = new MapJournalDAO(
+        new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    return new TrackRecorder(writerDao, t, capacity, batchSize, flushInterval);
+  }
+  
+  private boolean offer(TrackRecorder recorder, int i) {
+    return recorder.offer(47.0 + i * 1e-5, -122.0, 10f, i * 1000L);
+  }
+  
+  private void waitForFixes(int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (countFixes() < expected) {
+      assertTrue("Timed out", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+  
+  private int countFixes() {
+    int fixes = 0;
+    for (TrackSegment segment : dao.getTrackSegments(trip.getId())) {
+      fixes += segment.size();
+    }
+    return fixes;
+  }
+}
@@ -0,0 +1,80 @@
+package com.example.mapjournal.model;
+
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for TrackSegment encoding and storage.
+ */
+public class TrackSegmentTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "TrackSegmentTest.db";
+  private static final int FIXES = 3600;
+  
+  private MapJournalDAO dao;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    dao = new MapJournalDAO(new MapJournalDbHelper(getContext(), DATABASE_NAME));
+    dao.open();
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testEncodingRoundTripsWithinPrecision() {
+    TrackSegment segment = walk(1);
+    TrackSegment decoded = TrackSegment.decode(7, 1, segment.encode());
+    assertEquals(FIXES, decoded.size());
+    for (int i = 0; i < FIXES; i++) {
+      assertEquals(segment.getLatitude(i), decoded.getLatitude(i), 1e-7);
+      assertEquals(segment.getLongitude(i), decoded.getLongitude(i), 1e-7);
+      assertEquals(segment.getAltitude(i), decoded.getAltitude(i), 0.051f);
+      assertEquals(segment.getTime(i), decoded.getTime(i));
+    }
+  }
+  
+  public void testEncodingIsCompact() {
+    // A row per fix stores at least 4 doubles and 2 integers
+    byte[] data = walk(1).encode();
+    assertTrue(data.length + " bytes", data.length * 4 < FIXES * 40);
+  }
+  
+  public void testSegmentsAreStoredPerTrip() {
+    Trip trip = new Trip(-1, "Walk", null, null);
+    dao.createTrip(trip);
+    TrackSegment second = walk(trip.getId());
+    TrackSegment first = new TrackSegment(-1, trip.getId());
+    first.add(47.0, -122.0, 10f, 1000L);
+    dao.createTrackSegment(second);
+    dao.createTrackSegment(first);
+    
+    List<TrackSegment> segments = dao.getTrackSegments(trip.getId());
+    assertEquals(2, segments.size());
+    assertEquals(first.getId(), segments.get(0).getId());
+    assertEquals(FIXES, segments.get(1).size());
+    
+    Point point = segments.get(0).toPoint(0, "Start");
+    assertEquals(trip.getId(), point.getTripId());
+    assertEquals(1, point.getTime());
+    
+    dao.deleteTrackSegment(first);
+    assertEquals(1, dao.getTrackSegments(trip.getId()).size());
+  }
+  
+  private static TrackSegment walk(long tripId) {
+    TrackSegment segment = new TrackSegment(-1, tripId);
+    long start = 1400000000000L;
+    for (int i = 0; i < FIXES; i++) {
+      segment.add(47.6 + i * 1.3e-5, -122.3 + Math.sin(i / 60.0) * 1e-3,
+                  50f + i * 0.01f, start + i * 1000L);
+    }
+    return segment;
+  }
+}
@@ -0,0 +1,156 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the error bounds of TrackSimplifier and TrackLevels.
+ */
+public class TrackSimplifierTest extends AndroidTestCase {
+  private static final int FIXES = 5000;
+  private static final double TOLERANCE = 5;
+  // Allowance for floating point error in the distance checks
+  private static final double EPSILON = 1e-6;
+  
+  private double[] latitudes;
+  private double[] longitudes;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // A wandering walk with GPS noise, one fix a second
+    Random random = new Random(42);
+    latitudes = new double[FIXES];
+    longitudes = new double[FIXES];
+    double heading = 0;
+    latitudes[0] = 47.6;
+    longitudes[0] = -122.3;
+    for (int i = 1; i < FIXES; i++) {
+      heading += random.nextGaussian() * 0.2;
+      latitudes[i] = latitudes[i - 1] + Math.cos(heading) * 1.5e-5
+          + random.nextGaussian() * 1e-5;
+      longitudes[i] = longitudes[i - 1] + Math.sin(heading) * 2e-5
+          + random.nextGaussian() * 1e-5;
+    }
+  }
+  
+  public void testDouglasPeuckerStaysWithinTolerance() {
+    int[] kept = TrackSimplifier.simplify(latitudes, longitudes, FIXES,
+                                          TOLERANCE);
+    assertEquals(0, kept[0]);
+    assertEquals(FIXES - 1, kept[kept.length - 1]);
+    assertTrue(kept.length + " kept", kept.length < FIXES / 2);
+    assertWithin(kept, TOLERANCE);
+  }
+  
+  public void testStraightLineKeepsEndpoints() {
+    double[] lats = new double[100];
+    double[] lngs = new double[100];
+    for (int i = 0; i < 100; i++) {
+      lats[i] = 10 + i * 1e-4;
+      lngs[i] = 20 + i * 1e-4;
+    }
+    int[] kept = TrackSimplifier.simplify(lats, lngs, 100, 0.5);
+    assertEquals(2, kept.length);
+  }
+  
+  public void testDistanceAcrossAntimeridian() {
+    // 0.0002 degrees of longitude at the equator is about 22 metres
+    double d = TrackSimplifier.distanceToSegment(0.0001, 179.9999,
+                                                 0, 179.9999,
+                                                 0, -179.9999);
+    assertEquals(11.1, d, 0.1);
+  }
+  
+  public void testStreamStaysWithinTolerance() {
+    final List<Integer> kept = new ArrayList<Integer>();
+    TrackSimplifier.Stream stream = new TrackSimplifier.Stream(TOLERANCE,
+        new TrackSimplifier.Sink() {
+          @Override
+          public void fix(double latitude, double longitude, float altitude,
+                          long time) {
+            kept.add((int) time);
+          }
+        });
+    for (int i = 0; i < FIXES; i++) {
+      stream.add(latitudes[i], longitudes[i], 0f, i);
+    }
+    stream.flush();
+    
+    int[] indexes = new int[kept.size()];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = kept.get(i);
+    }
+    assertEquals(0, indexes[0]);
+    assertEquals(FIXES - 1, indexes[indexes.length - 1]);
+    assertEquals(FIXES - indexes.length, stream.getDroppedCount());
+    assertTrue(indexes.length + " kept", indexes.length < FIXES / 2);
+    assertWithin(indexes, TOLERANCE);
+  }
+  
+  public void testStreamWindowBoundsSpan() {
+    final List<Long> kept = new ArrayList<Long>();
+    TrackSimplifier.Stream stream = new TrackSimplifier.Stream(1,
+        new TrackSimplifier.Sink() {
+          @Override
+          public void fix(double latitude, double longitude, float altitude,
+                          long time) {
+            kept.add(time);
+          }
+        }, 10);
+    for (int i = 0; i < 100; i++) {
+      stream.add(0, i * 1e-5, 0f, i);
+    }
+    stream.flush();
+    for (int i = 1; i < kept.size(); i++) {
+      assertTrue(kept.get(i) - kept.get(i - 1) <= 10);
+    }
+  }
+  
+  public void testLevelsAreBoundedAndNested() {
+    int maxVertices = 200;
+    TrackLevels levels = new TrackLevels(latitudes, longitudes, FIXES,
+                                         maxVertices, 1);
+    int previous = 0;
+    for (int zoom = TrackLevels.MIN_ZOOM; zoom <= TrackLevels.MAX_ZOOM; zoom++) {
+      int[] level = levels.getIndexes(zoom);
+      assertTrue(level.length <= maxVertices);
+      assertTrue(level.length >= previous);
+      assertEquals(0, level[0]);
+      assertEquals(FIXES - 1, level[level.length - 1]);
+      previous = level.length;
+    }
+    assertEquals(maxVertices, levels.getIndexes(TrackLevels.MAX_ZOOM).length);
+  }
+  
+  public void testUncappedLevelsStayWithinPixelTolerance() {
+    TrackLevels levels = new TrackLevels(latitudes, longitudes, FIXES,
+                                         FIXES, 1);
+    for (int zoom = 10; zoom <= TrackLevels.MAX_ZOOM; zoom += 4) {
+      double tolerance = TrackLevels.metresPerPixel(zoom, 47.6) * 1.01;
+      assertWithin(levels.getIndexes(zoom), tolerance);
+    }
+  }
+  
+  /**
+   * Checks that every fix lies within the tolerance of the simplified
+   * segment that replaced it.
+   */
+  private void assertWithin(int[] kept, double tolerance) {
+    for (int k = 1; k < kept.length; k++) {
+      int first = kept[k - 1];
+      int last = kept[k];
+      assertTrue(first < last);
+      for (int i = first + 1; i < last; i++) {
+        double d = TrackSimplifier.distanceToSegment(
+            latitudes[i], longitudes[i],
+            latitudes[first], longitudes[first],
+            latitudes[last], longitudes[last]);
+        assertTrue("Fix " + i + " is " + d + "m off", d <= tolerance + EPSILON);
+      }
+    }
+  }
+}
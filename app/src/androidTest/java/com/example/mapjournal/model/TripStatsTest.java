@@ -0,0 +1,176 @@
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Tests that the stored trip statistics follow every write to the trip's
+ * points and media.
+ */
+public class TripStatsTest extends AndroidTestCase {
+  private static final String DATABASE_NAME = "TripStatsTest.db";
+  private static final double EPSILON = 1e-6;
+  
+  private MapJournalDbHelper helper;
+  private MapJournalDAO dao;
+  private Trip trip;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    getContext().deleteDatabase(DATABASE_NAME);
+    helper = new MapJournalDbHelper(getContext(), DATABASE_NAME);
+    dao = new MapJournalDAO(helper);
+    dao.open();
+    trip = new Trip(-1, "Coast", null, null);
+    dao.createTrip(trip);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    dao.close();
+    getContext().deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+  
+  public void testStatsOfPath() {
+    // Visited out of order, so the middle point is inserted between the others
+    dao.createPoint(point(0, 0, 0, 100));
+    dao.createPoint(point(0, 2, 50, 300));
+    dao.createPoint(point(0, 1, 120, 200));
+    
+    TripStats stats = dao.getTripStats(trip.getId());
+    assertEquals(3, stats.getPointCount());
+    assertEquals(PointIndex.distance(0, 0, 0, 2), stats.getDistance(), 1e-3);
+    assertEquals(120.0, stats.getElevationGain(), EPSILON);
+    assertEquals(100, stats.getStartTime());
+    assertEquals(300, stats.getEndTime());
+    assertEquals(200, stats.getDuration());
+    assertEquals(0.0, stats.getMinLongitude(), EPSILON);
+    assertEquals(2.0, stats.getMaxLongitude(), EPSILON);
+    assertEquals("Coast", stats.getTrip().getName());
+  }
+  
+  public void testDeletingEdgePointShrinksExtent() {
+    dao.createPoint(point(0, 0, 0, 100));
+    dao.createPoint(point(1, 1, 0, 200));
+    Point last = point(5, 5, 0, 300);
+    dao.createPoint(last);
+    
+    dao.deletePoint(last);
+    TripStats stats = dao.getTripStats(trip.getId());
+    assertEquals(2, stats.getPointCount());
+    assertEquals(1.0, stats.getMaxLatitude(), EPSILON);
+    assertEquals(1.0, stats.getMaxLongitude(), EPSILON);
+    assertEquals(200, stats.getEndTime());
+    assertEquals(PointIndex.distance(0, 0, 1, 1), stats.getDistance(), 1e-3);
+  }
+  
+  public void testMediaCountFollowsPoint() {
+    Trip other = new Trip(-1, "Other", null, null);
+    dao.createTrip(other);
+    Point point = point(0, 0, 0, 100);
+    dao.createPoint(point);
+    dao.createMedia(new MediaItem(-1, point.getId(), "a.jpg", null));
+    MediaItem item = new MediaItem(-1, point.getId(), "b.jpg", null);
+    dao.createMedia(item);
+    assertEquals(2, dao.getTripStats(trip.getId()).getMediaCount());
+    
+    dao.deleteMedia(item);
+    assertEquals(1, dao.getTripStats(trip.getId()).getMediaCount());
+    
+    // Moving the point takes its media with it
+    point.setTripId(other.getId());
+    dao.updatePoint(point);
+    assertEquals(0, dao.getTripStats(trip.getId()).getPointCount());
+    assertEquals(0, dao.getTripStats(trip.getId()).getMediaCount());
+    assertEquals(1, dao.getTripStats(other.getId()).getPointCount());
+    assertEquals(1, dao.getTripStats(other.getId()).getMediaCount());
+  }
+  
+  public void testIncrementalStatsMatchRebuild() {
+    final Random random = new Random(7);
+    final List<Point> points = new ArrayList<Point>();
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        for (int i = 0; i < 200; i++) {
+          Point point = randomPoint(random);
+          writer.insertPoint(point);
+          points.add(point);
+          if (i % 10 == 0) {
+            writer.insertMedia(new MediaItem(-1, point.getId(), "m.jpg", null));
+          }
+        }
+      }
+    });
+    for (int i = 0; i < 50; i++) {
+      Point point = points.get(random.nextInt(points.size()));
+      point.setLatitude(random.nextDouble() * 10);
+      point.setAltitude(random.nextDouble() * 500);
+      point.setTime(random.nextInt(100));
+      dao.updatePoint(point);
+    }
+    for (int i = 0; i < 40; i++) {
+      Point point = points.remove(random.nextInt(points.size()));
+      for (MediaItem item : dao.getMediaByPoint(point.getId())) {
+        point.AddMediaItem(item);
+      }
+      dao.deletePoint(point);
+    }
+    for (int i = 0; i < 20; i++) {
+      Point point = randomPoint(random);
+      dao.createPoint(point);
+      points.add(point);
+    }
+    
+    TripStats incremental = dao.getTripStats(trip.getId());
+    dao.rebuildTripStats(trip.getId());
+    TripStats rebuilt = dao.getTripStats(trip.getId());
+    assertEquals(180, rebuilt.getPointCount());
+    assertStatsEqual(rebuilt, incremental);
+  }
+  
+  public void testAllTripStatsIncludesEmptyTrips() {
+    Trip empty = new Trip(-1, "Empty", null, null);
+    dao.createTrip(empty);
+    dao.createPoint(point(0, 0, 0, 100));
+    
+    List<TripStats> all = dao.getAllTripStats();
+    assertEquals(2, all.size());
+    for (TripStats stats : all) {
+      if (stats.getTripId() == empty.getId()) {
+        assertEquals(0, stats.getPointCount());
+        assertEquals(0.0, stats.getDistance(), EPSILON);
+      } else {
+        assertEquals(1, stats.getPointCount());
+      }
+    }
+  }
+  
+  private Point point(double lat, double lng, double alt, int time) {
+    return new Point(-1, null, trip.getId(), lat, lng, alt, time, null, null,
+                     new ArrayList<MediaItem>());
+  }
+  
+  private Point randomPoint(Random random) {
+    return point(random.nextDouble() * 10, random.nextDouble() * 10,
+                 random.nextDouble() * 500, random.nextInt(100));
+  }
+  
+  private static void assertStatsEqual(TripStats expected, TripStats actual) {
+    assertEquals(expected.getPointCount(), actual.getPointCount());
+    assertEquals(expected.getMediaCount(), actual.getMediaCount());
+    assertEquals(expected.getDistance(), actual.getDistance(), 1e-3);
+    assertEquals(expected.getElevationGain(), actual.getElevationGain(), 1e-6);
+    assertEquals(expected.getStartTime(), actual.getStartTime());
+    assertEquals(expected.getEndTime(), actual.getEndTime());
+    assertEquals(expected.getMinLatitude(), actual.getMinLatitude(), EPSILON);
+    assertEquals(expected.getMinLongitude(), actual.getMinLongitude(), EPSILON);
+    assertEquals(expected.getMaxLatitude(), actual.getMaxLatitude(), EPSILON);
+    assertEquals(expected.getMaxLongitude(), actual.getMaxLongitude(), EPSILON);
+  }
+}
@@ -0,0 +1,120 @@
+package com.example.mapjournal.tile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in tile server for tests. GET /z/x/y.png returns the bytes of
+ * "tile z/x/y", except that tiles with an odd column at zoom 3 return 404.
+ */
+public class LocalTileServer {
+  private final ServerSocket socket;
+  private final ExecutorService pool = Executors.newCachedThreadPool();
+  private final AtomicInteger requestCount = new AtomicInteger();
+  
+  public LocalTileServer() throws IOException {
+    socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    });
+  }
+  
+  /**
+   * Get the URL template for the server's tiles.
+   */
+  public String getUrlTemplate() {
+    return "http://127.0.0.1:" + socket.getLocalPort() + "/{z}/{x}/{y}.png";
+  }
+  
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+  
+  public void shutdown() throws IOException {
+    socket.close();
+    pool.shutdownNow();
+  }
+  
+  /**
+   * The body served for a tile.
+   */
+  public static byte[] body(int zoom, int x, int y) {
+    try {
+      return ("tile " + zoom + "/" + x + "/" + y).getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+  
+  private void accept() {
+    while (!socket.isClosed()) {
+      final Socket client;
+      try {
+        client = socket.accept();
+      } catch (IOException e) {
+        return;   // Shut down
+      }
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            serve(client);
+          } catch (IOException e) {
+            // The client went away
+          } finally {
+            try {
+              client.close();
+            } catch (IOException e) {
+              // Already closed
+            }
+          }
+        }
+      });
+    }
+  }
+  
+  private void serve(Socket client) throws IOException {
+    requestCount.incrementAndGet();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(client.getInputStream(), "US-ASCII"));
+    String requestLine = in.readLine();
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      // Skip the headers
+    }
+    
+    byte[] body = null;
+    String[] path = requestLine.split(" ")[1].split("/");
+    if (path.length == 4 && path[3].endsWith(".png")) {
+      int zoom = Integer.parseInt(path[1]);
+      int x = Integer.parseInt(path[2]);
+      int y = Integer.parseInt(path[3].substring(0, path[3].length() - 4));
+      if (zoom != 3 || x % 2 == 0) {
+        body = body(zoom, x, y);
+      }
+    }
+    
+    OutputStream out = client.getOutputStream();
+    String status = body != null ? "200 OK" : "404 Not Found";
+    int length = body != null ? body.length : 0;
+    out.write(("HTTP/1.1 " + status + "\r\n" +
+               "Content-Type: image/png\r\n" +
+               "Content-Length: " + length + "\r\n" +
+               "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+    if (body != null) {
+      out.write(body);
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,227 @@
+package com.example.mapjournal.tile;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for tile coordinates, the MBTiles store and prefetching from a
+ * local tile server.
+ */
+public class TileCacheTest extends AndroidTestCase {
+  private File file;
+  private TileStore store;
+  
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    file = new File(getContext().getCacheDir(), "TileCacheTest.mbtiles");
+    deleteStore();
+    store = new TileStore(file, 1024 * 1024);
+  }
+  
+  @Override
+  protected void tearDown() throws Exception {
+    store.close();
+    deleteStore();
+    super.tearDown();
+  }
+  
+  public void testTileCoordinates() {
+    // Seattle
+    assertEquals(164, TileMath.tileX(-122.3, 10));
+    assertEquals(357, TileMath.tileY(47.6, 10));
+    assertTrue(TileMath.tileLongitude(164, 10) <= -122.3);
+    assertTrue(TileMath.tileLongitude(165, 10) > -122.3);
+    assertTrue(TileMath.tileLatitude(357, 10) >= 47.6);
+    assertTrue(TileMath.tileLatitude(358, 10) < 47.6);
+    
+    // The edges of the world, and beyond the projection's cut off
+    assertEquals(0, TileMath.tileX(-180, 4));
+    assertEquals(15, TileMath.tileX(180, 4));
+    assertEquals(0, TileMath.tileY(90, 4));
+    assertEquals(15, TileMath.tileY(-90, 4));
+    
+    long tile = TileMath.pack(TileMath.MAX_ZOOM, (1 << 28) - 1, 12345);
+    assertEquals(TileMath.MAX_ZOOM, TileMath.zoom(tile));
+    assertEquals((1 << 28) - 1, TileMath.x(tile));
+    assertEquals(12345, TileMath.y(tile));
+  }
+  
+  public void testCoveringTilesGoShallowestFirst() {
+    long[] tiles = TileMath.coveringTiles(47.5, -122.5, 47.7, -122.2, 0, 12);
+    assertEquals(TileMath.countTiles(47.5, -122.5, 47.7, -122.2, 0, 12),
+                 tiles.length);
+    assertEquals(TileMath.pack(0, 0, 0), tiles[0]);
+    long[] sorted = tiles.clone();
+    Arrays.sort(sorted);
+    assertTrue(Arrays.equals(sorted, tiles));
+    for (long tile : tiles) {
+      int zoom = TileMath.zoom(tile);
+      assertTrue(TileMath.tileLongitude(TileMath.x(tile) + 1, zoom) > -122.5);
+      assertTrue(TileMath.tileLongitude(TileMath.x(tile), zoom) <= -122.2);
+    }
+  }
+  
+  public void testCoveringTilesCrossTheAntimeridian() {
+    long[] tiles = TileMath.coveringTiles(-10, 170, 10, -170, 0, 4);
+    assertEquals(TileMath.countTiles(-10, 170, 10, -170, 0, 4), tiles.length);
+    assertEquals(TileMath.pack(0, 0, 0), tiles[0]);
+    assertEquals(1, count(tiles, 0));
+    assertTrue(contains(tiles, TileMath.pack(4, 15, 7)));
+    assertTrue(contains(tiles, TileMath.pack(4, 0, 7)));
+    assertFalse(contains(tiles, TileMath.pack(4, 8, 7)));
+    
+    // A trip from Fiji to Samoa is covered across the antimeridian, not
+    // around the rest of the world
+    TilePrefetcher.Bounds bounds = new TilePrefetcher.Bounds();
+    bounds.add(-18.1, 178.4);
+    bounds.add(-13.8, -171.8);
+    long[] trip = bounds.coveringTiles(6, 6);
+    assertTrue(trip.length < 20);
+    assertTrue(contains(trip, TileMath.pack(6, TileMath.tileX(178.4, 6),
+                                            TileMath.tileY(-18.1, 6))));
+    assertTrue(contains(trip, TileMath.pack(6, TileMath.tileX(-171.8, 6),
+                                            TileMath.tileY(-13.8, 6))));
+    assertEquals(0, new TilePrefetcher.Bounds().coveringTiles(0, 5).length);
+  }
+  
+  public void testPrefetchRefusesOpenStreetMap() {
+    TilePrefetcher prefetcher = new TilePrefetcher(store,
+        "https://tile.openstreetmap.org/{z}/{x}/{y}.png");
+    assertFalse(prefetcher.isBulkAllowed());
+    try {
+      prefetcher.prefetch(new long[] { TileMath.pack(0, 0, 0) });
+      fail("Bulk download from OpenStreetMap");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    assertTrue(new TilePrefetcher(store,
+        "https://tile.example.com/{z}/{x}/{y}.png").isBulkAllowed());
+  }
+  
+  public void testStoreKeepsTilesAcrossReopen() {
+    byte[] data = LocalTileServer.body(3, 1, 2);
+    assertNull(store.get(3, 1, 2));
+    store.put(3, 1, 2, data);
+    assertTrue(store.contains(3, 1, 2));
+    assertFalse(store.contains(3, 1, 3));
+    assertTrue(Arrays.equals(data, store.get(3, 1, 2)));
+    
+    // Replacing a tile counts only the new copy
+    store.put(3, 1, 2, data);
+    assertEquals(data.length, store.getSize());
+    
+    store.close();
+    store = new TileStore(file, 1024 * 1024);
+    assertEquals(data.length, store.getSize());
+    assertTrue(Arrays.equals(data, store.get(3, 1, 2)));
+    
+    // MBTiles numbers rows from the south
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+    Cursor c = db.rawQuery("SELECT tile_row FROM tiles", null);
+    try {
+      assertTrue(c.moveToFirst());
+      assertEquals(5, c.getInt(0));
+    } finally {
+      c.close();
+      db.close();
+    }
+  }
+  
+  public void testEvictsLeastRecentlyUsedUnderQuota() {
+    store.close();
+    deleteStore();
+    store = new TileStore(file, 100 * 100);
+    byte[] data = new byte[100];
+    for (int y = 0; y < 71; y++) {
+      store.put(10, 0, y, data);
+    }
+    // Far enough behind to be bumped by a read
+    assertNotNull(store.get(10, 0, 0));
+    for (int y = 71; y < 101; y++) {
+      store.put(10, 0, y, data);
+    }
+    
+    // The 101st tile went over the quota, so the 11 least recently used
+    // tiles were deleted to get under 90% of it
+    assertEquals(9000, store.getSize());
+    assertTrue(store.contains(10, 0, 0));
+    for (int y = 1; y <= 11; y++) {
+      assertFalse(store.contains(10, 0, y));
+    }
+    assertTrue(store.contains(10, 0, 12));
+    assertTrue(store.contains(10, 0, 100));
+    
+    // Too large to store at all
+    store.put(10, 1, 0, new byte[100 * 100 + 1]);
+    assertFalse(store.contains(10, 1, 0));
+  }
+  
+  public void testPrefetchesFromTileServer() throws Exception {
+    LocalTileServer server = new LocalTileServer();
+    try {
+      TilePrefetcher prefetcher =
+          new TilePrefetcher(store, server.getUrlTemplate(), 4);
+      final AtomicInteger progress = new AtomicInteger();
+      prefetcher.setProgressListener(new TilePrefetcher.ProgressListener() {
+        @Override
+        public void onProgress(int done, int total) {
+          progress.set(done);
+        }
+      });
+      long[] tiles = TileMath.coveringTiles(-60, -170, 60, 170, 0, 3);
+      TilePrefetcher.Result result = prefetcher.prefetch(tiles);
+      
+      // Odd columns at zoom 3 are missing from the server
+      int missing = 0;
+      for (long tile : tiles) {
+        if (TileMath.zoom(tile) == 3 && TileMath.x(tile) % 2 == 1) {
+          missing++;
+        }
+      }
+      assertTrue(missing > 0);
+      assertEquals(tiles.length - missing, result.getFetchedCount());
+      assertEquals(missing, result.getFailedCount());
+      assertEquals(0, result.getCachedCount());
+      assertEquals(tiles.length, progress.get());
+      assertTrue(Arrays.equals(LocalTileServer.body(2, 1, 2),
+                               store.get(2, 1, 2)));
+      
+      // Stored tiles are not downloaded again
+      int requests = server.getRequestCount();
+      result = prefetcher.prefetch(tiles);
+      assertEquals(tiles.length - missing, result.getCachedCount());
+      assertEquals(missing, server.getRequestCount() - requests);
+    } finally {
+      server.shutdown();
+    }
+  }
+  
+  private static int count(long[] tiles, int zoom) {
+    int count = 0;
+    for (long tile : tiles) {
+      if (TileMath.zoom(tile) == zoom) {
+        count++;
+      }
+    }
+    return count;
+  }
+  
+  private static boolean contains(long[] tiles, long tile) {
+    for (long t : tiles) {
+      if (t == tile) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private void deleteStore() {
+    SQLiteDatabase.deleteDatabase(file);
+  }
+}
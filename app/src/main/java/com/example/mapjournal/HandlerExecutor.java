@@ -0,0 +1,52 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs commands on the thread of a Handler. Classes that do their work on
+ * background threads take an Executor for their callbacks and use one of
+ * these for the main thread, so tests can pass an Executor that runs the
+ * callbacks directly.
+ * @author ericzeng
+ */
+public class HandlerExecutor implements Executor {
+  private final Handler handler;
+  
+  /**
+   * Creates an executor that runs commands on the main thread.
+   */
+  public HandlerExecutor() {
+    this(new Handler(Looper.getMainLooper()));
+  }
+  
+  /**
+   * Creates an executor that runs commands on the thread of a Handler.
+   * @param handler The Handler to post the commands to
+   */
+  public HandlerExecutor(Handler handler) {
+    this.handler = handler;
+  }
+  
+  @Override
+  public void execute(Runnable command) {
+    handler.post(command);
+  }
+}
@@ -0,0 +1,76 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal;
+
+import android.app.Application;
+
+import com.example.mapjournal.model.AsyncMapJournalDAO;
+import com.example.mapjournal.model.BlobStore;
+import com.example.mapjournal.model.MediaSweeper;
+import com.example.mapjournal.model.PointIndex;
+
+/**
+ * Owns the objects that live as long as the process: the AsyncMapJournalDAO
+ * the app's screens share, the PointIndex of the Points on the map, and the
+ * MediaSweeper and BlobStore that tidy up media files in the background.
+ * Activities get the DAO from here instead of creating their own, so
+ * recreating an Activity starts no new threads.
+ * @author ericzeng
+ */
+public class MapJournalApplication extends Application {
+  private AsyncMapJournalDAO dao;
+  private PointIndex mapIndex;
+  
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    dao = new AsyncMapJournalDAO(this);
+    
+    // Listeners must be added before the first write, so the index the map
+    // loads into is created here and follows every Point written
+    mapIndex = new PointIndex();
+    dao.addPointListener(mapIndex);
+    
+    // Files of deleted media are removed and new media are moved into the
+    // BlobStore in the background, starting with any left over from the
+    // last run
+    MediaSweeper sweeper = MediaSweeper.getInstance(this);
+    dao.addPointListener(sweeper);
+    sweeper.requestSweep();
+    BlobStore blobs = BlobStore.getInstance(this);
+    dao.addPointListener(blobs);
+    blobs.requestStore();
+    blobs.requestCollect();
+  }
+  
+  /**
+   * Get the DAO shared by the app's screens. It is never shut down; cancel
+   * the requests you no longer need instead.
+   * @return the shared DAO
+   */
+  public AsyncMapJournalDAO getDao() {
+    return dao;
+  }
+  
+  /**
+   * Get the index of the Points loaded onto the map. It is kept current by
+   * every write through the shared DAO.
+   * @return the map's index
+   */
+  public PointIndex getMapIndex() {
+    return mapIndex;
+  }
+}
@@ -0,0 +1,102 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.cluster;
+
+/**
+ * A group of Points drawn as one marker. A cluster of a single Point is keyed
+ * by the Point's id, so its marker survives zooming in and out; larger
+ * clusters are keyed by their grid cell and zoom level.
+ * @author ericzeng
+ */
+public class Cluster {
+  private final long key;
+  private final double latitude;
+  private final double longitude;
+  private final int count;
+  private final long pointId;
+  
+  /**
+   * Constructs a Cluster.
+   * @param key Identifies the cluster between recomputations
+   * @param latitude Latitude of the centre of the clustered Points
+   * @param longitude Longitude of the centre of the clustered Points
+   * @param count Number of clustered Points
+   * @param pointId Id of one of the clustered Points
+   */
+  public Cluster(long key,
+                 double latitude,
+                 double longitude,
+                 int count,
+                 long pointId) {
+    this.key = key;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.count = count;
+    this.pointId = pointId;
+  }
+  
+  /**
+   * Get the key of the cluster.
+   * @return the key, stable while the clustered Points do not change
+   */
+  public long getKey() {
+    return key;
+  }
+  
+  /**
+   * Get the latitude of the cluster.
+   * @return the latitude
+   */
+  public double getLatitude() {
+    return latitude;
+  }
+  
+  /**
+   * Get the longitude of the cluster.
+   * @return the longitude
+   */
+  public double getLongitude() {
+    return longitude;
+  }
+  
+  /**
+   * Get the number of Points in the cluster.
+   * @return the count
+   */
+  public int getCount() {
+    return count;
+  }
+  
+  /**
+   * Get the id of a Point in the cluster. For a single Point this is the
+   * Point itself.
+   * @return the id of the Point
+   */
+  public long getPointId() {
+    return pointId;
+  }
+  
+  /**
+   * Checks whether another cluster would be drawn the same way.
+   * @param other The cluster to compare to
+   * @return true if the position and count are the same
+   */
+  public boolean looksLike(Cluster other) {
+    return count == other.count
+        && latitude == other.latitude
+        && longitude == other.longitude;
+  }
+}
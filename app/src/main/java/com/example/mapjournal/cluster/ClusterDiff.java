@@ -0,0 +1,103 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes needed to turn the clusters on the map into a new set of
+ * clusters, so only markers that actually changed are touched.
+ * @author ericzeng
+ */
+public class ClusterDiff {
+  private final List<Cluster> added;
+  private final List<Cluster> changed;
+  private final List<Long> removed;
+  
+  private ClusterDiff(List<Cluster> added,
+                      List<Cluster> changed,
+                      List<Long> removed) {
+    this.added = added;
+    this.changed = changed;
+    this.removed = removed;
+  }
+  
+  /**
+   * Computes the diff between the shown clusters and the next ones, and
+   * updates shown to the next clusters.
+   * @param shown The clusters currently shown, by key. Updated in place.
+   * @param next The clusters to show
+   * @return The diff
+   */
+  public static ClusterDiff apply(Map<Long, Cluster> shown, List<Cluster> next) {
+    List<Cluster> added = new ArrayList<Cluster>();
+    List<Cluster> changed = new ArrayList<Cluster>();
+    Map<Long, Cluster> nextByKey = new HashMap<Long, Cluster>(next.size() * 2);
+    for (Cluster cluster : next) {
+      nextByKey.put(cluster.getKey(), cluster);
+      Cluster old = shown.get(cluster.getKey());
+      if (old == null) {
+        added.add(cluster);
+      } else if (!old.looksLike(cluster)) {
+        changed.add(cluster);
+      }
+    }
+    List<Long> removed = new ArrayList<Long>();
+    for (Long key : shown.keySet()) {
+      if (!nextByKey.containsKey(key)) {
+        removed.add(key);
+      }
+    }
+    shown.clear();
+    shown.putAll(nextByKey);
+    return new ClusterDiff(added, changed, removed);
+  }
+  
+  /**
+   * Get the clusters that need a new marker.
+   * @return the added clusters
+   */
+  public List<Cluster> getAdded() {
+    return added;
+  }
+  
+  /**
+   * Get the clusters whose marker has to move or be relabelled.
+   * @return the changed clusters
+   */
+  public List<Cluster> getChanged() {
+    return changed;
+  }
+  
+  /**
+   * Get the keys of the clusters whose marker has to be removed.
+   * @return the removed keys
+   */
+  public List<Long> getRemoved() {
+    return removed;
+  }
+  
+  /**
+   * Checks whether the map needs no changes.
+   * @return true if nothing was added, changed or removed
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+  }
+}
@@ -0,0 +1,263 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups Points that would be drawn close together on the map. Points are
+ * projected to Web Mercator once; at each zoom level they are bucketed into a
+ * grid of square cells a fixed number of screen pixels wide, and each
+ * non-empty cell becomes one Cluster at the centre of its Points.
+ * <p>
+ * The grid is fixed to the world rather than the screen, so panning at the
+ * same zoom never changes a cluster, only which clusters are visible. The
+ * clusters of a zoom level are computed the first time it is shown and then
+ * reused for every camera move at that zoom; a viewport query only touches
+ * the columns of cells on screen.
+ * <p>
+ * This class does not use any Android APIs. It is not thread-safe; use it
+ * from one background thread.
+ * @author ericzeng
+ */
+public class ClusterEngine {
+  /** Highest zoom level supported by the map. */
+  public static final int MAX_ZOOM = 21;
+  
+  private static final int TILE_PIXELS = 256;
+  private static final double MAX_LATITUDE = 85.05112878;
+  
+  private final double cellPixels;
+  
+  private long[] ids = new long[0];
+  private double[] worldX = new double[0];   // Mercator x in [0, 1)
+  private double[] worldY = new double[0];   // Mercator y in [0, 1)
+  private int size;
+  private final Level[] levels = new Level[MAX_ZOOM + 1];
+  
+  /**
+   * Creates an engine.
+   * @param cellPixels The width of a grid cell in screen pixels. Points
+   *                   closer than this on screen are usually clustered.
+   */
+  public ClusterEngine(double cellPixels) {
+    if (cellPixels <= 0) {
+      throw new IllegalArgumentException("cellPixels must be positive");
+    }
+    this.cellPixels = cellPixels;
+  }
+  
+  /**
+   * Replaces the Points being clustered.
+   * @param pointIds The ids of the Points
+   * @param latitudes The latitudes of the Points
+   * @param longitudes The longitudes of the Points
+   * @param count Number of Points in the arrays
+   */
+  public void setPoints(long[] pointIds,
+                        double[] latitudes,
+                        double[] longitudes,
+                        int count) {
+    ids = Arrays.copyOf(pointIds, count);
+    worldX = new double[count];
+    worldY = new double[count];
+    for (int i = 0; i < count; i++) {
+      worldX[i] = toWorldX(longitudes[i]);
+      worldY[i] = toWorldY(latitudes[i]);
+    }
+    size = count;
+    Arrays.fill(levels, null);
+  }
+  
+  /**
+   * Get the number of Points being clustered.
+   * @return the number of Points
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Computes the clusters visible in a viewport. Clusters just outside the
+   * viewport are included so markers do not pop in at the edges while panning.
+   * If minLng is greater than maxLng the viewport crosses the antimeridian.
+   * @param zoom The map zoom level
+   * @param minLat Southern edge of the viewport
+   * @param minLng Western edge of the viewport
+   * @param maxLat Northern edge of the viewport
+   * @param maxLng Eastern edge of the viewport
+   * @return The visible clusters
+   */
+  public List<Cluster> getClusters(int zoom,
+                                   double minLat,
+                                   double minLng,
+                                   double maxLat,
+                                   double maxLng) {
+    Level level = getLevel(zoom);
+    int cells = level.cellsPerAxis;
+    int y0 = Math.max(0, cellOf(toWorldY(maxLat), cells) - 1);
+    int y1 = Math.min(cells - 1, cellOf(toWorldY(minLat), cells) + 1);
+    // Columns are not wrapped yet, so a world-wide viewport spans them all
+    int x0 = (int) Math.floor((minLng + 180) / 360 * cells) - 1;
+    int x1 = (int) Math.floor((maxLng + 180) / 360 * cells) + 1;
+    if (minLng > maxLng) {
+      x1 += cells;
+    }
+    
+    List<Cluster> visible = new ArrayList<Cluster>();
+    if (x1 - x0 + 1 >= cells) {
+      x0 = 0;
+      x1 = cells - 1;
+    }
+    for (int x = x0; x <= x1; x++) {
+      // Wrap columns past either edge of the world
+      int column = ((x % cells) + cells) % cells;
+      level.collectColumn(column, y0, y1, visible);
+    }
+    return visible;
+  }
+  
+  /**
+   * Helper method that returns the clusters of a zoom level, computing them
+   * the first time.
+   */
+  private Level getLevel(int zoom) {
+    zoom = Math.max(0, Math.min(MAX_ZOOM, zoom));
+    if (levels[zoom] == null) {
+      levels[zoom] = buildLevel(zoom);
+    }
+    return levels[zoom];
+  }
+  
+  /**
+   * Helper method that buckets every Point into the grid of a zoom level.
+   */
+  private Level buildLevel(int zoom) {
+    long worldPixels = (long) TILE_PIXELS << zoom;
+    int cells = (int) Math.max(1, Math.ceil(worldPixels / cellPixels));
+    
+    Map<Long, Accumulator> byCell = new HashMap<Long, Accumulator>();
+    for (int i = 0; i < size; i++) {
+      long cell = (long) cellOf(worldX[i], cells) * cells
+          + cellOf(worldY[i], cells);
+      Accumulator a = byCell.get(cell);
+      if (a == null) {
+        a = new Accumulator(i);
+        byCell.put(cell, a);
+      }
+      a.count++;
+      a.sumX += worldX[i];
+      a.sumY += worldY[i];
+    }
+    
+    long[] keys = new long[byCell.size()];
+    int k = 0;
+    for (Long cell : byCell.keySet()) {
+      keys[k++] = cell;
+    }
+    Arrays.sort(keys);
+    Cluster[] clusters = new Cluster[keys.length];
+    for (k = 0; k < keys.length; k++) {
+      Accumulator a = byCell.get(keys[k]);
+      long pointId = ids[a.first];
+      if (a.count == 1) {
+        clusters[k] = new Cluster(pointId,
+                                  toLatitude(worldY[a.first]),
+                                  toLongitude(worldX[a.first]),
+                                  1,
+                                  pointId);
+      } else {
+        // Negative keys cannot collide with Point ids
+        clusters[k] = new Cluster(-1 - (keys[k] * (MAX_ZOOM + 1) + zoom),
+                                  toLatitude(a.sumY / a.count),
+                                  toLongitude(a.sumX / a.count),
+                                  a.count,
+                                  pointId);
+      }
+    }
+    return new Level(cells, keys, clusters);
+  }
+  
+  private static int cellOf(double world, int cells) {
+    return Math.max(0, Math.min(cells - 1, (int) (world * cells)));
+  }
+  
+  private static double toWorldX(double longitude) {
+    double x = (longitude + 180) / 360;
+    return x - Math.floor(x);
+  }
+  
+  private static double toWorldY(double latitude) {
+    latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+    double sin = Math.sin(Math.toRadians(latitude));
+    return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+  }
+  
+  private static double toLongitude(double worldX) {
+    return worldX * 360 - 180;
+  }
+  
+  private static double toLatitude(double worldY) {
+    double n = Math.PI * (1 - 2 * worldY);
+    return Math.toDegrees(Math.atan(Math.sinh(n)));
+  }
+  
+  /**
+   * Sums used while bucketing Points into a cell.
+   */
+  private static class Accumulator {
+    final int first;
+    int count;
+    double sumX;
+    double sumY;
+    
+    Accumulator(int first) {
+      this.first = first;
+    }
+  }
+  
+  /**
+   * The clusters of one zoom level, sorted by cell. A cell's key is
+   * column * cellsPerAxis + row, so each column is a contiguous run.
+   */
+  private static class Level {
+    final int cellsPerAxis;
+    final long[] keys;
+    final Cluster[] clusters;
+    
+    Level(int cellsPerAxis, long[] keys, Cluster[] clusters) {
+      this.cellsPerAxis = cellsPerAxis;
+      this.keys = keys;
+      this.clusters = clusters;
+    }
+    
+    void collectColumn(int column, int minRow, int maxRow, List<Cluster> out) {
+      long first = (long) column * cellsPerAxis + minRow;
+      long last = (long) column * cellsPerAxis + maxRow;
+      int i = Arrays.binarySearch(keys, first);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      for (; i < keys.length && keys[i] <= last; i++) {
+        out.add(clusters[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Streams a GeoJSON document into a TrackSink. Point and MultiPoint
+ * geometries become waypoints named by their feature's "name" or "title"
+ * property; every other line of positions (LineString, MultiLineString and
+ * Polygon rings) becomes a track. Fixes of a track have no time.
+ * @author ericzeng
+ */
+final class GeoJsonParser {
+  private final JsonReader reader;
+  private final TrackSink sink;
+  
+  // Waypoint positions of the current feature, held until its properties
+  // have been read since they may come after the geometry
+  private double[] waypoints = new double[3 * 4];
+  private int waypointCount;
+  private String name;
+  private String description;
+  private long time;
+  
+  // The position read by the last call to readCoordinates()
+  private double latitude, longitude, altitude;
+  
+  private GeoJsonParser(JsonReader reader, TrackSink sink) {
+    this.reader = reader;
+    this.sink = sink;
+  }
+  
+  /**
+   * Parses a GeoJSON document, which may be a FeatureCollection, a Feature
+   * or a bare geometry.
+   * @param in The document
+   * @param sink Receives the parsed data
+   */
+  static void parse(InputStream in, TrackSink sink) throws IOException {
+    JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+    reader.setLenient(true);
+    GeoJsonParser parser = new GeoJsonParser(reader, sink);
+    try {
+      parser.readObject();
+    } catch (IllegalStateException e) {
+      // JsonReader reports unexpected tokens this way
+      throw new IOException("Malformed GeoJSON: " + e.getMessage(), e);
+    }
+    parser.emitWaypoints();
+  }
+  
+  /**
+   * Helper method that reads a GeoJSON object of any type.
+   */
+  private void readObject() throws IOException {
+    String type = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if ("type".equals(field)) {
+        type = reader.nextString();
+      } else if ("features".equals(field) || "geometries".equals(field)) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          readObject();
+        }
+        reader.endArray();
+      } else if ("geometry".equals(field)) {
+        readObject();
+      } else if ("properties".equals(field)) {
+        readProperties();
+      } else if ("coordinates".equals(field)) {
+        int level = readCoordinates("MultiPoint".equals(type));
+        if (level == 0) {
+          addWaypoint();
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if ("Feature".equals(type)) {
+      emitWaypoints();
+    }
+  }
+  
+  /**
+   * Helper method that reads the name, description and time of a feature.
+   */
+  private void readProperties() throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      JsonToken token = reader.peek();
+      if (("name".equals(field) || "title".equals(field))
+          && token == JsonToken.STRING && name == null) {
+        name = reader.nextString();
+      } else if (("description".equals(field) || "desc".equals(field))
+                 && token == JsonToken.STRING) {
+        description = reader.nextString();
+      } else if ("time".equals(field) && token == JsonToken.STRING) {
+        time = IsoTime.parse(reader.nextString());
+      } else if ("time".equals(field) && token == JsonToken.NUMBER) {
+        time = reader.nextLong();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+  
+  /**
+   * Helper method that reads a coordinates array of any depth. A position
+   * is left in the latitude, longitude and altitude fields, the positions of
+   * a line are sent to the sink as a track, and deeper arrays recurse.
+   * @param multiPoint Whether a line of positions is a list of waypoints
+   * @return 0 if a position was read, 1 for a line, 2 or more for deeper
+   *         arrays, or -1 for an empty array
+   */
+  private int readCoordinates(boolean multiPoint) throws IOException {
+    reader.beginArray();
+    if (reader.peek() == JsonToken.NUMBER) {
+      longitude = reader.nextDouble();
+      latitude = reader.nextDouble();
+      altitude = reader.hasNext() ? reader.nextDouble() : 0;
+      while (reader.hasNext()) {
+        reader.skipValue();
+      }
+      reader.endArray();
+      return 0;
+    }
+    
+    int level = -1;
+    while (reader.hasNext()) {
+      int child = readCoordinates(multiPoint);
+      if (child == 0) {
+        if (multiPoint) {
+          addWaypoint();
+        } else {
+          sink.fix(latitude, longitude, altitude, 0);
+        }
+      }
+      level = Math.max(level, child + 1);
+    }
+    reader.endArray();
+    if (level == 1 && !multiPoint) {
+      sink.endTrack();
+    }
+    return level;
+  }
+  
+  /**
+   * Helper method that holds the last position read as a waypoint.
+   */
+  private void addWaypoint() {
+    if (waypointCount * 3 == waypoints.length) {
+      waypoints = Arrays.copyOf(waypoints, waypoints.length * 2);
+    }
+    waypoints[waypointCount * 3] = latitude;
+    waypoints[waypointCount * 3 + 1] = longitude;
+    waypoints[waypointCount * 3 + 2] = altitude;
+    waypointCount++;
+  }
+  
+  /**
+   * Helper method that sends the waypoints of the current feature to the
+   * sink and clears its properties.
+   */
+  private void emitWaypoints() throws IOException {
+    for (int i = 0; i < waypointCount; i++) {
+      sink.waypoint(name, description, waypoints[i * 3], waypoints[i * 3 + 1],
+                    waypoints[i * 3 + 2], time);
+    }
+    waypointCount = 0;
+    name = null;
+    description = null;
+    time = 0;
+  }
+}
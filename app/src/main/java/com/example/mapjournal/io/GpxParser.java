@@ -0,0 +1,109 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Streams the tracks, routes and waypoints of a GPX file into a TrackSink.
+ * @author ericzeng
+ */
+final class GpxParser {
+  private GpxParser() {
+  }
+  
+  /**
+   * Parses a GPX file. Each trkseg and rte becomes a track and each wpt a
+   * waypoint.
+   * @param in The file contents
+   * @param sink Receives the parsed data
+   */
+  static void parse(InputStream in, TrackSink sink) throws IOException {
+    try {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.setInput(in, null);
+      parse(parser, sink);
+    } catch (XmlPullParserException e) {
+      throw new IOException("Malformed GPX: " + e.getMessage(), e);
+    }
+  }
+  
+  private static void parse(XmlPullParser parser, TrackSink sink)
+      throws XmlPullParserException, IOException {
+    boolean inPoint = false;
+    double latitude = 0, longitude = 0, altitude = 0;
+    long time = 0;
+    String name = null, description = null;
+    
+    for (int event = parser.getEventType();
+         event != XmlPullParser.END_DOCUMENT;
+         event = parser.next()) {
+      if (event == XmlPullParser.START_TAG) {
+        String tag = parser.getName();
+        if ("trkpt".equals(tag) || "rtept".equals(tag) || "wpt".equals(tag)) {
+          inPoint = true;
+          latitude = parseDouble(parser.getAttributeValue(null, "lat"));
+          longitude = parseDouble(parser.getAttributeValue(null, "lon"));
+          altitude = 0;
+          time = 0;
+          name = null;
+          description = null;
+        } else if (inPoint && "ele".equals(tag)) {
+          altitude = parseDouble(parser.nextText());
+        } else if (inPoint && "time".equals(tag)) {
+          time = IsoTime.parse(parser.nextText());
+        } else if (inPoint && "name".equals(tag)) {
+          name = parser.nextText().trim();
+        } else if (inPoint && "desc".equals(tag)) {
+          description = parser.nextText().trim();
+        }
+      } else if (event == XmlPullParser.END_TAG) {
+        String tag = parser.getName();
+        if ("trkpt".equals(tag) || "rtept".equals(tag)) {
+          inPoint = false;
+          sink.fix(latitude, longitude, altitude, time);
+        } else if ("wpt".equals(tag)) {
+          inPoint = false;
+          sink.waypoint(name, description, latitude, longitude, altitude, time);
+        } else if ("trkseg".equals(tag) || "rte".equals(tag)) {
+          sink.endTrack();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Helper method that parses a coordinate, throwing IOException rather than
+   * NumberFormatException so a bad file is reported like any other.
+   */
+  static double parseDouble(String text) throws IOException {
+    if (text == null) {
+      throw new IOException("Missing coordinate");
+    }
+    try {
+      return Double.parseDouble(text.trim());
+    } catch (NumberFormatException e) {
+      throw new IOException("Bad number: " + text, e);
+    }
+  }
+}
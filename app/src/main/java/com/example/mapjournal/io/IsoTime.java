@@ -0,0 +1,180 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+/**
+ * Parses and formats ISO 8601 timestamps such as 2014-06-01T12:30:00Z, as
+ * used by GPX, KML and GeoJSON. Written by hand because SimpleDateFormat is
+ * slow and not thread-safe, and track files hold one timestamp per fix.
+ * @author ericzeng
+ */
+public final class IsoTime {
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  
+  private IsoTime() {
+  }
+  
+  /**
+   * Parses a timestamp of the form YYYY-MM-DDThh:mm:ss, with optional
+   * fractional seconds and an optional Z or +hh:mm offset. Timestamps without
+   * an offset are taken as UTC.
+   * @param text The timestamp
+   * @return Milliseconds since the epoch, or 0 if text is not a timestamp
+   */
+  public static long parse(String text) {
+    if (text == null) {
+      return 0;
+    }
+    String s = text.trim();
+    if (s.length() < 19 || s.charAt(4) != '-' || s.charAt(7) != '-'
+        || (s.charAt(10) != 'T' && s.charAt(10) != ' ')
+        || s.charAt(13) != ':' || s.charAt(16) != ':') {
+      return 0;
+    }
+    int year = digits(s, 0, 4);
+    int month = digits(s, 5, 2);
+    int day = digits(s, 8, 2);
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    int second = digits(s, 17, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59
+        || second < 0 || second > 60) {
+      return 0;
+    }
+    
+    int i = 19;
+    int millis = 0;
+    if (i < s.length() && s.charAt(i) == '.') {
+      int scale = 100;
+      for (i++; i < s.length() && Character.isDigit(s.charAt(i)); i++) {
+        millis += (s.charAt(i) - '0') * scale;
+        scale /= 10;
+      }
+    }
+    long offsetMillis = 0;
+    if (i < s.length()) {
+      char c = s.charAt(i);
+      if ((c == '+' || c == '-') && s.length() >= i + 3) {
+        int offsetHours = digits(s, i + 1, 2);
+        int offsetMinutes = 0;
+        if (s.length() >= i + 6 && s.charAt(i + 3) == ':') {
+          offsetMinutes = digits(s, i + 4, 2);
+        } else if (s.length() >= i + 5) {
+          offsetMinutes = digits(s, i + 3, 2);
+        }
+        if (offsetHours < 0 || offsetMinutes < 0) {
+          return 0;
+        }
+        offsetMillis = (offsetHours * 60L + offsetMinutes) * 60 * 1000;
+        if (c == '-') {
+          offsetMillis = -offsetMillis;
+        }
+      } else if (c != 'Z') {
+        return 0;
+      }
+    }
+    
+    return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+           + ((hour * 60L + minute) * 60 + second) * 1000 + millis
+           - offsetMillis;
+  }
+  
+  /**
+   * Formats a time as a UTC timestamp of the form YYYY-MM-DDThh:mm:ssZ, with
+   * milliseconds only if they are not zero.
+   * @param millis Milliseconds since the epoch
+   * @return The timestamp
+   */
+  public static String format(long millis) {
+    long days = floorDiv(millis, MILLIS_PER_DAY);
+    long rest = millis - days * MILLIS_PER_DAY;
+    
+    // Inverse of daysFromCivil
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                      - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4
+                                 - yearOfEra / 100);
+    long mp = (5 * dayOfYear + 2) / 153;
+    int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    
+    StringBuilder out = new StringBuilder(24);
+    pad(out, year, 4).append('-');
+    pad(out, month, 2).append('-');
+    pad(out, day, 2).append('T');
+    pad(out, rest / 3600000, 2).append(':');
+    pad(out, rest / 60000 % 60, 2).append(':');
+    pad(out, rest / 1000 % 60, 2);
+    if (rest % 1000 != 0) {
+      pad(out.append('.'), rest % 1000, 3);
+    }
+    return out.append('Z').toString();
+  }
+  
+  /**
+   * Helper method that counts days from 1970-01-01 to a date in the
+   * proleptic Gregorian calendar.
+   */
+  private static long daysFromCivil(long year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    long era = floorDiv(year, 400);
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                    + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+  
+  /**
+   * Helper method that divides rounding towards negative infinity.
+   */
+  private static long floorDiv(long a, long b) {
+    long q = a / b;
+    return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+  }
+  
+  /**
+   * Helper method that parses a run of decimal digits, or returns -1 if any
+   * character is not a digit.
+   */
+  private static int digits(String s, int start, int count) {
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+  
+  /**
+   * Helper method that appends a number padded with zeros.
+   */
+  private static StringBuilder pad(StringBuilder out, long value, int width) {
+    String digits = Long.toString(value);
+    for (int i = digits.length(); i < width; i++) {
+      out.append('0');
+    }
+    return out.append(digits);
+  }
+}
@@ -0,0 +1,210 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Streams the Placemarks of a KML file into a TrackSink. Point placemarks
+ * become waypoints, and LineStrings and gx:Tracks become tracks. Only
+ * gx:Tracks carry a time for each fix.
+ * <p>
+ * A gx:Track lists all of its times before its first coordinate, so its
+ * times are held until the track ends, and the coordinates of a LineString
+ * are read as one string. Memory use therefore grows with the longest
+ * track in the file, though not with the number of tracks.
+ * @author ericzeng
+ */
+final class KmlParser {
+  private static final int TRACK_TIMES = 64;   // Initial size of trackTimes
+  
+  private final XmlPullParser parser;
+  private final TrackSink sink;
+  
+  // The Placemark being parsed
+  private boolean inPlacemark;
+  private String name;
+  private String description;
+  private long time;
+  private boolean hasPoint;
+  private double pointLatitude, pointLongitude, pointAltitude;
+  
+  // Geometry being parsed
+  private boolean inPoint;
+  private boolean inLineString;
+  private boolean inTrack;
+  
+  // The when elements of a gx:Track come before its coordinates
+  private long[] trackTimes = new long[TRACK_TIMES];
+  private int trackTimeCount;
+  private int trackCoordCount;
+  
+  private KmlParser(XmlPullParser parser, TrackSink sink) {
+    this.parser = parser;
+    this.sink = sink;
+  }
+  
+  /**
+   * Parses a KML file.
+   * @param in The file contents
+   * @param sink Receives the parsed data
+   */
+  static void parse(InputStream in, TrackSink sink) throws IOException {
+    try {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.setInput(in, null);
+      new KmlParser(parser, sink).parse();
+    } catch (XmlPullParserException e) {
+      throw new IOException("Malformed KML: " + e.getMessage(), e);
+    }
+  }
+  
+  private void parse() throws XmlPullParserException, IOException {
+    for (int event = parser.getEventType();
+         event != XmlPullParser.END_DOCUMENT;
+         event = parser.next()) {
+      if (event == XmlPullParser.START_TAG) {
+        startTag(parser.getName());
+      } else if (event == XmlPullParser.END_TAG) {
+        endTag(parser.getName());
+      }
+    }
+  }
+  
+  private void startTag(String tag) throws XmlPullParserException, IOException {
+    if ("Placemark".equals(tag)) {
+      inPlacemark = true;
+      name = null;
+      description = null;
+      time = 0;
+      hasPoint = false;
+    } else if (!inPlacemark) {
+      return;
+    } else if ("name".equals(tag) && name == null) {
+      name = parser.nextText().trim();
+    } else if ("description".equals(tag) && description == null) {
+      description = parser.nextText().trim();
+    } else if ("Point".equals(tag)) {
+      inPoint = true;
+    } else if ("LineString".equals(tag)) {
+      inLineString = true;
+    } else if ("Track".equals(tag)) {
+      inTrack = true;
+      trackTimeCount = 0;
+      trackCoordCount = 0;
+    } else if ("when".equals(tag)) {
+      long when = IsoTime.parse(parser.nextText());
+      if (inTrack) {
+        if (trackTimeCount == trackTimes.length) {
+          trackTimes = Arrays.copyOf(trackTimes, trackTimeCount * 2);
+        }
+        trackTimes[trackTimeCount++] = when;
+      } else {
+        time = when;
+      }
+    } else if ("coord".equals(tag) && inTrack) {
+      // gx:coord separates longitude, latitude and altitude with spaces
+      String[] parts = parser.nextText().trim().split("\\s+");
+      if (parts.length < 2) {
+        throw new IOException("Bad gx:coord");
+      }
+      double altitude = parts.length > 2 ? GpxParser.parseDouble(parts[2]) : 0;
+      long when = trackCoordCount < trackTimeCount
+                  ? trackTimes[trackCoordCount] : 0;
+      trackCoordCount++;
+      sink.fix(GpxParser.parseDouble(parts[1]),
+               GpxParser.parseDouble(parts[0]),
+               altitude,
+               when);
+    } else if ("coordinates".equals(tag) && (inPoint || inLineString)) {
+      parseCoordinates(parser.nextText());
+    }
+  }
+  
+  private void endTag(String tag) throws IOException {
+    if ("Placemark".equals(tag)) {
+      inPlacemark = false;
+      if (hasPoint) {
+        sink.waypoint(name, description, pointLatitude, pointLongitude,
+                      pointAltitude, time);
+      }
+    } else if ("Point".equals(tag)) {
+      inPoint = false;
+    } else if ("LineString".equals(tag) && inLineString) {
+      inLineString = false;
+      sink.endTrack();
+    } else if ("Track".equals(tag) && inTrack) {
+      inTrack = false;
+      if (trackTimes.length > TRACK_TIMES) {
+        // Don't keep a long track's times for the rest of the file
+        trackTimes = new long[TRACK_TIMES];
+      }
+      sink.endTrack();
+    }
+  }
+  
+  /**
+   * Helper method that parses the longitude,latitude[,altitude] tuples of a
+   * coordinates element. Tuples are separated by whitespace. For a Point only
+   * the first tuple is kept; for a LineString each tuple is a fix.
+   */
+  private void parseCoordinates(String text) throws IOException {
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      while (i < length && Character.isWhitespace(text.charAt(i))) {
+        i++;
+      }
+      int start = i;
+      while (i < length && !Character.isWhitespace(text.charAt(i))) {
+        i++;
+      }
+      if (start == i) {
+        break;
+      }
+      
+      String tuple = text.substring(start, i);
+      int firstComma = tuple.indexOf(',');
+      if (firstComma < 0) {
+        throw new IOException("Bad coordinates: " + tuple);
+      }
+      int secondComma = tuple.indexOf(',', firstComma + 1);
+      double longitude = GpxParser.parseDouble(tuple.substring(0, firstComma));
+      double latitude = GpxParser.parseDouble(secondComma < 0
+          ? tuple.substring(firstComma + 1)
+          : tuple.substring(firstComma + 1, secondComma));
+      double altitude = secondComma < 0
+          ? 0 : GpxParser.parseDouble(tuple.substring(secondComma + 1));
+      
+      if (inPoint) {
+        hasPoint = true;
+        pointLatitude = latitude;
+        pointLongitude = longitude;
+        pointAltitude = altitude;
+        return;
+      }
+      sink.fix(latitude, longitude, altitude, 0);
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+import com.example.mapjournal.model.BatchWriter;
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.TrackSegment;
+import com.example.mapjournal.model.Trip;
+
+/**
+ * Imports GPX, KML and GeoJSON files into a new Trip. Files are parsed as a
+ * stream and written through MapJournalDAO.writeBatch() a batch at a time,
+ * so memory use does not grow with the size of the file. The exception is
+ * KML, where the times of a gx:Track and the coordinates of a LineString
+ * are each read whole, so memory grows with the longest single track.
+ * Tracks become TrackSegments and waypoints become Points.
+ * <p>
+ * An import runs on the calling thread, which should not be the main
+ * thread. It can be cancelled from any thread, and a cancelled or failed
+ * import deletes everything it wrote.
+ * @author ericzeng
+ */
+public class TrackImporter {
+  private static final int BATCH_FIXES = 10000;
+  private static final int BATCH_WAYPOINTS = 500;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  
+  /**
+   * The file formats that can be imported.
+   */
+  public enum Format {
+    GPX, KML, GEOJSON;
+    
+    /**
+     * Guesses the format of a file from its extension.
+     * @param fileName The name of the file
+     * @return The format, or null if the extension is not recognised
+     */
+    public static Format fromFileName(String fileName) {
+      String lower = fileName.toLowerCase(Locale.US);
+      if (lower.endsWith(".gpx")) {
+        return GPX;
+      } else if (lower.endsWith(".kml")) {
+        return KML;
+      } else if (lower.endsWith(".geojson") || lower.endsWith(".json")) {
+        return GEOJSON;
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Receives the progress of an import on the importing thread.
+   */
+  public interface ProgressListener {
+    /**
+     * Called after each batch is written.
+     * @param bytesRead Bytes of the file read so far
+     * @param totalBytes Size of the file, or -1 if unknown
+     */
+    void onProgress(long bytesRead, long totalBytes);
+  }
+  
+  /**
+   * What an import added to the database.
+   */
+  public static class Result {
+    private final Trip trip;
+    private final int waypointCount;
+    private final long fixCount;
+    
+    Result(Trip trip, int waypointCount, long fixCount) {
+      this.trip = trip;
+      this.waypointCount = waypointCount;
+      this.fixCount = fixCount;
+    }
+    
+    /**
+     * Get the Trip created by the import.
+     * @return the new Trip
+     */
+    public Trip getTrip() {
+      return trip;
+    }
+    
+    /**
+     * Get the number of waypoints imported as Points.
+     * @return the number of Points
+     */
+    public int getWaypointCount() {
+      return waypointCount;
+    }
+    
+    /**
+     * Get the number of track fixes imported.
+     * @return the number of fixes
+     */
+    public long getFixCount() {
+      return fixCount;
+    }
+  }
+  
+  private final MapJournalDAO dao;
+  private ProgressListener progressListener;
+  private volatile boolean cancelled;
+  
+  /**
+   * Creates an importer that writes through the given DAO, which must be
+   * open.
+   * @param dao The DAO to write to
+   */
+  public TrackImporter(MapJournalDAO dao) {
+    this.dao = dao;
+  }
+  
+  /**
+   * Sets the listener for progress reports.
+   * @param listener The listener, or null for none
+   */
+  public void setProgressListener(ProgressListener listener) {
+    progressListener = listener;
+  }
+  
+  /**
+   * Cancels the import in progress. The importing thread stops at the next
+   * fix or waypoint, deletes what it wrote and throws CancellationException.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+  
+  /**
+   * Imports a file into a new Trip named after the file. The format is
+   * taken from the file's extension.
+   * @param file The file to import
+   * @return What was imported
+   * @throws IOException if the file cannot be read or parsed
+   * @throws CancellationException if the import was cancelled
+   */
+  public Result importFile(File file) throws IOException {
+    Format format = Format.fromFileName(file.getName());
+    if (format == null) {
+      throw new IOException("Unknown file type: " + file.getName());
+    }
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    InputStream in = new FileInputStream(file);
+    try {
+      return importStream(in, file.length(), format,
+                          dot > 0 ? name.substring(0, dot) : name);
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Imports a stream into a new Trip. The stream is not closed.
+   * @param in The contents of the file
+   * @param totalBytes The length of the stream for progress reports, or -1
+   * @param format The format of the file
+   * @param tripName The name of the new Trip
+   * @return What was imported
+   * @throws IOException if the stream cannot be read or parsed
+   * @throws CancellationException if the import was cancelled
+   */
+  public Result importStream(InputStream in,
+                             long totalBytes,
+                             Format format,
+                             String tripName) throws IOException {
+    cancelled = false;
+    final Trip trip = new Trip(-1, tripName, null, new ArrayList<Point>());
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        writer.insertTrip(trip);
+      }
+    });
+    
+    CountingInputStream counted =
+        new CountingInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+    Writer writer = new Writer(trip, counted, totalBytes);
+    boolean done = false;
+    try {
+      switch (format) {
+        case GPX:
+          GpxParser.parse(counted, writer);
+          break;
+        case KML:
+          KmlParser.parse(counted, writer);
+          break;
+        case GEOJSON:
+          GeoJsonParser.parse(counted, writer);
+          break;
+      }
+      writer.endTrack();
+      writer.flush();
+      done = true;
+    } finally {
+      if (!done) {
+        writer.rollback();
+      }
+    }
+    return new Result(trip, writer.waypointCount, writer.fixCount);
+  }
+  
+  /**
+   * Collects parsed data into batches and writes them.
+   */
+  private class Writer implements TrackSink {
+    private final Trip trip;
+    private final CountingInputStream in;
+    private final long totalBytes;
+    
+    // Finished tracks and waypoints not yet written
+    private final List<TrackSegment> segments = new ArrayList<TrackSegment>();
+    private final List<Point> waypoints = new ArrayList<Point>();
+    private int pendingFixes;
+    
+    // The track being parsed, and whether it starts with a fix repeated from
+    // the previous batch
+    private TrackSegment segment;
+    private boolean continued;
+    private int waypointCount;
+    private long fixCount;
+    
+    Writer(Trip trip, CountingInputStream in, long totalBytes) {
+      this.trip = trip;
+      this.in = in;
+      this.totalBytes = totalBytes;
+      segment = new TrackSegment(-1, trip.getId());
+    }
+    
+    @Override
+    public void fix(double latitude, double longitude, double altitude,
+                    long time) {
+      checkCancelled();
+      segment.add(latitude, longitude, (float) altitude, time);
+      fixCount++;
+      if (++pendingFixes >= BATCH_FIXES) {
+        flush();
+      }
+    }
+    
+    @Override
+    public void endTrack() {
+      if (segment.size() > (continued ? 1 : 0)) {
+        segments.add(segment);
+      }
+      segment = new TrackSegment(-1, trip.getId());
+      continued = false;
+    }
+    
+    @Override
+    public void waypoint(String name,
+                         String description,
+                         double latitude,
+                         double longitude,
+                         double altitude,
+                         long time) {
+      checkCancelled();
+      waypoints.add(new Point(-1, name, trip.getId(), latitude, longitude,
+                              altitude, (int) (time / 1000), null,
+                              description, null));
+      if (waypoints.size() >= BATCH_WAYPOINTS) {
+        flush();
+      }
+    }
+    
+    /**
+     * Writes the pending tracks and waypoints in one transaction. A track
+     * still being parsed is cut, and continues in a new segment that repeats
+     * its last fix so it is drawn without a gap.
+     */
+    void flush() {
+      final List<TrackSegment> full = new ArrayList<TrackSegment>(segments);
+      final List<Point> points = new ArrayList<Point>(waypoints);
+      segments.clear();
+      waypoints.clear();
+      pendingFixes = 0;
+      if (segment.size() > (continued ? 1 : 0)) {
+        full.add(segment);
+        int last = segment.size() - 1;
+        TrackSegment next = new TrackSegment(-1, trip.getId());
+        next.add(segment.getLatitude(last), segment.getLongitude(last),
+                 segment.getAltitude(last), segment.getTime(last));
+        segment = next;
+        continued = true;
+      }
+      if (full.isEmpty() && points.isEmpty()) {
+        return;
+      }
+      
+      dao.writeBatch(new BatchWriter.Job() {
+        @Override
+        public void run(BatchWriter writer) {
+          for (TrackSegment s : full) {
+            writer.insertTrackSegment(s);
+          }
+          for (Point point : points) {
+            writer.insertPoint(point);
+          }
+        }
+      });
+      waypointCount += points.size();
+      if (progressListener != null) {
+        progressListener.onProgress(in.count, totalBytes);
+      }
+    }
+    
+    /**
+     * Deletes everything written so far by deleting the Trip, which the
+     * database follows by deleting its Points and TrackSegments.
+     */
+    void rollback() {
+      dao.writeBatch(new BatchWriter.Job() {
+        @Override
+        public void run(BatchWriter writer) {
+          writer.deleteTrip(trip);
+        }
+      });
+    }
+    
+    private void checkCancelled() {
+      if (cancelled) {
+        throw new CancellationException("Import cancelled");
+      }
+    }
+  }
+  
+  /**
+   * Counts the bytes read from a stream, for progress reports.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    volatile long count;
+    
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+    
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.IOException;
+
+/**
+ * Receives the contents of a track file as it is parsed, so that no parser
+ * has to hold a whole file in memory.
+ * @author ericzeng
+ */
+interface TrackSink {
+  /**
+   * Receives the next fix of the current track.
+   * @param latitude Latitude of the fix
+   * @param longitude Longitude of the fix
+   * @param altitude Altitude of the fix, or 0 if unknown
+   * @param time Time of the fix in milliseconds since the epoch, or 0
+   */
+  void fix(double latitude, double longitude, double altitude, long time)
+      throws IOException;
+  
+  /**
+   * Ends the current track. The next fix starts a new one.
+   */
+  void endTrack() throws IOException;
+  
+  /**
+   * Receives a named location.
+   * @param name Name of the location. Can be null.
+   * @param description Description of the location. Can be null.
+   * @param latitude Latitude of the location
+   * @param longitude Longitude of the location
+   * @param altitude Altitude of the location, or 0 if unknown
+   * @param time Time of the visit in milliseconds since the epoch, or 0
+   */
+  void waypoint(String name,
+                String description,
+                double latitude,
+                double longitude,
+                double altitude,
+                long time) throws IOException;
+}
@@ -0,0 +1,492 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import android.util.JsonWriter;
+
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.MediaItem;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointVisitor;
+import com.example.mapjournal.model.TrackSegment;
+import com.example.mapjournal.model.TrackSegmentVisitor;
+import com.example.mapjournal.model.Trip;
+
+/**
+ * Exports a Trip with its Points, MediaItems and TrackSegments as GPX or
+ * GeoJSON, or as a zip archive holding the document and the media files.
+ * Rows are read from cursors one at a time and written straight to a
+ * buffered writer, so the trip is never loaded into memory as a whole.
+ * Exports run on the calling thread, which should not be the main thread.
+ * @author ericzeng
+ */
+public class TripExporter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String MEDIA_DIR = "media/";
+  private static final String DOCUMENT_NAME = "trip";
+  
+  /**
+   * The formats a Trip can be exported to.
+   */
+  public enum Format {
+    GPX("gpx"), GEOJSON("geojson");
+    
+    private final String extension;
+    
+    private Format(String extension) {
+      this.extension = extension;
+    }
+    
+    /**
+     * Get the file extension of the format.
+     * @return the extension, without a dot
+     */
+    public String getExtension() {
+      return extension;
+    }
+  }
+  
+  private final MapJournalDAO dao;
+  
+  /**
+   * Creates an exporter that reads through the given DAO, which must be
+   * open.
+   * @param dao The DAO to read from
+   */
+  public TripExporter(MapJournalDAO dao) {
+    this.dao = dao;
+  }
+  
+  /**
+   * Writes a Trip as a document. Media are linked by their paths on the
+   * device. The stream is flushed but not closed.
+   * @param tripId The id of the Trip
+   * @param format The format of the document
+   * @param out The stream to write to
+   * @throws IOException if the stream cannot be written or there is no Trip
+   *         with the given id
+   */
+  public void export(long tripId, Format format, OutputStream out)
+      throws IOException {
+    writeDocument(getTrip(tripId), format, out, false);
+  }
+  
+  /**
+   * Writes a Trip to a zip archive holding the document and a copy of every
+   * media file that exists on the device. The document links media by their
+   * paths in the archive. Media files are copied without passing through
+   * the Java heap.
+   * @param tripId The id of the Trip
+   * @param format The format of the document
+   * @param zipFile The archive to create
+   * @throws IOException if the archive cannot be written or there is no Trip
+   *         with the given id
+   */
+  public void exportArchive(long tripId, Format format, File zipFile)
+      throws IOException {
+    Trip trip = getTrip(tripId);
+    final ZipWriter zip = new ZipWriter(zipFile);
+    boolean done = false;
+    try {
+      OutputStream document =
+          zip.beginEntry(DOCUMENT_NAME + "." + format.getExtension());
+      writeDocument(trip, format, document, true);
+      document.close();
+      
+      // A second pass over the points copies their media after the document
+      try {
+        dao.forEachPointWithMedia(tripId, new PointVisitor() {
+          @Override
+          public void visit(Point point) {
+            for (MediaItem item : point.getAllMedia()) {
+              File file = new File(item.getFilePath());
+              if (file.isFile()) {
+                try {
+                  zip.addFile(archivePath(item), file);
+                } catch (IOException e) {
+                  throw new WrappedIOException(e);
+                }
+              }
+            }
+          }
+        });
+      } catch (WrappedIOException e) {
+        throw e.getCause();
+      }
+      zip.close();
+      done = true;
+    } finally {
+      if (!done) {
+        zip.abort();
+        zipFile.delete();
+      }
+    }
+  }
+  
+  /**
+   * Computes the path of a media file in an archive. The id keeps files with
+   * the same name apart.
+   * @param item The MediaItem
+   * @return The path of the file in the archive
+   */
+  public static String archivePath(MediaItem item) {
+    return MEDIA_DIR + item.getId() + "-" + new File(item.getFilePath()).getName();
+  }
+  
+  private Trip getTrip(long tripId) throws IOException {
+    Trip trip = dao.getTrip(tripId);
+    if (trip == null) {
+      throw new IOException("No trip with id " + tripId);
+    }
+    return trip;
+  }
+  
+  /**
+   * Helper method that streams the points and segments of a trip through a
+   * DocumentWriter.
+   */
+  private void writeDocument(Trip trip,
+                             Format format,
+                             OutputStream out,
+                             boolean archive) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"),
+                                       BUFFER_SIZE);
+    final DocumentWriter document = format == Format.GPX
+        ? new GpxWriter(writer, archive) : new GeoJsonWriter(writer, archive);
+    document.begin(trip);
+    try {
+      dao.forEachPointWithMedia(trip.getId(), new PointVisitor() {
+        @Override
+        public void visit(Point point) {
+          try {
+            document.point(point);
+          } catch (IOException e) {
+            throw new WrappedIOException(e);
+          }
+        }
+      });
+      dao.forEachTrackSegment(trip.getId(), new TrackSegmentVisitor() {
+        @Override
+        public void visit(TrackSegment segment) {
+          try {
+            document.segment(segment);
+          } catch (IOException e) {
+            throw new WrappedIOException(e);
+          }
+        }
+      });
+    } catch (WrappedIOException e) {
+      throw e.getCause();
+    }
+    document.end();
+    writer.flush();
+  }
+  
+  /**
+   * Helper method that decides how a document links to a media file.
+   */
+  private static String mediaLink(MediaItem item, boolean archive) {
+    if (archive && new File(item.getFilePath()).isFile()) {
+      return archivePath(item);
+    }
+    return item.getFilePath();
+  }
+  
+  /**
+   * Writes one kind of document, a row at a time.
+   */
+  private interface DocumentWriter {
+    void begin(Trip trip) throws IOException;
+    void point(Point point) throws IOException;
+    void segment(TrackSegment segment) throws IOException;
+    void end() throws IOException;
+  }
+  
+  /**
+   * Writes GPX 1.1. Points become waypoints, with media as links, and every
+   * segment becomes a trkseg of a single track.
+   */
+  private static class GpxWriter implements DocumentWriter {
+    private final Writer out;
+    private final boolean archive;
+    private String tripName;
+    private boolean inTrack;
+    
+    GpxWriter(Writer out, boolean archive) {
+      this.out = out;
+      this.archive = archive;
+    }
+    
+    @Override
+    public void begin(Trip trip) throws IOException {
+      tripName = trip.getName();
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      out.write("<gpx version=\"1.1\" creator=\"MapJournal\"" +
+                " xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+      out.write(" <metadata>");
+      element("name", trip.getName());
+      element("desc", trip.getDescription());
+      out.write("</metadata>\n");
+    }
+    
+    @Override
+    public void point(Point point) throws IOException {
+      out.write(" <wpt");
+      coordinates(point.getLatitude(), point.getLongitude());
+      out.write(">");
+      out.write("<ele>");
+      appendFixed(out, point.getAltitude(), 1);
+      out.write("</ele>");
+      if (point.getTime() != 0) {
+        element("time", IsoTime.format(point.getTime() * 1000L));
+      }
+      element("name", point.getTitle());
+      element("cmt", point.getAddress());
+      element("desc", point.getJournal());
+      for (MediaItem item : point.getAllMedia()) {
+        out.write("<link href=\"");
+        escape(mediaLink(item, archive));
+        out.write("\">");
+        element("text", item.getCaption());
+        out.write("</link>");
+      }
+      out.write("</wpt>\n");
+    }
+    
+    @Override
+    public void segment(TrackSegment segment) throws IOException {
+      if (!inTrack) {
+        inTrack = true;
+        out.write(" <trk>");
+        element("name", tripName);
+        out.write("\n");
+      }
+      out.write("  <trkseg>\n");
+      for (int i = 0; i < segment.size(); i++) {
+        out.write("   <trkpt");
+        coordinates(segment.getLatitude(i), segment.getLongitude(i));
+        out.write("><ele>");
+        appendFixed(out, segment.getAltitude(i), 1);
+        out.write("</ele>");
+        if (segment.getTime(i) != 0) {
+          element("time", IsoTime.format(segment.getTime(i)));
+        }
+        out.write("</trkpt>\n");
+      }
+      out.write("  </trkseg>\n");
+    }
+    
+    @Override
+    public void end() throws IOException {
+      if (inTrack) {
+        out.write(" </trk>\n");
+      }
+      out.write("</gpx>\n");
+    }
+    
+    private void coordinates(double latitude, double longitude)
+        throws IOException {
+      out.write(" lat=\"");
+      appendFixed(out, latitude, 7);
+      out.write("\" lon=\"");
+      appendFixed(out, longitude, 7);
+      out.write('"');
+    }
+    
+    /**
+     * Helper method that writes a text element, or nothing if the text is
+     * null.
+     */
+    private void element(String tag, String text) throws IOException {
+      if (text == null) {
+        return;
+      }
+      out.write('<');
+      out.write(tag);
+      out.write('>');
+      escape(text);
+      out.write("</");
+      out.write(tag);
+      out.write('>');
+    }
+    
+    private void escape(String text) throws IOException {
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        switch (c) {
+          case '<':
+            out.write("&lt;");
+            break;
+          case '>':
+            out.write("&gt;");
+            break;
+          case '&':
+            out.write("&amp;");
+            break;
+          case '"':
+            out.write("&quot;");
+            break;
+          default:
+            out.write(c);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Writes a GeoJSON FeatureCollection. Points become Point features with
+   * their text, time and media as properties, and every segment becomes a
+   * LineString feature with a coordTimes property.
+   */
+  private static class GeoJsonWriter implements DocumentWriter {
+    private final JsonWriter json;
+    private final boolean archive;
+    
+    GeoJsonWriter(Writer out, boolean archive) {
+      json = new JsonWriter(out);
+      this.archive = archive;
+    }
+    
+    @Override
+    public void begin(Trip trip) throws IOException {
+      json.beginObject();
+      json.name("type").value("FeatureCollection");
+      json.name("name").value(trip.getName());
+      json.name("features").beginArray();
+    }
+    
+    @Override
+    public void point(Point point) throws IOException {
+      json.beginObject();
+      json.name("type").value("Feature");
+      json.name("geometry").beginObject();
+      json.name("type").value("Point");
+      json.name("coordinates");
+      position(point.getLatitude(), point.getLongitude(), point.getAltitude());
+      json.endObject();
+      
+      json.name("properties").beginObject();
+      json.name("id").value(point.getId());
+      json.name("name").value(point.getTitle());
+      json.name("address").value(point.getAddress());
+      json.name("description").value(point.getJournal());
+      if (point.getTime() != 0) {
+        json.name("time").value(IsoTime.format(point.getTime() * 1000L));
+      }
+      json.name("media").beginArray();
+      for (MediaItem item : point.getAllMedia()) {
+        json.beginObject();
+        json.name("path").value(mediaLink(item, archive));
+        json.name("caption").value(item.getCaption());
+        json.endObject();
+      }
+      json.endArray();
+      json.endObject();
+      json.endObject();
+    }
+    
+    @Override
+    public void segment(TrackSegment segment) throws IOException {
+      json.beginObject();
+      json.name("type").value("Feature");
+      json.name("geometry").beginObject();
+      json.name("type").value("LineString");
+      json.name("coordinates").beginArray();
+      for (int i = 0; i < segment.size(); i++) {
+        position(segment.getLatitude(i), segment.getLongitude(i),
+                 segment.getAltitude(i));
+      }
+      json.endArray();
+      json.endObject();
+      
+      json.name("properties").beginObject();
+      if (segment.getStartTime() != 0) {
+        json.name("coordTimes").beginArray();
+        for (int i = 0; i < segment.size(); i++) {
+          json.value(IsoTime.format(segment.getTime(i)));
+        }
+        json.endArray();
+      }
+      json.endObject();
+      json.endObject();
+    }
+    
+    @Override
+    public void end() throws IOException {
+      json.endArray();
+      json.endObject();
+      json.flush();
+    }
+    
+    private void position(double latitude, double longitude, double altitude)
+        throws IOException {
+      json.beginArray();
+      json.value(longitude);
+      json.value(latitude);
+      json.value(altitude);
+      json.endArray();
+    }
+  }
+  
+  /**
+   * Helper method that writes a number with a fixed number of decimals and
+   * no exponent, dropping trailing zeros. Double.toString() would write small
+   * coordinates such as 1.0E-5, which GPX does not allow.
+   */
+  static void appendFixed(Writer out, double value, int decimals)
+      throws IOException {
+    long scale = 1;
+    for (int i = 0; i < decimals; i++) {
+      scale *= 10;
+    }
+    long scaled = Math.round(value * scale);
+    if (scaled < 0) {
+      out.write('-');
+      scaled = -scaled;
+    }
+    out.write(Long.toString(scaled / scale));
+    long fraction = scaled % scale;
+    if (fraction == 0) {
+      return;
+    }
+    out.write('.');
+    for (long digit = scale / 10; fraction != 0; digit /= 10) {
+      out.write((char) ('0' + fraction / digit));
+      fraction %= digit;
+    }
+  }
+  
+  /**
+   * Carries an IOException out of a visitor, whose methods cannot throw it.
+   */
+  private static class WrappedIOException extends RuntimeException {
+    WrappedIOException(IOException cause) {
+      super(cause);
+    }
+    
+    @Override
+    public IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
@@ -0,0 +1,368 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a zip archive whose file entries are copied with
+ * FileChannel.transferTo(), so the bytes of large files such as photos never
+ * pass through the Java heap. ZipOutputStream cannot do this because every
+ * byte must be written through it. Files are stored uncompressed, as photos
+ * and videos are already compressed; streamed entries are deflated. Zip64
+ * records are written when the archive grows past 4 GB.
+ * @author ericzeng
+ */
+final class ZipWriter implements Closeable {
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int DATA_DESCRIPTOR = 0x08074b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int ZIP64_END = 0x06064b50;
+  private static final int ZIP64_LOCATOR = 0x07064b50;
+  private static final int END = 0x06054b50;
+  
+  private static final int VERSION = 20;
+  private static final int VERSION_ZIP64 = 45;
+  private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+  private static final int FLAG_UTF8 = 1 << 11;
+  private static final int STORED = 0;
+  private static final int DEFLATED = 8;
+  private static final long MAX_32 = 0xffffffffL;
+  private static final int MAX_16 = 0xffff;
+  
+  /**
+   * An entry already written, remembered for the central directory.
+   */
+  private static class Entry {
+    byte[] name;
+    int flags;
+    int method;
+    int dosTime;
+    long crc;
+    long compressedSize;
+    long size;
+    long offset;
+  }
+  
+  private final FileOutputStream file;
+  private final FileChannel channel;
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final ByteBuffer header =
+      ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] buffer = new byte[64 * 1024];
+  private OutputStream openEntry;
+  
+  /**
+   * Creates an archive, replacing any existing file.
+   * @param zipFile The archive to write
+   */
+  ZipWriter(File zipFile) throws IOException {
+    file = new FileOutputStream(zipFile);
+    channel = file.getChannel();
+  }
+  
+  /**
+   * Adds a file to the archive, stored without compression. The file is read
+   * once to compute its checksum and then copied by the kernel.
+   * @param name The path of the entry in the archive
+   * @param source The file to add
+   */
+  void addFile(String name, File source) throws IOException {
+    checkNoOpenEntry();
+    FileInputStream in = new FileInputStream(source);
+    try {
+      FileChannel sourceChannel = in.getChannel();
+      long size = sourceChannel.size();
+      CRC32 crc = new CRC32();
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, n);
+      }
+      
+      Entry entry = newEntry(name, STORED, 0, source.lastModified());
+      entry.crc = crc.getValue();
+      entry.compressedSize = size;
+      entry.size = size;
+      writeLocalHeader(entry);
+      for (long copied = 0; copied < size; ) {
+        copied += sourceChannel.transferTo(copied, size - copied, channel);
+      }
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Starts a deflated entry whose contents are written to the returned
+   * stream. The stream must be closed before the next entry is added; closing
+   * it does not close the archive.
+   * @param name The path of the entry in the archive
+   * @return A stream for the entry's contents
+   */
+  OutputStream beginEntry(String name) throws IOException {
+    checkNoOpenEntry();
+    final Entry entry = newEntry(name, DEFLATED, FLAG_DATA_DESCRIPTOR,
+                                 System.currentTimeMillis());
+    writeLocalHeader(entry);
+    
+    final CRC32 crc = new CRC32();
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final long start = channel.position();
+    OutputStream channelOut = new FilterOutputStream(
+        Channels.newOutputStream(channel)) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+      
+      @Override
+      public void close() throws IOException {
+        // Leave the channel open for the next entry
+        flush();
+      }
+    };
+    openEntry = new DeflaterOutputStream(channelOut, deflater, 8192) {
+      private boolean closed;
+      
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        entry.size += len;
+        super.write(b, off, len);
+      }
+      
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+      
+      @Override
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        finish();
+        deflater.end();
+        entry.crc = crc.getValue();
+        entry.compressedSize = channel.position() - start;
+        if (entry.size >= MAX_32 || entry.compressedSize >= MAX_32) {
+          throw new IOException("Entry too large: " + entry.size);
+        }
+        header.clear();
+        header.putInt(DATA_DESCRIPTOR);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        writeHeader();
+        openEntry = null;
+      }
+    };
+    return openEntry;
+  }
+  
+  /**
+   * Writes the central directory and closes the archive.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      checkNoOpenEntry();
+      long directoryStart = channel.position();
+      for (Entry entry : entries) {
+        writeCentralHeader(entry);
+      }
+      long directorySize = channel.position() - directoryStart;
+      
+      if (entries.size() >= MAX_16 || directoryStart >= MAX_32
+          || directorySize >= MAX_32) {
+        long zip64End = channel.position();
+        header.clear();
+        header.putInt(ZIP64_END);
+        header.putLong(44);
+        header.putShort((short) VERSION_ZIP64);
+        header.putShort((short) VERSION_ZIP64);
+        header.putInt(0);
+        header.putInt(0);
+        header.putLong(entries.size());
+        header.putLong(entries.size());
+        header.putLong(directorySize);
+        header.putLong(directoryStart);
+        header.putInt(ZIP64_LOCATOR);
+        header.putInt(0);
+        header.putLong(zip64End);
+        header.putInt(1);
+        writeHeader();
+      }
+      header.clear();
+      header.putInt(END);
+      header.putShort((short) 0);
+      header.putShort((short) 0);
+      header.putShort((short) Math.min(entries.size(), MAX_16));
+      header.putShort((short) Math.min(entries.size(), MAX_16));
+      header.putInt((int) Math.min(directorySize, MAX_32));
+      header.putInt((int) Math.min(directoryStart, MAX_32));
+      header.putShort((short) 0);
+      writeHeader();
+    } finally {
+      file.close();
+    }
+  }
+  
+  /**
+   * Closes the archive without finishing it, after a failure. The file is
+   * left incomplete.
+   */
+  void abort() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      // Already failed
+    }
+  }
+  
+  private void checkNoOpenEntry() {
+    if (openEntry != null) {
+      throw new IllegalStateException("The previous entry is still open");
+    }
+  }
+  
+  private Entry newEntry(String name, int method, int flags, long time)
+      throws IOException {
+    Entry entry = new Entry();
+    entry.name = name.getBytes("UTF-8");
+    if (entry.name.length > 512) {
+      throw new IOException("Entry name too long: " + name);
+    }
+    entry.method = method;
+    entry.flags = flags | FLAG_UTF8;
+    entry.dosTime = dosTime(time);
+    entry.offset = channel.position();
+    entries.add(entry);
+    return entry;
+  }
+  
+  private void writeLocalHeader(Entry entry) throws IOException {
+    boolean zip64 = entry.size >= MAX_32;
+    header.clear();
+    header.putInt(LOCAL_HEADER);
+    header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+    header.putShort((short) entry.flags);
+    header.putShort((short) entry.method);
+    header.putInt(entry.dosTime);
+    // Streamed entries put these in the data descriptor instead
+    header.putInt((int) entry.crc);
+    header.putInt(zip64 ? (int) MAX_32 : (int) entry.compressedSize);
+    header.putInt(zip64 ? (int) MAX_32 : (int) entry.size);
+    header.putShort((short) entry.name.length);
+    header.putShort((short) (zip64 ? 20 : 0));
+    header.put(entry.name);
+    if (zip64) {
+      header.putShort((short) 1);
+      header.putShort((short) 16);
+      header.putLong(entry.size);
+      header.putLong(entry.compressedSize);
+    }
+    writeHeader();
+  }
+  
+  private void writeCentralHeader(Entry entry) throws IOException {
+    boolean bigSize = entry.size >= MAX_32;
+    boolean bigCompressed = entry.compressedSize >= MAX_32;
+    boolean bigOffset = entry.offset >= MAX_32;
+    int extraLength = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0)
+                      + (bigOffset ? 8 : 0);
+    boolean zip64 = extraLength > 0;
+    
+    header.clear();
+    header.putInt(CENTRAL_HEADER);
+    header.putShort((short) VERSION_ZIP64);
+    header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+    header.putShort((short) entry.flags);
+    header.putShort((short) entry.method);
+    header.putInt(entry.dosTime);
+    header.putInt((int) entry.crc);
+    header.putInt((int) Math.min(entry.compressedSize, MAX_32));
+    header.putInt((int) Math.min(entry.size, MAX_32));
+    header.putShort((short) entry.name.length);
+    header.putShort((short) (zip64 ? 4 + extraLength : 0));
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt(0);
+    header.putInt((int) Math.min(entry.offset, MAX_32));
+    header.put(entry.name);
+    if (zip64) {
+      header.putShort((short) 1);
+      header.putShort((short) extraLength);
+      if (bigSize) {
+        header.putLong(entry.size);
+      }
+      if (bigCompressed) {
+        header.putLong(entry.compressedSize);
+      }
+      if (bigOffset) {
+        header.putLong(entry.offset);
+      }
+    }
+    writeHeader();
+  }
+  
+  /**
+   * Helper method that writes the bytes put in the header buffer.
+   */
+  private void writeHeader() throws IOException {
+    header.flip();
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+  }
+  
+  /**
+   * Helper method that converts a time to the MS-DOS format used by zip,
+   * with the date in the high 16 bits.
+   */
+  private static int dosTime(long millis) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(millis);
+    int year = calendar.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (year - 1980) << 25
+           | (calendar.get(Calendar.MONTH) + 1) << 21
+           | calendar.get(Calendar.DAY_OF_MONTH) << 16
+           | calendar.get(Calendar.HOUR_OF_DAY) << 11
+           | calendar.get(Calendar.MINUTE) << 5
+           | calendar.get(Calendar.SECOND) >> 1;
+  }
+}
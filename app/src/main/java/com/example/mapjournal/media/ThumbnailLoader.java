@@ -0,0 +1,408 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.media;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.example.mapjournal.HandlerExecutor;
+import com.example.mapjournal.model.MediaItem;
+
+/**
+ * Loads square thumbnails of MediaItem photos without decoding them at full
+ * resolution on the main thread. A request is served from, in order:
+ * <ol>
+ * <li>a memory cache of Bitmaps keyed by path, bounded by their size in
+ *     bytes, so a hit touches neither the file system nor a hash;</li>
+ * <li>a disk cache of JPEG thumbnails, keyed by the photo's path and
+ *     modification time so edited photos get new thumbnails;</li>
+ * <li>decoding the photo on a background pool. The photo is subsampled by
+ *     the largest power of two that keeps it at least the thumbnail size,
+ *     then centre-cropped and scaled to the exact size.</li>
+ * </ol>
+ * Concurrent requests for the same photo share one decode. Callbacks run on
+ * the main thread. An edited photo keeps its old thumbnail until that
+ * leaves the memory cache, after which the disk key picks up the change.
+ * @author ericzeng
+ */
+public class ThumbnailLoader {
+  private static final String TAG = "ThumbnailLoader";
+  private static final String DISK_CACHE_DIR = "thumbnails";
+  private static final int DECODE_THREADS = 2;
+  private static final int JPEG_QUALITY = 85;
+  private static final long DEFAULT_DISK_CACHE_BYTES = 32L * 1024 * 1024;
+  
+  /**
+   * Receives a thumbnail on the main thread.
+   */
+  public interface Callback {
+    /**
+     * Called with the thumbnail, or null if the photo could not be decoded.
+     * @param path The path of the photo
+     * @param thumbnail The thumbnail, or null
+     */
+    void onThumbnail(String path, Bitmap thumbnail);
+  }
+  
+  private final int size;
+  private final File diskCacheDir;
+  private final long maxDiskCacheBytes;
+  private final LruCache<String, Bitmap> memoryCache;
+  private final ExecutorService decoders =
+      Executors.newFixedThreadPool(DECODE_THREADS);
+  private final Executor callbackExecutor;
+  
+  // Callbacks waiting for the thumbnail of each path, guarded by itself
+  private final Map<String, List<Callback>> inFlight =
+      new HashMap<String, List<Callback>>();
+  // Bytes on disk, or -1 until measured; guarded by diskCacheDir
+  private long diskCacheBytes = -1;
+  
+  /**
+   * Creates a loader. The memory cache takes an eighth of the heap.
+   * @param context
+   * @param size The width and height of the thumbnails in pixels
+   */
+  public ThumbnailLoader(Context context, int size) {
+    this(new File(context.getCacheDir(), DISK_CACHE_DIR),
+         size,
+         (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8),
+         DEFAULT_DISK_CACHE_BYTES);
+  }
+  
+  /**
+   * Creates a loader.
+   * @param diskCacheDir Directory for the thumbnail files
+   * @param size The width and height of the thumbnails in pixels
+   * @param maxMemoryBytes Size of the memory cache in bytes
+   * @param maxDiskBytes Size of the disk cache in bytes
+   */
+  public ThumbnailLoader(File diskCacheDir,
+                         int size,
+                         int maxMemoryBytes,
+                         long maxDiskBytes) {
+    this(diskCacheDir, size, maxMemoryBytes, maxDiskBytes,
+         new HandlerExecutor());
+  }
+  
+  /**
+   * Creates a loader that runs callbacks on the given executor, so tests can
+   * run without a main looper.
+   */
+  ThumbnailLoader(File diskCacheDir,
+                  int size,
+                  int maxMemoryBytes,
+                  long maxDiskBytes,
+                  Executor callbackExecutor) {
+    this.size = size;
+    this.callbackExecutor = callbackExecutor;
+    this.diskCacheDir = diskCacheDir;
+    this.maxDiskCacheBytes = maxDiskBytes;
+    memoryCache = new LruCache<String, Bitmap>(maxMemoryBytes) {
+      @Override
+      protected int sizeOf(String key, Bitmap value) {
+        return value.getRowBytes() * value.getHeight();
+      }
+    };
+  }
+  
+  /**
+   * Loads the thumbnail of a MediaItem.
+   * @param item The MediaItem
+   * @param callback Receives the thumbnail on the main thread
+   */
+  public void load(MediaItem item, Callback callback) {
+    load(item.getFilePath(), callback);
+  }
+  
+  /**
+   * Loads the thumbnail of a photo. If it is in the memory cache the callback
+   * runs before this method returns.
+   * @param path The path of the photo
+   * @param callback Receives the thumbnail on the main thread
+   */
+  public void load(final String path, Callback callback) {
+    // The loader has a single size, so the path alone keys the memory cache
+    Bitmap cached = memoryCache.get(path);
+    if (cached != null) {
+      callback.onThumbnail(path, cached);
+      return;
+    }
+    
+    synchronized (inFlight) {
+      List<Callback> waiting = inFlight.get(path);
+      if (waiting != null) {
+        waiting.add(callback);
+        return;
+      }
+      waiting = new ArrayList<Callback>();
+      waiting.add(callback);
+      inFlight.put(path, waiting);
+    }
+    decoders.execute(new Runnable() {
+      @Override
+      public void run() {
+        // The stat and the hash stay off the main thread with the decode
+        File photo = new File(path);
+        String key = cacheKey(path, photo.lastModified(), size);
+        final Bitmap thumbnail = makeThumbnail(photo, key);
+        if (thumbnail != null) {
+          memoryCache.put(path, thumbnail);
+        }
+        final List<Callback> waiting;
+        synchronized (inFlight) {
+          waiting = inFlight.remove(path);
+        }
+        callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (Callback c : waiting) {
+              c.onThumbnail(path, thumbnail);
+            }
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Stops a callback from being called for requests still being made.
+   * @param callback The callback to remove
+   */
+  public void cancel(Callback callback) {
+    synchronized (inFlight) {
+      for (List<Callback> waiting : inFlight.values()) {
+        waiting.remove(callback);
+      }
+    }
+  }
+  
+  /**
+   * Empties the memory cache, for example when the system is low on memory.
+   */
+  public void trimMemory() {
+    memoryCache.evictAll();
+  }
+  
+  /**
+   * Stops the decoding threads.
+   */
+  public void shutdown() {
+    decoders.shutdownNow();
+  }
+  
+  /**
+   * Computes the subsampling factor for decoding an image: the largest power
+   * of two that keeps both sides at least the target size.
+   * @param width Width of the image
+   * @param height Height of the image
+   * @param target The smallest side wanted after subsampling
+   * @return The factor to pass as BitmapFactory.Options.inSampleSize
+   */
+  public static int calculateInSampleSize(int width, int height, int target) {
+    int sampleSize = 1;
+    while (width / (sampleSize * 2) >= target
+           && height / (sampleSize * 2) >= target) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+  
+  /**
+   * Computes the disk cache key of a thumbnail. The key changes whenever the photo
+   * is modified, so stale thumbnails are never read from disk.
+   * @param path The path of the photo
+   * @param lastModified The modification time of the photo
+   * @param size The size of the thumbnail
+   * @return A key usable as a file name
+   */
+  public static String cacheKey(String path, long lastModified, int size) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(
+          (path + "\n" + lastModified + "\n" + size).getBytes("UTF-8"));
+      StringBuilder key = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16));
+        key.append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+  
+  /**
+   * Helper method that reads a thumbnail from the disk cache, or decodes the
+   * photo and writes one. Runs on a decoding thread.
+   */
+  private Bitmap makeThumbnail(File photo, String key) {
+    File cached = new File(diskCacheDir, key + ".jpg");
+    if (cached.exists()) {
+      Bitmap thumbnail = BitmapFactory.decodeFile(cached.getPath());
+      if (thumbnail != null) {
+        // Mark as recently used for trimming
+        cached.setLastModified(System.currentTimeMillis());
+        return thumbnail;
+      }
+    }
+    
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(photo.getPath(), options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      Log.w(TAG, "Cannot decode " + photo);
+      return null;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = calculateInSampleSize(options.outWidth,
+                                                 options.outHeight,
+                                                 size);
+    Bitmap sampled = BitmapFactory.decodeFile(photo.getPath(), options);
+    if (sampled == null) {
+      Log.w(TAG, "Cannot decode " + photo);
+      return null;
+    }
+    Bitmap thumbnail = cropToSquare(sampled);
+    if (thumbnail != sampled) {
+      sampled.recycle();
+    }
+    writeToDisk(thumbnail, cached);
+    return thumbnail;
+  }
+  
+  /**
+   * Helper method that scales the centre square of a bitmap to the thumbnail
+   * size.
+   */
+  private Bitmap cropToSquare(Bitmap bitmap) {
+    int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+    if (side == size && bitmap.getWidth() == bitmap.getHeight()) {
+      return bitmap;
+    }
+    int left = (bitmap.getWidth() - side) / 2;
+    int top = (bitmap.getHeight() - side) / 2;
+    Bitmap thumbnail = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+    new Canvas(thumbnail).drawBitmap(bitmap,
+                                     new Rect(left, top, left + side, top + side),
+                                     new Rect(0, 0, size, size),
+                                     new Paint(Paint.FILTER_BITMAP_FLAG));
+    return thumbnail;
+  }
+  
+  /**
+   * Helper method that writes a thumbnail to the disk cache. The file is
+   * written under a temporary name and renamed, so a crash never leaves a
+   * truncated thumbnail behind.
+   */
+  private void writeToDisk(Bitmap thumbnail, File file) {
+    if (!diskCacheDir.isDirectory() && !diskCacheDir.mkdirs()) {
+      return;
+    }
+    File temp = new File(diskCacheDir, file.getName() + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(temp);
+      thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+      out.close();
+      out = null;
+      if (!temp.renameTo(file)) {
+        temp.delete();
+        return;
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Cannot write thumbnail " + file, e);
+      temp.delete();
+      return;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Already failed
+        }
+      }
+    }
+    addToDiskCache(file.length());
+  }
+  
+  /**
+   * Helper method that accounts for a new file and deletes the least
+   * recently used thumbnails once the disk cache is over its limit.
+   */
+  private void addToDiskCache(long bytes) {
+    synchronized (diskCacheDir) {
+      File[] files = null;
+      if (diskCacheBytes < 0) {
+        files = diskCacheDir.listFiles();
+        diskCacheBytes = 0;
+        for (File f : files) {
+          diskCacheBytes += f.length();
+        }
+      } else {
+        diskCacheBytes += bytes;
+      }
+      if (diskCacheBytes <= maxDiskCacheBytes) {
+        return;
+      }
+      
+      if (files == null) {
+        files = diskCacheDir.listFiles();
+      }
+      Arrays.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+          long diff = a.lastModified() - b.lastModified();
+          return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+      });
+      // Trim to three quarters so trimming is not needed on every write
+      for (File f : files) {
+        if (diskCacheBytes <= maxDiskCacheBytes * 3 / 4) {
+          break;
+        }
+        long length = f.length();
+        if (f.delete()) {
+          diskCacheBytes -= length;
+        }
+      }
+    }
+  }
+}
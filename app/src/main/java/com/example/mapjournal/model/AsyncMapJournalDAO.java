@@ -0,0 +1,518 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.mapjournal.HandlerExecutor;
+
+/**
+ * Runs MapJournalDAO calls off the main thread. Reads run on a small pool,
+ * which WAL lets proceed alongside writes; writes run one at a time, in
+ * submission order, on a single writer thread. Results are delivered to
+ * callbacks on the main thread.
+ * <p>
+ * A read of an id that is already being read joins the read in flight
+ * instead of querying again. Submitting a write stops later reads from
+ * joining reads that started before it, so reads never see data older than
+ * a write that was submitted first.
+ * <p>
+ * cancelAll() drops every pending callback, for example when an Activity
+ * stops. Reads that have not started are skipped; writes always complete,
+ * since skipping one would lose data, but their callbacks are dropped.
+ * @author ericzeng
+ */
+public class AsyncMapJournalDAO {
+  private static final String TAG = "AsyncMapJournalDAO";
+  private static final int READ_THREADS = 2;
+  private static final long SHUTDOWN_TIMEOUT = 5;   // Seconds
+  
+  /**
+   * A DAO call to run in the background.
+   */
+  public interface Operation<T> {
+    /**
+     * Runs the call on a background thread.
+     * @param dao An open DAO
+     * @return The result to deliver to the callback
+     */
+    T run(MapJournalDAO dao);
+  }
+  
+  /**
+   * Receives the outcome of an Operation on the main thread.
+   */
+  public interface Callback<T> {
+    /**
+     * Called with the result of the operation.
+     */
+    void onResult(T result);
+    
+    /**
+     * Called if the operation threw.
+     */
+    void onError(Exception e);
+  }
+  
+  private final MapJournalDAO dao;
+  private final ExecutorService readers;
+  private final ExecutorService writer;
+  private final Executor callbackExecutor;
+  
+  // Opening can hit the disk, so it has its own lock rather than holding up
+  // callers on the main thread
+  private final Object daoLock = new Object();
+  private boolean daoOpen;
+  
+  // Guarded by this
+  private final Map<String, Task<?>> readsInFlight =
+      new HashMap<String, Task<?>>();
+  private final Set<Request> pending = new HashSet<Request>();
+  
+  /**
+   * Creates a facade over the shared database. Objects read through it are
+   * kept in the identity map of a CachingMapJournalDAO, so reading the same
+   * Point or Trip again returns the same object without a query. Callbacks
+   * run on the main thread. No threads are started until the first call.
+   * @param context
+   */
+  public AsyncMapJournalDAO(Context context) {
+    this(new CachingMapJournalDAO(context), READ_THREADS,
+         new HandlerExecutor());
+  }
+  
+  /**
+   * Creates a facade over the given DAO.
+   * @param dao An unopened DAO, opened and closed on the background threads
+   * @param readThreads Number of threads running reads
+   * @param callbackExecutor Runs the callbacks
+   */
+  AsyncMapJournalDAO(MapJournalDAO dao,
+                     int readThreads,
+                     Executor callbackExecutor) {
+    this.dao = dao;
+    this.callbackExecutor = callbackExecutor;
+    readers = Executors.newFixedThreadPool(readThreads);
+    writer = Executors.newSingleThreadExecutor();
+  }
+  
+  /**
+   * Registers a listener to be told about every Point written through this
+   * facade. Listeners are called on the writer thread. Must be called before
+   * the first write is submitted.
+   * @param listener The listener to add
+   */
+  public void addPointListener(PointListener listener) {
+    dao.addPointListener(listener);
+  }
+  
+  /**
+   * Runs a read on the read pool.
+   * @param operation The read, which must not modify the database
+   * @param callback Receives the result
+   * @return A handle to cancel the callback
+   */
+  public <T> Request read(Operation<T> operation, Callback<T> callback) {
+    return submit(null, false, operation, callback);
+  }
+  
+  /**
+   * Runs a write on the writer thread, after every write submitted before it.
+   * @param operation The write
+   * @param callback Receives the result, or null
+   * @return A handle to cancel the callback
+   */
+  public <T> Request write(Operation<T> operation, Callback<T> callback) {
+    return submit(null, true, operation, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.getPoint().
+   */
+  public Request getPoint(final long id, Callback<Point> callback) {
+    return submit("Point:" + id, false, new Operation<Point>() {
+      @Override
+      public Point run(MapJournalDAO dao) {
+        return dao.getPoint(id);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Loads the fields of a Point returned by getPoint() or
+   * getPointSummaries() that are read on demand, its journal and list of
+   * MediaItems among them, so using them on the UI thread won't query the
+   * database. Points that are already loaded are delivered as they are.
+   */
+  public Request loadPoint(final Point point, Callback<Point> callback) {
+    // Not joined with other reads by id, since each caller has its own Point
+    return read(new Operation<Point>() {
+      @Override
+      public Point run(MapJournalDAO dao) {
+        point.getJournal();
+        point.getAllMedia();
+        return point;
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.getPointSummaries().
+   */
+  public Request getPointSummaries(final long tripId,
+                                   Callback<List<Point>> callback) {
+    return submit("PointSummaries:" + tripId, false,
+                  new Operation<List<Point>>() {
+      @Override
+      public List<Point> run(MapJournalDAO dao) {
+        return dao.getPointSummaries(tripId);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.getMedia().
+   */
+  public Request getMedia(final long id, Callback<MediaItem> callback) {
+    return submit("Media:" + id, false, new Operation<MediaItem>() {
+      @Override
+      public MediaItem run(MapJournalDAO dao) {
+        return dao.getMedia(id);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.getTrip().
+   */
+  public Request getTrip(final long id, Callback<Trip> callback) {
+    return submit("Trip:" + id, false, new Operation<Trip>() {
+      @Override
+      public Trip run(MapJournalDAO dao) {
+        return dao.getTrip(id);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.getAllTripStats().
+   */
+  public Request getAllTripStats(Callback<List<TripStats>> callback) {
+    return submit("TripStats", false, new Operation<List<TripStats>>() {
+      @Override
+      public List<TripStats> run(MapJournalDAO dao) {
+        return dao.getAllTripStats();
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.loadTripGraph().
+   */
+  public Request loadTripGraph(final long tripId, Callback<Trip> callback) {
+    return submit("TripGraph:" + tripId, false, new Operation<Trip>() {
+      @Override
+      public Trip run(MapJournalDAO dao) {
+        return dao.loadTripGraph(tripId);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.getPointsInBounds().
+   */
+  public Request getPointsInBounds(final double minLat,
+                                   final double minLng,
+                                   final double maxLat,
+                                   final double maxLng,
+                                   final int limit,
+                                   Callback<List<Point>> callback) {
+    return read(new Operation<List<Point>>() {
+      @Override
+      public List<Point> run(MapJournalDAO dao) {
+        return dao.getPointsInBounds(minLat, minLng, maxLat, maxLng, limit);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.createPoint(). The Point's id is set before
+   * the callback runs.
+   */
+  public Request createPoint(final Point point, Callback<Point> callback) {
+    return write(new Operation<Point>() {
+      @Override
+      public Point run(MapJournalDAO dao) {
+        dao.createPoint(point);
+        return point;
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.updatePoint().
+   */
+  public Request updatePoint(final Point point, Callback<Point> callback) {
+    return write(new Operation<Point>() {
+      @Override
+      public Point run(MapJournalDAO dao) {
+        dao.updatePoint(point);
+        return point;
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.deletePoint().
+   */
+  public Request deletePoint(final Point point, Callback<Point> callback) {
+    return write(new Operation<Point>() {
+      @Override
+      public Point run(MapJournalDAO dao) {
+        dao.deletePoint(point);
+        return point;
+      }
+    }, callback);
+  }
+  
+  /**
+   * Asynchronous MapJournalDAO.writeBatch().
+   */
+  public Request writeBatch(final BatchWriter.Job job,
+                            Callback<long[]> callback) {
+    return write(new Operation<long[]>() {
+      @Override
+      public long[] run(MapJournalDAO dao) {
+        return dao.writeBatch(job);
+      }
+    }, callback);
+  }
+  
+  /**
+   * Drops every pending callback and skips reads that have not started.
+   * Call when the results are no longer wanted, such as in Activity.onStop().
+   */
+  public void cancelAll() {
+    List<Request> requests;
+    synchronized (this) {
+      requests = new ArrayList<Request>(pending);
+    }
+    for (Request request : requests) {
+      request.cancel();
+    }
+  }
+  
+  /**
+   * Cancels every callback, lets queued writes finish and closes the DAO once
+   * the reads have stopped. The facade cannot be used afterwards.
+   */
+  public void shutdown() {
+    cancelAll();
+    readers.shutdown();
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          readers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        synchronized (daoLock) {
+          if (daoOpen) {
+            dao.close();
+            daoOpen = false;
+          }
+        }
+      }
+    });
+    writer.shutdown();
+  }
+  
+  /**
+   * Helper method that queues an operation, or joins a read of the same key
+   * that is already in flight.
+   */
+  private synchronized <T> Request submit(String key,
+                                          boolean isWrite,
+                                          Operation<T> operation,
+                                          Callback<T> callback) {
+    if (isWrite) {
+      // Later reads must not reuse results read before this write
+      readsInFlight.clear();
+    } else if (key != null) {
+      @SuppressWarnings("unchecked")
+      Task<T> running = (Task<T>) readsInFlight.get(key);
+      if (running != null) {
+        return running.addCallback(callback);
+      }
+    }
+    
+    Task<T> task = new Task<T>(key, isWrite, operation);
+    Request request = task.addCallback(callback);
+    if (key != null) {
+      readsInFlight.put(key, task);
+    }
+    task.future = (isWrite ? writer : readers).submit(task);
+    return request;
+  }
+  
+  /**
+   * Helper method that opens the DAO the first time a task needs it.
+   */
+  private MapJournalDAO openDao() {
+    synchronized (daoLock) {
+      if (!daoOpen) {
+        dao.open();
+        daoOpen = true;
+      }
+      return dao;
+    }
+  }
+  
+  /**
+   * A handle on one callback of a submitted operation.
+   */
+  public class Request {
+    private final Task<?> task;
+    private Callback<?> callback;
+    
+    Request(Task<?> task, Callback<?> callback) {
+      this.task = task;
+      this.callback = callback;
+    }
+    
+    /**
+     * Stops the callback from being called. A read that nobody is waiting
+     * for any more is skipped if it has not started.
+     */
+    public void cancel() {
+      synchronized (AsyncMapJournalDAO.this) {
+        if (!pending.remove(this)) {
+          return;
+        }
+        callback = null;
+        task.requests.remove(this);
+        if (!task.isWrite && task.requests.isEmpty()) {
+          if (task.key != null && readsInFlight.get(task.key) == task) {
+            readsInFlight.remove(task.key);
+          }
+          if (task.future != null) {
+            task.future.cancel(false);
+          }
+        }
+      }
+    }
+    
+    /**
+     * Checks whether the callback is still waiting to be called.
+     * @return true if the operation has not finished and was not cancelled
+     */
+    public boolean isPending() {
+      synchronized (AsyncMapJournalDAO.this) {
+        return pending.contains(this);
+      }
+    }
+  }
+  
+  /**
+   * An operation and the callbacks waiting for it.
+   */
+  private class Task<T> implements Runnable {
+    final String key;
+    final boolean isWrite;
+    final Operation<T> operation;
+    final List<Request> requests = new ArrayList<Request>();
+    Future<?> future;
+    
+    Task(String key, boolean isWrite, Operation<T> operation) {
+      this.key = key;
+      this.isWrite = isWrite;
+      this.operation = operation;
+    }
+    
+    Request addCallback(Callback<T> callback) {
+      Request request = new Request(this, callback);
+      requests.add(request);
+      pending.add(request);
+      return request;
+    }
+    
+    @Override
+    public void run() {
+      T result = null;
+      Exception error = null;
+      try {
+        result = operation.run(openDao());
+      } catch (Exception e) {
+        Log.e(TAG, "Operation failed", e);
+        error = e;
+      }
+      
+      final List<Request> done;
+      synchronized (AsyncMapJournalDAO.this) {
+        if (key != null && readsInFlight.get(key) == this) {
+          readsInFlight.remove(key);
+        }
+        done = new ArrayList<Request>(requests);
+        requests.clear();
+      }
+      deliver(done, result, error);
+    }
+    
+    private void deliver(final List<Request> done,
+                         final T result,
+                         final Exception error) {
+      callbackExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (Request request : done) {
+            Callback<T> callback;
+            synchronized (AsyncMapJournalDAO.this) {
+              if (!pending.remove(request)) {
+                // Cancelled after the operation finished
+                continue;
+              }
+              @SuppressWarnings("unchecked")
+              Callback<T> c = (Callback<T>) request.callback;
+              callback = c;
+            }
+            if (callback == null) {
+              continue;
+            }
+            if (error == null) {
+              callback.onResult(result);
+            } else {
+              callback.onError(error);
+            }
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,481 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.example.mapjournal.model.MapJournalDbContract.MediaEntry;
+import com.example.mapjournal.model.MapJournalDbContract.PointEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TrackEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TripEntry;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Writes Points, MediaItems and Trips to the database inside a single
+ * transaction opened by MapJournalDAO.writeBatch(). Each kind of statement is
+ * compiled once on first use and re-bound for every row, and the ids of all
+ * inserted rows are collected so they can be returned in bulk. The statistics
+ * of each affected Trip are updated along with its Points and MediaItems.
+ * @author ericzeng
+ */
+public class BatchWriter {
+  
+  /**
+   * A unit of work to run inside a batch transaction.
+   */
+  public interface Job {
+    /**
+     * Writes rows using the given writer. If this method throws, every write
+     * made in the batch is rolled back.
+     * @param writer The writer for the current batch
+     */
+    void run(BatchWriter writer);
+  }
+  
+  private static final String INSERT_POINT =
+      "INSERT INTO " + PointEntry.TABLE_NAME + "(" +
+      PointEntry.COLUMN_NAME_TITLE + "," +
+      PointEntry.COLUMN_NAME_TRIP + "," +
+      PointEntry.COLUMN_NAME_LATITUDE + "," +
+      PointEntry.COLUMN_NAME_LONGITUDE + "," +
+      PointEntry.COLUMN_NAME_ALTITUDE + "," +
+      PointEntry.COLUMN_NAME_TIME + "," +
+      PointEntry.COLUMN_NAME_ADDRESS + "," +
+      PointEntry.COLUMN_NAME_JOURNAL + "," +
+      PointEntry.COLUMN_NAME_GEOHASH +
+      ") VALUES (?,?,?,?,?,?,?,?,?)";
+  
+  private static final String UPDATE_POINT =
+      "UPDATE " + PointEntry.TABLE_NAME + " SET " +
+      PointEntry.COLUMN_NAME_TITLE + " = ?," +
+      PointEntry.COLUMN_NAME_TRIP + " = ?," +
+      PointEntry.COLUMN_NAME_LATITUDE + " = ?," +
+      PointEntry.COLUMN_NAME_LONGITUDE + " = ?," +
+      PointEntry.COLUMN_NAME_ALTITUDE + " = ?," +
+      PointEntry.COLUMN_NAME_TIME + " = ?," +
+      PointEntry.COLUMN_NAME_ADDRESS + " = ?," +
+      PointEntry.COLUMN_NAME_JOURNAL + " = ?," +
+      PointEntry.COLUMN_NAME_GEOHASH + " = ?" +
+      " WHERE " + PointEntry._ID + " = ?";
+  
+  private static final String DELETE_POINT =
+      "DELETE FROM " + PointEntry.TABLE_NAME +
+      " WHERE " + PointEntry._ID + " = ?";
+  
+  private static final String INSERT_MEDIA =
+      "INSERT INTO " + MediaEntry.TABLE_NAME + "(" +
+      MediaEntry.COLUMN_NAME_POINT_ID + "," +
+      MediaEntry.COLUMN_NAME_CAPTION + "," +
+      MediaEntry.COLUMN_NAME_PATH +
+      ") VALUES (?,?,?)";
+  
+  private static final String UPDATE_MEDIA =
+      "UPDATE " + MediaEntry.TABLE_NAME + " SET " +
+      MediaEntry.COLUMN_NAME_POINT_ID + " = ?," +
+      MediaEntry.COLUMN_NAME_CAPTION + " = ?," +
+      MediaEntry.COLUMN_NAME_PATH + " = ?" +
+      " WHERE " + MediaEntry._ID + " = ?";
+  
+  private static final String DELETE_MEDIA =
+      "DELETE FROM " + MediaEntry.TABLE_NAME +
+      " WHERE " + MediaEntry._ID + " = ?";
+  
+  private static final String INSERT_TRIP =
+      "INSERT INTO " + TripEntry.TABLE_NAME + "(" +
+      TripEntry.COLUMN_NAME_NAME + "," +
+      TripEntry.COLUMN_NAME_DESC +
+      ") VALUES (?,?)";
+  
+  private static final String UPDATE_TRIP =
+      "UPDATE " + TripEntry.TABLE_NAME + " SET " +
+      TripEntry.COLUMN_NAME_NAME + " = ?," +
+      TripEntry.COLUMN_NAME_DESC + " = ?" +
+      " WHERE " + TripEntry._ID + " = ?";
+  
+  private static final String DELETE_TRIP =
+      "DELETE FROM " + TripEntry.TABLE_NAME +
+      " WHERE " + TripEntry._ID + " = ?";
+  
+  private static final String INSERT_TRACK =
+      "INSERT INTO " + TrackEntry.TABLE_NAME + "(" +
+      TrackEntry.COLUMN_NAME_TRIP + "," +
+      TrackEntry.COLUMN_NAME_START_TIME + "," +
+      TrackEntry.COLUMN_NAME_END_TIME + "," +
+      TrackEntry.COLUMN_NAME_COUNT + "," +
+      TrackEntry.COLUMN_NAME_DATA +
+      ") VALUES (?,?,?,?,?)";
+  
+  private static final String DELETE_TRACKS_BY_TRIP =
+      "DELETE FROM " + TrackEntry.TABLE_NAME +
+      " WHERE " + TrackEntry.COLUMN_NAME_TRIP + " = ?";
+  
+  private final SQLiteDatabase db;
+  private final TripStatsUpdater stats;
+  
+  // Statements are compiled the first time they are needed
+  private SQLiteStatement insertPoint;
+  private SQLiteStatement updatePoint;
+  private SQLiteStatement deletePoint;
+  private SQLiteStatement insertMedia;
+  private SQLiteStatement updateMedia;
+  private SQLiteStatement deleteMedia;
+  private SQLiteStatement insertTrip;
+  private SQLiteStatement updateTrip;
+  private SQLiteStatement deleteTrip;
+  private SQLiteStatement insertTrack;
+  private SQLiteStatement deleteTracks;
+  
+  private long[] insertedIds = new long[64];
+  private int insertedCount;
+  
+  // Changes to report to PointListeners once the batch commits
+  private final List<Change> changes = new ArrayList<Change>();
+  
+  /**
+   * Creates a writer for the given database. The caller is responsible for
+   * the surrounding transaction and for calling close().
+   * @param db The database to write to
+   */
+  BatchWriter(SQLiteDatabase db) {
+    this.db = db;
+    this.stats = new TripStatsUpdater(db);
+  }
+  
+  /**
+   * Inserts the given Point and sets its id. MediaItems in the point are not
+   * inserted.
+   * @param point The Point to insert
+   * @return The id of the new row
+   */
+  public long insertPoint(Point point) {
+    if (insertPoint == null) {
+      insertPoint = db.compileStatement(INSERT_POINT);
+    }
+    bindPoint(insertPoint, point);
+    long newId = recordInsert(insertPoint.executeInsert());
+    point.setId(newId);
+    stats.pointAdded(newId);
+    changes.add(new Change(Change.SAVED, point, null, newId));
+    return newId;
+  }
+  
+  /**
+   * Updates the row of the given Point. MediaItems in the point are not
+   * updated.
+   * @param point The Point to update
+   */
+  public void updatePoint(Point point) {
+    if (updatePoint == null) {
+      updatePoint = db.compileStatement(UPDATE_POINT);
+    }
+    stats.pointRemoved(point.getId());
+    bindPoint(updatePoint, point);
+    updatePoint.bindLong(10, point.getId());
+    updatePoint.executeUpdateDelete();
+    stats.pointAdded(point.getId());
+    changes.add(new Change(Change.SAVED, point, null, point.getId()));
+  }
+  
+  /**
+   * Deletes the given Point. The database deletes every MediaItem attached to
+   * it.
+   * @param point The Point to delete
+   */
+  public void deletePoint(Point point) {
+    deletePoint(point.getId());
+  }
+  
+  /**
+   * Deletes the Point with the given id. The database deletes every MediaItem
+   * attached to it.
+   * @param pointId The id of the Point to delete
+   */
+  public void deletePoint(long pointId) {
+    // Removes the point's media from the statistics too
+    stats.pointRemoved(pointId);
+    if (deletePoint == null) {
+      deletePoint = db.compileStatement(DELETE_POINT);
+    }
+    deletePoint.bindLong(1, pointId);
+    deletePoint.executeUpdateDelete();
+    changes.add(new Change(Change.DELETED, null, null, pointId));
+  }
+  
+  /**
+   * Inserts the given MediaItem and sets its id.
+   * @param item The MediaItem to insert
+   * @return The id of the new row
+   */
+  public long insertMedia(MediaItem item) {
+    if (insertMedia == null) {
+      insertMedia = db.compileStatement(INSERT_MEDIA);
+    }
+    bindMedia(insertMedia, item);
+    long newId = recordInsert(insertMedia.executeInsert());
+    item.setId(newId);
+    stats.mediaAdded(newId);
+    changes.add(new Change(Change.MEDIA_SAVED, null, item, newId));
+    return newId;
+  }
+  
+  /**
+   * Updates the row of the given MediaItem.
+   * @param item The MediaItem to update
+   */
+  public void updateMedia(MediaItem item) {
+    if (updateMedia == null) {
+      updateMedia = db.compileStatement(UPDATE_MEDIA);
+    }
+    stats.mediaRemoved(item.getId());
+    bindMedia(updateMedia, item);
+    updateMedia.bindLong(4, item.getId());
+    updateMedia.executeUpdateDelete();
+    stats.mediaAdded(item.getId());
+    changes.add(new Change(Change.MEDIA_SAVED, null, item, item.getId()));
+  }
+  
+  /**
+   * Deletes the given MediaItem.
+   * @param item The MediaItem to delete
+   */
+  public void deleteMedia(MediaItem item) {
+    if (deleteMedia == null) {
+      deleteMedia = db.compileStatement(DELETE_MEDIA);
+    }
+    stats.mediaRemoved(item.getId());
+    deleteMedia.bindLong(1, item.getId());
+    deleteMedia.executeUpdateDelete();
+    changes.add(new Change(Change.MEDIA_DELETED, null, null, item.getId()));
+  }
+  
+  /**
+   * Inserts the given Trip and sets its id. Points in the trip are not
+   * inserted.
+   * @param trip The Trip to insert
+   * @return The id of the new row
+   */
+  public long insertTrip(Trip trip) {
+    if (insertTrip == null) {
+      insertTrip = db.compileStatement(INSERT_TRIP);
+    }
+    bindTrip(insertTrip, trip);
+    long newId = recordInsert(insertTrip.executeInsert());
+    trip.setId(newId);
+    return newId;
+  }
+  
+  /**
+   * Updates the row of the given Trip.
+   * @param trip The Trip to update
+   */
+  public void updateTrip(Trip trip) {
+    if (updateTrip == null) {
+      updateTrip = db.compileStatement(UPDATE_TRIP);
+    }
+    bindTrip(updateTrip, trip);
+    updateTrip.bindLong(3, trip.getId());
+    updateTrip.executeUpdateDelete();
+  }
+  
+  /**
+   * Deletes the given Trip. The database deletes its Points, their
+   * MediaItems, its TrackSegments and its statistics.
+   * @param trip The Trip to delete
+   */
+  public void deleteTrip(Trip trip) {
+    if (deleteTrip == null) {
+      deleteTrip = db.compileStatement(DELETE_TRIP);
+    }
+    deleteTrip.bindLong(1, trip.getId());
+    deleteTrip.executeUpdateDelete();
+    changes.add(new Change(Change.TRIP_DELETED, null, null, trip.getId()));
+  }
+  
+  /**
+   * Inserts the given TrackSegment and sets its id.
+   * @param segment The TrackSegment to insert
+   * @return The id of the new row
+   */
+  public long insertTrackSegment(TrackSegment segment) {
+    if (insertTrack == null) {
+      insertTrack = db.compileStatement(INSERT_TRACK);
+    }
+    insertTrack.bindLong(1, segment.getTripId());
+    insertTrack.bindLong(2, segment.getStartTime());
+    insertTrack.bindLong(3, segment.getEndTime());
+    insertTrack.bindLong(4, segment.size());
+    insertTrack.bindBlob(5, segment.encode());
+    long newId = recordInsert(insertTrack.executeInsert());
+    segment.setId(newId);
+    return newId;
+  }
+  
+  /**
+   * Deletes every TrackSegment recorded on a Trip.
+   * @param tripId The id of the Trip
+   */
+  public void deleteTrackSegments(long tripId) {
+    if (deleteTracks == null) {
+      deleteTracks = db.compileStatement(DELETE_TRACKS_BY_TRIP);
+    }
+    deleteTracks.bindLong(1, tripId);
+    deleteTracks.executeUpdateDelete();
+  }
+  
+  /**
+   * Returns the ids of every row inserted by this writer, in insertion order.
+   * @return The ids of the inserted rows
+   */
+  public long[] getInsertedIds() {
+    return Arrays.copyOf(insertedIds, insertedCount);
+  }
+  
+  /**
+   * Reports the Point and MediaItem changes made by this writer, in order. Called once the
+   * batch has committed.
+   * @param listeners The listeners to notify
+   */
+  void dispatchChanges(List<PointListener> listeners) {
+    for (Change change : changes) {
+      for (PointListener listener : listeners) {
+        switch (change.kind) {
+          case Change.SAVED:
+            listener.onPointSaved(change.point);
+            break;
+          case Change.DELETED:
+            listener.onPointDeleted(change.id);
+            break;
+          case Change.TRIP_DELETED:
+            listener.onTripDeleted(change.id);
+            break;
+          case Change.MEDIA_SAVED:
+            listener.onMediaSaved(change.item);
+            break;
+          case Change.MEDIA_DELETED:
+            listener.onMediaDeleted(change.id);
+            break;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Releases every compiled statement.
+   */
+  void close() {
+    stats.close();
+    SQLiteStatement[] statements = { insertPoint, updatePoint, deletePoint,
+                                     insertMedia, updateMedia, deleteMedia,
+                                     insertTrip,
+                                     updateTrip, deleteTrip, insertTrack,
+                                     deleteTracks };
+    for (SQLiteStatement statement : statements) {
+      if (statement != null) {
+        statement.close();
+      }
+    }
+  }
+  
+  /**
+   * Helper method to add a newly generated id to the list of inserted ids.
+   * @param newId The generated id
+   * @return newId
+   */
+  private long recordInsert(long newId) {
+    if (insertedCount == insertedIds.length) {
+      insertedIds = Arrays.copyOf(insertedIds, insertedCount * 2);
+    }
+    insertedIds[insertedCount++] = newId;
+    return newId;
+  }
+  
+  /**
+   * Helper method to bind every field of a Point, in the column order used by
+   * INSERT_POINT and UPDATE_POINT.
+   */
+  private static void bindPoint(SQLiteStatement statement, Point point) {
+    bindString(statement, 1, point.getTitle());
+    statement.bindLong(2, point.getTripId());
+    statement.bindDouble(3, point.getLatitude());
+    statement.bindDouble(4, point.getLongitude());
+    statement.bindDouble(5, point.getAltitude());
+    statement.bindLong(6, point.getTime());
+    bindString(statement, 7, point.getAddress());
+    bindString(statement, 8, point.getJournal());
+    statement.bindLong(9, GeoHash.encode(point.getLatitude(),
+                                         point.getLongitude()));
+  }
+  
+  /**
+   * Helper method to bind every field of a MediaItem, in the column order used
+   * by INSERT_MEDIA and UPDATE_MEDIA.
+   */
+  private static void bindMedia(SQLiteStatement statement, MediaItem item) {
+    statement.bindLong(1, item.getPointId());
+    bindString(statement, 2, item.getCaption());
+    bindString(statement, 3, item.getFilePath());
+  }
+  
+  /**
+   * Helper method to bind every field of a Trip, in the column order used by
+   * INSERT_TRIP and UPDATE_TRIP.
+   */
+  private static void bindTrip(SQLiteStatement statement, Trip trip) {
+    bindString(statement, 1, trip.getName());
+    bindString(statement, 2, trip.getDescription());
+  }
+  
+  /**
+   * Helper method to bind a string that may be null. SQLiteStatement.bindString
+   * does not accept null values.
+   */
+  private static void bindString(SQLiteStatement statement,
+                                 int index,
+                                 String value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
+  }
+  
+  /**
+   * A change to report to PointListeners.
+   */
+  private static class Change {
+    static final int SAVED = 0;
+    static final int DELETED = 1;
+    static final int TRIP_DELETED = 2;
+    static final int MEDIA_SAVED = 3;
+    static final int MEDIA_DELETED = 4;
+    
+    final int kind;
+    final Point point;
+    final MediaItem item;
+    final long id;
+    
+    Change(int kind, Point point, MediaItem item, long id) {
+      this.kind = kind;
+      this.point = point;
+      this.item = item;
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,371 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Content-addressed storage for media files. Each distinct file is stored
+ * once, named by the SHA-256 hash of its bytes, and every MediaItem with the
+ * same contents points at that one copy. The database counts the MediaItems
+ * using each stored file, and files nobody uses are reclaimed by a collector
+ * that runs in short, bounded slices.
+ * <p>
+ * MediaItems are created with the path of the file they were captured to.
+ * The store picks them up in the background: it hashes the file, copies it
+ * into the store unless a copy with the same hash is already there, points
+ * every MediaItem using the file at the copy and then deletes the original.
+ * The original is only deleted after the database's MediaMoveListeners have
+ * been told about the move, so caches such as CachingMapJournalDAO can drop
+ * the old paths first.
+ * Storing and collecting never run at the same time, so a stored file can't
+ * be collected before the MediaItems using it have been pointed at it. They
+ * are only serialized within an instance, so the app uses the one store
+ * returned by getInstance().
+ * <p>
+ * Register the store with MapJournalDAO.addPointListener() so it stores new
+ * media after Points or MediaItems are saved and collects after they are
+ * deleted.
+ * @author ericzeng
+ */
+public class BlobStore implements PointListener {
+  private static final String TAG = "BlobStore";
+  
+  private static final String DIRECTORY = "media";
+  
+  /** Number of MediaItems read per query while storing. */
+  public static final int STORE_BATCH_SIZE = 64;
+  
+  /** Number of blobs deleted per transaction while collecting. */
+  public static final int COLLECT_BATCH_SIZE = 16;
+  
+  /** Longest time a background collection holds the thread, in ms. */
+  public static final long COLLECT_SLICE = 50;
+  
+  // Seconds the background thread waits for more work before exiting
+  private static final long KEEP_ALIVE = 30;
+  
+  private static final int BUFFER_SIZE = 64 * 1024;
+  
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  
+  private static BlobStore instance;
+  
+  private final MapJournalDAO dao;
+  private final File directory;
+  private final ExecutorService executor;
+  
+  private final AtomicBoolean storeScheduled = new AtomicBoolean();
+  private final AtomicBoolean collectScheduled = new AtomicBoolean();
+  
+  private final Runnable storeTask = new Runnable() {
+    @Override
+    public void run() {
+      storeScheduled.set(false);
+      try {
+        storePending();
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Storing media failed", e);
+      }
+    }
+  };
+  
+  private final Runnable collectTask = new Runnable() {
+    @Override
+    public void run() {
+      collectScheduled.set(false);
+      try {
+        // Queue the next slice behind any other work rather than looping
+        if (collect(COLLECT_SLICE, TimeUnit.MILLISECONDS) > 0) {
+          requestCollect();
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Collecting media failed", e);
+      }
+    }
+  };
+  
+  /**
+   * Factory method for getting the BlobStore of the shared database. Enforces
+   * the singleton property, since two stores could collect a blob that the
+   * other is storing.
+   * @param context
+   * @return The instance of BlobStore
+   */
+  public static synchronized BlobStore getInstance(Context context) {
+    if (instance == null) {
+      instance = new BlobStore(context.getApplicationContext());
+    }
+    return instance;
+  }
+  
+  /**
+   * Creates a store in the app's private files directory, backed by the
+   * shared database.
+   * @param context
+   */
+  private BlobStore(Context context) {
+    this(new MapJournalDAO(context),
+         new File(context.getFilesDir(), DIRECTORY));
+  }
+  
+  /**
+   * Creates a store in the given directory.
+   * @param dao An unopened DAO, opened for the length of each operation
+   * @param directory The directory the files are stored in
+   */
+  BlobStore(MapJournalDAO dao, File directory) {
+    this.dao = dao;
+    this.directory = directory;
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        1, 1, KEEP_ALIVE, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    this.executor = executor;
+  }
+  
+  /**
+   * Get the file a blob with the given hash is stored in.
+   * @param hash The SHA-256 hash of the blob, in lowercase hex
+   * @return the file, which exists only if the blob is stored
+   */
+  public File fileFor(String hash) {
+    // Split across subdirectories so no directory grows too large
+    return new File(new File(directory, hash.substring(0, 2)), hash);
+  }
+  
+  /**
+   * Schedules the storing of new media on the background thread, unless it
+   * is already waiting to start.
+   */
+  public void requestStore() {
+    if (storeScheduled.compareAndSet(false, true)) {
+      executor.execute(storeTask);
+    }
+  }
+  
+  /**
+   * Schedules collection on the background thread, unless it is already
+   * waiting to start. Collection runs in slices of at most COLLECT_SLICE ms
+   * until nothing is left to collect.
+   */
+  public void requestCollect() {
+    if (collectScheduled.compareAndSet(false, true)) {
+      executor.execute(collectTask);
+    }
+  }
+  
+  /**
+   * Moves the file of every MediaItem not yet in the store into it, on the
+   * calling thread. Items whose files can't be read are skipped and left as
+   * they are.
+   * @return The number of MediaItems moved into the store
+   */
+  public synchronized int storePending() {
+    int stored = 0;
+    dao.open();
+    try {
+      long lastId = 0;
+      List<MediaItem> items = dao.getUnstoredMedia(lastId, STORE_BATCH_SIZE);
+      while (!items.isEmpty()) {
+        for (MediaItem item : items) {
+          stored += store(item.getFilePath());
+          lastId = item.getId();
+        }
+        items = dao.getUnstoredMedia(lastId, STORE_BATCH_SIZE);
+      }
+    } finally {
+      dao.close();
+    }
+    return stored;
+  }
+  
+  /**
+   * Deletes blobs that no MediaItem uses, on the calling thread, stopping
+   * once the time limit has passed. At least one batch of blobs is deleted
+   * if there are any, however short the limit.
+   * @param time The time limit
+   * @param unit The unit of the time limit
+   * @return The number of blobs deleted. Zero means nothing was left to
+   *         collect.
+   */
+  public synchronized int collect(long time, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(time);
+    int collected = 0;
+    dao.open();
+    try {
+      do {
+        List<String> hashes = dao.removeUnreferencedBlobs(COLLECT_BATCH_SIZE);
+        for (String hash : hashes) {
+          File file = fileFor(hash);
+          if (!file.delete() && file.exists()) {
+            Log.w(TAG, "Cannot delete " + file);
+          }
+        }
+        if (hashes.isEmpty()) {
+          break;
+        }
+        collected += hashes.size();
+      } while (System.nanoTime() < deadline);
+    } finally {
+      dao.close();
+    }
+    return collected;
+  }
+  
+  /**
+   * Stops the background thread once the current task, if any, finishes.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+  
+  @Override
+  public void onPointSaved(Point point) {
+    requestStore();
+  }
+  
+  @Override
+  public void onPointDeleted(long pointId) {
+    requestCollect();
+  }
+  
+  @Override
+  public void onTripDeleted(long tripId) {
+    requestCollect();
+  }
+  
+  @Override
+  public void onMediaSaved(MediaItem item) {
+    requestStore();
+  }
+  
+  @Override
+  public void onMediaDeleted(long mediaId) {
+    requestCollect();
+  }
+  
+  /**
+   * Helper method to move one file into the store.
+   * @param path The path of the file
+   * @return The number of MediaItems that used the file
+   */
+  private int store(String path) {
+    File source = new File(path);
+    String hash;
+    try {
+      hash = hash(source);
+    } catch (IOException e) {
+      Log.w(TAG, "Cannot read " + source, e);
+      return 0;
+    }
+    File target = fileFor(hash);
+    
+    if (!target.exists()) {
+      try {
+        copy(source, target);
+      } catch (IOException e) {
+        Log.w(TAG, "Cannot store " + source, e);
+        return 0;
+      }
+    }
+    int changed =
+        dao.attachBlob(path, hash, target.length(), target.getPath());
+    // The original is no longer used once every item points at the copy
+    if (changed > 0 && !source.equals(target) && !source.delete()) {
+      Log.w(TAG, "Cannot delete " + source);
+    }
+    return changed;
+  }
+  
+  /**
+   * Helper method to compute the SHA-256 hash of a file.
+   * @return The hash in lowercase hex
+   */
+  private static String hash(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    byte[] bytes = digest.digest();
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+  
+  /**
+   * Helper method to copy a file into the store. The copy is written under a
+   * temporary name and renamed once complete, so a stored file is never
+   * partial.
+   */
+  private static void copy(File source, File target) throws IOException {
+    File parent = target.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+    File temp = new File(parent, target.getName() + ".tmp");
+    InputStream in = new FileInputStream(source);
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    if (!temp.renameTo(target)) {
+      temp.delete();
+      throw new IOException("Cannot rename " + temp + " to " + target);
+    }
+  }
+}
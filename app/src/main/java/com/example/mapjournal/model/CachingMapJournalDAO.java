@@ -0,0 +1,500 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.List;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+
+/**
+ * A MapJournalDAO that keeps the Points, MediaItems and Trips it has loaded
+ * in an EntityCache, so looking up the same id again returns the same object
+ * without a query. getPoint(), getMedia() and getTrip() are answered from
+ * the cache. The lists returned by getAllTrips(), getMediaByPoint(),
+ * getPointSummaries(), getPointsPage() and getPointsInBounds() still query,
+ * but hold the cached instance of any object already loaded and cache the
+ * rest. loadTripGraph() caches the fully loaded graph it reads, replacing
+ * earlier instances. search() returns ids rather than objects, and the
+ * forEach and iterate methods reuse their objects, so none of them touch
+ * the cache.
+ * <p>
+ * The DAO's own create, update and delete methods keep the cache current;
+ * writeBatch() empties it. A MediaItem written through the DAO is also added
+ * to or removed from the loaded media of the cached Points, and a Point
+ * written through it drops the cached Trips whose loaded points it would
+ * change. A read that overlaps one of these writes does not cache what it
+ * read, so the DAO may be shared by the threads of an AsyncMapJournalDAO. Writes made through other DAOs are not seen, apart
+ * from BlobStore moving media (see below).
+ * <p>
+ * Cached objects are shared: changing one changes what later lookups see,
+ * so call the matching update method after modifying it.
+ * <p>
+ * While open, the DAO listens for MediaItems that BlobStore moves into the
+ * store and drops them, and the Points holding them, from the cache.
+ * @author ericzeng
+ */
+public class CachingMapJournalDAO extends MapJournalDAO
+    implements MediaMoveListener {
+  /** Default weight limit of the cache, about a megabyte. */
+  public static final long DEFAULT_MAX_WEIGHT = 1024 * 1024;
+  
+  // Rough fixed size of each object without its strings, in bytes
+  private static final int POINT_OVERHEAD = 96;
+  private static final int MEDIA_OVERHEAD = 56;
+  private static final int TRIP_OVERHEAD = 56;
+  
+  private final EntityCache cache;
+  // Writes made through this DAO, guarded by cache
+  private long writeCount;
+  
+  /**
+   * Create a caching Data Access Object with the default weight limit.
+   * @param context
+   */
+  public CachingMapJournalDAO(Context context) {
+    this(context, DEFAULT_MAX_WEIGHT);
+  }
+  
+  /**
+   * Create a caching Data Access Object.
+   * @param context
+   * @param maxWeight The weight limit of the cache, roughly in bytes
+   */
+  public CachingMapJournalDAO(Context context, long maxWeight) {
+    super(context);
+    cache = new EntityCache(maxWeight);
+  }
+  
+  /**
+   * Create a caching Data Access Object backed by the given helper.
+   * @param openHelper The helper that owns the database connection
+   * @param maxWeight The weight limit of the cache, roughly in bytes
+   */
+  CachingMapJournalDAO(MapJournalDbHelper openHelper, long maxWeight) {
+    super(openHelper);
+    cache = new EntityCache(maxWeight);
+  }
+  
+  /**
+   * Get the cache, for its hit and miss counters.
+   * @return the cache
+   */
+  public EntityCache getCache() {
+    return cache;
+  }
+  
+  @Override
+  public void open() throws SQLiteException {
+    if (getDatabase() == null) {
+      super.open();
+      getOpenHelper().addMediaMoveListener(this);
+    }
+  }
+  
+  @Override
+  public void close() {
+    if (getDatabase() != null) {
+      getOpenHelper().removeMediaMoveListener(this);
+      super.close();
+    }
+  }
+  
+  /**
+   * Drops the moved MediaItems and their Points from the cache, so the next
+   * lookup reads the new path. Called on the thread that moved them.
+   */
+  @Override
+  public void onMediaMoved(List<MediaItem> items) {
+    wrote();
+    for (MediaItem item : items) {
+      cache.remove(MediaItem.class, item.getId());
+      cache.remove(Point.class, item.getPointId());
+      dropTrips(item.getPointId(), -1);
+    }
+  }
+  
+  @Override
+  public void createPoint(Point point) {
+    super.createPoint(point);
+    wrote();
+    dropTrips(point.getId(), point.getTripId());
+    cachePoint(point);
+  }
+  
+  @Override
+  public Point getPoint(long id) {
+    Point point = cache.get(Point.class, id);
+    if (point == null) {
+      long since = getWriteCount();
+      point = super.getPoint(id);
+      if (point != null) {
+        point = intern(point, since);
+      }
+    }
+    return point;
+  }
+  
+  @Override
+  public void updatePoint(Point point) {
+    super.updatePoint(point);
+    wrote();
+    dropTrips(point.getId(), point.getTripId());
+    cachePoint(point);
+  }
+  
+  /**
+   * Deletes the Point and drops it, its MediaItems and the Trips holding it
+   * from the cache. The database deletes the media along with the point, so
+   * if the point's media were never loaded every cached MediaItem is
+   * dropped. The media are not loaded just to drop them.
+   */
+  @Override
+  public void deletePoint(Point point) {
+    super.deletePoint(point);
+    wrote();
+    cache.remove(Point.class, point.getId());
+    dropTrips(point.getId(), point.getTripId());
+    List<MediaItem> items = point.isMediaLoaded() ? point.getAllMedia() : null;
+    if (items == null) {
+      cache.removeAll(MediaItem.class);
+    } else {
+      for (MediaItem item : items) {
+        cache.remove(MediaItem.class, item.getId());
+      }
+    }
+  }
+  
+  @Override
+  public void createMedia(MediaItem item) {
+    super.createMedia(item);
+    wrote();
+    placeMedia(item, false);
+    cacheMedia(item);
+  }
+  
+  @Override
+  public MediaItem getMedia(long id) {
+    MediaItem item = cache.get(MediaItem.class, id);
+    if (item == null) {
+      long since = getWriteCount();
+      item = super.getMedia(id);
+      if (item != null) {
+        item = intern(item, since);
+      }
+    }
+    return item;
+  }
+  
+  @Override
+  public List<MediaItem> getMediaByPoint(long pointId) {
+    long since = getWriteCount();
+    List<MediaItem> items = super.getMediaByPoint(pointId);
+    for (int i = 0; i < items.size(); i++) {
+      items.set(i, intern(items.get(i), since));
+    }
+    return items;
+  }
+  
+  @Override
+  public void updateMedia(MediaItem item) {
+    super.updateMedia(item);
+    wrote();
+    placeMedia(item, false);
+    cacheMedia(item);
+  }
+  
+  @Override
+  public void deleteMedia(MediaItem item) {
+    super.deleteMedia(item);
+    wrote();
+    placeMedia(item, true);
+    cache.remove(MediaItem.class, item.getId());
+  }
+  
+  @Override
+  public void createTrip(Trip trip) {
+    super.createTrip(trip);
+    wrote();
+    cacheTrip(trip);
+  }
+  
+  @Override
+  public Trip getTrip(long id) {
+    Trip trip = cache.get(Trip.class, id);
+    if (trip == null) {
+      long since = getWriteCount();
+      trip = super.getTrip(id);
+      if (trip != null) {
+        trip = intern(trip, since);
+      }
+    }
+    return trip;
+  }
+  
+  @Override
+  public List<Trip> getAllTrips() {
+    long since = getWriteCount();
+    List<Trip> trips = super.getAllTrips();
+    for (int i = 0; i < trips.size(); i++) {
+      trips.set(i, intern(trips.get(i), since));
+    }
+    return trips;
+  }
+  
+  @Override
+  public void updateTrip(Trip trip) {
+    super.updateTrip(trip);
+    wrote();
+    cacheTrip(trip);
+  }
+  
+  /**
+   * Deletes the Trip and drops it from the cache, along with every cached
+   * Point and MediaItem, since the database deletes the trip's points and
+   * media without reading them.
+   */
+  @Override
+  public void deleteTrip(Trip trip) {
+    super.deleteTrip(trip);
+    wrote();
+    cache.remove(Trip.class, trip.getId());
+    cache.removeAll(Point.class);
+    cache.removeAll(MediaItem.class);
+  }
+  
+  @Override
+  public List<Point> getPointSummaries(long tripId) {
+    long since = getWriteCount();
+    return internPoints(super.getPointSummaries(tripId), since);
+  }
+  
+  @Override
+  public List<Point> getPointsPage(long tripId,
+                                   long afterTime,
+                                   long afterId,
+                                   int pageSize) {
+    long since = getWriteCount();
+    return internPoints(
+        super.getPointsPage(tripId, afterTime, afterId, pageSize), since);
+  }
+  
+  @Override
+  public List<Point> getPointsInBounds(double minLat,
+                                       double minLng,
+                                       double maxLat,
+                                       double maxLng,
+                                       int limit) {
+    long since = getWriteCount();
+    return internPoints(
+        super.getPointsInBounds(minLat, minLng, maxLat, maxLng, limit),
+        since);
+  }
+  
+  /**
+   * Loads the whole graph of a Trip with a fixed number of queries and caches
+   * the trip, its points and their media in place of any instances already
+   * cached, since those may not have their points or media loaded.
+   */
+  @Override
+  public Trip loadTripGraph(long tripId) {
+    long since = getWriteCount();
+    Trip trip = super.loadTripGraph(tripId);
+    if (trip == null) {
+      return null;
+    }
+    synchronized (cache) {
+      if (writeCount == since) {
+        cacheTrip(trip);
+        for (Point point : trip.getPoints()) {
+          cachePoint(point);
+          for (MediaItem item : point.getAllMedia()) {
+            cacheMedia(item);
+          }
+        }
+      }
+    }
+    return trip;
+  }
+  
+  /**
+   * Runs the batch and then empties the cache, since the batch writes rows
+   * directly.
+   */
+  @Override
+  public long[] writeBatch(BatchWriter.Job job) {
+    try {
+      return super.writeBatch(job);
+    } finally {
+      wrote();
+      cache.clear();
+    }
+  }
+  
+  private void cachePoint(Point point) {
+    cache.put(Point.class, point.getId(), point, weigh(point));
+  }
+  
+  private void cacheMedia(MediaItem item) {
+    cache.put(MediaItem.class, item.getId(), item, weigh(item));
+  }
+  
+  private void cacheTrip(Trip trip) {
+    cache.put(Trip.class, trip.getId(), trip, weigh(trip));
+  }
+  
+  /**
+   * Helper method that records a write, so reads that started before it
+   * don't cache what they read. Call after the database has been changed.
+   */
+  private void wrote() {
+    synchronized (cache) {
+      writeCount++;
+    }
+  }
+  
+  /**
+   * Helper method that brings the loaded media of the cached Points in line
+   * with a MediaItem just written. The item is taken out of every list but
+   * its own Point's, where it replaces any earlier instance, so an item that
+   * moved leaves its old Point. A deleted item is taken out of every list.
+   */
+  private void placeMedia(MediaItem item, boolean deleted) {
+    for (Point point : cache.values(Point.class)) {
+      if (!point.isMediaLoaded()) {
+        continue;
+      }
+      List<MediaItem> media = point.getAllMedia();
+      int index = -1;
+      for (int i = 0; i < media.size(); i++) {
+        if (media.get(i).getId() == item.getId()) {
+          index = i;
+          break;
+        }
+      }
+      if (!deleted && point.getId() == item.getPointId()) {
+        if (index < 0) {
+          media.add(item);
+        } else {
+          media.set(index, item);
+        }
+      } else if (index >= 0) {
+        media.remove(index);
+      }
+    }
+  }
+  
+  /**
+   * Helper method that drops the cached Trips whose loaded points a write to
+   * a Point changes: the Point's own trip and any trip already holding it,
+   * which it may have left. Trips that haven't loaded their points are kept.
+   * @param pointId The id of the Point written
+   * @param tripId The id of the Point's trip, or -1 if unknown
+   */
+  private void dropTrips(long pointId, long tripId) {
+    for (Trip trip : cache.values(Trip.class)) {
+      if (!trip.isPointsLoaded()) {
+        continue;
+      }
+      boolean holds = trip.getId() == tripId;
+      for (int i = 0; !holds && i < trip.getPoints().size(); i++) {
+        holds = trip.getPoints().get(i).getId() == pointId;
+      }
+      if (holds) {
+        cache.remove(Trip.class, trip.getId());
+      }
+    }
+  }
+  
+  private long getWriteCount() {
+    synchronized (cache) {
+      return writeCount;
+    }
+  }
+  
+  /**
+   * Helper method that swaps freshly read Points for the cached ones,
+   * caching the rest.
+   */
+  private List<Point> internPoints(List<Point> points, long since) {
+    for (int i = 0; i < points.size(); i++) {
+      points.set(i, intern(points.get(i), since));
+    }
+    return points;
+  }
+  
+  /**
+   * Helper method that returns the cached instance of a Point just read, or
+   * caches the Point if there is none. If this DAO wrote since the read
+   * started the Point may be out of date, so it is returned uncached.
+   */
+  private Point intern(Point point, long since) {
+    synchronized (cache) {
+      if (writeCount != since) {
+        return point;
+      }
+      Point cached = cache.putIfAbsent(Point.class, point.getId(), point,
+                                       weigh(point));
+      return cached != null ? cached : point;
+    }
+  }
+  
+  private MediaItem intern(MediaItem item, long since) {
+    synchronized (cache) {
+      if (writeCount != since) {
+        return item;
+      }
+      MediaItem cached = cache.putIfAbsent(MediaItem.class, item.getId(),
+                                           item, weigh(item));
+      return cached != null ? cached : item;
+    }
+  }
+  
+  private Trip intern(Trip trip, long since) {
+    synchronized (cache) {
+      if (writeCount != since) {
+        return trip;
+      }
+      Trip cached = cache.putIfAbsent(Trip.class, trip.getId(), trip,
+                                      weigh(trip));
+      return cached != null ? cached : trip;
+    }
+  }
+  
+  private static long weigh(Point point) {
+    // The journal and address of a LazyPoint only count once loaded, so
+    // weighing it doesn't load them
+    long weight = POINT_OVERHEAD + 2 * length(point.getTitle());
+    if (point.isDetailLoaded()) {
+      weight += 2 * (length(point.getAddress()) + length(point.getJournal()));
+    }
+    return weight;
+  }
+  
+  private static long weigh(MediaItem item) {
+    return MEDIA_OVERHEAD
+        + 2 * (length(item.getFilePath()) + length(item.getCaption()));
+  }
+  
+  private static long weigh(Trip trip) {
+    return TRIP_OVERHEAD
+        + 2 * (length(trip.getName()) + length(trip.getDescription()));
+  }
+  
+  private static int length(String s) {
+    return s == null ? 0 : s.length();
+  }
+}
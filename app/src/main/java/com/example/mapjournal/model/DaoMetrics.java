@@ -0,0 +1,459 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counters for the operations of an InstrumentedMapJournalDAO: calls,
+ * errors, a latency histogram, and the queries, rows and bytes each
+ * operation read. Queries slower than the slow query threshold are kept,
+ * most recent last, with their query plans. Everything is recorded with
+ * atomic operations, so any number of DAOs on any number of threads can
+ * share one DaoMetrics while snapshot() is called from a debug screen.
+ * @author ericzeng
+ */
+public class DaoMetrics {
+  /** Default slow query threshold, in milliseconds. */
+  public static final long DEFAULT_SLOW_QUERY_MILLIS = 50;
+  
+  private static final int SLOW_QUERIES_KEPT = 32;
+  
+  private final ConcurrentMap<String, Operation> operations =
+      new ConcurrentHashMap<String, Operation>();
+  private final AtomicReferenceArray<SlowQuery> slowQueries =
+      new AtomicReferenceArray<SlowQuery>(SLOW_QUERIES_KEPT);
+  private final AtomicLong slowQueryCount = new AtomicLong();
+  private volatile long slowQueryNanos =
+      TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_MILLIS);
+  
+  /**
+   * Counters for one DAO method.
+   */
+  public static final class Operation {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    
+    private Operation(String name) {
+      this.name = name;
+    }
+    
+    /**
+     * Get the name of the operation.
+     * @return the name of the DAO method
+     */
+    public String getName() {
+      return name;
+    }
+    
+    /**
+     * Records one call of the operation.
+     * @param nanos How long the call took
+     * @param failed Whether the call threw
+     */
+    void recordCall(long nanos, boolean failed) {
+      latency.record(nanos);
+      if (failed) {
+        errors.incrementAndGet();
+      }
+    }
+    
+    /**
+     * Records one query run by the operation.
+     * @param rowCount The number of rows the query returned
+     */
+    void recordQuery(int rowCount) {
+      queries.incrementAndGet();
+      rows.addAndGet(rowCount);
+    }
+    
+    /**
+     * Records data read from the rows of a query.
+     * @param byteCount The number of bytes read
+     */
+    void recordBytes(long byteCount) {
+      bytes.addAndGet(byteCount);
+    }
+  }
+  
+  /**
+   * A query that took longer than the slow query threshold.
+   */
+  public static final class SlowQuery {
+    private final String operation;
+    private final String sql;
+    private final long nanos;
+    private final List<String> plan;
+    
+    SlowQuery(String operation, String sql, long nanos, List<String> plan) {
+      this.operation = operation;
+      this.sql = sql;
+      this.nanos = nanos;
+      this.plan = Collections.unmodifiableList(plan);
+    }
+    
+    /**
+     * Get the DAO method that ran the query.
+     * @return the name of the DAO method
+     */
+    public String getOperation() {
+      return operation;
+    }
+    
+    /**
+     * Get the SQL of the query. Bound arguments are left as ?s, so journal
+     * text does not end up in the log.
+     * @return the SQL of the query
+     */
+    public String getSql() {
+      return sql;
+    }
+    
+    /**
+     * Get how long the query took, including reading its rows into the
+     * cursor window.
+     * @return the duration in nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+    
+    /**
+     * Get the output of EXPLAIN QUERY PLAN for the query.
+     * @return the detail column of each row of the plan
+     */
+    public List<String> getPlan() {
+      return plan;
+    }
+    
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Slow query in ").append(operation).append(" (")
+        .append(formatMillis(nanos)).append(" ms): ").append(sql);
+      for (String step : plan) {
+        sb.append("\n  ").append(step);
+      }
+      return sb.toString();
+    }
+  }
+  
+  /**
+   * The counters of one operation at the time of a snapshot.
+   */
+  public static final class OperationSnapshot {
+    private final String name;
+    private final long calls;
+    private final long errors;
+    private final long queries;
+    private final long rows;
+    private final long bytes;
+    private final long totalNanos;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+    
+    private OperationSnapshot(Operation operation) {
+      long[] counts = operation.latency.copyCounts();
+      name = operation.name;
+      calls = operation.latency.getCount();
+      errors = operation.errors.get();
+      queries = operation.queries.get();
+      rows = operation.rows.get();
+      bytes = operation.bytes.get();
+      totalNanos = operation.latency.getTotal();
+      // Read after the counts, so it covers every call they include. A
+      // bucket's upper bound can pass the slowest call, so the percentiles
+      // are capped at it.
+      max = operation.latency.getMax();
+      p50 = Math.min(LatencyHistogram.valueAtPercentile(counts, 50), max);
+      p90 = Math.min(LatencyHistogram.valueAtPercentile(counts, 90), max);
+      p99 = Math.min(LatencyHistogram.valueAtPercentile(counts, 99), max);
+    }
+    
+    /**
+     * Get the name of the operation.
+     * @return the name of the DAO method
+     */
+    public String getName() {
+      return name;
+    }
+    
+    /**
+     * Get the number of calls of the operation.
+     * @return the number of calls
+     */
+    public long getCalls() {
+      return calls;
+    }
+    
+    /**
+     * Get the number of calls that threw.
+     * @return the number of failed calls
+     */
+    public long getErrors() {
+      return errors;
+    }
+    
+    /**
+     * Get the number of queries the operation ran.
+     * @return the number of queries
+     */
+    public long getQueries() {
+      return queries;
+    }
+    
+    /**
+     * Get the number of rows returned by the operation's queries.
+     * @return the number of rows
+     */
+    public long getRows() {
+      return rows;
+    }
+    
+    /**
+     * Get the number of bytes read from the operation's query results. Text
+     * counts one byte per character and numbers count eight.
+     * @return the number of bytes read
+     */
+    public long getBytes() {
+      return bytes;
+    }
+    
+    /**
+     * Get the time spent in the operation over all calls.
+     * @return the total in nanoseconds
+     */
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+    
+    /**
+     * Get the mean duration of a call.
+     * @return the mean in nanoseconds, or 0 if there were no calls
+     */
+    public long getMeanNanos() {
+      return calls == 0 ? 0 : totalNanos / calls;
+    }
+    
+    /**
+     * Get the median duration of a call, to within 1/16.
+     * @return the median in nanoseconds
+     */
+    public long getP50Nanos() {
+      return p50;
+    }
+    
+    /**
+     * Get the 90th percentile duration of a call, to within 1/16.
+     * @return the 90th percentile in nanoseconds
+     */
+    public long getP90Nanos() {
+      return p90;
+    }
+    
+    /**
+     * Get the 99th percentile duration of a call, to within 1/16.
+     * @return the 99th percentile in nanoseconds
+     */
+    public long getP99Nanos() {
+      return p99;
+    }
+    
+    /**
+     * Get the longest call.
+     * @return the longest duration in nanoseconds
+     */
+    public long getMaxNanos() {
+      return max;
+    }
+    
+    @Override
+    public String toString() {
+      return name + " calls=" + calls + " errors=" + errors +
+             " queries=" + queries + " rows=" + rows + " bytes=" + bytes +
+             " mean=" + formatMillis(getMeanNanos()) +
+             " p50=" + formatMillis(p50) + " p90=" + formatMillis(p90) +
+             " p99=" + formatMillis(p99) + " max=" + formatMillis(max) +
+             " ms";
+    }
+  }
+  
+  /**
+   * The counters of every operation, and the recent slow queries, at one
+   * point in time.
+   */
+  public static final class Snapshot {
+    private final List<OperationSnapshot> operations;
+    private final List<SlowQuery> slowQueries;
+    
+    private Snapshot(List<OperationSnapshot> operations,
+                     List<SlowQuery> slowQueries) {
+      this.operations = Collections.unmodifiableList(operations);
+      this.slowQueries = Collections.unmodifiableList(slowQueries);
+    }
+    
+    /**
+     * Get the operations that have been called, the most total time first.
+     * @return the counters of each operation
+     */
+    public List<OperationSnapshot> getOperations() {
+      return operations;
+    }
+    
+    /**
+     * Get the counters of one operation.
+     * @param name The name of the DAO method
+     * @return the counters, or null if the method has not been called
+     */
+    public OperationSnapshot getOperation(String name) {
+      for (OperationSnapshot operation : operations) {
+        if (operation.getName().equals(name)) {
+          return operation;
+        }
+      }
+      return null;
+    }
+    
+    /**
+     * Get the most recent slow queries, oldest first.
+     * @return the slow queries
+     */
+    public List<SlowQuery> getSlowQueries() {
+      return slowQueries;
+    }
+    
+    /**
+     * Formats every operation and slow query, one per line, for logging or
+     * a debug screen.
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (OperationSnapshot operation : operations) {
+        sb.append(operation).append('\n');
+      }
+      for (SlowQuery query : slowQueries) {
+        sb.append(query).append('\n');
+      }
+      return sb.toString();
+    }
+  }
+  
+  /**
+   * Get the counters of a DAO method, creating them on first use.
+   * @param name The name of the DAO method
+   * @return the counters of the method
+   */
+  public Operation operation(String name) {
+    Operation operation = operations.get(name);
+    if (operation == null) {
+      Operation created = new Operation(name);
+      operation = operations.putIfAbsent(name, created);
+      if (operation == null) {
+        operation = created;
+      }
+    }
+    return operation;
+  }
+  
+  /**
+   * Get the slow query threshold.
+   * @return the threshold in nanoseconds
+   */
+  public long getSlowQueryNanos() {
+    return slowQueryNanos;
+  }
+  
+  /**
+   * Sets how long a query may take before it is logged with its query plan.
+   * A threshold of 0 logs every query.
+   * @param threshold The threshold
+   * @param unit The unit of the threshold
+   */
+  public void setSlowQueryThreshold(long threshold, TimeUnit unit) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("threshold must not be negative");
+    }
+    slowQueryNanos = unit.toNanos(threshold);
+  }
+  
+  /**
+   * Keeps a slow query, replacing the oldest kept one if there are already
+   * SLOW_QUERIES_KEPT.
+   * @param query The slow query
+   */
+  void recordSlowQuery(SlowQuery query) {
+    long n = slowQueryCount.getAndIncrement();
+    slowQueries.set((int) (n % SLOW_QUERIES_KEPT), query);
+  }
+  
+  /**
+   * Copies the current counters. Counters recorded while the copy is taken
+   * may or may not be included, so values can be slightly inconsistent with
+   * each other, but each one is exact at some moment during the call.
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    List<OperationSnapshot> ops = new ArrayList<OperationSnapshot>();
+    for (Operation operation : operations.values()) {
+      if (operation.latency.getCount() > 0) {
+        ops.add(new OperationSnapshot(operation));
+      }
+    }
+    Collections.sort(ops, new Comparator<OperationSnapshot>() {
+      @Override
+      public int compare(OperationSnapshot a, OperationSnapshot b) {
+        int byTotal = Long.valueOf(b.getTotalNanos())
+            .compareTo(Long.valueOf(a.getTotalNanos()));
+        return byTotal != 0 ? byTotal : a.getName().compareTo(b.getName());
+      }
+    });
+    
+    List<SlowQuery> slow = new ArrayList<SlowQuery>();
+    long end = slowQueryCount.get();
+    for (long n = Math.max(0, end - SLOW_QUERIES_KEPT); n < end; n++) {
+      SlowQuery query = slowQueries.get((int) (n % SLOW_QUERIES_KEPT));
+      if (query != null) {
+        slow.add(query);
+      }
+    }
+    return new Snapshot(ops, slow);
+  }
+  
+  /**
+   * Helper method that formats nanoseconds as milliseconds with three
+   * decimal places.
+   */
+  private static String formatMillis(long nanos) {
+    long micros = nanos / 1000;
+    String fraction = String.valueOf(1000 + micros % 1000).substring(1);
+    return (micros / 1000) + "." + fraction;
+  }
+}
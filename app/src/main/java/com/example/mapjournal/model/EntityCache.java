@@ -0,0 +1,254 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded identity map of objects loaded from the database, keyed by type
+ * and id. Each entry has a weight, roughly its size in bytes, and the least
+ * recently used entries are evicted once the total weight passes the limit.
+ * Counts hits, misses and evictions so the limit can be tuned.
+ * @author ericzeng
+ */
+public class EntityCache {
+  private final long maxWeight;
+  private final LinkedHashMap<Key, Entry> entries =
+      new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+  private long weight;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  
+  /**
+   * Creates an empty cache.
+   * @param maxWeight The greatest total weight of the cached objects
+   */
+  public EntityCache(long maxWeight) {
+    if (maxWeight <= 0) {
+      throw new IllegalArgumentException("maxWeight must be positive");
+    }
+    this.maxWeight = maxWeight;
+  }
+  
+  /**
+   * Looks up a cached object and marks it as recently used.
+   * @param type The type of the object
+   * @param id The id of the object
+   * @return The cached object, or null if it is not cached
+   */
+  public synchronized <T> T get(Class<T> type, long id) {
+    Entry entry = entries.get(new Key(type, id));
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return type.cast(entry.value);
+  }
+  
+  /**
+   * Caches an object, replacing any object with the same type and id. An
+   * object heavier than the whole cache is not cached.
+   * @param type The type of the object
+   * @param id The id of the object
+   * @param value The object
+   * @param valueWeight The weight of the object
+   */
+  public synchronized <T> void put(Class<T> type, long id, T value,
+                                   long valueWeight) {
+    Key key = new Key(type, id);
+    Entry old = entries.remove(key);
+    if (old != null) {
+      weight -= old.weight;
+    }
+    if (valueWeight > maxWeight) {
+      return;
+    }
+    entries.put(key, new Entry(value, valueWeight));
+    weight += valueWeight;
+    
+    Iterator<Entry> it = entries.values().iterator();
+    while (weight > maxWeight && it.hasNext()) {
+      Entry eldest = it.next();
+      it.remove();
+      weight -= eldest.weight;
+      evictionCount++;
+    }
+  }
+  
+  /**
+   * Caches an object unless one with the same type and id is already cached.
+   * Unlike get(), this does not count as a lookup.
+   * @param type The type of the object
+   * @param id The id of the object
+   * @param value The object
+   * @param valueWeight The weight of the object
+   * @return The object already cached, or null if value was cached
+   */
+  public synchronized <T> T putIfAbsent(Class<T> type, long id, T value,
+                                        long valueWeight) {
+    Entry entry = entries.get(new Key(type, id));
+    if (entry != null) {
+      return type.cast(entry.value);
+    }
+    put(type, id, value, valueWeight);
+    return null;
+  }
+  
+  /**
+   * Lists the cached objects of a type. Unlike get(), this does not count as
+   * a lookup or mark the objects as recently used.
+   * @param type The type of the objects
+   * @return A new list of the cached objects of that type
+   */
+  public synchronized <T> List<T> values(Class<T> type) {
+    List<T> values = new ArrayList<T>();
+    for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+      if (e.getKey().type == type) {
+        values.add(type.cast(e.getValue().value));
+      }
+    }
+    return values;
+  }
+  
+  /**
+   * Removes an object from the cache.
+   * @param type The type of the object
+   * @param id The id of the object
+   */
+  public synchronized void remove(Class<?> type, long id) {
+    Entry old = entries.remove(new Key(type, id));
+    if (old != null) {
+      weight -= old.weight;
+    }
+  }
+  
+  /**
+   * Removes every object of a type from the cache.
+   * @param type The type to remove
+   */
+  public synchronized void removeAll(Class<?> type) {
+    Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, Entry> e = it.next();
+      if (e.getKey().type == type) {
+        weight -= e.getValue().weight;
+        it.remove();
+      }
+    }
+  }
+  
+  /**
+   * Removes every object from the cache. The counters are kept.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+  
+  /**
+   * Get the number of cached objects.
+   * @return the number of objects
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+  
+  /**
+   * Get the total weight of the cached objects.
+   * @return the weight
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+  
+  /**
+   * Get the greatest total weight the cache holds.
+   * @return the weight limit
+   */
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+  
+  /**
+   * Get the number of lookups that found a cached object.
+   * @return the hit count
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+  
+  /**
+   * Get the number of lookups that found nothing.
+   * @return the miss count
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+  
+  /**
+   * Get the number of objects evicted to stay under the weight limit.
+   * @return the eviction count
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+  
+  /**
+   * The type and id of a cached object.
+   */
+  private static class Key {
+    final Class<?> type;
+    final long id;
+    
+    Key(Class<?> type, long id) {
+      this.type = type;
+      this.id = id;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return type == other.type && id == other.id;
+    }
+    
+    @Override
+    public int hashCode() {
+      return 31 * type.hashCode() + (int) (id ^ (id >>> 32));
+    }
+  }
+  
+  /**
+   * A cached object and its weight.
+   */
+  private static class Entry {
+    final Object value;
+    final long weight;
+    
+    Entry(Object value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
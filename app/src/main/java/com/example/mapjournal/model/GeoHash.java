@@ -0,0 +1,186 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Integer geohashes for indexing Points by location. A geohash interleaves
+ * the bits of the quantized longitude and latitude, so points that are close
+ * together usually have close hashes and any cell of the grid is a contiguous
+ * range of hashes. A bounding box can then be searched with a handful of range
+ * scans over an index on the hash column.
+ * @author ericzeng
+ */
+public final class GeoHash {
+  /** Number of bits used for each of latitude and longitude. */
+  public static final int BITS_PER_AXIS = 16;
+  
+  private static final int CELLS_PER_AXIS = 1 << BITS_PER_AXIS;
+  
+  private GeoHash() {}
+  
+  /**
+   * Computes the geohash of a location.
+   * @param latitude Latitude in degrees, between -90 and 90
+   * @param longitude Longitude in degrees, between -180 and 180
+   * @return The geohash of the location
+   */
+  public static long encode(double latitude, double longitude) {
+    return interleave(quantizeLongitude(longitude), quantizeLatitude(latitude));
+  }
+  
+  /**
+   * Computes the ranges of geohashes that cover a bounding box. The ranges
+   * may cover some area outside the box, so matches still have to be checked
+   * against the box itself. The box must not cross the antimeridian; split it
+   * in two first if it does.
+   * @param minLat Southern edge of the box
+   * @param minLng Western edge of the box
+   * @param maxLat Northern edge of the box
+   * @param maxLng Eastern edge of the box
+   * @param maxRanges The maximum number of ranges to return. Fewer ranges
+   *                  means a coarser cover.
+   * @return Pairs of inclusive bounds: {lo0, hi0, lo1, hi1, ...}, sorted and
+   *         non-overlapping
+   */
+  public static long[] coveringRanges(double minLat,
+                                      double minLng,
+                                      double maxLat,
+                                      double maxLng,
+                                      int maxRanges) {
+    if (minLat > maxLat || minLng > maxLng) {
+      throw new IllegalArgumentException("Invalid bounding box");
+    }
+    if (maxRanges < 1) {
+      throw new IllegalArgumentException("maxRanges must be positive");
+    }
+    int x0 = quantizeLongitude(minLng);
+    int x1 = quantizeLongitude(maxLng);
+    int y0 = quantizeLatitude(minLat);
+    int y1 = quantizeLatitude(maxLat);
+    
+    // Walk down the quadtree of cells one level at a time. Cells that are
+    // fully inside the box are finished; cells that straddle its edge are
+    // split again as long as doing so stays within maxRanges.
+    List<long[]> ranges = new ArrayList<long[]>();
+    List<int[]> frontier = new ArrayList<int[]>();
+    frontier.add(new int[] { 0, 0 });
+    int level = 0;
+    while (level < BITS_PER_AXIS &&
+           ranges.size() + frontier.size() * 4 <= maxRanges) {
+      level++;
+      int shift = BITS_PER_AXIS - level;
+      List<int[]> next = new ArrayList<int[]>();
+      for (int[] cell : frontier) {
+        for (int i = 0; i < 4; i++) {
+          int cx = (cell[0] << 1) | (i & 1);
+          int cy = (cell[1] << 1) | (i >> 1);
+          int cellX0 = cx << shift;
+          int cellX1 = ((cx + 1) << shift) - 1;
+          int cellY0 = cy << shift;
+          int cellY1 = ((cy + 1) << shift) - 1;
+          if (cellX1 < x0 || cellX0 > x1 || cellY1 < y0 || cellY0 > y1) {
+            continue;   // Outside the box
+          }
+          if (cellX0 >= x0 && cellX1 <= x1 && cellY0 >= y0 && cellY1 <= y1) {
+            ranges.add(cellRange(cx, cy, level));
+          } else {
+            next.add(new int[] { cx, cy });
+          }
+        }
+      }
+      frontier = next;
+    }
+    for (int[] cell : frontier) {
+      ranges.add(cellRange(cell[0], cell[1], level));
+    }
+    return merge(ranges);
+  }
+  
+  /**
+   * Helper method to compute the range of geohashes inside a cell.
+   */
+  private static long[] cellRange(int x, int y, int level) {
+    int shift = 2 * (BITS_PER_AXIS - level);
+    long lo = interleave(x, y) << shift;
+    long hi = lo | ((1L << shift) - 1);
+    return new long[] { lo, hi };
+  }
+  
+  /**
+   * Helper method to sort ranges and merge the ones that touch.
+   */
+  private static long[] merge(List<long[]> ranges) {
+    long[][] sorted = ranges.toArray(new long[ranges.size()][]);
+    Arrays.sort(sorted, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+    long[] result = new long[sorted.length * 2];
+    int count = 0;
+    for (long[] range : sorted) {
+      if (count > 0 && range[0] <= result[count - 1] + 1) {
+        result[count - 1] = Math.max(result[count - 1], range[1]);
+      } else {
+        result[count++] = range[0];
+        result[count++] = range[1];
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+  
+  /**
+   * Helper method to interleave the bits of x and y, with x in the even bits.
+   */
+  private static long interleave(int x, int y) {
+    return spread(x) | (spread(y) << 1);
+  }
+  
+  /**
+   * Helper method to move bit i of the value to bit 2i.
+   */
+  private static long spread(int value) {
+    long v = value & 0xFFFFFFFFL;
+    v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+    v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+    v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+    v = (v | (v << 2)) & 0x3333333333333333L;
+    v = (v | (v << 1)) & 0x5555555555555555L;
+    return v;
+  }
+  
+  private static int quantizeLatitude(double latitude) {
+    return quantize((latitude + 90.0) / 180.0);
+  }
+  
+  private static int quantizeLongitude(double longitude) {
+    return quantize((longitude + 180.0) / 360.0);
+  }
+  
+  /**
+   * Helper method to map a fraction in [0, 1] onto a grid cell.
+   */
+  private static int quantize(double fraction) {
+    int cell = (int) Math.floor(fraction * CELLS_PER_AXIS);
+    return Math.max(0, Math.min(CELLS_PER_AXIS - 1, cell));
+  }
+}
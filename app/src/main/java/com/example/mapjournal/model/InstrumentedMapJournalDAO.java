@@ -0,0 +1,691 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.util.Log;
+
+/**
+ * A MapJournalDAO that records how long each of its methods takes, and the
+ * queries, rows and bytes each one reads, in a DaoMetrics. Queries slower
+ * than the metrics' threshold are logged with their SQL and the output of
+ * EXPLAIN QUERY PLAN.
+ * <p>
+ * A call made by another method of the same DAO, such as deletePoint()
+ * deleting the Point's media, is counted as part of the outer call rather
+ * than as a call of its own. The time of forEachPoint() and the other
+ * visitor methods includes the time spent in the visitor.
+ * @author ericzeng
+ */
+public class InstrumentedMapJournalDAO extends MapJournalDAO {
+  private static final String TAG = "InstrumentedMapJournalDAO";
+  
+  private final DaoMetrics metrics;
+  private final ThreadLocal<Call> calls = new ThreadLocal<Call>() {
+    @Override
+    protected Call initialValue() {
+      return new Call();
+    }
+  };
+  
+  /**
+   * The DAO method running on a thread. There is one per thread, reused for
+   * every call, so instrumenting a call allocates nothing.
+   */
+  private static final class Call {
+    private DaoMetrics.Operation operation;
+    private int depth;
+    private long start;
+    private boolean failed;
+    
+    /**
+     * Marks the outermost call as failed if the exception escapes it.
+     * @param e The exception thrown by the call
+     * @return the exception, for rethrowing
+     */
+    RuntimeException fail(RuntimeException e) {
+      if (depth == 1) {
+        failed = true;
+      }
+      return e;
+    }
+    
+    /**
+     * Leaves a DAO method, recording the call if it is the outermost.
+     */
+    void exit() {
+      if (--depth == 0) {
+        operation.recordCall(System.nanoTime() - start, failed);
+        operation = null;
+      }
+    }
+  }
+  
+  /**
+   * Create an instrumented Data Access Object.
+   * @param context
+   * @param metrics The metrics to record into, which may be shared with
+   *                other DAOs
+   */
+  public InstrumentedMapJournalDAO(Context context, DaoMetrics metrics) {
+    super(context);
+    this.metrics = metrics;
+  }
+  
+  /**
+   * Create an instrumented Data Access Object backed by the given helper.
+   * @param openHelper The helper that owns the database connection
+   * @param metrics The metrics to record into
+   */
+  InstrumentedMapJournalDAO(MapJournalDbHelper openHelper,
+                            DaoMetrics metrics) {
+    super(openHelper);
+    this.metrics = metrics;
+  }
+  
+  /**
+   * Get the metrics this DAO records into.
+   * @return the metrics
+   */
+  public DaoMetrics getMetrics() {
+    return metrics;
+  }
+  
+  @Override
+  public void createPoint(Point point) {
+    Call call = enter("createPoint");
+    try {
+      super.createPoint(point);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public Point getPoint(long id) {
+    Call call = enter("getPoint");
+    try {
+      return super.getPoint(id);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void updatePoint(Point point) {
+    Call call = enter("updatePoint");
+    try {
+      super.updatePoint(point);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void deletePoint(Point point) {
+    Call call = enter("deletePoint");
+    try {
+      super.deletePoint(point);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void createMedia(MediaItem item) {
+    Call call = enter("createMedia");
+    try {
+      super.createMedia(item);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public MediaItem getMedia(long id) {
+    Call call = enter("getMedia");
+    try {
+      return super.getMedia(id);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<MediaItem> getMediaByPoint(long pointId) {
+    Call call = enter("getMediaByPoint");
+    try {
+      return super.getMediaByPoint(pointId);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void updateMedia(MediaItem item) {
+    Call call = enter("updateMedia");
+    try {
+      super.updateMedia(item);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void deleteMedia(MediaItem item) {
+    Call call = enter("deleteMedia");
+    try {
+      super.deleteMedia(item);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void createTrip(Trip trip) {
+    Call call = enter("createTrip");
+    try {
+      super.createTrip(trip);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public Trip getTrip(long id) {
+    Call call = enter("getTrip");
+    try {
+      return super.getTrip(id);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<Trip> getAllTrips() {
+    Call call = enter("getAllTrips");
+    try {
+      return super.getAllTrips();
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<Point> getPointSummaries(long tripId) {
+    Call call = enter("getPointSummaries");
+    try {
+      return super.getPointSummaries(tripId);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void forEachPoint(long tripId, PointVisitor visitor) {
+    Call call = enter("forEachPoint");
+    try {
+      super.forEachPoint(tripId, visitor);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public PointIterator iteratePoints(long tripId, boolean reusePoint) {
+    Call call = enter("iteratePoints");
+    try {
+      return super.iteratePoints(tripId, reusePoint);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void forEachPointWithMedia(long tripId, PointVisitor visitor) {
+    Call call = enter("forEachPointWithMedia");
+    try {
+      super.forEachPointWithMedia(tripId, visitor);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void updateTrip(Trip trip) {
+    Call call = enter("updateTrip");
+    try {
+      super.updateTrip(trip);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void deleteTrip(Trip trip) {
+    Call call = enter("deleteTrip");
+    try {
+      super.deleteTrip(trip);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public TripStats getTripStats(long tripId) {
+    Call call = enter("getTripStats");
+    try {
+      return super.getTripStats(tripId);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<TripStats> getAllTripStats() {
+    Call call = enter("getAllTripStats");
+    try {
+      return super.getAllTripStats();
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void rebuildTripStats(long tripId) {
+    Call call = enter("rebuildTripStats");
+    try {
+      super.rebuildTripStats(tripId);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void rebuildAllTripStats() {
+    Call call = enter("rebuildAllTripStats");
+    try {
+      super.rebuildAllTripStats();
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void createTrackSegment(TrackSegment segment) {
+    Call call = enter("createTrackSegment");
+    try {
+      super.createTrackSegment(segment);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<TrackSegment> getTrackSegments(long tripId) {
+    Call call = enter("getTrackSegments");
+    try {
+      return super.getTrackSegments(tripId);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void forEachTrackSegment(long tripId, TrackSegmentVisitor visitor) {
+    Call call = enter("forEachTrackSegment");
+    try {
+      super.forEachTrackSegment(tripId, visitor);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public void deleteTrackSegment(TrackSegment segment) {
+    Call call = enter("deleteTrackSegment");
+    try {
+      super.deleteTrackSegment(segment);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<Point> getPointsInBounds(double minLat,
+                                       double minLng,
+                                       double maxLat,
+                                       double maxLng,
+                                       int limit) {
+    Call call = enter("getPointsInBounds");
+    try {
+      return super.getPointsInBounds(minLat, minLng, maxLat, maxLng, limit);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<SearchResult> search(String query, int limit, int offset) {
+    Call call = enter("search");
+    try {
+      return super.search(query, limit, offset);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public long[] writeBatch(BatchWriter.Job job) {
+    Call call = enter("writeBatch");
+    try {
+      return super.writeBatch(job);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public List<Point> getPointsPage(long tripId,
+                                   long afterTime,
+                                   long afterId,
+                                   int pageSize) {
+    Call call = enter("getPointsPage");
+    try {
+      return super.getPointsPage(tripId, afterTime, afterId, pageSize);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  public Trip loadTripGraph(long tripId) {
+    Call call = enter("loadTripGraph");
+    try {
+      return super.loadTripGraph(tripId);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  /**
+   * Records the detail a LazyPoint reads on first use as a call of its own,
+   * since it runs outside of any other DAO method.
+   */
+  @Override
+  void loadPointDetail(LazyPoint point) {
+    Call call = enter("loadPointDetail");
+    try {
+      super.loadPointDetail(point);
+    } catch (RuntimeException e) {
+      throw call.fail(e);
+    } finally {
+      call.exit();
+    }
+  }
+  
+  @Override
+  Cursor query(String table,
+               String[] columns,
+               String selection,
+               String[] selectionArgs,
+               String orderBy,
+               String limit) {
+    long start = System.nanoTime();
+    Cursor c = super.query(table,
+                           columns,
+                           selection,
+                           selectionArgs,
+                           orderBy,
+                           limit);
+    int rows = count(c);
+    long elapsed = System.nanoTime() - start;
+    DaoMetrics.Operation operation = currentOperation();
+    operation.recordQuery(rows);
+    if (elapsed >= metrics.getSlowQueryNanos()) {
+      String sql = SQLiteQueryBuilder.buildQueryString(false,
+                                                       table,
+                                                       columns,
+                                                       selection,
+                                                       null,
+                                                       null,
+                                                       orderBy,
+                                                       limit);
+      logSlowQuery(operation, sql, selectionArgs, elapsed);
+    }
+    return new CountingCursor(c, operation);
+  }
+  
+  @Override
+  Cursor rawQuery(String sql, String[] selectionArgs) {
+    long start = System.nanoTime();
+    Cursor c = super.rawQuery(sql, selectionArgs);
+    int rows = count(c);
+    long elapsed = System.nanoTime() - start;
+    DaoMetrics.Operation operation = currentOperation();
+    operation.recordQuery(rows);
+    if (elapsed >= metrics.getSlowQueryNanos()) {
+      logSlowQuery(operation, sql, selectionArgs, elapsed);
+    }
+    return new CountingCursor(c, operation);
+  }
+  
+  /**
+   * Helper method that enters a DAO method on the current thread.
+   */
+  private Call enter(String name) {
+    Call call = calls.get();
+    if (call.depth++ == 0) {
+      call.operation = metrics.operation(name);
+      call.failed = false;
+      call.start = System.nanoTime();
+    }
+    return call;
+  }
+  
+  /**
+   * Helper method that finds the outermost DAO method running on the
+   * current thread. Queries run outside of any DAO method, which only a
+   * subclass can do, are counted as "other".
+   */
+  private DaoMetrics.Operation currentOperation() {
+    DaoMetrics.Operation operation = calls.get().operation;
+    return operation != null ? operation : metrics.operation("other");
+  }
+  
+  /**
+   * Helper method that counts the rows of a new cursor. SQLite only runs a
+   * query when its cursor first moves, which fills the cursor window and
+   * counts every row anyway, so counting here costs nothing extra and puts
+   * the query's real cost inside the timed section.
+   */
+  private static int count(Cursor c) {
+    try {
+      return c.getCount();
+    } catch (RuntimeException e) {
+      c.close();
+      throw e;
+    }
+  }
+  
+  /**
+   * Helper method that keeps and logs a slow query with its query plan.
+   */
+  private void logSlowQuery(DaoMetrics.Operation operation,
+                            String sql,
+                            String[] selectionArgs,
+                            long nanos) {
+    DaoMetrics.SlowQuery query = new DaoMetrics.SlowQuery(
+        operation.getName(), sql, nanos, explain(sql, selectionArgs));
+    metrics.recordSlowQuery(query);
+    Log.w(TAG, query.toString());
+  }
+  
+  /**
+   * Helper method that runs EXPLAIN QUERY PLAN for a query. The plan is not
+   * counted as a query of the DAO.
+   * @return the detail column of each step of the plan
+   */
+  private List<String> explain(String sql, String[] selectionArgs) {
+    List<String> plan = new ArrayList<String>();
+    try {
+      Cursor c = getDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql,
+                                        selectionArgs);
+      try {
+        int detail = c.getColumnIndexOrThrow("detail");
+        while (c.moveToNext()) {
+          plan.add(c.getString(detail));
+        }
+      } finally {
+        c.close();
+      }
+    } catch (SQLiteException e) {
+      plan.add("No query plan: " + e.getMessage());
+    }
+    return plan;
+  }
+  
+  /**
+   * A cursor that counts the bytes read from it and adds them to an
+   * operation when it is closed. Text counts one byte per character and
+   * numbers count eight.
+   */
+  private static class CountingCursor extends CursorWrapper {
+    private final DaoMetrics.Operation operation;
+    private long bytes;
+    private boolean recorded;
+    
+    CountingCursor(Cursor cursor, DaoMetrics.Operation operation) {
+      super(cursor);
+      this.operation = operation;
+    }
+    
+    @Override
+    public String getString(int columnIndex) {
+      String value = super.getString(columnIndex);
+      if (value != null) {
+        bytes += value.length();
+      }
+      return value;
+    }
+    
+    @Override
+    public byte[] getBlob(int columnIndex) {
+      byte[] value = super.getBlob(columnIndex);
+      if (value != null) {
+        bytes += value.length;
+      }
+      return value;
+    }
+    
+    @Override
+    public long getLong(int columnIndex) {
+      bytes += 8;
+      return super.getLong(columnIndex);
+    }
+    
+    @Override
+    public int getInt(int columnIndex) {
+      bytes += 8;
+      return super.getInt(columnIndex);
+    }
+    
+    @Override
+    public double getDouble(int columnIndex) {
+      bytes += 8;
+      return super.getDouble(columnIndex);
+    }
+    
+    @Override
+    public void close() {
+      super.close();
+      if (!recorded) {
+        recorded = true;
+        operation.recordBytes(bytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, laid out like an
+ * HdrHistogram: values below 16 each have a bucket, and every power of two
+ * above that is split into 16 equal buckets, so any recorded value is known
+ * to within 1/16 of itself. Durations of over about 18 minutes are counted
+ * in the last bucket. Recording is a few atomic adds and safe from any
+ * thread.
+ * @author ericzeng
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_BIT = 40;    // Values are capped below 2^40
+  private static final long MAX_VALUE = (1L << MAX_BIT) - 1;
+  
+  private final AtomicLongArray counts =
+      new AtomicLongArray(SUB_BUCKETS * (MAX_BIT - SUB_BUCKET_BITS + 1));
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+  
+  /**
+   * Records one duration.
+   * @param nanos The duration in nanoseconds. Negative durations, which a
+   *              clock adjustment can produce, are recorded as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(indexOf(Math.min(value, MAX_VALUE)));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+  
+  /**
+   * Get the number of recorded durations.
+   * @return the number of recorded durations
+   */
+  public long getCount() {
+    return count.get();
+  }
+  
+  /**
+   * Get the sum of the recorded durations.
+   * @return the sum in nanoseconds
+   */
+  public long getTotal() {
+    return total.get();
+  }
+  
+  /**
+   * Get the longest recorded duration.
+   * @return the longest duration in nanoseconds, or 0 if nothing is recorded
+   */
+  public long getMax() {
+    return max.get();
+  }
+  
+  /**
+   * Copies the bucket counts, for computing several percentiles from one
+   * consistent view with valueAtPercentile().
+   * @return the count of each bucket
+   */
+  public long[] copyCounts() {
+    long[] copy = new long[counts.length()];
+    for (int i = 0; i < copy.length; i++) {
+      copy[i] = counts.get(i);
+    }
+    return copy;
+  }
+  
+  /**
+   * Get the duration at or below which the given share of the recorded
+   * durations fall.
+   * @param percentile The percentile, between 0 and 100
+   * @return the largest value of the bucket that holds the percentile, in
+   *         nanoseconds, or 0 if nothing is recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    return valueAtPercentile(copyCounts(), percentile);
+  }
+  
+  /**
+   * Finds a percentile in counts returned by copyCounts().
+   * @param counts The bucket counts
+   * @param percentile The percentile, between 0 and 100
+   * @return the largest value of the bucket that holds the percentile, in
+   *         nanoseconds, or 0 if the counts are all 0
+   */
+  public static long valueAtPercentile(long[] counts, double percentile) {
+    long recorded = 0;
+    for (long c : counts) {
+      recorded += c;
+    }
+    if (recorded == 0) {
+      return 0;
+    }
+    double clamped = Math.min(100.0, Math.max(0.0, percentile));
+    long rank = Math.max(1, (long) Math.ceil(clamped / 100.0 * recorded));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return highestValueOf(i);
+      }
+    }
+    return highestValueOf(counts.length - 1);
+  }
+  
+  /**
+   * Helper method that finds the bucket of a value. Values below
+   * SUB_BUCKETS index themselves; above that, the position of the highest
+   * set bit picks a run of SUB_BUCKETS buckets and the next four bits pick
+   * the bucket within it.
+   */
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int topBit = 63 - Long.numberOfLeadingZeros(value);
+    int shift = topBit - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return SUB_BUCKETS * (shift + 1) + subBucket;
+  }
+  
+  /**
+   * Helper method that finds the largest value counted in a bucket.
+   */
+  static long highestValueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,157 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.List;
+
+/**
+ * A Point read without its heavy columns. Only the id, title, trip, position
+ * and time are read with the point; the altitude, address and journal are
+ * read together the first time one of them is needed, and the MediaItems the
+ * first time the media list is needed. Loads go through the DAO that read
+ * the point, which must still be open, and run a query on the calling
+ * thread. Use AsyncMapJournalDAO.loadPoint() to load from the UI thread.
+ * @author ericzeng
+ */
+final class LazyPoint extends Point {
+  private final MapJournalDAO owner;
+  private boolean detailLoaded;
+  private double altitude;
+  private String address;
+  private String journal;
+  private List<MediaItem> media;
+  
+  /**
+   * Constructs a Point whose remaining fields are loaded on demand.
+   * @param owner The DAO that read the Point, used for the loads
+   * @param id The primary key of the Point
+   * @param title The user-defined descriptor for the Point, or null
+   * @param tripId The id of the trip the point is associated with
+   * @param latitude Latitude of the point's location
+   * @param longitude Longitude of the point's location
+   * @param time The time when the point was visited (unix time)
+   */
+  LazyPoint(MapJournalDAO owner,
+            long id,
+            String title,
+            long tripId,
+            double latitude,
+            double longitude,
+            int time) {
+    super(id, title, tripId, latitude, longitude, 0, time, null, null, null);
+    this.owner = owner;
+  }
+  
+  @Override
+  public double getAltitude() {
+    loadDetail();
+    return altitude;
+  }
+  
+  @Override
+  public void setAltitude(double newAlt) {
+    loadDetail();
+    altitude = newAlt;
+  }
+  
+  @Override
+  public String getAddress() {
+    loadDetail();
+    return address;
+  }
+  
+  @Override
+  public void setAddress(String newAddr) {
+    loadDetail();
+    address = newAddr;
+  }
+  
+  @Override
+  public String getJournal() {
+    loadDetail();
+    return journal;
+  }
+  
+  @Override
+  public void setJournal(String newJournal) {
+    loadDetail();
+    journal = newJournal;
+  }
+  
+  /**
+   * Get the list of MediaItems associated with the point, reading it from
+   * the database the first time.
+   * @return the list of MediaItems associated with the point. 
+   * @throws IllegalStateException if the list is not loaded and the DAO
+   *         that read the point has been closed
+   */
+  @Override
+  public synchronized List<MediaItem> getAllMedia() {
+    if (media == null) {
+      media = openOwner().getMediaByPoint(getId());
+    }
+    return media;
+  }
+  
+  @Override
+  synchronized boolean isDetailLoaded() {
+    return detailLoaded;
+  }
+  
+  @Override
+  synchronized boolean isMediaLoaded() {
+    return media != null;
+  }
+  
+  /**
+   * Sets the fields that are loaded on demand. Called by the DAO while
+   * loading them.
+   * @param altitude The altitude of the Point
+   * @param address The address of the Point, or null
+   * @param journal The journal entry of the Point, or null
+   */
+  void setDetail(double altitude, String address, String journal) {
+    this.altitude = altitude;
+    this.address = address;
+    this.journal = journal;
+  }
+  
+  /**
+   * Helper method that reads the altitude, address and journal the first
+   * time any of them is used. A setter loads them too, so a later load
+   * can't overwrite the new value.
+   * @throws IllegalStateException if the DAO that read the point has been
+   *         closed
+   */
+  private synchronized void loadDetail() {
+    if (!detailLoaded) {
+      openOwner().loadPointDetail(this);
+      detailLoaded = true;
+    }
+  }
+  
+  /**
+   * Helper method that checks that the DAO that read the point can still
+   * load from the database.
+   */
+  private MapJournalDAO openOwner() {
+    if (owner.getDatabase() == null) {
+      throw new IllegalStateException(
+          "Point " + getId() + " was read by a DAO that is now closed");
+    }
+    return owner;
+  }
+}
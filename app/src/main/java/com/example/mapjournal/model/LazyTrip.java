@@ -0,0 +1,70 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.List;
+
+/**
+ * A Trip read without its Points. The points are read the first time
+ * getPoints() is called, as LazyPoints, so only their summary columns are
+ * loaded. The load goes through the DAO that read the trip, which must
+ * still be open, and runs a query on the calling thread.
+ * @author ericzeng
+ */
+final class LazyTrip extends Trip {
+  private final MapJournalDAO owner;
+  private List<Point> points;
+  
+  /**
+   * Constructs a Trip whose Points are loaded on demand.
+   * @param owner The DAO that read the Trip, used for the load
+   * @param id The unique identifier of this trip
+   * @param name The user-specified name for the trip
+   * @param description The user-specified desription for the trip
+   */
+  LazyTrip(MapJournalDAO owner,
+           long id,
+           String name,
+           String description) {
+    super(id, name, description, null);
+    this.owner = owner;
+  }
+  
+  /**
+   * Returns all Points from the trip, reading them from the database the
+   * first time.
+   * @return A list of Points visited on the Trip, in the order they were
+   *         visited.
+   * @throws IllegalStateException if the points are not loaded and the DAO
+   *         that read the trip has been closed
+   */
+  @Override
+  public synchronized List<Point> getPoints() {
+    if (points == null) {
+      if (owner.getDatabase() == null) {
+        throw new IllegalStateException(
+            "Trip " + getId() + " was read by a DAO that is now closed");
+      }
+      points = owner.getPointSummaries(getId());
+    }
+    return points;
+  }
+  
+  @Override
+  synchronized boolean isPointsLoaded() {
+    return points != null;
+  }
+}
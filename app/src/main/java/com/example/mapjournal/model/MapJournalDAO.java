@@ -15,12 +15,24 @@
 
 package com.example.mapjournal.model;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.example.mapjournal.model.MapJournalDbContract.BlobEntry;
 import com.example.mapjournal.model.MapJournalDbContract.MediaEntry;
+import com.example.mapjournal.model.MapJournalDbContract.MediaSweepEntry;
 import com.example.mapjournal.model.MapJournalDbContract.PointEntry;
+import com.example.mapjournal.model.MapJournalDbContract.SearchEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TrackEntry;
 import com.example.mapjournal.model.MapJournalDbContract.TripEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TripStatsEntry;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -36,6 +48,15 @@ import android.database.sqlite.SQLiteException;
 public class MapJournalDAO {
   private SQLiteDatabase db;
   private MapJournalDbHelper openHelper;
+  private final List<PointListener> pointListeners =
+      new ArrayList<PointListener>();
+  
+  // Relevance weight of each column of the search table, in table order:
+  // Title, Address, Journal, Captions
+  private static final double[] SEARCH_WEIGHTS = { 4.0, 1.0, 1.0, 2.0 };
+  
+  // Upper bound on the geohash ranges scanned for each side of a bounding box
+  private static final int MAX_GEOHASH_RANGES = 16;
   
   // All columns in the Point table
   private static final String[] POINT_COLUMNS = { 
@@ -49,6 +70,25 @@ public class MapJournalDAO {
       PointEntry.COLUMN_NAME_ADDRESS,
       PointEntry.COLUMN_NAME_JOURNAL};
   
+  // The columns of the Point table read for a LazyPoint, enough to list or
+  // map it
+  private static final String[] POINT_SUMMARY_COLUMNS = {
+      PointEntry._ID,
+      PointEntry.COLUMN_NAME_TITLE,
+      PointEntry.COLUMN_NAME_TRIP,
+      PointEntry.COLUMN_NAME_LATITUDE,
+      PointEntry.COLUMN_NAME_LONGITUDE,
+      PointEntry.COLUMN_NAME_TIME
+  };
+  
+  // The remaining columns of the Point table, read when a LazyPoint needs
+  // them
+  private static final String[] POINT_DETAIL_COLUMNS = {
+      PointEntry.COLUMN_NAME_ALTITUDE,
+      PointEntry.COLUMN_NAME_ADDRESS,
+      PointEntry.COLUMN_NAME_JOURNAL
+  };
+  
   // All columns in the Media table
   private static final String[] MEDIA_COLUMNS = {
       MediaEntry._ID,
@@ -64,27 +104,111 @@ public class MapJournalDAO {
       TripEntry.COLUMN_NAME_DESC
   };
   
+  // All columns in the Track table
+  private static final String[] TRACK_COLUMNS = {
+      TrackEntry._ID,
+      TrackEntry.COLUMN_NAME_TRIP,
+      TrackEntry.COLUMN_NAME_DATA
+  };
+  
+  // Every MediaItem attached to a point in the given trip
+  private static final String MEDIA_BY_TRIP_SELECT =
+      "SELECT m." + MediaEntry._ID + ", " +
+             "m." + MediaEntry.COLUMN_NAME_POINT_ID + ", " +
+             "m." + MediaEntry.COLUMN_NAME_CAPTION + ", " +
+             "m." + MediaEntry.COLUMN_NAME_PATH;
+  private static final String MEDIA_BY_TRIP_FROM =
+      " FROM " + MediaEntry.TABLE_NAME + " m" +
+      " INNER JOIN " + PointEntry.TABLE_NAME + " p" +
+        " ON m." + MediaEntry.COLUMN_NAME_POINT_ID + " = p." + PointEntry._ID +
+      " WHERE p." + PointEntry.COLUMN_NAME_TRIP + " = ?";
+  private static final String MEDIA_BY_TRIP_QUERY =
+      MEDIA_BY_TRIP_SELECT + MEDIA_BY_TRIP_FROM;
+  
+  // The same rows in the order of the trip's points, with the time of each
+  // row's point, for merging with them
+  private static final String MEDIA_BY_TRIP_ORDERED_QUERY =
+      MEDIA_BY_TRIP_SELECT + ", p." + PointEntry.COLUMN_NAME_TIME +
+      MEDIA_BY_TRIP_FROM +
+      " ORDER BY p." + PointEntry.COLUMN_NAME_TIME + ", p." + PointEntry._ID +
+      ", m." + MediaEntry._ID;
+  
+  // Every Trip with its statistics. Trips that have never had a Point have
+  // no statistics row, so their columns are null.
+  private static final String TRIP_STATS_QUERY =
+      "SELECT t." + TripEntry._ID + ", " +
+             "t." + TripEntry.COLUMN_NAME_NAME + ", " +
+             "t." + TripEntry.COLUMN_NAME_DESC + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_POINT_COUNT + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_MEDIA_COUNT + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_DISTANCE + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_ELEVATION_GAIN + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_START_TIME + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_END_TIME + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_MIN_LATITUDE + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_MIN_LONGITUDE + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_MAX_LATITUDE + ", " +
+             "s." + TripStatsEntry.COLUMN_NAME_MAX_LONGITUDE +
+      " FROM " + TripEntry.TABLE_NAME + " t" +
+      " LEFT JOIN " + TripStatsEntry.TABLE_NAME + " s" +
+        " ON s." + TripStatsEntry.COLUMN_NAME_TRIP + " = t." + TripEntry._ID;
+  
   /**
    * Create a new Data Access Object
    * @param context
    */
   public MapJournalDAO(Context context) {
-    openHelper = MapJournalDbHelper.getInstance(context);
+    this(MapJournalDbHelper.getInstance(context));
   }
   
   /**
-   * Opens a new connection to the database
+   * Create a new Data Access Object backed by the given helper. Used by tests
+   * to point the DAO at a scratch database.
+   * @param openHelper The helper that owns the database connection
+   */
+  MapJournalDAO(MapJournalDbHelper openHelper) {
+    this.openHelper = openHelper;
+  }
+  
+  /**
+   * Opens a connection to the database. The connection is shared with every
+   * other open DAO. Calling open() on a DAO that is already open has no
+   * effect.
    * @throws android.database.sqlite.SQLiteException
    */
   public void open() throws SQLiteException {
-    db = openHelper.getWritableDatabase();
+    if (db == null) {
+      db = openHelper.acquire();
+    }
   }
   
   /**
-   * Closes the connection to the database
+   * Closes this DAO's connection to the database. The shared connection stays
+   * open until every DAO using it has been closed.
    */
   public void close() {
-    openHelper.close();
+    if (db != null) {
+      db = null;
+      openHelper.release();
+    }
+  }
+  
+  /**
+   * Registers a listener to be told about every Point and MediaItem this DAO
+   * writes.
+   * Listeners are called on the thread that made the change.
+   * @param listener The listener to add
+   */
+  public void addPointListener(PointListener listener) {
+    pointListeners.add(listener);
+  }
+  
+  /**
+   * Unregisters a listener added with addPointListener().
+   * @param listener The listener to remove
+   */
+  public void removePointListener(PointListener listener) {
+    pointListeners.remove(listener);
   }
   
   /**
@@ -99,41 +223,44 @@ public class MapJournalDAO {
     ContentValues pointValues = new ContentValues();
     putPointValues(pointValues, point);
     
-    long newId = db.insert(PointEntry.TABLE_NAME, null, pointValues);
-    point.setId(newId);
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      long newId = db.insert(PointEntry.TABLE_NAME, null, pointValues);
+      point.setId(newId);
+      stats.pointAdded(newId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+    for (PointListener listener : pointListeners) {
+      listener.onPointSaved(point);
+    }
   }
   
   /**
-   * Retrieves the Point entry with the given id and puts the data into a
-   * Point object. The list of MediaItems should be populated manually using
-   * getMediaByPoint(id). 
+   * Retrieves the Point entry with the given id. Only the id, title, trip,
+   * position and time are read; the altitude, address, journal and list of
+   * MediaItems are read from the database the first time they are used,
+   * which may be after this DAO is closed.
    * @param id The id of the Point to be retrieved
-   * @return A Point object with the given id
+   * @return A Point object with the given id, or null if there is no such
+   *         Point
    */
   public Point getPoint(long id) {
-    String pointSelection = PointEntry._ID + " LIKE ?";
+    String pointSelection = PointEntry._ID + " = ?";
     String[] pointSelectionArgs = {String.valueOf(id)};
-    Cursor c = db.query(PointEntry.TABLE_NAME,
-                        POINT_COLUMNS,
-                        pointSelection,
-                        pointSelectionArgs,
-                        null,
-                        null,
-                        null);
-    
-    Point result = new Point(
-      c.getLong(c.getColumnIndexOrThrow(PointEntry._ID)),
-      c.getString(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TITLE)),
-      c.getLong(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TRIP)),
-      c.getDouble(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_LATITUDE)),
-      c.getDouble(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_LONGITUDE)),
-      c.getDouble(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_ALTITUDE)),
-      c.getInt(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TIME)),
-      c.getString(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_ADDRESS)),
-      c.getString(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_JOURNAL)),
-      null);  // MediaList is not initialized until retrieved
-      
-    return result;          
+    Cursor c = query(PointEntry.TABLE_NAME,
+                     POINT_SUMMARY_COLUMNS,
+                     pointSelection,
+                     pointSelectionArgs,
+                     null);
+    try {
+      return c.moveToFirst() ? readPointSummary(c) : null;
+    } finally {
+      c.close();
+    }
   }
   
   /**
@@ -145,28 +272,52 @@ public class MapJournalDAO {
     ContentValues pointValues = new ContentValues();
     putPointValues(pointValues, point);
     
-    String pointSelection = PointEntry._ID + " LIKE ?";
+    String pointSelection = PointEntry._ID + " = ?";
     String[] pointSelectionArgs = {String.valueOf(point.getId())};
     
-    db.update(PointEntry.TABLE_NAME,
-              pointValues,
-              pointSelection,
-              pointSelectionArgs);
+    // The statistics of the point's old position are removed and those of
+    // the new one added, which also handles moving it to another trip
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      stats.pointRemoved(point.getId());
+      db.update(PointEntry.TABLE_NAME,
+                pointValues,
+                pointSelection,
+                pointSelectionArgs);
+      stats.pointAdded(point.getId());
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+    for (PointListener listener : pointListeners) {
+      listener.onPointSaved(point);
+    }
   }
   
   /**
-   * Delete the given Point from the database. MediaItems associated with the
-   * point wil also be deleted to maintain referential integrity. 
+   * Delete the given Point from the database. Every MediaItem attached to the
+   * point is deleted with it by the database, whether or not it is in the
+   * point's list, and its file is queued for MediaSweeper.
    * @param point The Point be deleted from the database. 
    */
   public void deletePoint(Point point) {
-    String pointSelection = PointEntry._ID + " LIKE ?";
+    String pointSelection = PointEntry._ID + " = ?";
     String[] pointSelectionArgs = {String.valueOf(point.getId())};
-    db.delete(PointEntry.TABLE_NAME, pointSelection, pointSelectionArgs);
     
-    List<MediaItem> items = point.getAllMedia();
-    for (MediaItem item : items) {
-      deleteMedia(item);
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      stats.pointRemoved(point.getId());
+      db.delete(PointEntry.TABLE_NAME, pointSelection, pointSelectionArgs);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+    for (PointListener listener : pointListeners) {
+      listener.onPointDeleted(point.getId());
     }
   }
   
@@ -178,34 +329,41 @@ public class MapJournalDAO {
     ContentValues mediaValues = new ContentValues();
     putMediaValues(mediaValues, item);
     
-    long newId = db.insert(MediaEntry.TABLE_NAME, null, mediaValues);
-    item.setId(newId);
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      long newId = db.insert(MediaEntry.TABLE_NAME, null, mediaValues);
+      item.setId(newId);
+      stats.mediaAdded(newId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+    for (PointListener listener : pointListeners) {
+      listener.onMediaSaved(item);
+    }
   }
   
   /**
    * Retrieves the MediaItem entry with the given id.
    * @param id The id of the MediaItem to retrieve
-   * @return A MediaItem object with the given id
+   * @return A MediaItem object with the given id, or null if there is no such
+   *         MediaItem
    */
   public MediaItem getMedia(long id) {
-    String mediaSelection = MediaEntry._ID + " LIKE ?";
+    String mediaSelection = MediaEntry._ID + " = ?";
     String[] mediaSelectionArgs = {String.valueOf(id)};
-    
-    Cursor c = db.query(MediaEntry.TABLE_NAME,
-                        MEDIA_COLUMNS,
-                        mediaSelection,
-                        mediaSelectionArgs,
-                        null,
-                        null,
-                        null);
-    
-    MediaItem item = new MediaItem(
-      c.getLong(c.getColumnIndexOrThrow(MediaEntry._ID)),
-      c.getLong(c.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_POINT_ID)),
-      c.getString(c.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_PATH)),
-      c.getString(c.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_CAPTION)));
-    
-    return item;
+    Cursor c = query(MediaEntry.TABLE_NAME,
+                     MEDIA_COLUMNS,
+                     mediaSelection,
+                     mediaSelectionArgs,
+                     null);
+    try {
+      return c.moveToFirst() ? readMedia(c) : null;
+    } finally {
+      c.close();
+    }
   }
   
   /**
@@ -214,24 +372,23 @@ public class MapJournalDAO {
    * @return A list of MediaItems associated with the point. 
    */
   public List<MediaItem> getMediaByPoint(long pointId) {
-    String mediaSelection = MediaEntry.COLUMN_NAME_POINT_ID + " LIKE ?";
+    String mediaSelection = MediaEntry.COLUMN_NAME_POINT_ID + " = ?";
     String[] mediaSelectionArgs = { String.valueOf(pointId) };
-    Cursor d = db.query(MediaEntry.TABLE_NAME,
-                        MEDIA_COLUMNS,
-                        mediaSelection,
-                        mediaSelectionArgs,
-                        null,
-                        null,
-                        null);
+    Cursor c = query(MediaEntry.TABLE_NAME,
+                     MEDIA_COLUMNS,
+                     mediaSelection,
+                     mediaSelectionArgs,
+                     null);
 
     List<MediaItem> mediaList = new ArrayList<MediaItem>();
-    
-    // Loop through every id, get the MediaItem in each iteration
-    while (!d.isAfterLast()) {
-      MediaItem item = 
-          getMedia(d.getLong(d.getColumnIndexOrThrow(MediaEntry._ID)));
-      mediaList.add(item);
-      d.moveToNext();
+    try {
+      // Every column is already in the cursor, so read the items directly
+      // instead of issuing a second query per row.
+      while (c.moveToNext()) {
+        mediaList.add(readMedia(c));
+      }
+    } finally {
+      c.close();
     }
     return mediaList;
   }
@@ -244,13 +401,27 @@ public class MapJournalDAO {
     ContentValues mediaValues = new ContentValues();
     putMediaValues(mediaValues, item);
     
-    String mediaSelection = MediaEntry._ID + " LIKE ?";
+    String mediaSelection = MediaEntry._ID + " = ?";
     String[] mediaSelectionArgs = {String.valueOf(item.getId())};
     
-    db.update(MediaEntry.TABLE_NAME,
-              mediaValues,
-              mediaSelection,
-              mediaSelectionArgs);
+    // The item may have moved to a point in another trip
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      stats.mediaRemoved(item.getId());
+      db.update(MediaEntry.TABLE_NAME,
+                mediaValues,
+                mediaSelection,
+                mediaSelectionArgs);
+      stats.mediaAdded(item.getId());
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+    for (PointListener listener : pointListeners) {
+      listener.onMediaSaved(item);
+    }
   }
   
   /**
@@ -258,10 +429,22 @@ public class MapJournalDAO {
    * @param item The MediaItem to be deleted
    */
   public void deleteMedia(MediaItem item) {
-    String mediaSelection = MediaEntry._ID + " LIKE ?";
+    String mediaSelection = MediaEntry._ID + " = ?";
     String[] mediaSelectionArgs = { String.valueOf(item.getId()) };
     
-    db.delete(MediaEntry.TABLE_NAME, mediaSelection, mediaSelectionArgs);
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      stats.mediaRemoved(item.getId());
+      db.delete(MediaEntry.TABLE_NAME, mediaSelection, mediaSelectionArgs);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+    for (PointListener listener : pointListeners) {
+      listener.onMediaDeleted(item.getId());
+    }
   }
   
   /**
@@ -279,54 +462,160 @@ public class MapJournalDAO {
   
   /**
    * Retrieves a trip from the database and puts the data into a Trip object.
+   * The trip's Points are read the first time getPoints() is called, in the
+   * same form as getPointSummaries().
    * @param id The id of the Trip to receive
-   * @return A Trip object containing the data from the selected entry
+   * @return A Trip object containing the data from the selected entry, or
+   *         null if there is no such Trip
    */
   public Trip getTrip(long id) {
-    String tripSelection = TripEntry._ID + " LIKE ?";
+    String tripSelection = TripEntry._ID + " = ?";
     String[] tripSelectionArgs = { String.valueOf(id) };
-    
-    Cursor c = db.query(TripEntry.TABLE_NAME,
-                        TRIP_COLUMNS,
-                        tripSelection,
-                        tripSelectionArgs,
-                        null,
-                        null,
-                        null);
-    
-    Trip result = new Trip(
-        c.getLong(c.getColumnIndexOrThrow(TripEntry._ID)),
-        c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_NAME)),
-        c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_DESC)),
-        null);
-    return result;
+    Cursor c = query(TripEntry.TABLE_NAME,
+                     TRIP_COLUMNS,
+                     tripSelection,
+                     tripSelectionArgs,
+                     null);
+    try {
+      return c.moveToFirst() ? readLazyTrip(c) : null;
+    } finally {
+      c.close();
+    }
   }
   
   /**
-   * Retrieves all Trips stored in the database.
+   * Retrieves all Trips stored in the database. The Points of each trip are
+   * read the first time its getPoints() is called.
    * @return A list containing every Trip in the database. 
    */
   public List<Trip> getAllTrips() {
-    Cursor c = db.query(TripEntry.TABLE_NAME,
-                        TRIP_COLUMNS,
-                        null,
-                        null,
-                        null,
-                        null,
-                        null);
+    Cursor c = query(TripEntry.TABLE_NAME,
+                     TRIP_COLUMNS,
+                     null,
+                     null,
+                     null);
     List<Trip> trips = new ArrayList<Trip>();
-    while (!c.isAfterLast()) {
-      Trip t = new Trip(
-        c.getLong(c.getColumnIndexOrThrow(TripEntry._ID)),
-        c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_NAME)),
-        c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_DESC)),
-        null);
-      trips.add(t);
-      c.moveToNext();
+    try {
+      while (c.moveToNext()) {
+        trips.add(readLazyTrip(c));
+      }
+    } finally {
+      c.close();
     }
     return trips;
   }
   
+  /**
+   * Retrieves every Point of a Trip for listing, in the order they were
+   * visited. Only the id, title, trip, position and time of each point are
+   * read; the rest is read from the database the first time it is used, one
+   * point at a time, as with getPoint().
+   * @param tripId The id of the Trip
+   * @return The Points of the Trip
+   */
+  public List<Point> getPointSummaries(long tripId) {
+    Cursor c = query(PointEntry.TABLE_NAME,
+                     POINT_SUMMARY_COLUMNS,
+                     PointEntry.COLUMN_NAME_TRIP + " = ?",
+                     new String[] { String.valueOf(tripId) },
+                     PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID);
+    List<Point> points = new ArrayList<Point>();
+    try {
+      while (c.moveToNext()) {
+        points.add(readPointSummary(c));
+      }
+    } finally {
+      c.close();
+    }
+    return points;
+  }
+  
+  /**
+   * Calls the visitor with every Point of a Trip, in the order they were
+   * visited. Rows are read from the database one at a time instead of being
+   * collected into a list, and a single Point instance is refilled for every
+   * row, so the visitor must copy any Point it wants to keep. The list of
+   * MediaItems of the Point is not populated.
+   * @param tripId The id of the Trip
+   * @param visitor The visitor to call with each Point
+   */
+  public void forEachPoint(long tripId, PointVisitor visitor) {
+    PointIterator points = iteratePoints(tripId, true);
+    try {
+      while (points.hasNext()) {
+        visitor.visit(points.next());
+      }
+    } finally {
+      points.close();
+    }
+  }
+  
+  /**
+   * Returns an iterator over the Points of a Trip, in the order they were
+   * visited. The iterator reads rows from the database as it advances and
+   * must be closed, although it also closes itself once it is exhausted. The
+   * list of MediaItems of each Point is not populated.
+   * @param tripId The id of the Trip
+   * @param reusePoint If true, the iterator returns the same Point instance
+   *                   for every row, refilled with that row's data
+   * @return An iterator over the Points of the Trip
+   */
+  public PointIterator iteratePoints(long tripId, boolean reusePoint) {
+    Cursor c = query(PointEntry.TABLE_NAME,
+                     POINT_COLUMNS,
+                     PointEntry.COLUMN_NAME_TRIP + " = ?",
+                     new String[] { String.valueOf(tripId) },
+                     PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID);
+    return new PointIterator(c, reusePoint);
+  }
+  
+  /**
+   * Calls the visitor with every Point of a Trip and its MediaItems, in the
+   * order they were visited. The points and the media are read by two
+   * cursors in the same order and merged, so only the current Point and its
+   * media are held in memory. Media of a Point the points cursor didn't see,
+   * such as one written by another thread between the two queries, are
+   * skipped.
+   * @param tripId The id of the Trip
+   * @param visitor The visitor to call with each Point
+   */
+  public void forEachPointWithMedia(long tripId, PointVisitor visitor) {
+    String[] tripArgs = { String.valueOf(tripId) };
+    Cursor points = query(PointEntry.TABLE_NAME,
+                          POINT_COLUMNS,
+                          PointEntry.COLUMN_NAME_TRIP + " = ?",
+                          tripArgs,
+                          PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID);
+    Cursor media = null;
+    try {
+      media = rawQuery(MEDIA_BY_TRIP_ORDERED_QUERY, tripArgs);
+      int pointIdColumn =
+          media.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_POINT_ID);
+      int timeColumn = media.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TIME);
+      boolean hasMedia = media.moveToNext();
+      while (points.moveToNext()) {
+        Point point = readPoint(points, new ArrayList<MediaItem>());
+        // Rows ordered before this point belong to points that weren't read,
+        // and would otherwise stop every later point getting its media
+        while (hasMedia && comesBefore(media.getLong(timeColumn),
+                                       media.getLong(pointIdColumn),
+                                       point)) {
+          hasMedia = media.moveToNext();
+        }
+        while (hasMedia && media.getLong(pointIdColumn) == point.getId()) {
+          point.AddMediaItem(readMedia(media));
+          hasMedia = media.moveToNext();
+        }
+        visitor.visit(point);
+      }
+    } finally {
+      points.close();
+      if (media != null) {
+        media.close();
+      }
+    }
+  }
+  
   /**
    * Updates the given Trip in the database. 
    * @param trip The Trip to be updated. 
@@ -335,7 +624,7 @@ public class MapJournalDAO {
     ContentValues tripValues = new ContentValues();
     putTripValues(tripValues, trip);
     
-    String tripSelection = TripEntry._ID + " LIKE ?";
+    String tripSelection = TripEntry._ID + " = ?";
     String[] tripSelectionArgs = { String.valueOf(trip.getId()) };
     
     db.update(TripEntry.TABLE_NAME,
@@ -345,13 +634,887 @@ public class MapJournalDAO {
   }
   
   /**
-   * Deletes the given Trip from the database.
+   * Deletes the given Trip from the database, together with its Points, their
+   * MediaItems, its TrackSegments and its statistics. The rows are removed by
+   * the database in a single statement however large the trip is, and the
+   * files of the MediaItems are queued for MediaSweeper.
    * @param trip The Trip to be deleted.
    */
   public void deleteTrip(Trip trip) {
-    String tripSelection = TripEntry._ID + " LIKE ?";
+    String tripSelection = TripEntry._ID + " = ?";
     String[] tripSelectionArgs = { String.valueOf(trip.getId()) };
     db.delete(TripEntry.TABLE_NAME, tripSelection, tripSelectionArgs);
+    for (PointListener listener : pointListeners) {
+      listener.onTripDeleted(trip.getId());
+    }
+  }
+  
+  /**
+   * Retrieves a Trip together with its statistics. The statistics are read
+   * from the stored table rather than computed from the Trip's Points.
+   * @param tripId The id of the Trip
+   * @return The statistics of the Trip, or null if there is no such Trip
+   */
+  public TripStats getTripStats(long tripId) {
+    Cursor c = rawQuery(TRIP_STATS_QUERY + " WHERE t." + TripEntry._ID + " = ?",
+                        new String[] { String.valueOf(tripId) });
+    try {
+      return c.moveToFirst() ? readTripStats(c) : null;
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Retrieves every Trip together with its statistics, in a single query
+   * that reads one stored row per Trip. No Points are read.
+   * @return The statistics of every Trip in the database
+   */
+  public List<TripStats> getAllTripStats() {
+    Cursor c = rawQuery(TRIP_STATS_QUERY, null);
+    List<TripStats> stats = new ArrayList<TripStats>();
+    try {
+      while (c.moveToNext()) {
+        stats.add(readTripStats(c));
+      }
+    } finally {
+      c.close();
+    }
+    return stats;
+  }
+  
+  /**
+   * Recomputes the stored statistics of a Trip from all of its Points. The
+   * statistics are kept up to date by every write, so this is only needed to
+   * repair them, for example after rows were changed outside the DAO.
+   * @param tripId The id of the Trip
+   */
+  public void rebuildTripStats(long tripId) {
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      stats.rebuild(tripId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+  }
+  
+  /**
+   * Recomputes the stored statistics of every Trip. This reads every Point in
+   * the database.
+   */
+  public void rebuildAllTripStats() {
+    TripStatsUpdater stats = new TripStatsUpdater(db);
+    db.beginTransactionNonExclusive();
+    try {
+      stats.rebuildAll();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      stats.close();
+    }
+  }
+  
+  /**
+   * Creates a new entry in the Track table for the given TrackSegment and
+   * sets its id. The fixes are stored as one encoded blob.
+   * @param segment The TrackSegment to add to the database
+   */
+  public void createTrackSegment(TrackSegment segment) {
+    ContentValues trackValues = new ContentValues();
+    trackValues.put(TrackEntry.COLUMN_NAME_TRIP, segment.getTripId());
+    trackValues.put(TrackEntry.COLUMN_NAME_START_TIME, segment.getStartTime());
+    trackValues.put(TrackEntry.COLUMN_NAME_END_TIME, segment.getEndTime());
+    trackValues.put(TrackEntry.COLUMN_NAME_COUNT, segment.size());
+    trackValues.put(TrackEntry.COLUMN_NAME_DATA, segment.encode());
+    
+    long newId = db.insert(TrackEntry.TABLE_NAME, null, trackValues);
+    segment.setId(newId);
+  }
+  
+  /**
+   * Retrieves every TrackSegment recorded on a Trip, in time order.
+   * @param tripId The id of the Trip
+   * @return The TrackSegments of the Trip
+   */
+  public List<TrackSegment> getTrackSegments(long tripId) {
+    Cursor c = query(TrackEntry.TABLE_NAME,
+                     TRACK_COLUMNS,
+                     TrackEntry.COLUMN_NAME_TRIP + " = ?",
+                     new String[] { String.valueOf(tripId) },
+                     TrackEntry.COLUMN_NAME_START_TIME);
+    List<TrackSegment> segments = new ArrayList<TrackSegment>();
+    try {
+      while (c.moveToNext()) {
+        segments.add(TrackSegment.decode(
+            c.getLong(c.getColumnIndexOrThrow(TrackEntry._ID)),
+            c.getLong(c.getColumnIndexOrThrow(TrackEntry.COLUMN_NAME_TRIP)),
+            c.getBlob(c.getColumnIndexOrThrow(TrackEntry.COLUMN_NAME_DATA))));
+      }
+    } finally {
+      c.close();
+    }
+    return segments;
+  }
+  
+  /**
+   * Calls the visitor with every TrackSegment recorded on a Trip, in time
+   * order. Segments are decoded one row at a time instead of being collected
+   * into a list.
+   * @param tripId The id of the Trip
+   * @param visitor The visitor to call with each TrackSegment
+   */
+  public void forEachTrackSegment(long tripId, TrackSegmentVisitor visitor) {
+    Cursor c = query(TrackEntry.TABLE_NAME,
+                     TRACK_COLUMNS,
+                     TrackEntry.COLUMN_NAME_TRIP + " = ?",
+                     new String[] { String.valueOf(tripId) },
+                     TrackEntry.COLUMN_NAME_START_TIME);
+    try {
+      int idColumn = c.getColumnIndexOrThrow(TrackEntry._ID);
+      int dataColumn = c.getColumnIndexOrThrow(TrackEntry.COLUMN_NAME_DATA);
+      while (c.moveToNext()) {
+        visitor.visit(TrackSegment.decode(c.getLong(idColumn),
+                                          tripId,
+                                          c.getBlob(dataColumn)));
+      }
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Deletes the given TrackSegment from the database.
+   * @param segment The TrackSegment to be deleted
+   */
+  public void deleteTrackSegment(TrackSegment segment) {
+    String trackSelection = TrackEntry._ID + " = ?";
+    String[] trackSelectionArgs = { String.valueOf(segment.getId()) };
+    db.delete(TrackEntry.TABLE_NAME, trackSelection, trackSelectionArgs);
+  }
+  
+  /**
+   * Retrieves the Points inside a bounding box, such as the visible region of
+   * the map. The search uses the geohash index, so only points in or near the
+   * box are read. If minLng is greater than maxLng the box is taken to cross
+   * the antimeridian, covering minLng to 180 and -180 to maxLng. Only the
+   * columns needed to map each Point are read; the rest are read on demand,
+   * as for getPoint().
+   * @param minLat Southern edge of the box
+   * @param minLng Western edge of the box
+   * @param maxLat Northern edge of the box
+   * @param maxLng Eastern edge of the box
+   * @param limit The maximum number of Points to return
+   * @return The Points inside the box
+   */
+  public List<Point> getPointsInBounds(double minLat,
+                                       double minLng,
+                                       double maxLat,
+                                       double maxLng,
+                                       int limit) {
+    StringBuilder hashClause = new StringBuilder();
+    StringBuilder lngClause = new StringBuilder();
+    List<String> hashArgs = new ArrayList<String>();
+    List<String> lngArgs = new ArrayList<String>();
+    if (minLng <= maxLng) {
+      appendBoundsClauses(hashClause, hashArgs, lngClause, lngArgs,
+                          minLat, minLng, maxLat, maxLng);
+    } else {
+      appendBoundsClauses(hashClause, hashArgs, lngClause, lngArgs,
+                          minLat, minLng, maxLat, 180.0);
+      appendBoundsClauses(hashClause, hashArgs, lngClause, lngArgs,
+                          minLat, -180.0, maxLat, maxLng);
+    }
+    
+    String selection = 
+        "(" + hashClause + ") AND " +
+        PointEntry.COLUMN_NAME_LATITUDE + " BETWEEN ? AND ? AND " +
+        "(" + lngClause + ")";
+    List<String> args = new ArrayList<String>(hashArgs);
+    args.add(String.valueOf(minLat));
+    args.add(String.valueOf(maxLat));
+    args.addAll(lngArgs);
+    
+    Cursor c = query(PointEntry.TABLE_NAME,
+                     POINT_SUMMARY_COLUMNS,
+                     selection,
+                     args.toArray(new String[args.size()]),
+                     null,
+                     String.valueOf(limit));
+    List<Point> points = new ArrayList<Point>();
+    try {
+      while (c.moveToNext()) {
+        points.add(readPointSummary(c));
+      }
+    } finally {
+      c.close();
+    }
+    return points;
+  }
+  
+  /**
+   * Searches the title, address, journal and media captions of every Point.
+   * Matches are ranked by how often the query terms occur in them relative to
+   * the rest of the journal, with hits in titles weighted highest.
+   * @param query An FTS query, such as "beach sunset" or "museum OR gallery"
+   * @param limit The maximum number of results to return
+   * @param offset The number of top-ranked results to skip
+   * @return The matching Points, best match first
+   * @throws android.database.sqlite.SQLiteException if the query is malformed
+   */
+  public List<SearchResult> search(String query, int limit, int offset) {
+    // First rank every match using only its docid and match statistics, which
+    // are cheap to read, then build snippets for the requested page only.
+    final Map<Long, Double> scores = new HashMap<Long, Double>();
+    Cursor c = rawQuery(
+        "SELECT docid, matchinfo(" + SearchEntry.TABLE_NAME + ", 'pcx')" +
+        " FROM " + SearchEntry.TABLE_NAME +
+        " WHERE " + SearchEntry.TABLE_NAME + " MATCH ?",
+        new String[] { query });
+    try {
+      while (c.moveToNext()) {
+        scores.put(c.getLong(0), rank(c.getBlob(1)));
+      }
+    } finally {
+      c.close();
+    }
+    
+    List<Long> ranked = new ArrayList<Long>(scores.keySet());
+    Collections.sort(ranked, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        int byScore = Double.compare(scores.get(b), scores.get(a));
+        return byScore != 0 ? byScore : b.compareTo(a);   // Newest first
+      }
+    });
+    if (offset >= ranked.size()) {
+      return new ArrayList<SearchResult>();
+    }
+    List<Long> page =
+        ranked.subList(offset, Math.min(ranked.size(), offset + limit));
+    
+    StringBuilder ids = new StringBuilder();
+    for (Long id : page) {
+      if (ids.length() > 0) {
+        ids.append(',');
+      }
+      ids.append(id);
+    }
+    Map<Long, String> snippets = new HashMap<Long, String>();
+    c = rawQuery(
+        "SELECT docid, snippet(" + SearchEntry.TABLE_NAME +
+                              ", '<b>', '</b>', '...', -1, 16)" +
+        " FROM " + SearchEntry.TABLE_NAME +
+        " WHERE " + SearchEntry.TABLE_NAME + " MATCH ?" +
+        " AND docid IN (" + ids + ")",
+        new String[] { query });
+    try {
+      while (c.moveToNext()) {
+        snippets.put(c.getLong(0), c.getString(1));
+      }
+    } finally {
+      c.close();
+    }
+    
+    List<SearchResult> results = new ArrayList<SearchResult>();
+    for (Long id : page) {
+      results.add(new SearchResult(id, snippets.get(id), scores.get(id)));
+    }
+    return results;
+  }
+  
+  /**
+   * Runs the given job inside a single transaction. Every insert, update and
+   * delete made through the BatchWriter uses a precompiled statement, so large
+   * imports avoid both the per-row commit and the per-row ContentValues of
+   * the create/update/delete methods. If the job throws, the whole batch is
+   * rolled back and the ids set on the written objects are not valid.
+   * @param job The writes to run in the batch
+   * @return The ids of every row inserted by the job, in insertion order
+   */
+  public long[] writeBatch(BatchWriter.Job job) {
+    BatchWriter writer = new BatchWriter(db);
+    // Non-exclusive, so readers on other connections are not locked out
+    db.beginTransactionNonExclusive();
+    try {
+      job.run(writer);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      writer.close();
+    }
+    writer.dispatchChanges(pointListeners);
+    return writer.getInsertedIds();
+  }
+  
+  /**
+   * Retrieves the next page of a Trip's Points in the order they were
+   * visited, starting after the given Point. Pages are found by seeking the
+   * (TripId, Time) index to the last Point of the previous page, so a page
+   * deep into a long trip costs the same as the first. Only the columns
+   * needed to list each Point are read; the rest are read on demand, as for
+   * getPoint().
+   * @param tripId The id of the Trip
+   * @param afterTime The time of the last Point of the previous page, or
+   *                  Long.MIN_VALUE for the first page
+   * @param afterId The id of the last Point of the previous page, or -1 for
+   *                the first page
+   * @param pageSize The maximum number of Points to return
+   * @return The Points of the page. The page is shorter than pageSize only
+   *         if it is the last one.
+   */
+  public List<Point> getPointsPage(long tripId,
+                                   long afterTime,
+                                   long afterId,
+                                   int pageSize) {
+    // Time >= ? bounds the index range; the OR only filters out the points
+    // of the previous page that share its last timestamp.
+    String selection =
+        PointEntry.COLUMN_NAME_TRIP + " = ? AND " +
+        PointEntry.COLUMN_NAME_TIME + " >= ? AND (" +
+          PointEntry.COLUMN_NAME_TIME + " > ? OR " +
+          PointEntry._ID + " > ?)";
+    String[] selectionArgs = { String.valueOf(tripId),
+                               String.valueOf(afterTime),
+                               String.valueOf(afterTime),
+                               String.valueOf(afterId) };
+    Cursor c = query(PointEntry.TABLE_NAME,
+                     POINT_SUMMARY_COLUMNS,
+                     selection,
+                     selectionArgs,
+                     PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID,
+                     String.valueOf(pageSize));
+    List<Point> page = new ArrayList<Point>();
+    try {
+      while (c.moveToNext()) {
+        page.add(readPointSummary(c));
+      }
+    } finally {
+      c.close();
+    }
+    return page;
+  }
+  
+  /**
+   * Loads a Trip together with all of its Points and all of their MediaItems.
+   * The whole graph is read with a fixed number of queries (one each for the
+   * trip, its points and its media) regardless of how many points the trip
+   * has. Points are ordered by the time they were visited. The queries run
+   * in one transaction, so they see the same state of the database even
+   * while another thread writes to it.
+   * @param tripId The id of the Trip to load
+   * @return The fully populated Trip, or null if no Trip has the given id
+   */
+  public Trip loadTripGraph(long tripId) {
+    db.beginTransactionNonExclusive();
+    try {
+      Trip trip = loadTripGraph(new String[] { String.valueOf(tripId) });
+      db.setTransactionSuccessful();
+      return trip;
+    } finally {
+      db.endTransaction();
+    }
+  }
+  
+  /**
+   * Helper method that runs the queries of loadTripGraph(long).
+   * @param tripArgs The selection arguments holding the id of the Trip
+   * @return The fully populated Trip, or null if there is no such Trip
+   */
+  private Trip loadTripGraph(String[] tripArgs) {
+    Trip trip = null;
+    Cursor c = query(TripEntry.TABLE_NAME,
+                     TRIP_COLUMNS,
+                     TripEntry._ID + " = ?",
+                     tripArgs,
+                     null);
+    try {
+      if (c.moveToFirst()) {
+        trip = readTrip(c, new ArrayList<Point>());
+      }
+    } finally {
+      c.close();
+    }
+    if (trip == null) {
+      return null;
+    }
+    
+    // Index the points by id so the media can be attached in a single pass
+    Map<Long, Point> pointsById = new HashMap<Long, Point>();
+    c = query(PointEntry.TABLE_NAME,
+              POINT_COLUMNS,
+              PointEntry.COLUMN_NAME_TRIP + " = ?",
+              tripArgs,
+              PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID);
+    try {
+      while (c.moveToNext()) {
+        Point point = readPoint(c, new ArrayList<MediaItem>());
+        trip.getPoints().add(point);
+        pointsById.put(point.getId(), point);
+      }
+    } finally {
+      c.close();
+    }
+    if (pointsById.isEmpty()) {
+      return trip;
+    }
+    
+    c = rawQuery(MEDIA_BY_TRIP_QUERY, tripArgs);
+    try {
+      while (c.moveToNext()) {
+        MediaItem item = readMedia(c);
+        // Media of a point the points query didn't see are skipped
+        Point point = pointsById.get(item.getPointId());
+        if (point != null) {
+          point.AddMediaItem(item);
+        }
+      }
+    } finally {
+      c.close();
+    }
+    return trip;
+  }
+  
+  /**
+   * Reads the columns of a LazyPoint that are loaded on demand. If the point
+   * has been deleted they are left unset.
+   * @param point The point to fill in
+   */
+  void loadPointDetail(LazyPoint point) {
+    Cursor c = query(PointEntry.TABLE_NAME,
+                     POINT_DETAIL_COLUMNS,
+                     PointEntry._ID + " = ?",
+                     new String[] { String.valueOf(point.getId()) },
+                     null);
+    try {
+      if (c.moveToFirst()) {
+        point.setDetail(c.getDouble(0), c.getString(1), c.getString(2));
+      }
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Reads the oldest paths from the queue of media files waiting to be
+   * removed.
+   * @param limit The maximum number of paths to read
+   * @param paths Receives the paths, in the order they were queued
+   * @return The id of the last entry read, to pass to clearMediaSweep(), or
+   *         -1 if the queue is empty
+   */
+  long readMediaSweep(int limit, List<String> paths) {
+    Cursor c = query(MediaSweepEntry.TABLE_NAME,
+                     new String[] { MediaSweepEntry._ID,
+                                    MediaSweepEntry.COLUMN_NAME_PATH },
+                     null,
+                     null,
+                     MediaSweepEntry._ID,
+                     String.valueOf(limit));
+    long lastId = -1;
+    try {
+      while (c.moveToNext()) {
+        lastId = c.getLong(0);
+        paths.add(c.getString(1));
+      }
+    } finally {
+      c.close();
+    }
+    return lastId;
+  }
+  
+  /**
+   * Removes entries from the queue of media files waiting to be removed.
+   * @param lastId The id of the last entry to remove. Every entry queued
+   *               before it is removed too.
+   */
+  void clearMediaSweep(long lastId) {
+    db.delete(MediaSweepEntry.TABLE_NAME,
+              MediaSweepEntry._ID + " <= ?",
+              new String[] { String.valueOf(lastId) });
+  }
+  
+  /**
+   * Retrieves MediaItems whose files have not been moved into the BlobStore,
+   * in id order.
+   * @param afterId Only items with a greater id are returned
+   * @param limit The maximum number of items to return
+   * @return The MediaItems
+   */
+  List<MediaItem> getUnstoredMedia(long afterId, int limit) {
+    Cursor c = query(MediaEntry.TABLE_NAME,
+                     MEDIA_COLUMNS,
+                     MediaEntry.COLUMN_NAME_BLOB + " IS NULL AND " +
+                       MediaEntry.COLUMN_NAME_PATH + " IS NOT NULL AND " +
+                       MediaEntry._ID + " > ?",
+                     new String[] { String.valueOf(afterId) },
+                     MediaEntry._ID,
+                     String.valueOf(limit));
+    List<MediaItem> items = new ArrayList<MediaItem>();
+    try {
+      while (c.moveToNext()) {
+        items.add(readMedia(c));
+      }
+    } finally {
+      c.close();
+    }
+    return items;
+  }
+  
+  /**
+   * Points every MediaItem that uses a file outside the BlobStore at the
+   * stored copy of that file, adding the blob if it is not yet known. Once
+   * the change has committed the database's MediaMoveListeners are told
+   * which items moved, so the old file can be deleted after this returns.
+   * @param path The path the items use now
+   * @param hash The hash of the file's contents
+   * @param size The size of the file in bytes
+   * @param blobPath The path of the stored copy
+   * @return The number of items changed
+   */
+  int attachBlob(String path, String hash, long size, String blobPath) {
+    List<MediaItem> moved = new ArrayList<MediaItem>();
+    db.beginTransactionNonExclusive();
+    try {
+      db.execSQL("INSERT OR IGNORE INTO " + BlobEntry.TABLE_NAME + "(" +
+                   BlobEntry.COLUMN_NAME_HASH + "," +
+                   BlobEntry.COLUMN_NAME_SIZE + ") VALUES (?,?)",
+                 new Object[] { hash, size });
+      long blobId;
+      Cursor c = query(BlobEntry.TABLE_NAME,
+                       new String[] { BlobEntry._ID },
+                       BlobEntry.COLUMN_NAME_HASH + " = ?",
+                       new String[] { hash },
+                       null);
+      try {
+        c.moveToFirst();
+        blobId = c.getLong(0);
+      } finally {
+        c.close();
+      }
+      
+      // Read the items first, since the update can't report which rows
+      // it changed
+      String selection = MediaEntry.COLUMN_NAME_PATH + " = ? AND " +
+                         MediaEntry.COLUMN_NAME_BLOB + " IS NULL";
+      String[] selectionArgs = { path };
+      c = query(MediaEntry.TABLE_NAME,
+                MEDIA_COLUMNS,
+                selection,
+                selectionArgs,
+                null);
+      try {
+        while (c.moveToNext()) {
+          MediaItem item = readMedia(c);
+          moved.add(new MediaItem(item.getId(),
+                                  item.getPointId(),
+                                  blobPath,
+                                  item.getCaption()));
+        }
+      } finally {
+        c.close();
+      }
+      
+      ContentValues mediaValues = new ContentValues();
+      mediaValues.put(MediaEntry.COLUMN_NAME_BLOB, blobId);
+      mediaValues.put(MediaEntry.COLUMN_NAME_PATH, blobPath);
+      db.update(MediaEntry.TABLE_NAME, mediaValues, selection, selectionArgs);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    if (!moved.isEmpty()) {
+      openHelper.notifyMediaMoved(moved);
+    }
+    return moved.size();
+  }
+  
+  /**
+   * Deletes the rows of blobs that no MediaItem uses any more, oldest first.
+   * The caller is responsible for deleting their files.
+   * @param limit The maximum number of blobs to delete
+   * @return The hashes of the deleted blobs
+   */
+  List<String> removeUnreferencedBlobs(int limit) {
+    List<String> hashes = new ArrayList<String>();
+    db.beginTransactionNonExclusive();
+    try {
+      Cursor c = query(BlobEntry.TABLE_NAME,
+                       new String[] { BlobEntry._ID,
+                                      BlobEntry.COLUMN_NAME_HASH },
+                       BlobEntry.COLUMN_NAME_REF_COUNT + " <= 0",
+                       null,
+                       BlobEntry._ID,
+                       String.valueOf(limit));
+      long lastId = -1;
+      try {
+        while (c.moveToNext()) {
+          lastId = c.getLong(0);
+          hashes.add(c.getString(1));
+        }
+      } finally {
+        c.close();
+      }
+      // Nothing can take a reference while the transaction holds the lock
+      db.delete(BlobEntry.TABLE_NAME,
+                BlobEntry.COLUMN_NAME_REF_COUNT + " <= 0 AND " +
+                  BlobEntry._ID + " <= ?",
+                new String[] { String.valueOf(lastId) });
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return hashes;
+  }
+  
+  /**
+   * Helper method that runs a query against the database.
+   * @param table The table to query
+   * @param columns The columns to return
+   * @param selection The WHERE clause, without the WHERE keyword
+   * @param selectionArgs Values bound to the ?s in the selection
+   * @param orderBy The ORDER BY clause, without the ORDER BY keywords
+   * @return A cursor positioned before the first row
+   */
+  private Cursor query(String table,
+                       String[] columns,
+                       String selection,
+                       String[] selectionArgs,
+                       String orderBy) {
+    return query(table, columns, selection, selectionArgs, orderBy, null);
+  }
+  
+  /**
+   * Runs a query against the database. Every query the DAO issues goes
+   * through this method or rawQuery(), so subclasses such as
+   * InstrumentedMapJournalDAO can override them to observe each query.
+   * @param table The table to query
+   * @param columns The columns to return
+   * @param selection The WHERE clause, without the WHERE keyword
+   * @param selectionArgs Values bound to the ?s in the selection
+   * @param orderBy The ORDER BY clause, without the ORDER BY keywords
+   * @param limit The LIMIT clause, without the LIMIT keyword, or null
+   * @return A cursor positioned before the first row
+   */
+  Cursor query(String table,
+               String[] columns,
+               String selection,
+               String[] selectionArgs,
+               String orderBy,
+               String limit) {
+    return db.query(table,
+                    columns,
+                    selection,
+                    selectionArgs,
+                    null,
+                    null,
+                    orderBy,
+                    limit);
+  }
+  
+  /**
+   * Runs a raw SQL query against the database.
+   * @param sql The SQL query
+   * @param selectionArgs Values bound to the ?s in the query
+   * @return A cursor positioned before the first row
+   */
+  Cursor rawQuery(String sql, String[] selectionArgs) {
+    return db.rawQuery(sql, selectionArgs);
+  }
+  
+  /**
+   * Get the helper this DAO opens the database through.
+   * @return the helper
+   */
+  MapJournalDbHelper getOpenHelper() {
+    return openHelper;
+  }
+  
+  /**
+   * Get the open database, for subclasses that run their own statements.
+   * @return the database, or null if the DAO is not open
+   */
+  SQLiteDatabase getDatabase() {
+    return db;
+  }
+  
+  /**
+   * Helper method to add the terms for one bounding box to the selection of
+   * getPointsInBounds. The box must not cross the antimeridian.
+   * @param hashClause OR-ed geohash range terms, appended to
+   * @param hashArgs Arguments of the geohash terms, appended to
+   * @param lngClause OR-ed longitude range terms, appended to
+   * @param lngArgs Arguments of the longitude terms, appended to
+   */
+  private void appendBoundsClauses(StringBuilder hashClause,
+                                   List<String> hashArgs,
+                                   StringBuilder lngClause,
+                                   List<String> lngArgs,
+                                   double minLat,
+                                   double minLng,
+                                   double maxLat,
+                                   double maxLng) {
+    long[] ranges = GeoHash.coveringRanges(minLat, minLng, maxLat, maxLng,
+                                           MAX_GEOHASH_RANGES);
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (hashClause.length() > 0) {
+        hashClause.append(" OR ");
+      }
+      hashClause.append(PointEntry.COLUMN_NAME_GEOHASH)
+                .append(" BETWEEN ? AND ?");
+      hashArgs.add(String.valueOf(ranges[i]));
+      hashArgs.add(String.valueOf(ranges[i + 1]));
+    }
+    
+    if (lngClause.length() > 0) {
+      lngClause.append(" OR ");
+    }
+    lngClause.append(PointEntry.COLUMN_NAME_LONGITUDE)
+             .append(" BETWEEN ? AND ?");
+    lngArgs.add(String.valueOf(minLng));
+    lngArgs.add(String.valueOf(maxLng));
+  }
+  
+  /**
+   * Helper method to score a search match from its FTS matchinfo 'pcx' blob.
+   * Each column adds its weight times the share of all hits of each phrase
+   * that fall in this row.
+   * @param matchinfo The matchinfo blob: phrase count, column count, then
+   *                  three ints per phrase and column
+   * @return The relevance score of the match
+   */
+  private static double rank(byte[] matchinfo) {
+    IntBuffer info = ByteBuffer.wrap(matchinfo)
+                               .order(ByteOrder.nativeOrder())
+                               .asIntBuffer();
+    int phrases = info.get(0);
+    int columns = info.get(1);
+    double score = 0;
+    for (int p = 0; p < phrases; p++) {
+      for (int col = 0; col < columns; col++) {
+        int base = 2 + 3 * (p * columns + col);
+        int hitsInRow = info.get(base);
+        int hitsInAllRows = info.get(base + 1);
+        if (hitsInRow > 0) {
+          score += SEARCH_WEIGHTS[col] * hitsInRow / (double) hitsInAllRows;
+        }
+      }
+    }
+    return score;
+  }
+  
+  /**
+   * Helper method to read the Point at the cursor's current row.
+   * @param c A cursor over the columns in POINT_COLUMNS
+   * @param media The list of MediaItems for the point, or null if the media
+   *              is not loaded
+   * @return A Point containing the data in the current row
+   */
+  private Point readPoint(Cursor c, List<MediaItem> media) {
+    return new Point(
+      c.getLong(c.getColumnIndexOrThrow(PointEntry._ID)),
+      c.getString(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TITLE)),
+      c.getLong(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TRIP)),
+      c.getDouble(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_LATITUDE)),
+      c.getDouble(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_LONGITUDE)),
+      c.getDouble(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_ALTITUDE)),
+      c.getInt(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TIME)),
+      c.getString(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_ADDRESS)),
+      c.getString(c.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_JOURNAL)),
+      media);
+  }
+  
+  /**
+   * Helper method to read the LazyPoint at the cursor's current row.
+   * @param c A cursor over the columns in POINT_SUMMARY_COLUMNS
+   * @return A LazyPoint containing the data in the current row
+   */
+  private Point readPointSummary(Cursor c) {
+    return new LazyPoint(this,
+                         c.getLong(0),
+                         c.getString(1),
+                         c.getLong(2),
+                         c.getDouble(3),
+                         c.getDouble(4),
+                         c.getInt(5));
+  }
+  
+  /**
+   * Helper method to read the MediaItem at the cursor's current row.
+   * @param c A cursor over the columns in MEDIA_COLUMNS
+   * @return A MediaItem containing the data in the current row
+   */
+  private MediaItem readMedia(Cursor c) {
+    return new MediaItem(
+      c.getLong(c.getColumnIndexOrThrow(MediaEntry._ID)),
+      c.getLong(c.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_POINT_ID)),
+      c.getString(c.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_PATH)),
+      c.getString(c.getColumnIndexOrThrow(MediaEntry.COLUMN_NAME_CAPTION)));
+  }
+  
+  /**
+   * Helper method that compares the position of a media row's point, in the
+   * order the points of a trip are read, with a point that was read.
+   * @param time The time of the row's point
+   * @param pointId The id of the row's point
+   * @param point The point that was read
+   * @return true if the row's point comes before point
+   */
+  private static boolean comesBefore(long time, long pointId, Point point) {
+    return time < point.getTime()
+        || (time == point.getTime() && pointId < point.getId());
+  }
+  
+  /**
+   * Helper method to read the Trip at the cursor's current row.
+   * @param c A cursor over the columns in TRIP_COLUMNS
+   * @param points The list of Points in the trip, or null if the points are
+   *               not loaded
+   * @return A Trip containing the data in the current row
+   */
+  private Trip readTrip(Cursor c, List<Point> points) {
+    return new Trip(
+      c.getLong(c.getColumnIndexOrThrow(TripEntry._ID)),
+      c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_NAME)),
+      c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_DESC)),
+      points);
+  }
+  
+  /**
+   * Helper method to read the Trip at the cursor's current row as a
+   * LazyTrip.
+   * @param c A cursor over the columns in TRIP_COLUMNS
+   * @return A LazyTrip containing the data in the current row
+   */
+  private Trip readLazyTrip(Cursor c) {
+    return new LazyTrip(
+      this,
+      c.getLong(c.getColumnIndexOrThrow(TripEntry._ID)),
+      c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_NAME)),
+      c.getString(c.getColumnIndexOrThrow(TripEntry.COLUMN_NAME_DESC)));
+  }
+  
+  /**
+   * Helper method to read the Trip and statistics at the cursor's current
+   * row.
+   * @param c A cursor over the columns in TRIP_STATS_QUERY
+   * @return The statistics in the current row, with their Trip
+   */
+  private TripStats readTripStats(Cursor c) {
+    // Null columns, for a Trip without a statistics row, read as zero
+    return new TripStats(readLazyTrip(c),
+                         c.getInt(3),
+                         c.getInt(4),
+                         c.getDouble(5),
+                         c.getDouble(6),
+                         c.getInt(7),
+                         c.getInt(8),
+                         c.getDouble(9),
+                         c.getDouble(10),
+                         c.getDouble(11),
+                         c.getDouble(12));
   }
   
   /**
@@ -368,6 +1531,8 @@ public class MapJournalDAO {
     values.put(PointEntry.COLUMN_NAME_TIME, point.getTime());
     values.put(PointEntry.COLUMN_NAME_ADDRESS, point.getAddress());
     values.put(PointEntry.COLUMN_NAME_JOURNAL, point.getJournal());
+    values.put(PointEntry.COLUMN_NAME_GEOHASH,
+               GeoHash.encode(point.getLatitude(), point.getLongitude()));
   }
   
   /**
@@ -13,7 +13,7 @@
 --  limitations under the License.
  
 
--- MapJournal Database Schemas v1.0
+-- MapJournal Database Schemas v8
 
 CREATE TABLE MapJournalTrips (
 	_ID INTEGER PRIMARY KEY,
@@ -22,7 +22,7 @@ CREATE TABLE MapJournalTrips (
 )
 
 
-CREATE TABLE MapJournalPoints (
+CREATE TABLE MapJournalPoint (
 	_ID INTEGER PRIMARY KEY,
 	Title TEXT,
 	TripId INTEGER,
@@ -32,13 +32,68 @@ CREATE TABLE MapJournalPoints (
 	Time INTEGER,
 	Address TEXT,
 	Journal TEXT,
-	FOREIGN KEY (Trip) REFERENCES MapJournalTrips(_ID)
+	Geohash INTEGER,
+	FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_ID) ON DELETE CASCADE
 )
 
+CREATE INDEX MapJournalPointGeohashIndex ON MapJournalPoint (Geohash)
+CREATE INDEX MapJournalPointTripTimeIndex ON MapJournalPoint (TripId, Time)
+
 CREATE TABLE MapJournalMedia (
 	_ID INTEGER PRIMARY KEY,
 	PointId INTEGER,
 	Caption TEXT,
-	Filepath TEXT,
-	FOREIGN KEY (PointId) REFERENCES MapJournalPoints(_ID)
+	Path TEXT,
+	BlobId INTEGER REFERENCES MapJournalBlob(_ID),
+	FOREIGN KEY (PointId) REFERENCES MapJournalPoint(_ID) ON DELETE CASCADE
+)
+
+CREATE INDEX MapJournalMediaPointIndex ON MapJournalMedia (PointId)
+
+CREATE TABLE MapJournalTrack (
+	_ID INTEGER PRIMARY KEY,
+	TripId INTEGER,
+	StartTime INTEGER,
+	EndTime INTEGER,
+	FixCount INTEGER,
+	Data BLOB,
+	FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_ID) ON DELETE CASCADE
+)
+
+CREATE INDEX MapJournalTrackTripTimeIndex ON MapJournalTrack (TripId, StartTime)
+
+CREATE TABLE MapJournalTripStats (
+	TripId INTEGER PRIMARY KEY,
+	PointCount INTEGER,
+	MediaCount INTEGER,
+	Distance REAL,
+	ElevationGain REAL,
+	StartTime INTEGER,
+	EndTime INTEGER,
+	MinLatitude REAL,
+	MinLongitude REAL,
+	MaxLatitude REAL,
+	MaxLongitude REAL,
+	FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_ID) ON DELETE CASCADE
+)
+
+CREATE TABLE MapJournalBlob (
+	_ID INTEGER PRIMARY KEY,
+	Hash TEXT NOT NULL UNIQUE,
+	Size INTEGER,
+	RefCount INTEGER NOT NULL DEFAULT 0
+)
+
+CREATE INDEX MapJournalBlobRefCountIndex ON MapJournalBlob (RefCount)
+
+CREATE TABLE MapJournalMediaSweep (
+	_ID INTEGER PRIMARY KEY,
+	Path TEXT
+)
+
+CREATE VIRTUAL TABLE MapJournalSearch USING fts4(
+	Title,
+	Address,
+	Journal,
+	Captions
 )
@@ -36,6 +36,10 @@ public class MapJournalDbContract {
     public static final String COLUMN_NAME_TIME = "Time";
     public static final String COLUMN_NAME_ADDRESS = "Address";
     public static final String COLUMN_NAME_JOURNAL = "Journal";
+    public static final String COLUMN_NAME_GEOHASH = "Geohash";
+    
+    public static final String INDEX_GEOHASH = "MapJournalPointGeohashIndex";
+    public static final String INDEX_TRIP_TIME = "MapJournalPointTripTimeIndex";
   }
   
   public static abstract class MediaEntry implements BaseColumns {
@@ -43,6 +47,75 @@ public class MapJournalDbContract {
     public static final String COLUMN_NAME_POINT_ID = "PointId";
     public static final String COLUMN_NAME_CAPTION = "Caption";
     public static final String COLUMN_NAME_PATH = "Path";
+    public static final String COLUMN_NAME_BLOB = "BlobId";
+    
+    public static final String INDEX_POINT = "MapJournalMediaPointIndex";
+  }
+  
+  /**
+   * Media files stored once per distinct content by BlobStore, named by the
+   * SHA-256 hash of their bytes. RefCount is the number of media rows using
+   * the file, kept up to date by triggers.
+   */
+  public static abstract class BlobEntry implements BaseColumns {
+    public static final String TABLE_NAME = "MapJournalBlob";
+    public static final String COLUMN_NAME_HASH = "Hash";
+    public static final String COLUMN_NAME_SIZE = "Size";
+    public static final String COLUMN_NAME_REF_COUNT = "RefCount";
+    
+    public static final String INDEX_REF_COUNT = "MapJournalBlobRefCountIndex";
+  }
+  
+  public static abstract class TrackEntry implements BaseColumns {
+    public static final String TABLE_NAME = "MapJournalTrack";
+    public static final String COLUMN_NAME_TRIP = "TripId";
+    public static final String COLUMN_NAME_START_TIME = "StartTime";
+    public static final String COLUMN_NAME_END_TIME = "EndTime";
+    public static final String COLUMN_NAME_COUNT = "FixCount";
+    public static final String COLUMN_NAME_DATA = "Data";
+    
+    public static final String INDEX_TRIP_TIME = "MapJournalTrackTripTimeIndex";
+  }
+  
+  /**
+   * Paths of media files whose rows have been deleted, waiting for the files
+   * to be removed by MediaSweeper. Rows are added by a trigger for media not
+   * stored in the BlobStore.
+   */
+  public static abstract class MediaSweepEntry implements BaseColumns {
+    public static final String TABLE_NAME = "MapJournalMediaSweep";
+    public static final String COLUMN_NAME_PATH = "Path";
+  }
+  
+  /**
+   * Summary statistics of each trip, kept up to date as its points and media
+   * change. The TripId of a row is also its primary key.
+   */
+  public static abstract class TripStatsEntry {
+    public static final String TABLE_NAME = "MapJournalTripStats";
+    public static final String COLUMN_NAME_TRIP = "TripId";
+    public static final String COLUMN_NAME_POINT_COUNT = "PointCount";
+    public static final String COLUMN_NAME_MEDIA_COUNT = "MediaCount";
+    public static final String COLUMN_NAME_DISTANCE = "Distance";
+    public static final String COLUMN_NAME_ELEVATION_GAIN = "ElevationGain";
+    public static final String COLUMN_NAME_START_TIME = "StartTime";
+    public static final String COLUMN_NAME_END_TIME = "EndTime";
+    public static final String COLUMN_NAME_MIN_LATITUDE = "MinLatitude";
+    public static final String COLUMN_NAME_MIN_LONGITUDE = "MinLongitude";
+    public static final String COLUMN_NAME_MAX_LATITUDE = "MaxLatitude";
+    public static final String COLUMN_NAME_MAX_LONGITUDE = "MaxLongitude";
+  }
+  
+  /**
+   * Full-text search table over the text of each point. The docid of a row is
+   * the id of its point.
+   */
+  public static abstract class SearchEntry {
+    public static final String TABLE_NAME = "MapJournalSearch";
+    public static final String COLUMN_NAME_TITLE = "Title";
+    public static final String COLUMN_NAME_ADDRESS = "Address";
+    public static final String COLUMN_NAME_JOURNAL = "Journal";
+    public static final String COLUMN_NAME_CAPTIONS = "Captions";
   }
  
 }
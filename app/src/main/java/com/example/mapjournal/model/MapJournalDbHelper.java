@@ -15,27 +15,43 @@
 
 package com.example.mapjournal.model;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.example.mapjournal.model.MapJournalDbContract.BlobEntry;
 import com.example.mapjournal.model.MapJournalDbContract.MediaEntry;
+import com.example.mapjournal.model.MapJournalDbContract.MediaSweepEntry;
 import com.example.mapjournal.model.MapJournalDbContract.PointEntry;
+import com.example.mapjournal.model.MapJournalDbContract.SearchEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TrackEntry;
 import com.example.mapjournal.model.MapJournalDbContract.TripEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TripStatsEntry;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 public class MapJournalDbHelper extends SQLiteOpenHelper {
   
   private static MapJournalDbHelper instance;
   
-  private static final int DATABASE_VERSION = 1;
+  private int openCount;    // Number of callers holding the database open
+  private final List<MediaMoveListener> mediaMoveListeners =
+      new CopyOnWriteArrayList<MediaMoveListener>();
+  
   private static final String DATABASE_NAME = "MapJournal.db";
   
   private static final String ENABLE_FOREIGN_KEYS = "PRAGMA foreign_keys = ON;";
   
+  // Deleting a row deletes every row that refers to it, so a trip is removed
+  // with its points, media, tracks and statistics by a single statement
+  private static final String CASCADE = " ON DELETE CASCADE";
+  
   private static final String CREATE_TABLE_TRIP =
       "CREATE TABLE " + TripEntry.TABLE_NAME + "(" +
       TripEntry._ID + " INTEGER PRIMARY KEY" + "," +
-      TripEntry._COUNT + "INTEGER" + "," +
       TripEntry.COLUMN_NAME_NAME + " TEXT" + "," +
       TripEntry.COLUMN_NAME_DESC + " TEXT" + 
       ")";
@@ -43,7 +59,6 @@ public class MapJournalDbHelper extends SQLiteOpenHelper {
   private static final String CREATE_TABLE_POINT = 
       "CREATE TABLE " + PointEntry.TABLE_NAME + "(" + 
       PointEntry._ID + " INTEGER PRIMARY KEY" + "," +
-      PointEntry._COUNT + "INTEGER" + "," +
       PointEntry.COLUMN_NAME_TRIP + " INTEGER" + "," +
       PointEntry.COLUMN_NAME_TITLE + " TEXT" + "," +
       PointEntry.COLUMN_NAME_LATITUDE + " REAL" + "," +
@@ -52,28 +67,293 @@ public class MapJournalDbHelper extends SQLiteOpenHelper {
       PointEntry.COLUMN_NAME_TIME + " INTEGER" + "," +
       PointEntry.COLUMN_NAME_ADDRESS + " TEXT" + "," +
       PointEntry.COLUMN_NAME_JOURNAL + " TEXT" + "," +
+      PointEntry.COLUMN_NAME_GEOHASH + " INTEGER" + "," +
       "FOREIGN KEY (" + PointEntry.COLUMN_NAME_TRIP + ") REFERENCES " + 
-        TripEntry.TABLE_NAME + "(" + TripEntry._ID + ")" +
+        TripEntry.TABLE_NAME + "(" + TripEntry._ID + ")" + CASCADE +
       ")";
   
   private static final String CREATE_TABLE_MEDIA = 
       "CREATE TABLE " + MediaEntry.TABLE_NAME + "(" +
       MediaEntry._ID + " INTEGER PRIMARY KEY" + "," +
-      MediaEntry._COUNT + "INTEGER" + "," +
       MediaEntry.COLUMN_NAME_POINT_ID + " INTEGER" + "," +
       MediaEntry.COLUMN_NAME_CAPTION + " TEXT" + "," +
       MediaEntry.COLUMN_NAME_PATH + " TEXT" + "," +
+      MediaEntry.COLUMN_NAME_BLOB + " INTEGER REFERENCES " +
+        BlobEntry.TABLE_NAME + "(" + BlobEntry._ID + ")" + "," +
       "FOREIGN KEY (" + MediaEntry.COLUMN_NAME_POINT_ID + ") REFERENCES " +
-        PointEntry.TABLE_NAME + "(" + PointEntry._ID + ")" +
+        PointEntry.TABLE_NAME + "(" + PointEntry._ID + ")" + CASCADE +
+      ")";
+  
+  private static final String CREATE_TABLE_BLOB =
+      "CREATE TABLE " + BlobEntry.TABLE_NAME + "(" +
+      BlobEntry._ID + " INTEGER PRIMARY KEY" + "," +
+      BlobEntry.COLUMN_NAME_HASH + " TEXT NOT NULL UNIQUE" + "," +
+      BlobEntry.COLUMN_NAME_SIZE + " INTEGER" + "," +
+      BlobEntry.COLUMN_NAME_REF_COUNT + " INTEGER NOT NULL DEFAULT 0" +
       ")";
   
+  private static final String CREATE_INDEX_BLOB_REF_COUNT =
+      "CREATE INDEX " + BlobEntry.INDEX_REF_COUNT + " ON " +
+      BlobEntry.TABLE_NAME + "(" + BlobEntry.COLUMN_NAME_REF_COUNT + ")";
+  
+  // Triggers that count the media rows using each blob, including rows
+  // deleted by a cascade
+  private static final String[] CREATE_BLOB_TRIGGERS = {
+      "CREATE TRIGGER MapJournalBlobMediaInsert" +
+      " AFTER INSERT ON " + MediaEntry.TABLE_NAME +
+      " WHEN new." + MediaEntry.COLUMN_NAME_BLOB + " IS NOT NULL BEGIN" +
+        addReference("new", 1) +
+      " END",
+      
+      "CREATE TRIGGER MapJournalBlobMediaUpdate" +
+      " AFTER UPDATE OF " + MediaEntry.COLUMN_NAME_BLOB +
+      " ON " + MediaEntry.TABLE_NAME +
+      " WHEN old." + MediaEntry.COLUMN_NAME_BLOB +
+        " IS NOT new." + MediaEntry.COLUMN_NAME_BLOB + " BEGIN" +
+        addReference("old", -1) +
+        addReference("new", 1) +
+      " END",
+      
+      "CREATE TRIGGER MapJournalBlobMediaDelete" +
+      " AFTER DELETE ON " + MediaEntry.TABLE_NAME +
+      " WHEN old." + MediaEntry.COLUMN_NAME_BLOB + " IS NOT NULL BEGIN" +
+        addReference("old", -1) +
+      " END"
+  };
+  
+  private static final String CREATE_TABLE_TRACK =
+      "CREATE TABLE " + TrackEntry.TABLE_NAME + "(" +
+      TrackEntry._ID + " INTEGER PRIMARY KEY" + "," +
+      TrackEntry.COLUMN_NAME_TRIP + " INTEGER" + "," +
+      TrackEntry.COLUMN_NAME_START_TIME + " INTEGER" + "," +
+      TrackEntry.COLUMN_NAME_END_TIME + " INTEGER" + "," +
+      TrackEntry.COLUMN_NAME_COUNT + " INTEGER" + "," +
+      TrackEntry.COLUMN_NAME_DATA + " BLOB" + "," +
+      "FOREIGN KEY (" + TrackEntry.COLUMN_NAME_TRIP + ") REFERENCES " +
+        TripEntry.TABLE_NAME + "(" + TripEntry._ID + ")" + CASCADE +
+      ")";
+  
+  private static final String CREATE_TABLE_TRIP_STATS =
+      "CREATE TABLE " + TripStatsEntry.TABLE_NAME + "(" +
+      TripStatsEntry.COLUMN_NAME_TRIP + " INTEGER PRIMARY KEY" + "," +
+      TripStatsEntry.COLUMN_NAME_POINT_COUNT + " INTEGER" + "," +
+      TripStatsEntry.COLUMN_NAME_MEDIA_COUNT + " INTEGER" + "," +
+      TripStatsEntry.COLUMN_NAME_DISTANCE + " REAL" + "," +
+      TripStatsEntry.COLUMN_NAME_ELEVATION_GAIN + " REAL" + "," +
+      TripStatsEntry.COLUMN_NAME_START_TIME + " INTEGER" + "," +
+      TripStatsEntry.COLUMN_NAME_END_TIME + " INTEGER" + "," +
+      TripStatsEntry.COLUMN_NAME_MIN_LATITUDE + " REAL" + "," +
+      TripStatsEntry.COLUMN_NAME_MIN_LONGITUDE + " REAL" + "," +
+      TripStatsEntry.COLUMN_NAME_MAX_LATITUDE + " REAL" + "," +
+      TripStatsEntry.COLUMN_NAME_MAX_LONGITUDE + " REAL" + "," +
+      "FOREIGN KEY (" + TripStatsEntry.COLUMN_NAME_TRIP + ") REFERENCES " +
+        TripEntry.TABLE_NAME + "(" + TripEntry._ID + ")" + CASCADE +
+      ")";
+  
+  private static final String CREATE_TABLE_MEDIA_SWEEP =
+      "CREATE TABLE " + MediaSweepEntry.TABLE_NAME + "(" +
+      MediaSweepEntry._ID + " INTEGER PRIMARY KEY" + "," +
+      MediaSweepEntry.COLUMN_NAME_PATH + " TEXT" +
+      ")";
+  
+  // Queues the file of every deleted MediaItem, including those deleted by a
+  // cascade, for MediaSweeper to remove outside the transaction. Files in the
+  // BlobStore may be shared, so they are left to its collector instead.
+  private static final String CREATE_MEDIA_SWEEP_TRIGGER =
+      "CREATE TRIGGER MapJournalMediaSweepDelete" +
+      " AFTER DELETE ON " + MediaEntry.TABLE_NAME +
+      " WHEN old." + MediaEntry.COLUMN_NAME_PATH + " IS NOT NULL AND" +
+        " old." + MediaEntry.COLUMN_NAME_BLOB + " IS NULL BEGIN" +
+        " INSERT INTO " + MediaSweepEntry.TABLE_NAME + "(" +
+          MediaSweepEntry.COLUMN_NAME_PATH + ")" +
+        " VALUES (old." + MediaEntry.COLUMN_NAME_PATH + ");" +
+      " END";
+  
+  private static final String CREATE_INDEX_TRACK_TRIP_TIME =
+      "CREATE INDEX " + TrackEntry.INDEX_TRIP_TIME + " ON " +
+      TrackEntry.TABLE_NAME + "(" +
+        TrackEntry.COLUMN_NAME_TRIP + "," +
+        TrackEntry.COLUMN_NAME_START_TIME + ")";
+  
+  private static final String CREATE_INDEX_POINT_GEOHASH =
+      "CREATE INDEX " + PointEntry.INDEX_GEOHASH + " ON " +
+      PointEntry.TABLE_NAME + "(" + PointEntry.COLUMN_NAME_GEOHASH + ")";
+  
+  private static final String CREATE_INDEX_POINT_TRIP_TIME =
+      "CREATE INDEX " + PointEntry.INDEX_TRIP_TIME + " ON " +
+      PointEntry.TABLE_NAME + "(" + 
+        PointEntry.COLUMN_NAME_TRIP + "," +
+        PointEntry.COLUMN_NAME_TIME + ")";
+  
+  private static final String CREATE_INDEX_MEDIA_POINT =
+      "CREATE INDEX " + MediaEntry.INDEX_POINT + " ON " +
+      MediaEntry.TABLE_NAME + "(" + MediaEntry.COLUMN_NAME_POINT_ID + ")";
+  
+  private static final String CREATE_TABLE_SEARCH =
+      "CREATE VIRTUAL TABLE " + SearchEntry.TABLE_NAME + " USING fts4(" +
+      SearchEntry.COLUMN_NAME_TITLE + "," +
+      SearchEntry.COLUMN_NAME_ADDRESS + "," +
+      SearchEntry.COLUMN_NAME_JOURNAL + "," +
+      SearchEntry.COLUMN_NAME_CAPTIONS +
+      ")";
+  
+  // Triggers that keep the search table in sync with the point and media
+  // tables. The search row of a point shares the point's id.
+  private static final String[] CREATE_SEARCH_TRIGGERS = {
+      "CREATE TRIGGER MapJournalSearchPointInsert" +
+      " AFTER INSERT ON " + PointEntry.TABLE_NAME + " BEGIN" +
+        " INSERT INTO " + SearchEntry.TABLE_NAME + "(" +
+          "docid," +
+          SearchEntry.COLUMN_NAME_TITLE + "," +
+          SearchEntry.COLUMN_NAME_ADDRESS + "," +
+          SearchEntry.COLUMN_NAME_JOURNAL + ")" +
+        " VALUES (" +
+          "new." + PointEntry._ID + "," +
+          "new." + PointEntry.COLUMN_NAME_TITLE + "," +
+          "new." + PointEntry.COLUMN_NAME_ADDRESS + "," +
+          "new." + PointEntry.COLUMN_NAME_JOURNAL + ");" +
+      " END",
+      
+      "CREATE TRIGGER MapJournalSearchPointUpdate" +
+      " AFTER UPDATE OF " +
+        PointEntry.COLUMN_NAME_TITLE + "," +
+        PointEntry.COLUMN_NAME_ADDRESS + "," +
+        PointEntry.COLUMN_NAME_JOURNAL +
+      " ON " + PointEntry.TABLE_NAME + " BEGIN" +
+        " UPDATE " + SearchEntry.TABLE_NAME + " SET " +
+          SearchEntry.COLUMN_NAME_TITLE + " = new." +
+            PointEntry.COLUMN_NAME_TITLE + "," +
+          SearchEntry.COLUMN_NAME_ADDRESS + " = new." +
+            PointEntry.COLUMN_NAME_ADDRESS + "," +
+          SearchEntry.COLUMN_NAME_JOURNAL + " = new." +
+            PointEntry.COLUMN_NAME_JOURNAL +
+        " WHERE docid = new." + PointEntry._ID + ";" +
+      " END",
+      
+      "CREATE TRIGGER MapJournalSearchPointDelete" +
+      " AFTER DELETE ON " + PointEntry.TABLE_NAME + " BEGIN" +
+        " DELETE FROM " + SearchEntry.TABLE_NAME +
+        " WHERE docid = old." + PointEntry._ID + ";" +
+      " END",
+      
+      "CREATE TRIGGER MapJournalSearchMediaInsert" +
+      " AFTER INSERT ON " + MediaEntry.TABLE_NAME + " BEGIN" +
+        updateCaptions("new") +
+      " END",
+      
+      "CREATE TRIGGER MapJournalSearchMediaUpdate" +
+      " AFTER UPDATE OF " +
+        MediaEntry.COLUMN_NAME_POINT_ID + "," +
+        MediaEntry.COLUMN_NAME_CAPTION +
+      " ON " + MediaEntry.TABLE_NAME + " BEGIN" +
+        updateCaptions("old") +
+        updateCaptions("new") +
+      " END",
+      
+      "CREATE TRIGGER MapJournalSearchMediaDelete" +
+      " AFTER DELETE ON " + MediaEntry.TABLE_NAME + " BEGIN" +
+        updateCaptions("old") +
+      " END"
+  };
+  
+  // Every schema change since version 1, in order. To change the schema,
+  // update the CREATE statements above for new installs and append a
+  // Migration here for existing ones.
+  private static final Migration[] MIGRATIONS = {
+      new Migration(2) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          addGeohashColumn(db);
+        }
+      },
+      new Migration(3) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          addSearchTable(db);
+        }
+      },
+      new Migration(4) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          rebuildTablesWithIndexes(db);
+        }
+      },
+      new Migration(5) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          addTrackTable(db);
+        }
+      },
+      new Migration(6) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          addTripStatsTable(db);
+        }
+      },
+      new Migration(7) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          addCascadingDeletes(db);
+        }
+      },
+      new Migration(8) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+          addBlobTable(db);
+        }
+      }
+  };
+  
+  private static final int DATABASE_VERSION =
+      MIGRATIONS[MIGRATIONS.length - 1].getVersion();
+  
+  // The search triggers as version 3 created them. Later migrations that
+  // rebuild the point and media tables recreate them from here.
+  private static final String[] SEARCH_TRIGGERS_V3 = {
+      "CREATE TRIGGER MapJournalSearchPointInsert " +
+      "AFTER INSERT ON MapJournalPoint BEGIN " +
+      "INSERT INTO MapJournalSearch(docid, Title, Address, Journal) " +
+      "VALUES (new._id, new.Title, new.Address, new.Journal); END",
+      
+      "CREATE TRIGGER MapJournalSearchPointUpdate " +
+      "AFTER UPDATE OF Title, Address, Journal ON MapJournalPoint BEGIN " +
+      "UPDATE MapJournalSearch SET Title = new.Title, " +
+      "Address = new.Address, Journal = new.Journal " +
+      "WHERE docid = new._id; END",
+      
+      "CREATE TRIGGER MapJournalSearchPointDelete " +
+      "AFTER DELETE ON MapJournalPoint BEGIN " +
+      "DELETE FROM MapJournalSearch WHERE docid = old._id; END",
+      
+      "CREATE TRIGGER MapJournalSearchMediaInsert " +
+      "AFTER INSERT ON MapJournalMedia BEGIN " +
+      "UPDATE MapJournalSearch SET Captions = " +
+      "(SELECT group_concat(Caption, ' ') FROM MapJournalMedia " +
+      "WHERE PointId = new.PointId) WHERE docid = new.PointId; END",
+      
+      "CREATE TRIGGER MapJournalSearchMediaUpdate " +
+      "AFTER UPDATE OF PointId, Caption ON MapJournalMedia BEGIN " +
+      "UPDATE MapJournalSearch SET Captions = " +
+      "(SELECT group_concat(Caption, ' ') FROM MapJournalMedia " +
+      "WHERE PointId = old.PointId) WHERE docid = old.PointId; " +
+      "UPDATE MapJournalSearch SET Captions = " +
+      "(SELECT group_concat(Caption, ' ') FROM MapJournalMedia " +
+      "WHERE PointId = new.PointId) WHERE docid = new.PointId; END",
+      
+      "CREATE TRIGGER MapJournalSearchMediaDelete " +
+      "AFTER DELETE ON MapJournalMedia BEGIN " +
+      "UPDATE MapJournalSearch SET Captions = " +
+      "(SELECT group_concat(Caption, ' ') FROM MapJournalMedia " +
+      "WHERE PointId = old.PointId) WHERE docid = old.PointId; END"
+  };
+  
   /**
    * Factory method for getting a MapJournalDbHelper. Enforces the singleton
    * property to prevent issues with concurrency in the db. 
    * @param context
    * @return The instance of MapJournalDbHelper
    */
-  public static MapJournalDbHelper getInstance(Context context) {
+  public static synchronized MapJournalDbHelper getInstance(Context context) {
     if (instance == null) {
       instance = new MapJournalDbHelper(context.getApplicationContext());
     }
@@ -81,7 +361,75 @@ public class MapJournalDbHelper extends SQLiteOpenHelper {
   }
   
   private MapJournalDbHelper(Context context) {
-    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this(context, DATABASE_NAME);
+  }
+  
+  /**
+   * Creates a helper for a database with the given name instead of the shared
+   * MapJournal database. Used by tests so they run against scratch data.
+   * @param context
+   * @param name The file name of the database
+   */
+  MapJournalDbHelper(Context context, String name) {
+    super(context, name, null, DATABASE_VERSION);
+  }
+  
+  /**
+   * Opens the database, or returns the already open database, and registers
+   * the caller as one of its users. Every call must be matched by a call to
+   * release().
+   * @return The open database
+   * @throws android.database.sqlite.SQLiteException if the database cannot
+   *         be opened
+   */
+  public synchronized SQLiteDatabase acquire() {
+    SQLiteDatabase db = getWritableDatabase();
+    openCount++;
+    return db;
+  }
+  
+  /**
+   * Unregisters a user of the database. The connection is closed once the
+   * last user has released it, so one caller can't close the database out
+   * from under another.
+   */
+  public synchronized void release() {
+    if (openCount == 0) {
+      throw new IllegalStateException("Database released more times than " +
+                                      "it was acquired");
+    }
+    openCount--;
+    if (openCount == 0) {
+      close();
+    }
+  }
+  
+  /**
+   * Registers a listener to be told when MediaItems in this database are
+   * moved to another file. Unlike PointListeners, these are shared by every
+   * DAO using the database and may be called on any thread.
+   * @param listener The listener to add
+   */
+  public void addMediaMoveListener(MediaMoveListener listener) {
+    mediaMoveListeners.add(listener);
+  }
+  
+  /**
+   * Unregisters a listener added with addMediaMoveListener().
+   * @param listener The listener to remove
+   */
+  public void removeMediaMoveListener(MediaMoveListener listener) {
+    mediaMoveListeners.remove(listener);
+  }
+  
+  /**
+   * Tells every MediaMoveListener that MediaItems were moved.
+   * @param items The moved MediaItems, with their new paths
+   */
+  void notifyMediaMoved(List<MediaItem> items) {
+    for (MediaMoveListener listener : mediaMoveListeners) {
+      listener.onMediaMoved(items);
+    }
   }
   
   @Override
@@ -90,18 +438,396 @@ public class MapJournalDbHelper extends SQLiteOpenHelper {
     db.execSQL(CREATE_TABLE_TRIP);
     db.execSQL(CREATE_TABLE_POINT);
     db.execSQL(CREATE_TABLE_MEDIA);
+    db.execSQL(CREATE_TABLE_TRACK);
+    db.execSQL(CREATE_TABLE_TRIP_STATS);
+    db.execSQL(CREATE_TABLE_MEDIA_SWEEP);
+    db.execSQL(CREATE_TABLE_BLOB);
+    db.execSQL(CREATE_INDEX_POINT_GEOHASH);
+    db.execSQL(CREATE_INDEX_POINT_TRIP_TIME);
+    db.execSQL(CREATE_INDEX_MEDIA_POINT);
+    db.execSQL(CREATE_INDEX_TRACK_TRIP_TIME);
+    db.execSQL(CREATE_INDEX_BLOB_REF_COUNT);
+    db.execSQL(CREATE_TABLE_SEARCH);
+    for (String trigger : CREATE_SEARCH_TRIGGERS) {
+      db.execSQL(trigger);
+    }
+    db.execSQL(CREATE_MEDIA_SWEEP_TRIGGER);
+    for (String trigger : CREATE_BLOB_TRIGGERS) {
+      db.execSQL(trigger);
+    }
   }
   
   @Override
   public void onOpen(SQLiteDatabase db) {
     super.onOpen(db);
     db.execSQL(ENABLE_FOREIGN_KEYS);
+    // With write-ahead logging, readers see the last committed state and are
+    // not blocked by a writer, and SQLiteDatabase keeps a pool of connections
+    // so queries on different threads run in parallel. Writes still go
+    // through a single connection, one transaction at a time.
+    if (!db.isReadOnly()) {
+      db.enableWriteAheadLogging();
+    }
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int arg1, int arg2) {
-    // TODO(ericzeng): implement when there are new database versions
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    for (Migration migration : MIGRATIONS) {
+      if (migration.getVersion() > oldVersion &&
+          migration.getVersion() <= newVersion) {
+        migration.migrate(db);
+      }
+    }
+  }
+  
+  /**
+   * Version 2 adds the geohash column used for bounding box queries. The
+   * hashes of existing points are computed here since SQLite cannot.
+   * @param db The database being upgraded
+   */
+  private static void addGeohashColumn(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + PointEntry.TABLE_NAME + " ADD COLUMN " +
+               PointEntry.COLUMN_NAME_GEOHASH + " INTEGER");
+    
+    SQLiteStatement update = db.compileStatement(
+        "UPDATE " + PointEntry.TABLE_NAME +
+        " SET " + PointEntry.COLUMN_NAME_GEOHASH + " = ?" +
+        " WHERE " + PointEntry._ID + " = ?");
+    Cursor c = db.query(PointEntry.TABLE_NAME,
+                        new String[] { PointEntry._ID,
+                                       PointEntry.COLUMN_NAME_LATITUDE,
+                                       PointEntry.COLUMN_NAME_LONGITUDE },
+                        null, null, null, null, null);
+    try {
+      while (c.moveToNext()) {
+        update.bindLong(1, GeoHash.encode(c.getDouble(1), c.getDouble(2)));
+        update.bindLong(2, c.getLong(0));
+        update.executeUpdateDelete();
+      }
+    } finally {
+      c.close();
+      update.close();
+    }
+    
+    db.execSQL("CREATE INDEX MapJournalPointGeohashIndex ON " +
+               "MapJournalPoint(Geohash)");
+  }
+  
+  /**
+   * Version 3 adds the full-text search table and fills it with the existing
+   * points and captions.
+   * @param db The database being upgraded
+   */
+  private static void addSearchTable(SQLiteDatabase db) {
+    db.execSQL("CREATE VIRTUAL TABLE MapJournalSearch USING " +
+               "fts4(Title, Address, Journal, Captions)");
+    db.execSQL("INSERT INTO MapJournalSearch" +
+               "(docid, Title, Address, Journal, Captions) " +
+               "SELECT _id, Title, Address, Journal, " +
+               "(SELECT group_concat(Caption, ' ') FROM MapJournalMedia " +
+               "WHERE PointId = MapJournalPoint._id) FROM MapJournalPoint");
+    for (String trigger : SEARCH_TRIGGERS_V3) {
+      db.execSQL(trigger);
+    }
+  }
+  
+  /**
+   * Version 4 drops the stray "_countINTEGER" columns that a missing space
+   * added to every table, and indexes the foreign keys so per-trip and
+   * per-point lookups no longer scan whole tables. SQLite cannot drop a
+   * column, so each table is copied into a corrected one. Dropping the old
+   * tables also drops their search triggers, which are recreated at the end.
+   * @param db The database being upgraded
+   */
+  private static void rebuildTablesWithIndexes(SQLiteDatabase db) {
+    rebuildTable(db, "MapJournalTrips",
+        "_id INTEGER PRIMARY KEY, Name TEXT, Description TEXT",
+        "_id, Name, Description");
+    rebuildTable(db, "MapJournalPoint",
+        "_id INTEGER PRIMARY KEY, TripId INTEGER, Title TEXT, " +
+        "Latitude REAL, Longitude REAL, Altitude REAL, Time INTEGER, " +
+        "Address TEXT, Journal TEXT, Geohash INTEGER, " +
+        "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id)",
+        "_id, TripId, Title, Latitude, Longitude, Altitude, Time, " +
+        "Address, Journal, Geohash");
+    rebuildTable(db, "MapJournalMedia",
+        "_id INTEGER PRIMARY KEY, PointId INTEGER, Caption TEXT, Path TEXT, " +
+        "FOREIGN KEY (PointId) REFERENCES MapJournalPoint(_id)",
+        "_id, PointId, Caption, Path");
     
+    db.execSQL("CREATE INDEX MapJournalPointGeohashIndex ON " +
+               "MapJournalPoint(Geohash)");
+    db.execSQL("CREATE INDEX MapJournalPointTripTimeIndex ON " +
+               "MapJournalPoint(TripId, Time)");
+    db.execSQL("CREATE INDEX MapJournalMediaPointIndex ON " +
+               "MapJournalMedia(PointId)");
+    for (String trigger : SEARCH_TRIGGERS_V3) {
+      db.execSQL(trigger);
+    }
+  }
+  
+  /**
+   * Version 5 adds the table of recorded track segments.
+   * @param db The database being upgraded
+   */
+  private static void addTrackTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE MapJournalTrack(_id INTEGER PRIMARY KEY, " +
+               "TripId INTEGER, StartTime INTEGER, EndTime INTEGER, " +
+               "FixCount INTEGER, Data BLOB, " +
+               "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id))");
+    db.execSQL("CREATE INDEX MapJournalTrackTripTimeIndex ON " +
+               "MapJournalTrack(TripId, StartTime)");
+  }
+  
+  /**
+   * Version 6 adds the table of per-trip statistics, computed here for every
+   * existing trip. SQLite can count and bound the points, but not measure
+   * the great-circle path between them, so the distance and elevation gain
+   * are filled in by one pass over the points in the order they were
+   * visited.
+   * @param db The database being upgraded
+   */
+  private static void addTripStatsTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE MapJournalTripStats(" +
+               "TripId INTEGER PRIMARY KEY, PointCount INTEGER, " +
+               "MediaCount INTEGER, Distance REAL, ElevationGain REAL, " +
+               "StartTime INTEGER, EndTime INTEGER, MinLatitude REAL, " +
+               "MinLongitude REAL, MaxLatitude REAL, MaxLongitude REAL, " +
+               "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id))");
+    db.execSQL("INSERT INTO MapJournalTripStats(TripId, PointCount, " +
+               "MediaCount, Distance, ElevationGain, StartTime, EndTime, " +
+               "MinLatitude, MinLongitude, MaxLatitude, MaxLongitude) " +
+               "SELECT t._id, COUNT(p._id), " +
+               "(SELECT COUNT(*) FROM MapJournalMedia m " +
+               "INNER JOIN MapJournalPoint mp ON m.PointId = mp._id " +
+               "WHERE mp.TripId = t._id), 0, 0, " +
+               "IFNULL(MIN(p.Time), 0), IFNULL(MAX(p.Time), 0), " +
+               "IFNULL(MIN(p.Latitude), 0), IFNULL(MIN(p.Longitude), 0), " +
+               "IFNULL(MAX(p.Latitude), 0), IFNULL(MAX(p.Longitude), 0) " +
+               "FROM MapJournalTrips t " +
+               "LEFT JOIN MapJournalPoint p ON p.TripId = t._id " +
+               "GROUP BY t._id");
+    
+    SQLiteStatement update = db.compileStatement(
+        "UPDATE MapJournalTripStats SET Distance = ?, ElevationGain = ? " +
+        "WHERE TripId = ?");
+    Cursor c = db.rawQuery("SELECT TripId, Latitude, Longitude, Altitude " +
+                           "FROM MapJournalPoint ORDER BY TripId, Time, _id",
+                           null);
+    try {
+      long tripId = -1;
+      double latitude = 0;
+      double longitude = 0;
+      double altitude = 0;
+      double distance = 0;
+      double gain = 0;
+      while (c.moveToNext()) {
+        if (c.getLong(0) != tripId) {
+          if (tripId != -1) {
+            updateDistance(update, tripId, distance, gain);
+          }
+          tripId = c.getLong(0);
+          distance = 0;
+          gain = 0;
+        } else {
+          distance += PointIndex.distance(latitude, longitude,
+                                          c.getDouble(1), c.getDouble(2));
+          gain += Math.max(0, c.getDouble(3) - altitude);
+        }
+        latitude = c.getDouble(1);
+        longitude = c.getDouble(2);
+        altitude = c.getDouble(3);
+      }
+      if (tripId != -1) {
+        updateDistance(update, tripId, distance, gain);
+      }
+    } finally {
+      c.close();
+      update.close();
+    }
+  }
+  
+  /**
+   * Version 7 makes deletes cascade from trips to their points, tracks and
+   * statistics, and from points to their media, and queues the files of
+   * deleted media for MediaSweeper. Rows orphaned by earlier deletes, which
+   * the DAO never removed, are deleted first. The tables are rebuilt to
+   * change their foreign keys, which drops their indexes and triggers, so
+   * those are recreated at the end.
+   * @param db The database being upgraded
+   */
+  private static void addCascadingDeletes(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE MapJournalMediaSweep(" +
+               "_id INTEGER PRIMARY KEY, Path TEXT)");
+    db.execSQL("DELETE FROM MapJournalPoint WHERE TripId NOT IN " +
+               "(SELECT _id FROM MapJournalTrips)");
+    db.execSQL("INSERT INTO MapJournalMediaSweep(Path) " +
+               "SELECT Path FROM MapJournalMedia WHERE Path IS NOT NULL " +
+               "AND PointId NOT IN (SELECT _id FROM MapJournalPoint)");
+    db.execSQL("DELETE FROM MapJournalMedia WHERE PointId NOT IN " +
+               "(SELECT _id FROM MapJournalPoint)");
+    db.execSQL("DELETE FROM MapJournalTrack WHERE TripId NOT IN " +
+               "(SELECT _id FROM MapJournalTrips)");
+    db.execSQL("DELETE FROM MapJournalTripStats WHERE TripId NOT IN " +
+               "(SELECT _id FROM MapJournalTrips)");
+    
+    rebuildTable(db, "MapJournalPoint",
+        "_id INTEGER PRIMARY KEY, TripId INTEGER, Title TEXT, " +
+        "Latitude REAL, Longitude REAL, Altitude REAL, Time INTEGER, " +
+        "Address TEXT, Journal TEXT, Geohash INTEGER, " +
+        "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id) " +
+        "ON DELETE CASCADE",
+        "_id, TripId, Title, Latitude, Longitude, Altitude, Time, " +
+        "Address, Journal, Geohash");
+    rebuildTable(db, "MapJournalMedia",
+        "_id INTEGER PRIMARY KEY, PointId INTEGER, Caption TEXT, Path TEXT, " +
+        "FOREIGN KEY (PointId) REFERENCES MapJournalPoint(_id) " +
+        "ON DELETE CASCADE",
+        "_id, PointId, Caption, Path");
+    rebuildTable(db, "MapJournalTrack",
+        "_id INTEGER PRIMARY KEY, TripId INTEGER, StartTime INTEGER, " +
+        "EndTime INTEGER, FixCount INTEGER, Data BLOB, " +
+        "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id) " +
+        "ON DELETE CASCADE",
+        "_id, TripId, StartTime, EndTime, FixCount, Data");
+    rebuildTable(db, "MapJournalTripStats",
+        "TripId INTEGER PRIMARY KEY, PointCount INTEGER, " +
+        "MediaCount INTEGER, Distance REAL, ElevationGain REAL, " +
+        "StartTime INTEGER, EndTime INTEGER, MinLatitude REAL, " +
+        "MinLongitude REAL, MaxLatitude REAL, MaxLongitude REAL, " +
+        "FOREIGN KEY (TripId) REFERENCES MapJournalTrips(_id) " +
+        "ON DELETE CASCADE",
+        "TripId, PointCount, MediaCount, Distance, ElevationGain, " +
+        "StartTime, EndTime, MinLatitude, MinLongitude, MaxLatitude, " +
+        "MaxLongitude");
+    
+    db.execSQL("CREATE INDEX MapJournalPointGeohashIndex ON " +
+               "MapJournalPoint(Geohash)");
+    db.execSQL("CREATE INDEX MapJournalPointTripTimeIndex ON " +
+               "MapJournalPoint(TripId, Time)");
+    db.execSQL("CREATE INDEX MapJournalMediaPointIndex ON " +
+               "MapJournalMedia(PointId)");
+    db.execSQL("CREATE INDEX MapJournalTrackTripTimeIndex ON " +
+               "MapJournalTrack(TripId, StartTime)");
+    for (String trigger : SEARCH_TRIGGERS_V3) {
+      db.execSQL(trigger);
+    }
+    db.execSQL("CREATE TRIGGER MapJournalMediaSweepDelete " +
+               "AFTER DELETE ON MapJournalMedia " +
+               "WHEN old.Path IS NOT NULL BEGIN " +
+               "INSERT INTO MapJournalMediaSweep(Path) VALUES (old.Path); " +
+               "END");
+  }
+  
+  /**
+   * Version 8 adds the table of files in the BlobStore and the column that
+   * links each media row to its file. Existing media keep their paths until
+   * BlobStore moves them into the store. Files in the store can be shared by
+   * several rows, so the sweep trigger now skips them.
+   * @param db The database being upgraded
+   */
+  private static void addBlobTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE MapJournalBlob(_id INTEGER PRIMARY KEY, " +
+               "Hash TEXT NOT NULL UNIQUE, Size INTEGER, " +
+               "RefCount INTEGER NOT NULL DEFAULT 0)");
+    db.execSQL("CREATE INDEX MapJournalBlobRefCountIndex ON " +
+               "MapJournalBlob(RefCount)");
+    db.execSQL("ALTER TABLE MapJournalMedia ADD COLUMN " +
+               "BlobId INTEGER REFERENCES MapJournalBlob(_id)");
+    db.execSQL("DROP TRIGGER MapJournalMediaSweepDelete");
+    db.execSQL("CREATE TRIGGER MapJournalMediaSweepDelete " +
+               "AFTER DELETE ON MapJournalMedia " +
+               "WHEN old.Path IS NOT NULL AND old.BlobId IS NULL BEGIN " +
+               "INSERT INTO MapJournalMediaSweep(Path) VALUES (old.Path); " +
+               "END");
+    db.execSQL("CREATE TRIGGER MapJournalBlobMediaInsert " +
+               "AFTER INSERT ON MapJournalMedia " +
+               "WHEN new.BlobId IS NOT NULL BEGIN " +
+               "UPDATE MapJournalBlob SET RefCount = RefCount + 1 " +
+               "WHERE _id = new.BlobId; END");
+    db.execSQL("CREATE TRIGGER MapJournalBlobMediaUpdate " +
+               "AFTER UPDATE OF BlobId ON MapJournalMedia " +
+               "WHEN old.BlobId IS NOT new.BlobId BEGIN " +
+               "UPDATE MapJournalBlob SET RefCount = RefCount - 1 " +
+               "WHERE _id = old.BlobId; " +
+               "UPDATE MapJournalBlob SET RefCount = RefCount + 1 " +
+               "WHERE _id = new.BlobId; END");
+    db.execSQL("CREATE TRIGGER MapJournalBlobMediaDelete " +
+               "AFTER DELETE ON MapJournalMedia " +
+               "WHEN old.BlobId IS NOT NULL BEGIN " +
+               "UPDATE MapJournalBlob SET RefCount = RefCount - 1 " +
+               "WHERE _id = old.BlobId; END");
+  }
+  
+  /**
+   * Helper method to store the distance and elevation gain of one trip while
+   * upgrading to version 6.
+   */
+  private static void updateDistance(SQLiteStatement update,
+                                     long tripId,
+                                     double distance,
+                                     double gain) {
+    update.bindDouble(1, distance);
+    update.bindDouble(2, gain);
+    update.bindLong(3, tripId);
+    update.executeUpdateDelete();
+  }
+  
+  /**
+   * Helper method to replace a table with a new definition, keeping its rows.
+   * @param db The database being upgraded
+   * @param table The name of the table
+   * @param definition The column and constraint list of the new table
+   * @param columns The columns to copy from the old table
+   */
+  private static void rebuildTable(SQLiteDatabase db,
+                                   String table,
+                                   String definition,
+                                   String columns) {
+    String newTable = table + "_new";
+    db.execSQL("CREATE TABLE " + newTable + "(" + definition + ")");
+    db.execSQL("INSERT INTO " + newTable + "(" + columns + ")" +
+               " SELECT " + columns + " FROM " + table);
+    db.execSQL("DROP TABLE " + table);
+    db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + table);
+  }
+  
+  /**
+   * Helper method for the SQL expression that joins the captions of every
+   * MediaItem of a point into one string.
+   * @param pointId SQL expression for the id of the point
+   */
+  private static String captionsOf(String pointId) {
+    return "(SELECT group_concat(" + MediaEntry.COLUMN_NAME_CAPTION + ", ' ')" +
+           " FROM " + MediaEntry.TABLE_NAME +
+           " WHERE " + MediaEntry.COLUMN_NAME_POINT_ID + " = " + pointId + ")";
+  }
+  
+  /**
+   * Helper method for the trigger statement that changes the reference count
+   * of the blob used by a media row.
+   * @param row "old" or "new"
+   * @param change The amount to add to the count
+   */
+  private static String addReference(String row, int change) {
+    return " UPDATE " + BlobEntry.TABLE_NAME +
+           " SET " + BlobEntry.COLUMN_NAME_REF_COUNT + " = " +
+             BlobEntry.COLUMN_NAME_REF_COUNT + (change < 0 ? " - " : " + ") +
+             Math.abs(change) +
+           " WHERE " + BlobEntry._ID + " = " + row + "." +
+             MediaEntry.COLUMN_NAME_BLOB + ";";
+  }
+  
+  /**
+   * Helper method for the trigger statement that refreshes the captions in
+   * the search row of the point a MediaItem row belongs to.
+   * @param row "new" or "old", the trigger row to take the point id from
+   */
+  private static String updateCaptions(String row) {
+    String pointId = row + "." + MediaEntry.COLUMN_NAME_POINT_ID;
+    return " UPDATE " + SearchEntry.TABLE_NAME + " SET " +
+             SearchEntry.COLUMN_NAME_CAPTIONS + " = " + captionsOf(pointId) +
+           " WHERE docid = " + pointId + ";";
   }
 
 }
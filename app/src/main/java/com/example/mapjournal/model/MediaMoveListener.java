@@ -0,0 +1,35 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.List;
+
+/**
+ * Notified when MediaItems are pointed at a new file without going through
+ * the DAO that loaded them, as BlobStore does when it moves a file into the
+ * store. Anything holding MediaItems, or Points with their media, should
+ * drop or reload them, since the old file is deleted once every listener
+ * has returned. Register with MapJournalDbHelper.addMediaMoveListener().
+ * @author ericzeng
+ */
+public interface MediaMoveListener {
+  /**
+   * Called on the thread that moved the media, after the change has
+   * committed and before the old file is deleted.
+   * @param items The moved MediaItems, with their new paths
+   */
+  void onMediaMoved(List<MediaItem> items);
+}
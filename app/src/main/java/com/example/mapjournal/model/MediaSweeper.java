@@ -0,0 +1,175 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Removes the files of deleted MediaItems. The database queues the path of
+ * every MediaItem it deletes, including those deleted along with their Point
+ * or Trip, so deleting rows never waits on the file system. The sweeper works
+ * through the queue in batches on a background thread. Entries are only
+ * removed from the queue after their files have been unlinked, so files
+ * queued before a crash are removed by the next sweep.
+ * <p>
+ * Register the sweeper with MapJournalDAO.addPointListener() to sweep after
+ * every deleted MediaItem, Point or Trip.
+ * @author ericzeng
+ */
+public class MediaSweeper implements PointListener {
+  private static final String TAG = "MediaSweeper";
+  
+  /** Number of files removed per read of the queue. */
+  public static final int BATCH_SIZE = 256;
+  
+  // Seconds the background thread waits for more work before exiting
+  private static final long KEEP_ALIVE = 30;
+  
+  private static MediaSweeper instance;
+  
+  private final MapJournalDAO dao;
+  private final ExecutorService executor;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  
+  private final Runnable sweepTask = new Runnable() {
+    @Override
+    public void run() {
+      // Cleared first, so a delete during the sweep schedules another one
+      scheduled.set(false);
+      try {
+        sweep();
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Media sweep failed", e);
+      }
+    }
+  };
+  
+  /**
+   * Factory method for getting the MediaSweeper of the shared database.
+   * Enforces the singleton property so only one thread works through the
+   * queue.
+   * @param context
+   * @return The instance of MediaSweeper
+   */
+  public static synchronized MediaSweeper getInstance(Context context) {
+    if (instance == null) {
+      instance = new MediaSweeper(context.getApplicationContext());
+    }
+    return instance;
+  }
+  
+  /**
+   * Creates a sweeper for the shared database.
+   * @param context
+   */
+  private MediaSweeper(Context context) {
+    this(new MapJournalDAO(context));
+  }
+  
+  /**
+   * Creates a sweeper that reads the queue through the given DAO.
+   * @param dao An unopened DAO, opened for the length of each sweep
+   */
+  MediaSweeper(MapJournalDAO dao) {
+    this.dao = dao;
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        1, 1, KEEP_ALIVE, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    this.executor = executor;
+  }
+  
+  /**
+   * Schedules a sweep on the background thread, unless one is already
+   * waiting to start.
+   */
+  public void requestSweep() {
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(sweepTask);
+    }
+  }
+  
+  /**
+   * Removes every file in the queue on the calling thread. Files that no
+   * longer exist are dropped from the queue without error.
+   * @return The number of files removed
+   */
+  public synchronized int sweep() {
+    int removed = 0;
+    List<String> paths = new ArrayList<String>(BATCH_SIZE);
+    dao.open();
+    try {
+      long lastId = dao.readMediaSweep(BATCH_SIZE, paths);
+      while (lastId >= 0) {
+        for (String path : paths) {
+          File file = new File(path);
+          if (file.delete()) {
+            removed++;
+          } else if (file.exists()) {
+            Log.w(TAG, "Cannot delete " + file);
+          }
+        }
+        dao.clearMediaSweep(lastId);
+        paths.clear();
+        lastId = dao.readMediaSweep(BATCH_SIZE, paths);
+      }
+    } finally {
+      dao.close();
+    }
+    return removed;
+  }
+  
+  /**
+   * Stops the background thread once the current sweep, if any, finishes.
+   * The sweeper can't be used afterwards.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+  
+  @Override
+  public void onPointSaved(Point point) {
+  }
+  
+  @Override
+  public void onPointDeleted(long pointId) {
+    requestSweep();
+  }
+  
+  @Override
+  public void onTripDeleted(long tripId) {
+    requestSweep();
+  }
+  
+  @Override
+  public void onMediaSaved(MediaItem item) {
+  }
+  
+  @Override
+  public void onMediaDeleted(long mediaId) {
+    requestSweep();
+  }
+}
@@ -0,0 +1,54 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package com.example.mapjournal.model;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step in the schema history of the MapJournal database. A migration
+ * moves a database from the previous version to getVersion(). Migrations that
+ * create or rebuild tables spell out the columns they produce instead of
+ * reusing the CREATE statements in MapJournalDbHelper, since those keep
+ * changing after the migration is written.
+ * @author ericzeng
+ */
+abstract class Migration {
+  private final int version;
+  
+  /**
+   * Creates a migration to the given version.
+   * @param version The database version after this migration has run
+   */
+  Migration(int version) {
+    this.version = version;
+  }
+  
+  /**
+   * Get the database version this migration upgrades to.
+   * @return the version after the migration
+   */
+  int getVersion() {
+    return version;
+  }
+  
+  /**
+   * Upgrades the database from getVersion() - 1 to getVersion(). Runs inside
+   * the upgrade transaction, with foreign key enforcement off.
+   * @param db The database being upgraded
+   */
+  abstract void migrate(SQLiteDatabase db);
+}
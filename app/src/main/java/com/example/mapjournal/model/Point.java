@@ -75,6 +75,31 @@ public class Point {
     this.media = media;    
   }
   
+  /**
+   * Overwrites every field except the list of MediaItems, which is cleared.
+   * Used to refill one Point while streaming rows from the database.
+   */
+  void fill(long id,
+            String title,
+            long tripId,
+            double latitude,
+            double longitude,
+            double altitude,
+            int time,
+            String address,
+            String journal) {
+    this.id = id;
+    this.title = title;
+    this.tripId = tripId;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.altitude = altitude;
+    this.time = time;
+    this.address = address;
+    this.journal = journal;
+    this.media = null;
+  }
+  
   /**
    * Get the unique ID (primary key) of the Point.
    * @return the unique ID of this point
@@ -254,12 +279,14 @@ public class Point {
     if(newItem == null) {
       throw new NullPointerException("Cannot add a null MediaItem to point");
     }
-    media.add(newItem);
+    getAllMedia().add(newItem);
   }
   
   /**
    * Removes the media item with the given filepath from this point. The item
-   * is not removed from the device. 
+   * is not removed from the database; deleting it with
+   * MapJournalDAO.deleteMedia() releases its file, which is then removed by
+   * MediaSweeper or BlobStore.
    * @param filepath The path of the MediaItem to be removed
    * @throws java.util.NoSuchElementException if the Point does not have an item with
    *         the given path.
@@ -268,12 +295,31 @@ public class Point {
   public void RemoveMediaItem(String filepath) {
     if (filepath == null)
       throw new NullPointerException("filepath of MediaItem cannot be null");
+    List<MediaItem> media = getAllMedia();
     for (int i = 0; i < media.size(); i++) {
-      if(media.get(i).equals(filepath)) {
+      if(filepath.equals(media.get(i).getFilePath())) {
         media.remove(i);
         return;
       }
     }
     throw new NoSuchElementException("No MediaItem with the given file path");
   }
+  
+  /**
+   * Whether the altitude, address and journal are in memory, so reading them
+   * won't query the database.
+   * @return true unless this is a LazyPoint that hasn't loaded them yet
+   */
+  boolean isDetailLoaded() {
+    return true;
+  }
+  
+  /**
+   * Whether the list of MediaItems is in memory, so getAllMedia() won't
+   * query the database.
+   * @return true if the list of MediaItems is loaded
+   */
+  boolean isMediaLoaded() {
+    return media != null;
+  }
 }
@@ -0,0 +1,480 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An in-memory quadtree over the locations of loaded Points, for queries that
+ * run too often to go to SQLite each time: the nearest Points to the user,
+ * the Points within a distance, and the Points in the map's viewport.
+ * Distances are great-circle distances in metres.
+ * <p>
+ * The index can be bulk loaded and kept current by registering it with
+ * MapJournalDAO.addPointListener(). It remembers where each Point was when
+ * it was indexed, so a Point moved in place must be inserted again, as
+ * MapJournalDAO.updatePoint() does through the listener. All methods are
+ * synchronized, so the index can be queried from the main thread while a
+ * background DAO updates it. The app keeps one, fed by the shared DAO, for
+ * the Points loaded onto the map.
+ * @author ericzeng
+ */
+public class PointIndex implements PointListener {
+  /** Mean radius of the earth in metres. */
+  public static final double EARTH_RADIUS = TrackSimplifier.EARTH_RADIUS;
+  
+  // A leaf splits when it holds more Points than this
+  private static final int LEAF_CAPACITY = 16;
+  // Below this depth cells are ~2 m wide; leaves there just grow
+  private static final int MAX_DEPTH = 24;
+  
+  private final Map<Long, Entry> byId = new HashMap<Long, Entry>();
+  private Node root = new Node(-90, -180, 90, 180, 0);
+  private int changeCount;   // Changes reported by DAOs
+  
+  /**
+   * Creates an empty index.
+   */
+  public PointIndex() {}
+  
+  /**
+   * Creates an index of the given Points.
+   * @param points The Points to index
+   */
+  public PointIndex(Collection<Point> points) {
+    bulkLoad(points);
+  }
+  
+  /**
+   * Replaces the contents of the index. Much faster than inserting the Points
+   * one at a time, because the tree is built top down in one pass per level.
+   * @param points The Points to index
+   */
+  public synchronized void bulkLoad(Collection<Point> points) {
+    byId.clear();
+    for (Point point : points) {
+      byId.put(point.getId(), new Entry(point));
+    }
+    root = new Node(-90, -180, 90, 180, 0);
+    root.build(new ArrayList<Entry>(byId.values()));
+  }
+  
+  /**
+   * Adds a Point to the index, replacing any Point with the same id.
+   * @param point The Point to add
+   */
+  public synchronized void insert(Point point) {
+    Entry entry = new Entry(point);
+    Entry old = byId.put(point.getId(), entry);
+    if (old != null) {
+      root.remove(old);
+    }
+    root.insert(entry);
+  }
+  
+  /**
+   * Removes a Point from the index.
+   * @param pointId The id of the Point to remove
+   * @return true if the Point was in the index
+   */
+  public synchronized boolean remove(long pointId) {
+    Entry old = byId.remove(pointId);
+    if (old == null) {
+      return false;
+    }
+    root.remove(old);
+    return true;
+  }
+  
+  /**
+   * Get the number of Points in the index.
+   * @return the number of Points
+   */
+  public synchronized int size() {
+    return byId.size();
+  }
+  
+  /**
+   * Get the number of changes DAOs have reported through the PointListener
+   * methods. A bulk load that was read from the database while this changed
+   * may have missed a change.
+   * @return the number of changes
+   */
+  public synchronized int getChangeCount() {
+    return changeCount;
+  }
+  
+  /**
+   * Finds the Points closest to a location.
+   * @param latitude Latitude of the location
+   * @param longitude Longitude of the location
+   * @param k The maximum number of Points to return
+   * @return Up to k Points, nearest first
+   */
+  public synchronized List<Point> nearest(double latitude,
+                                          double longitude,
+                                          int k) {
+    List<Point> result = new ArrayList<Point>(Math.min(k, byId.size()));
+    if (k <= 0) {
+      return result;
+    }
+    // Best-first search: nodes are ordered by the least distance any of
+    // their Points could have, so a Point popped from the queue is closer
+    // than everything still in it
+    PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    queue.add(new Candidate(root.minDistance(latitude, longitude), root, null));
+    while (!queue.isEmpty() && result.size() < k) {
+      Candidate candidate = queue.poll();
+      if (candidate.entry != null) {
+        result.add(candidate.entry.point);
+      } else if (candidate.node.children == null) {
+        for (Entry entry : candidate.node.entries) {
+          queue.add(new Candidate(entry.distanceTo(latitude, longitude),
+                                  null, entry));
+        }
+      } else {
+        for (Node child : candidate.node.children) {
+          if (child.count > 0) {
+            queue.add(new Candidate(child.minDistance(latitude, longitude),
+                                    child, null));
+          }
+        }
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Finds the Points within a distance of a location.
+   * @param latitude Latitude of the location
+   * @param longitude Longitude of the location
+   * @param metres The greatest distance to include
+   * @return The Points within the distance, nearest first
+   */
+  public synchronized List<Point> withinDistance(double latitude,
+                                                 double longitude,
+                                                 double metres) {
+    List<Candidate> found = new ArrayList<Candidate>();
+    root.collectWithin(latitude, longitude, metres, found);
+    Collections.sort(found);
+    List<Point> result = new ArrayList<Point>(found.size());
+    for (Candidate candidate : found) {
+      result.add(candidate.entry.point);
+    }
+    return result;
+  }
+  
+  /**
+   * Finds the Points inside a bounding box, such as the visible region of the
+   * map. If minLng is greater than maxLng the box is taken to cross the
+   * antimeridian, covering minLng to 180 and -180 to maxLng.
+   * @param minLat Southern edge of the box
+   * @param minLng Western edge of the box
+   * @param maxLat Northern edge of the box
+   * @param maxLng Eastern edge of the box
+   * @return The Points inside the box, in no particular order
+   */
+  public synchronized List<Point> inBounds(double minLat,
+                                           double minLng,
+                                           double maxLat,
+                                           double maxLng) {
+    List<Point> result = new ArrayList<Point>();
+    if (minLng <= maxLng) {
+      root.collectInBox(minLat, minLng, maxLat, maxLng, result);
+    } else {
+      root.collectInBox(minLat, minLng, maxLat, 180, result);
+      root.collectInBox(minLat, -180, maxLat, maxLng, result);
+    }
+    return result;
+  }
+  
+  /**
+   * Computes the great-circle distance between two locations with the
+   * haversine formula.
+   * @return The distance in metres
+   */
+  public static double distance(double lat1,
+                                double lng1,
+                                double lat2,
+                                double lng2) {
+    double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+    double sinLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+    double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1))
+        * Math.cos(Math.toRadians(lat2)) * sinLng * sinLng;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+  
+  @Override
+  public synchronized void onPointSaved(Point point) {
+    changeCount++;
+    insert(point);
+  }
+  
+  @Override
+  public synchronized void onPointDeleted(long pointId) {
+    changeCount++;
+    remove(pointId);
+  }
+  
+  @Override
+  public synchronized void onTripDeleted(long tripId) {
+    changeCount++;
+    Iterator<Entry> it = byId.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.point.getTripId() == tripId) {
+        it.remove();
+        root.remove(entry);
+      }
+    }
+  }
+  
+  @Override
+  public void onMediaSaved(MediaItem item) {
+  }
+  
+  @Override
+  public void onMediaDeleted(long mediaId) {
+  }
+  
+  /**
+   * A node of the quadtree. Leaves hold Points; inner nodes have four
+   * children split at the middle of the node's box.
+   */
+  private static class Node {
+    final double minLat;
+    final double minLng;
+    final double maxLat;
+    final double maxLng;
+    final int depth;
+    int count;                  // Points in this subtree
+    List<Entry> entries = new ArrayList<Entry>();
+    Node[] children;            // SW, SE, NW, NE, or null for a leaf
+    
+    Node(double minLat,
+         double minLng,
+         double maxLat,
+         double maxLng,
+         int depth) {
+      this.minLat = minLat;
+      this.minLng = minLng;
+      this.maxLat = maxLat;
+      this.maxLng = maxLng;
+      this.depth = depth;
+    }
+    
+    void build(List<Entry> list) {
+      count = list.size();
+      if (count <= LEAF_CAPACITY || depth == MAX_DEPTH) {
+        entries = list;
+        return;
+      }
+      split();
+      List<List<Entry>> quarters = new ArrayList<List<Entry>>(4);
+      for (int i = 0; i < 4; i++) {
+        quarters.add(new ArrayList<Entry>(count / 3));
+      }
+      for (Entry entry : list) {
+        quarters.get(quadrant(entry)).add(entry);
+      }
+      for (int i = 0; i < 4; i++) {
+        children[i].build(quarters.get(i));
+      }
+    }
+    
+    void insert(Entry entry) {
+      count++;
+      if (children != null) {
+        children[quadrant(entry)].insert(entry);
+        return;
+      }
+      entries.add(entry);
+      if (entries.size() > LEAF_CAPACITY && depth < MAX_DEPTH) {
+        List<Entry> list = entries;
+        count = 0;
+        split();
+        for (Entry e : list) {
+          insert(e);
+        }
+      }
+    }
+    
+    boolean remove(Entry entry) {
+      boolean removed;
+      if (children == null) {
+        removed = entries.remove(entry);
+      } else {
+        removed = children[quadrant(entry)].remove(entry);
+      }
+      if (removed) {
+        count--;
+        if (children != null && count <= LEAF_CAPACITY / 2) {
+          // Collapse sparse subtrees back into a leaf
+          List<Entry> list = new ArrayList<Entry>(count);
+          collectAll(list);
+          children = null;
+          entries = list;
+        }
+      }
+      return removed;
+    }
+    
+    void collectAll(List<Entry> out) {
+      if (children == null) {
+        out.addAll(entries);
+      } else {
+        for (Node child : children) {
+          child.collectAll(out);
+        }
+      }
+    }
+    
+    void collectWithin(double lat, double lng, double metres,
+                       List<Candidate> out) {
+      if (count == 0 || minDistance(lat, lng) > metres) {
+        return;
+      }
+      if (children == null) {
+        for (Entry entry : entries) {
+          double d = entry.distanceTo(lat, lng);
+          if (d <= metres) {
+            out.add(new Candidate(d, null, entry));
+          }
+        }
+      } else {
+        for (Node child : children) {
+          child.collectWithin(lat, lng, metres, out);
+        }
+      }
+    }
+    
+    void collectInBox(double south, double west, double north, double east,
+                      List<Point> out) {
+      if (count == 0 || south > maxLat || north < minLat
+          || west > maxLng || east < minLng) {
+        return;
+      }
+      if (children == null) {
+        for (Entry entry : entries) {
+          if (entry.latitude >= south && entry.latitude <= north
+              && entry.longitude >= west && entry.longitude <= east) {
+            out.add(entry.point);
+          }
+        }
+      } else {
+        for (Node child : children) {
+          child.collectInBox(south, west, north, east, out);
+        }
+      }
+    }
+    
+    /**
+     * Computes a lower bound on the distance from a location to any Point in
+     * this node. Inside the node's longitudes the nearest point of the box is
+     * straight north or south. Outside them, the shortest path has to cross
+     * one of the box's edge meridians, so the distance is at least the
+     * distance to the nearer of those great circles, and never less than the
+     * difference in latitude.
+     */
+    double minDistance(double lat, double lng) {
+      double latGap = 0;
+      if (lat < minLat) {
+        latGap = minLat - lat;
+      } else if (lat > maxLat) {
+        latGap = lat - maxLat;
+      }
+      double angle = Math.toRadians(latGap);
+      if (lng < minLng || lng > maxLng) {
+        double cosLat = Math.cos(Math.toRadians(lat));
+        double toWest = Math.abs(Math.sin(Math.toRadians(lng - minLng)));
+        double toEast = Math.abs(Math.sin(Math.toRadians(lng - maxLng)));
+        double crossTrack = Math.asin(Math.min(1, cosLat
+                                               * Math.min(toWest, toEast)));
+        angle = Math.max(angle, crossTrack);
+      }
+      return angle * EARTH_RADIUS;
+    }
+    
+    private void split() {
+      double midLat = (minLat + maxLat) / 2;
+      double midLng = (minLng + maxLng) / 2;
+      children = new Node[] {
+          new Node(minLat, minLng, midLat, midLng, depth + 1),
+          new Node(minLat, midLng, midLat, maxLng, depth + 1),
+          new Node(midLat, minLng, maxLat, midLng, depth + 1),
+          new Node(midLat, midLng, maxLat, maxLng, depth + 1)
+      };
+      entries = null;
+    }
+    
+    private int quadrant(Entry entry) {
+      int q = 0;
+      if (entry.latitude >= (minLat + maxLat) / 2) {
+        q += 2;
+      }
+      if (entry.longitude >= (minLng + maxLng) / 2) {
+        q += 1;
+      }
+      return q;
+    }
+  }
+  
+  /**
+   * A Point and the location it was indexed at.
+   */
+  private static class Entry {
+    final Point point;
+    final double latitude;
+    final double longitude;
+    
+    Entry(Point point) {
+      this.point = point;
+      latitude = point.getLatitude();
+      longitude = point.getLongitude();
+    }
+    
+    double distanceTo(double lat, double lng) {
+      return distance(lat, lng, latitude, longitude);
+    }
+  }
+  
+  /**
+   * An entry in the nearest neighbour queue: a node, or a single Point.
+   */
+  private static class Candidate implements Comparable<Candidate> {
+    final double distance;
+    final Node node;
+    final Entry entry;
+    
+    Candidate(double distance, Node node, Entry entry) {
+      this.distance = distance;
+      this.node = node;
+      this.entry = entry;
+    }
+    
+    @Override
+    public int compareTo(Candidate other) {
+      return Double.compare(distance, other.distance);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.example.mapjournal.model.MapJournalDbContract.PointEntry;
+
+import android.database.Cursor;
+
+/**
+ * Iterates over Points by reading rows from a database cursor one at a time,
+ * so only the current row is held in memory. Column indexes are looked up
+ * once, and the iterator can optionally refill a single Point instance
+ * instead of allocating one per row. The cursor is closed when the iterator
+ * is exhausted or when close() is called.
+ * @author ericzeng
+ */
+public class PointIterator implements Iterator<Point>, Closeable {
+  private final Cursor cursor;
+  private final Point reused;     // Refilled for every row, or null
+  private boolean hasNext;
+  
+  // Column indexes in the cursor
+  private final int idColumn;
+  private final int titleColumn;
+  private final int tripColumn;
+  private final int latitudeColumn;
+  private final int longitudeColumn;
+  private final int altitudeColumn;
+  private final int timeColumn;
+  private final int addressColumn;
+  private final int journalColumn;
+  
+  /**
+   * Creates an iterator over the rows of a cursor.
+   * @param cursor A cursor over the Point table, positioned before the first
+   *               row. The iterator takes ownership of the cursor.
+   * @param reusePoint If true, next() returns the same Point instance for
+   *                   every row
+   */
+  PointIterator(Cursor cursor, boolean reusePoint) {
+    this.cursor = cursor;
+    idColumn = cursor.getColumnIndexOrThrow(PointEntry._ID);
+    titleColumn = cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TITLE);
+    tripColumn = cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TRIP);
+    latitudeColumn =
+        cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_LATITUDE);
+    longitudeColumn =
+        cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_LONGITUDE);
+    altitudeColumn =
+        cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_ALTITUDE);
+    timeColumn = cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_TIME);
+    addressColumn =
+        cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_ADDRESS);
+    journalColumn =
+        cursor.getColumnIndexOrThrow(PointEntry.COLUMN_NAME_JOURNAL);
+    
+    reused = reusePoint ? new Point(-1, null, -1, 0, 0, 0, 0, null, null, null)
+                        : null;
+    advance();
+  }
+  
+  @Override
+  public boolean hasNext() {
+    return hasNext;
+  }
+  
+  /**
+   * Returns the next Point. The list of MediaItems of the Point is not
+   * populated.
+   * @return the next Point
+   * @throws NoSuchElementException if there are no more Points
+   */
+  @Override
+  public Point next() {
+    if (!hasNext) {
+      throw new NoSuchElementException("No more Points");
+    }
+    Point point = reused != null ? reused
+                                 : new Point(-1, null, -1, 0, 0, 0, 0, null,
+                                             null, null);
+    point.fill(cursor.getLong(idColumn),
+               cursor.getString(titleColumn),
+               cursor.getLong(tripColumn),
+               cursor.getDouble(latitudeColumn),
+               cursor.getDouble(longitudeColumn),
+               cursor.getDouble(altitudeColumn),
+               cursor.getInt(timeColumn),
+               cursor.getString(addressColumn),
+               cursor.getString(journalColumn));
+    advance();
+    return point;
+  }
+  
+  /**
+   * Not supported. Points are deleted through MapJournalDAO.
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Use MapJournalDAO.deletePoint");
+  }
+  
+  /**
+   * Closes the underlying cursor. Safe to call more than once.
+   */
+  @Override
+  public void close() {
+    hasNext = false;
+    if (!cursor.isClosed()) {
+      cursor.close();
+    }
+  }
+  
+  /**
+   * Helper method to move the cursor to the next row, closing it when there
+   * are no rows left.
+   */
+  private void advance() {
+    hasNext = cursor.moveToNext();
+    if (!hasNext) {
+      close();
+    }
+  }
+}
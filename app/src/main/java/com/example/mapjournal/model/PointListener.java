@@ -0,0 +1,57 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+/**
+ * Notified by MapJournalDAO after Points and MediaItems are written, so
+ * in-memory copies such as a PointIndex can stay in step with the database
+ * and background work such as BlobStore can follow it. Changes made in
+ * writeBatch() are reported once the batch has committed.
+ * @author ericzeng
+ */
+public interface PointListener {
+  /**
+   * Called after a Point was created or updated.
+   * @param point The Point as it was written
+   */
+  void onPointSaved(Point point);
+  
+  /**
+   * Called after a Point was deleted.
+   * @param pointId The id of the deleted Point
+   */
+  void onPointDeleted(long pointId);
+  
+  /**
+   * Called after a Trip was deleted, which also removes its Points.
+   * @param tripId The id of the deleted Trip
+   */
+  void onTripDeleted(long tripId);
+  
+  /**
+   * Called after a MediaItem was created or updated.
+   * @param item The MediaItem as it was written
+   */
+  void onMediaSaved(MediaItem item);
+  
+  /**
+   * Called after a MediaItem was deleted on its own. MediaItems deleted along
+   * with their Point or Trip are covered by onPointDeleted() and
+   * onTripDeleted().
+   * @param mediaId The id of the deleted MediaItem
+   */
+  void onMediaDeleted(long mediaId);
+}
@@ -0,0 +1,120 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pages through the Points of a Trip in time order, loading the following
+ * page in the background while the current one is displayed. Each call to
+ * nextPage() returns the page that was prefetched by the previous call, so
+ * scrolling a timeline only waits on the database for the first page.
+ * @author ericzeng
+ */
+public class PointPagePrefetcher {
+  private final MapJournalDAO dao;
+  private final long tripId;
+  private final int pageSize;
+  private final ExecutorService executor;
+  
+  private Future<List<Point>> pending;   // The page being prefetched
+  private boolean finished;              // True once the last page is loaded
+  
+  /**
+   * Creates a prefetcher for the Points of a Trip. No query is made until
+   * the first call to nextPage().
+   * @param dao An open DAO to load the Points with
+   * @param tripId The id of the Trip
+   * @param pageSize The number of Points in each page
+   * @param executor The executor that loads pages in the background
+   */
+  public PointPagePrefetcher(MapJournalDAO dao,
+                             long tripId,
+                             int pageSize,
+                             ExecutorService executor) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be positive");
+    }
+    this.dao = dao;
+    this.tripId = tripId;
+    this.pageSize = pageSize;
+    this.executor = executor;
+  }
+  
+  /**
+   * Returns the next page of Points and starts loading the page after it.
+   * Waits if the page has not finished loading yet.
+   * @return The next page, or an empty list once every Point has been
+   *         returned
+   * @throws InterruptedException if interrupted while waiting for the page
+   */
+  public synchronized List<Point> nextPage() throws InterruptedException {
+    if (finished) {
+      return new ArrayList<Point>();
+    }
+    if (pending == null) {
+      pending = load(Long.MIN_VALUE, -1);
+    }
+    
+    List<Point> page;
+    try {
+      page = pending.get();
+    } catch (ExecutionException e) {
+      pending = null;
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+    
+    if (page.size() < pageSize) {
+      finished = true;
+      pending = null;
+    } else {
+      Point last = page.get(page.size() - 1);
+      pending = load(last.getTime(), last.getId());
+    }
+    return page;
+  }
+  
+  /**
+   * Stops prefetching. Later calls to nextPage() return empty pages.
+   */
+  public synchronized void cancel() {
+    finished = true;
+    if (pending != null) {
+      pending.cancel(false);
+      pending = null;
+    }
+  }
+  
+  /**
+   * Helper method to start loading the page after the given Point.
+   */
+  private Future<List<Point>> load(final long afterTime, final long afterId) {
+    return executor.submit(new Callable<List<Point>>() {
+      @Override
+      public List<Point> call() {
+        return dao.getPointsPage(tripId, afterTime, afterId, pageSize);
+      }
+    });
+  }
+}
@@ -0,0 +1,30 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+/**
+ * Callback for MapJournalDAO.forEachPoint(), called once for every Point
+ * read from the database.
+ * @author ericzeng
+ */
+public interface PointVisitor {
+  /**
+   * Called with the next Point. The same instance may be passed to every
+   * call with different data, so copy any values that must outlive the call.
+   * @param point The current Point
+   */
+  void visit(Point point);
+}
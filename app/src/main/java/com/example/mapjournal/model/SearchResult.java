@@ -0,0 +1,65 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package com.example.mapjournal.model;
+
+/**
+ * A Point that matched a full-text search, with a snippet of the matching
+ * text. Returned by MapJournalDAO.search().
+ * @author ericzeng
+ */
+public class SearchResult {
+  private final long pointId;     // Point that matched the search
+  private final String snippet;   // Matching text, with matches in <b> tags
+  private final double score;     // Relevance, higher is better
+  
+  /**
+   * Constructs a new search result.
+   * @param pointId The id of the matching Point
+   * @param snippet An excerpt of the matching text. Matched terms are wrapped
+   *                in &lt;b&gt; tags.
+   * @param score The relevance of the match. Higher scores are better.
+   */
+  public SearchResult(long pointId, String snippet, double score) {
+    this.pointId = pointId;
+    this.snippet = snippet;
+    this.score = score;
+  }
+  
+  /**
+   * Get the id of the matching Point.
+   * @return the id of the matching Point
+   */
+  public long getPointId() {
+    return pointId;
+  }
+  
+  /**
+   * Get the excerpt of the matching text.
+   * @return the excerpt, with matched terms wrapped in &lt;b&gt; tags
+   */
+  public String getSnippet() {
+    return snippet;
+  }
+  
+  /**
+   * Get the relevance of the match.
+   * @return the relevance score. Higher scores are better.
+   */
+  public double getScore() {
+    return score;
+  }
+}
@@ -0,0 +1,192 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Precomputed simplifications of a whole track, one per map zoom level. Each
+ * level keeps the vertices that are visible at that zoom, within a tolerance
+ * in screen pixels, and never more than a fixed number of them, so drawing a
+ * trip costs about the same at every zoom however many fixes it has.
+ * Building the levels runs Douglas-Peucker once; every level is then a prefix
+ * of the vertices ordered by significance.
+ * @author ericzeng
+ */
+public class TrackLevels {
+  /** Lowest zoom level with a precomputed simplification. */
+  public static final int MIN_ZOOM = 0;
+  /** Highest zoom level with a precomputed simplification. */
+  public static final int MAX_ZOOM = 21;
+  
+  // Ground resolution of zoom 0 at the equator, for 256 pixel tiles
+  private static final double EQUATOR_METRES_PER_PIXEL = 156543.03392;
+  
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final int[][] levels;       // Kept vertex indexes for each zoom
+  
+  /**
+   * Builds the levels for a track.
+   * @param latitudes Latitudes of the vertices in degrees
+   * @param longitudes Longitudes of the vertices in degrees
+   * @param count Number of vertices in the arrays
+   * @param maxVertices The most vertices any level may keep, at least 2
+   * @param pixelTolerance The largest allowed error in screen pixels
+   */
+  public TrackLevels(double[] latitudes,
+                     double[] longitudes,
+                     int count,
+                     int maxVertices,
+                     double pixelTolerance) {
+    if (maxVertices < 2) {
+      throw new IllegalArgumentException("maxVertices must be at least 2");
+    }
+    this.latitudes = Arrays.copyOf(latitudes, count);
+    this.longitudes = Arrays.copyOf(longitudes, count);
+    levels = new int[MAX_ZOOM - MIN_ZOOM + 1][];
+    
+    final double[] significance =
+        TrackSimplifier.significance(latitudes, longitudes, count);
+    Integer[] bySignificance = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      bySignificance[i] = i;
+    }
+    Arrays.sort(bySignificance, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(significance[b], significance[a]);
+      }
+    });
+    
+    double latitude = count == 0 ? 0 : (minimum(latitudes, count)
+                                        + maximum(latitudes, count)) / 2;
+    int[] previous = null;
+    for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+      double tolerance = metresPerPixel(zoom, latitude) * pixelTolerance;
+      int kept = 0;
+      while (kept < count && kept < maxVertices
+             && significance[bySignificance[kept]] > tolerance) {
+        kept++;
+      }
+      if (previous != null && previous.length == kept) {
+        // Nothing new appears at this zoom, share the previous level
+        levels[zoom - MIN_ZOOM] = previous;
+        continue;
+      }
+      int[] level = new int[kept];
+      for (int i = 0; i < kept; i++) {
+        level[i] = bySignificance[i];
+      }
+      Arrays.sort(level);
+      levels[zoom - MIN_ZOOM] = level;
+      previous = level;
+    }
+  }
+  
+  /**
+   * Builds the levels for a Trip's recorded track.
+   * @param segments The Trip's track segments, in time order
+   * @param maxVertices The most vertices any level may keep, at least 2
+   * @param pixelTolerance The largest allowed error in screen pixels
+   * @return The levels of the concatenated segments
+   */
+  public static TrackLevels fromSegments(List<TrackSegment> segments,
+                                         int maxVertices,
+                                         double pixelTolerance) {
+    int count = 0;
+    for (TrackSegment segment : segments) {
+      count += segment.size();
+    }
+    double[] latitudes = new double[count];
+    double[] longitudes = new double[count];
+    int i = 0;
+    for (TrackSegment segment : segments) {
+      for (int j = 0; j < segment.size(); j++, i++) {
+        latitudes[i] = segment.getLatitude(j);
+        longitudes[i] = segment.getLongitude(j);
+      }
+    }
+    return new TrackLevels(latitudes, longitudes, count, maxVertices,
+                           pixelTolerance);
+  }
+  
+  /**
+   * Computes the ground distance covered by one screen pixel.
+   * @param zoom The map zoom level
+   * @param latitude The latitude the distance is measured at
+   * @return The size of a pixel in metres
+   */
+  public static double metresPerPixel(int zoom, double latitude) {
+    return EQUATOR_METRES_PER_PIXEL * Math.cos(Math.toRadians(latitude))
+        / (1L << zoom);
+  }
+  
+  /**
+   * Get the vertices to draw at a zoom level. Zooms outside the precomputed
+   * range use the nearest level.
+   * @param zoom The map zoom level
+   * @return The indexes of the vertices, in track order. Do not modify.
+   */
+  public int[] getIndexes(int zoom) {
+    zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+    return levels[zoom - MIN_ZOOM];
+  }
+  
+  /**
+   * Get the number of vertices in the full track.
+   * @return the number of vertices
+   */
+  public int size() {
+    return latitudes.length;
+  }
+  
+  /**
+   * Get the latitude of a vertex.
+   * @param index The index of the vertex in the full track
+   * @return the latitude
+   */
+  public double getLatitude(int index) {
+    return latitudes[index];
+  }
+  
+  /**
+   * Get the longitude of a vertex.
+   * @param index The index of the vertex in the full track
+   * @return the longitude
+   */
+  public double getLongitude(int index) {
+    return longitudes[index];
+  }
+  
+  private static double minimum(double[] values, int count) {
+    double min = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < count; i++) {
+      min = Math.min(min, values[i]);
+    }
+    return min;
+  }
+  
+  private static double maximum(double[] values, int count) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < count; i++) {
+      max = Math.max(max, values[i]);
+    }
+    return max;
+  }
+}
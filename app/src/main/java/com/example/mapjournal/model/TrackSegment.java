@@ -0,0 +1,278 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A run of raw location fixes recorded on a Trip, stored column by column in
+ * primitive arrays instead of as one Point object per fix. In the database a
+ * segment is a single row whose fixes are delta-encoded into a blob, which is
+ * far smaller than a row per fix. Fixes the user wants to annotate can be
+ * turned into full Points with toPoint().
+ * @author ericzeng
+ */
+public class TrackSegment {
+  // Fixed-point scales used by the blob encoding
+  private static final double DEGREES_SCALE = 1e7;   // ~1 cm at the equator
+  private static final float ALTITUDE_SCALE = 10f;   // Decimetres
+  private static final int ENCODING_VERSION = 1;
+  
+  private long id;              // Unique identifier for the segment
+  private long tripId;          // Trip the segment was recorded on
+  private double[] latitudes;
+  private double[] longitudes;
+  private float[] altitudes;
+  private long[] times;         // Time of each fix in milliseconds
+  private int size;             // Number of fixes in the arrays
+  
+  /**
+   * Constructs an empty segment.
+   * @param id The id of the segment. If not retrieving from the database,
+   *           leave id as -1.
+   * @param tripId The id of the Trip the segment belongs to
+   */
+  public TrackSegment(long id, long tripId) {
+    this(id, tripId, 16);
+  }
+  
+  private TrackSegment(long id, long tripId, int capacity) {
+    this.id = id;
+    this.tripId = tripId;
+    latitudes = new double[capacity];
+    longitudes = new double[capacity];
+    altitudes = new float[capacity];
+    times = new long[capacity];
+  }
+  
+  /**
+   * Get the id of the segment.
+   * @return the id of the segment
+   */
+  public long getId() {
+    return id;
+  }
+  
+  /**
+   * Set the id of the segment.
+   * @param newId the new id of the segment
+   */
+  public void setId(long newId) {
+    id = newId;
+  }
+  
+  /**
+   * Get the id of the Trip the segment belongs to.
+   * @return the Trip id
+   */
+  public long getTripId() {
+    return tripId;
+  }
+  
+  /**
+   * Get the number of fixes in the segment.
+   * @return the number of fixes
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Appends a fix to the end of the segment. Fixes should be added in time
+   * order.
+   * @param latitude Latitude of the fix
+   * @param longitude Longitude of the fix
+   * @param altitude Altitude of the fix
+   * @param time Time of the fix in milliseconds since the epoch
+   */
+  public void add(double latitude, double longitude, float altitude, long time) {
+    if (size == times.length) {
+      int capacity = Math.max(16, size * 2);
+      latitudes = Arrays.copyOf(latitudes, capacity);
+      longitudes = Arrays.copyOf(longitudes, capacity);
+      altitudes = Arrays.copyOf(altitudes, capacity);
+      times = Arrays.copyOf(times, capacity);
+    }
+    latitudes[size] = latitude;
+    longitudes[size] = longitude;
+    altitudes[size] = altitude;
+    times[size] = time;
+    size++;
+  }
+  
+  /**
+   * Get the latitude of a fix.
+   * @param index The index of the fix
+   * @return the latitude of the fix
+   */
+  public double getLatitude(int index) {
+    checkIndex(index);
+    return latitudes[index];
+  }
+  
+  /**
+   * Get the longitude of a fix.
+   * @param index The index of the fix
+   * @return the longitude of the fix
+   */
+  public double getLongitude(int index) {
+    checkIndex(index);
+    return longitudes[index];
+  }
+  
+  /**
+   * Get the altitude of a fix.
+   * @param index The index of the fix
+   * @return the altitude of the fix
+   */
+  public float getAltitude(int index) {
+    checkIndex(index);
+    return altitudes[index];
+  }
+  
+  /**
+   * Get the time of a fix.
+   * @param index The index of the fix
+   * @return the time in milliseconds since the epoch
+   */
+  public long getTime(int index) {
+    checkIndex(index);
+    return times[index];
+  }
+  
+  /**
+   * Get the time of the first fix.
+   * @return the time of the first fix, or 0 if the segment is empty
+   */
+  public long getStartTime() {
+    return size == 0 ? 0 : times[0];
+  }
+  
+  /**
+   * Get the time of the last fix.
+   * @return the time of the last fix, or 0 if the segment is empty
+   */
+  public long getEndTime() {
+    return size == 0 ? 0 : times[size - 1];
+  }
+  
+  /**
+   * Creates a Point at the location of a fix, for the user to annotate. The
+   * Point is not added to the database.
+   * @param index The index of the fix
+   * @param title The title of the new Point. Can be null.
+   * @return A new Point with id -1 at the fix's location and time
+   */
+  public Point toPoint(int index, String title) {
+    checkIndex(index);
+    return new Point(-1, title, tripId, latitudes[index], longitudes[index],
+                     altitudes[index], (int) (times[index] / 1000), null, null,
+                     null);
+  }
+  
+  /**
+   * Encodes the fixes into a compact blob. Coordinates are stored to 1e-7
+   * degrees and altitudes to 0.1 m, each as a zigzag varint delta from the
+   * previous fix, so closely spaced fixes take a few bytes each.
+   * @return The encoded fixes
+   */
+  public byte[] encode() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8 + size * 8);
+    writeVarint(out, ENCODING_VERSION);
+    writeVarint(out, size);
+    long lastLat = 0, lastLng = 0, lastAlt = 0, lastTime = 0;
+    for (int i = 0; i < size; i++) {
+      long lat = Math.round(latitudes[i] * DEGREES_SCALE);
+      long lng = Math.round(longitudes[i] * DEGREES_SCALE);
+      long alt = Math.round(altitudes[i] * ALTITUDE_SCALE);
+      writeVarint(out, zigzag(lat - lastLat));
+      writeVarint(out, zigzag(lng - lastLng));
+      writeVarint(out, zigzag(alt - lastAlt));
+      writeVarint(out, zigzag(times[i] - lastTime));
+      lastLat = lat;
+      lastLng = lng;
+      lastAlt = alt;
+      lastTime = times[i];
+    }
+    return out.toByteArray();
+  }
+  
+  /**
+   * Decodes a blob created by encode().
+   * @param id The id of the segment
+   * @param tripId The id of the Trip the segment belongs to
+   * @param data The encoded fixes
+   * @return A segment containing the decoded fixes
+   * @throws IllegalArgumentException if the blob is not a valid encoding
+   */
+  public static TrackSegment decode(long id, long tripId, byte[] data) {
+    int[] position = { 0 };
+    long version = readVarint(data, position);
+    if (version != ENCODING_VERSION) {
+      throw new IllegalArgumentException("Unknown track encoding: " + version);
+    }
+    int count = (int) readVarint(data, position);
+    TrackSegment segment = new TrackSegment(id, tripId, Math.max(1, count));
+    long lat = 0, lng = 0, alt = 0, time = 0;
+    for (int i = 0; i < count; i++) {
+      lat += unzigzag(readVarint(data, position));
+      lng += unzigzag(readVarint(data, position));
+      alt += unzigzag(readVarint(data, position));
+      time += unzigzag(readVarint(data, position));
+      segment.add(lat / DEGREES_SCALE, lng / DEGREES_SCALE,
+                  alt / ALTITUDE_SCALE, time);
+    }
+    return segment;
+  }
+  
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+  
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+  
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+  
+  private static long readVarint(byte[] data, int[] position) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (position[0] >= data.length) {
+        throw new IllegalArgumentException("Truncated track data");
+      }
+      byte b = data[position[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint in track data");
+  }
+}
@@ -0,0 +1,347 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies sequences of locations by dropping vertices that lie within a
+ * tolerance, in metres, of the line that replaces them. simplify() runs
+ * Douglas-Peucker over a whole track; Stream does the same job one fix at a
+ * time as fixes are recorded. Distances use a local flat projection, which is
+ * accurate to well under a percent for the short spans between kept fixes.
+ * @author ericzeng
+ */
+public final class TrackSimplifier {
+  /** Mean radius of the earth in metres. */
+  public static final double EARTH_RADIUS = 6371008.8;
+  
+  private TrackSimplifier() {}
+  
+  /**
+   * Simplifies a track with Douglas-Peucker. Every dropped vertex lies within
+   * the tolerance of the segment between the kept vertices around it. The
+   * first and last vertices are always kept.
+   * @param latitudes Latitudes of the vertices in degrees
+   * @param longitudes Longitudes of the vertices in degrees
+   * @param count Number of vertices in the arrays
+   * @param tolerance The largest allowed error in metres
+   * @return The indexes of the kept vertices, in increasing order
+   */
+  public static int[] simplify(double[] latitudes,
+                               double[] longitudes,
+                               int count,
+                               double tolerance) {
+    double[] significance = significance(latitudes, longitudes, count);
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      if (significance[i] > tolerance) {
+        kept++;
+      }
+    }
+    int[] indexes = new int[kept];
+    kept = 0;
+    for (int i = 0; i < count; i++) {
+      if (significance[i] > tolerance) {
+        indexes[kept++] = i;
+      }
+    }
+    return indexes;
+  }
+  
+  /**
+   * Simplifies the fixes of a track segment.
+   * @param segment The segment to simplify
+   * @param tolerance The largest allowed error in metres
+   * @return A new segment with the kept fixes and the same ids
+   */
+  public static TrackSegment simplify(TrackSegment segment, double tolerance) {
+    int size = segment.size();
+    double[] latitudes = new double[size];
+    double[] longitudes = new double[size];
+    for (int i = 0; i < size; i++) {
+      latitudes[i] = segment.getLatitude(i);
+      longitudes[i] = segment.getLongitude(i);
+    }
+    TrackSegment simplified =
+        new TrackSegment(segment.getId(), segment.getTripId());
+    for (int i : simplify(latitudes, longitudes, size, tolerance)) {
+      simplified.add(segment.getLatitude(i),
+                     segment.getLongitude(i),
+                     segment.getAltitude(i),
+                     segment.getTime(i));
+    }
+    return simplified;
+  }
+  
+  /**
+   * Simplifies a list of Points, for example the Points of a Trip.
+   * @param points The Points in track order
+   * @param tolerance The largest allowed error in metres
+   * @return The kept Points, in the same order
+   */
+  public static List<Point> simplify(List<Point> points, double tolerance) {
+    int size = points.size();
+    double[] latitudes = new double[size];
+    double[] longitudes = new double[size];
+    for (int i = 0; i < size; i++) {
+      latitudes[i] = points.get(i).getLatitude();
+      longitudes[i] = points.get(i).getLongitude();
+    }
+    int[] indexes = simplify(latitudes, longitudes, size, tolerance);
+    List<Point> simplified = new ArrayList<Point>(indexes.length);
+    for (int i : indexes) {
+      simplified.add(points.get(i));
+    }
+    return simplified;
+  }
+  
+  /**
+   * Computes the Douglas-Peucker significance of each vertex: the largest
+   * tolerance at which Douglas-Peucker still keeps it. Simplifying at any
+   * tolerance keeps exactly the vertices whose significance is greater, so
+   * one pass serves every tolerance.
+   * @param latitudes Latitudes of the vertices in degrees
+   * @param longitudes Longitudes of the vertices in degrees
+   * @param count Number of vertices in the arrays
+   * @return The significance of each vertex in metres. The endpoints are
+   *         infinitely significant.
+   */
+  public static double[] significance(double[] latitudes,
+                                      double[] longitudes,
+                                      int count) {
+    double[] significance = new double[count];
+    if (count == 0) {
+      return significance;
+    }
+    significance[0] = Double.POSITIVE_INFINITY;
+    significance[count - 1] = Double.POSITIVE_INFINITY;
+    
+    // Spans still to split, as {first, last, significance of the split that
+    // made them}. An explicit stack keeps long tracks from overflowing the
+    // call stack.
+    int[] spans = new int[64];
+    double[] limits = new double[32];
+    spans[0] = 0;
+    spans[1] = count - 1;
+    limits[0] = Double.POSITIVE_INFINITY;
+    int top = 1;
+    while (top > 0) {
+      top--;
+      int first = spans[2 * top];
+      int last = spans[2 * top + 1];
+      double limit = limits[top];
+      if (last - first < 2) {
+        continue;
+      }
+      
+      int farthest = -1;
+      double maxDistance = -1;
+      for (int i = first + 1; i < last; i++) {
+        double d = distanceToSegment(latitudes[i], longitudes[i],
+                                     latitudes[first], longitudes[first],
+                                     latitudes[last], longitudes[last]);
+        if (d > maxDistance) {
+          maxDistance = d;
+          farthest = i;
+        }
+      }
+      // A vertex is never more significant than the split that exposed it,
+      // so that thresholding significance reproduces Douglas-Peucker
+      double s = Math.min(maxDistance, limit);
+      significance[farthest] = s;
+      
+      if (2 * (top + 2) > spans.length) {
+        int[] newSpans = new int[spans.length * 2];
+        System.arraycopy(spans, 0, newSpans, 0, spans.length);
+        spans = newSpans;
+        double[] newLimits = new double[limits.length * 2];
+        System.arraycopy(limits, 0, newLimits, 0, limits.length);
+        limits = newLimits;
+      }
+      spans[2 * top] = first;
+      spans[2 * top + 1] = farthest;
+      limits[top] = s;
+      top++;
+      spans[2 * top] = farthest;
+      spans[2 * top + 1] = last;
+      limits[top] = s;
+      top++;
+    }
+    return significance;
+  }
+  
+  /**
+   * Computes the distance from a location to the segment between two others.
+   * @return The distance in metres
+   */
+  public static double distanceToSegment(double lat,
+                                         double lng,
+                                         double lat1,
+                                         double lng1,
+                                         double lat2,
+                                         double lng2) {
+    // Project onto a plane tangent at the segment's start, in metres
+    double metresPerDegree = Math.toRadians(EARTH_RADIUS);
+    double cosLat = Math.cos(Math.toRadians(lat1));
+    double x = wrapDegrees(lng - lng1) * cosLat * metresPerDegree;
+    double y = (lat - lat1) * metresPerDegree;
+    double x2 = wrapDegrees(lng2 - lng1) * cosLat * metresPerDegree;
+    double y2 = (lat2 - lat1) * metresPerDegree;
+    
+    double lengthSquared = x2 * x2 + y2 * y2;
+    double t = 0;
+    if (lengthSquared > 0) {
+      t = Math.max(0, Math.min(1, (x * x2 + y * y2) / lengthSquared));
+    }
+    double dx = x - t * x2;
+    double dy = y - t * y2;
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+  
+  /**
+   * Helper method that wraps a longitude difference into [-180, 180), so
+   * segments across the antimeridian are measured the short way round.
+   */
+  private static double wrapDegrees(double degrees) {
+    if (degrees >= 180 || degrees < -180) {
+      degrees -= 360 * Math.floor((degrees + 180) / 360);
+    }
+    return degrees;
+  }
+  
+  /**
+   * Receives the fixes kept by a Stream.
+   */
+  public interface Sink {
+    /**
+     * Called with each kept fix, in order.
+     */
+    void fix(double latitude, double longitude, float altitude, long time);
+  }
+  
+  /**
+   * Simplifies a track as it is recorded. Each fix extends a corridor from
+   * the last kept fix; while every fix since then stays within the tolerance
+   * of the line to the newest fix they are redundant. When a fix would break
+   * the corridor, the fix before it is kept and starts the next corridor.
+   * A fix can only be judged once later fixes arrive, so the stream holds the
+   * most recent fix until flush().
+   * <p>
+   * The corridor is capped at a fixed number of fixes so each fix costs a
+   * bounded amount of work; a long straight run then keeps one fix per
+   * window, which still respects the tolerance.
+   */
+  public static class Stream {
+    private static final int DEFAULT_WINDOW = 128;
+    
+    private final double tolerance;
+    private final Sink sink;
+    
+    // Fixes since the last kept fix. Index 0 is the last kept fix.
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final float[] altitudes;
+    private final long[] times;
+    private int size;
+    private long dropped;
+    
+    /**
+     * Creates a stream.
+     * @param tolerance The largest allowed error in metres
+     * @param sink Receives the kept fixes
+     */
+    public Stream(double tolerance, Sink sink) {
+      this(tolerance, sink, DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Creates a stream.
+     * @param tolerance The largest allowed error in metres
+     * @param sink Receives the kept fixes
+     * @param window The most fixes a single kept segment can replace
+     */
+    public Stream(double tolerance, Sink sink, int window) {
+      if (window < 2) {
+        throw new IllegalArgumentException("Window too small: " + window);
+      }
+      this.tolerance = tolerance;
+      this.sink = sink;
+      latitudes = new double[window + 1];
+      longitudes = new double[window + 1];
+      altitudes = new float[window + 1];
+      times = new long[window + 1];
+    }
+    
+    /**
+     * Adds the next fix of the track.
+     */
+    public void add(double latitude, double longitude, float altitude, long time) {
+      if (size == 0) {
+        // The first fix is always kept
+        sink.fix(latitude, longitude, altitude, time);
+        put(0, latitude, longitude, altitude, time);
+        size = 1;
+        return;
+      }
+      
+      boolean fits = size < latitudes.length;
+      for (int i = 1; fits && i < size; i++) {
+        fits = distanceToSegment(latitudes[i], longitudes[i],
+                                 latitudes[0], longitudes[0],
+                                 latitude, longitude) <= tolerance;
+      }
+      if (!fits && size > 1) {
+        // Keep the previous fix and restart the corridor from it
+        int last = size - 1;
+        sink.fix(latitudes[last], longitudes[last], altitudes[last], times[last]);
+        dropped += size - 2;
+        put(0, latitudes[last], longitudes[last], altitudes[last], times[last]);
+        size = 1;
+      }
+      put(size++, latitude, longitude, altitude, time);
+    }
+    
+    /**
+     * Emits the held fix, which ends the track. Call when recording stops.
+     */
+    public void flush() {
+      if (size > 1) {
+        int last = size - 1;
+        sink.fix(latitudes[last], longitudes[last], altitudes[last], times[last]);
+        dropped += size - 2;
+      }
+      size = 0;
+    }
+    
+    /**
+     * Get the number of fixes dropped so far.
+     * @return the number of dropped fixes
+     */
+    public long getDroppedCount() {
+      return dropped;
+    }
+    
+    private void put(int i, double latitude, double longitude, float altitude,
+                     long time) {
+      latitudes[i] = latitude;
+      longitudes[i] = longitude;
+      altitudes[i] = altitude;
+      times[i] = time;
+    }
+  }
+}
@@ -90,4 +90,13 @@ public class Trip {
   public List<Point> getPoints() {
     return points;
   }
+  
+  /**
+   * Whether the list of Points is in memory, so getPoints() won't query the
+   * database.
+   * @return true if the list of Points is loaded
+   */
+  boolean isPointsLoaded() {
+    return points != null;
+  }
 }
@@ -0,0 +1,277 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+/**
+ * Summary statistics of a Trip: how many Points and MediaItems it has, how
+ * far and how high the path through its Points goes, when it started and
+ * ended, and the box that contains it. The statistics are stored in their own
+ * table and kept up to date by MapJournalDAO as Points and MediaItems change,
+ * so they can be listed without reading any Points.
+ * @author ericzeng
+ */
+public class TripStats {
+  private final Trip trip;          // The trip, without its points
+  private int pointCount;
+  private int mediaCount;
+  private double distance;          // Length of the path in metres
+  private double elevationGain;     // Sum of every climb in metres
+  private int startTime;            // Time of the first point (unix time)
+  private int endTime;              // Time of the last point (unix time)
+  private double minLatitude;
+  private double minLongitude;
+  private double maxLatitude;
+  private double maxLongitude;
+  
+  /**
+   * Constructs the statistics of a Trip with no Points or MediaItems.
+   * @param trip The Trip the statistics describe
+   */
+  TripStats(Trip trip) {
+    this.trip = trip;
+  }
+  
+  /**
+   * Constructs the statistics of a Trip from stored values.
+   * @param trip The Trip the statistics describe
+   * @param pointCount The number of Points in the trip
+   * @param mediaCount The number of MediaItems attached to its Points
+   * @param distance The length of the path through the Points, in metres
+   * @param elevationGain The total climb along the path, in metres
+   * @param startTime The time of the first Point
+   * @param endTime The time of the last Point
+   * @param minLatitude The southern edge of the bounding box
+   * @param minLongitude The western edge of the bounding box
+   * @param maxLatitude The northern edge of the bounding box
+   * @param maxLongitude The eastern edge of the bounding box
+   */
+  TripStats(Trip trip,
+            int pointCount,
+            int mediaCount,
+            double distance,
+            double elevationGain,
+            int startTime,
+            int endTime,
+            double minLatitude,
+            double minLongitude,
+            double maxLatitude,
+            double maxLongitude) {
+    this.trip = trip;
+    this.pointCount = pointCount;
+    this.mediaCount = mediaCount;
+    this.distance = distance;
+    this.elevationGain = elevationGain;
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.minLatitude = minLatitude;
+    this.minLongitude = minLongitude;
+    this.maxLatitude = maxLatitude;
+    this.maxLongitude = maxLongitude;
+  }
+  
+  /**
+   * Get the Trip the statistics describe. Its list of Points is not loaded.
+   * @return the Trip
+   */
+  public Trip getTrip() {
+    return trip;
+  }
+  
+  /**
+   * Get the id of the Trip the statistics describe.
+   * @return the id of the Trip
+   */
+  public long getTripId() {
+    return trip.getId();
+  }
+  
+  /**
+   * Get the number of Points in the Trip.
+   * @return the number of Points
+   */
+  public int getPointCount() {
+    return pointCount;
+  }
+  
+  /**
+   * Get the number of MediaItems attached to the Points of the Trip.
+   * @return the number of MediaItems
+   */
+  public int getMediaCount() {
+    return mediaCount;
+  }
+  
+  /**
+   * Get the length of the path through the Points of the Trip in the order
+   * they were visited, measured along great circles. Recorded TrackSegments
+   * are not counted; the path runs straight from one Point to the next.
+   * @return the distance in metres
+   */
+  public double getDistance() {
+    return distance;
+  }
+  
+  /**
+   * Get the total climb along the path through the Points of the Trip. Only
+   * rises in altitude are counted.
+   * @return the elevation gain in metres
+   */
+  public double getElevationGain() {
+    return elevationGain;
+  }
+  
+  /**
+   * Get the time the first Point of the Trip was visited.
+   * @return the time in POSIX time, or 0 if the Trip has no Points
+   */
+  public int getStartTime() {
+    return startTime;
+  }
+  
+  /**
+   * Get the time the last Point of the Trip was visited.
+   * @return the time in POSIX time, or 0 if the Trip has no Points
+   */
+  public int getEndTime() {
+    return endTime;
+  }
+  
+  /**
+   * Get the time between the first and last Points of the Trip.
+   * @return the duration in seconds
+   */
+  public int getDuration() {
+    return endTime - startTime;
+  }
+  
+  /**
+   * Get the southern edge of the box containing every Point of the Trip.
+   * @return the latitude of the edge, or 0 if the Trip has no Points
+   */
+  public double getMinLatitude() {
+    return minLatitude;
+  }
+  
+  /**
+   * Get the western edge of the box containing every Point of the Trip.
+   * @return the longitude of the edge, or 0 if the Trip has no Points
+   */
+  public double getMinLongitude() {
+    return minLongitude;
+  }
+  
+  /**
+   * Get the northern edge of the box containing every Point of the Trip.
+   * @return the latitude of the edge, or 0 if the Trip has no Points
+   */
+  public double getMaxLatitude() {
+    return maxLatitude;
+  }
+  
+  /**
+   * Get the eastern edge of the box containing every Point of the Trip.
+   * @return the longitude of the edge, or 0 if the Trip has no Points
+   */
+  public double getMaxLongitude() {
+    return maxLongitude;
+  }
+  
+  /**
+   * Counts a new Point, growing the bounding box and time range to include
+   * it.
+   * @param latitude The latitude of the Point
+   * @param longitude The longitude of the Point
+   * @param time The time of the Point
+   * @param distanceChange The change in path length from adding the Point
+   * @param gainChange The change in elevation gain from adding the Point
+   */
+  void addPoint(double latitude,
+                double longitude,
+                int time,
+                double distanceChange,
+                double gainChange) {
+    if (pointCount == 0) {
+      setExtent(latitude, longitude, latitude, longitude, time, time);
+    } else {
+      setExtent(Math.min(minLatitude, latitude),
+                Math.min(minLongitude, longitude),
+                Math.max(maxLatitude, latitude),
+                Math.max(maxLongitude, longitude),
+                Math.min(startTime, time),
+                Math.max(endTime, time));
+    }
+    pointCount++;
+    distance += distanceChange;
+    elevationGain += gainChange;
+  }
+  
+  /**
+   * Uncounts a removed Point. The bounding box and time range can't be shrunk
+   * without looking at the remaining Points, so the caller must reset them
+   * with setExtent() if this returns true.
+   * @param latitude The latitude of the Point
+   * @param longitude The longitude of the Point
+   * @param time The time of the Point
+   * @param distanceChange The change in path length from removing the Point
+   * @param gainChange The change in elevation gain from removing the Point
+   * @return true if the Point was on an edge of the bounding box or time
+   *         range and other Points remain
+   */
+  boolean removePoint(double latitude,
+                      double longitude,
+                      int time,
+                      double distanceChange,
+                      double gainChange) {
+    pointCount--;
+    distance += distanceChange;
+    elevationGain += gainChange;
+    if (pointCount == 0) {
+      // Drop the rounding error left over from the incremental sums
+      distance = 0;
+      elevationGain = 0;
+      setExtent(0, 0, 0, 0, 0, 0);
+      return false;
+    }
+    return latitude == minLatitude || latitude == maxLatitude ||
+           longitude == minLongitude || longitude == maxLongitude ||
+           time == startTime || time == endTime;
+  }
+  
+  /**
+   * Sets the bounding box and time range.
+   */
+  void setExtent(double minLatitude,
+                 double minLongitude,
+                 double maxLatitude,
+                 double maxLongitude,
+                 int startTime,
+                 int endTime) {
+    this.minLatitude = minLatitude;
+    this.minLongitude = minLongitude;
+    this.maxLatitude = maxLatitude;
+    this.maxLongitude = maxLongitude;
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+  
+  /**
+   * Changes the number of MediaItems.
+   * @param change The number of MediaItems added, or negative if removed
+   */
+  void addMedia(int change) {
+    mediaCount += change;
+  }
+}
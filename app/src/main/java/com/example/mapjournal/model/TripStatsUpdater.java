@@ -0,0 +1,507 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import com.example.mapjournal.model.MapJournalDbContract.MediaEntry;
+import com.example.mapjournal.model.MapJournalDbContract.PointEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TripEntry;
+import com.example.mapjournal.model.MapJournalDbContract.TripStatsEntry;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps the TripStats table in step with the Point and Media tables. SQLite
+ * can't compute great-circle distances, so the statistics are maintained here
+ * rather than by triggers, and every change must be made in the same
+ * transaction as the write it accounts for.
+ * <p>
+ * Each change is applied as a delta: a Point only affects the path between
+ * its neighbours in time, which are found with the (TripId, Time) index, so
+ * the cost of a write does not grow with the size of the trip. The bounding
+ * box and time range are recomputed from the trip's Points only when a Point
+ * on their edge is removed.
+ * <p>
+ * Points are read back from the database by id, so pointRemoved() and
+ * mediaRemoved() must be called before the row is deleted or updated, and
+ * pointAdded() and mediaAdded() after it is inserted or updated. The
+ * statistics of a Trip are deleted along with it by the database.
+ * @author ericzeng
+ */
+final class TripStatsUpdater {
+  
+  private static final String POINT_QUERY =
+      "SELECT " +
+        PointEntry.COLUMN_NAME_TRIP + "," +
+        PointEntry.COLUMN_NAME_LATITUDE + "," +
+        PointEntry.COLUMN_NAME_LONGITUDE + "," +
+        PointEntry.COLUMN_NAME_ALTITUDE + "," +
+        PointEntry.COLUMN_NAME_TIME + "," +
+        "(SELECT COUNT(*) FROM " + MediaEntry.TABLE_NAME +
+        " WHERE " + MediaEntry.COLUMN_NAME_POINT_ID + " = ?)" +
+      " FROM " + PointEntry.TABLE_NAME +
+      " WHERE " + PointEntry._ID + " = ?";
+  
+  // The Points just before and just after a given one, in the (Time, _id)
+  // order the trip is visited in. Time bounds the index range; the OR only
+  // breaks ties between points with the same time.
+  private static final String PREVIOUS_QUERY =
+      "SELECT " +
+        PointEntry.COLUMN_NAME_LATITUDE + "," +
+        PointEntry.COLUMN_NAME_LONGITUDE + "," +
+        PointEntry.COLUMN_NAME_ALTITUDE +
+      " FROM " + PointEntry.TABLE_NAME +
+      " WHERE " + PointEntry.COLUMN_NAME_TRIP + " = ? AND " +
+        PointEntry.COLUMN_NAME_TIME + " <= ? AND (" +
+        PointEntry.COLUMN_NAME_TIME + " < ? OR " + PointEntry._ID + " < ?)" +
+      " ORDER BY " + PointEntry.COLUMN_NAME_TIME + " DESC, " +
+        PointEntry._ID + " DESC" +
+      " LIMIT 1";
+  
+  private static final String NEXT_QUERY =
+      "SELECT " +
+        PointEntry.COLUMN_NAME_LATITUDE + "," +
+        PointEntry.COLUMN_NAME_LONGITUDE + "," +
+        PointEntry.COLUMN_NAME_ALTITUDE +
+      " FROM " + PointEntry.TABLE_NAME +
+      " WHERE " + PointEntry.COLUMN_NAME_TRIP + " = ? AND " +
+        PointEntry.COLUMN_NAME_TIME + " >= ? AND (" +
+        PointEntry.COLUMN_NAME_TIME + " > ? OR " + PointEntry._ID + " > ?)" +
+      " ORDER BY " + PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID +
+      " LIMIT 1";
+  
+  // Bounding box and time range of a trip, leaving out one Point
+  private static final String EXTENT_QUERY =
+      "SELECT " +
+        "MIN(" + PointEntry.COLUMN_NAME_LATITUDE + ")," +
+        "MIN(" + PointEntry.COLUMN_NAME_LONGITUDE + ")," +
+        "MAX(" + PointEntry.COLUMN_NAME_LATITUDE + ")," +
+        "MAX(" + PointEntry.COLUMN_NAME_LONGITUDE + ")," +
+        "MIN(" + PointEntry.COLUMN_NAME_TIME + ")," +
+        "MAX(" + PointEntry.COLUMN_NAME_TIME + ")" +
+      " FROM " + PointEntry.TABLE_NAME +
+      " WHERE " + PointEntry.COLUMN_NAME_TRIP + " = ? AND " +
+        PointEntry._ID + " != ?";
+  
+  private static final String TRIP_OF_MEDIA_QUERY =
+      "SELECT p." + PointEntry.COLUMN_NAME_TRIP +
+      " FROM " + MediaEntry.TABLE_NAME + " m" +
+      " INNER JOIN " + PointEntry.TABLE_NAME + " p" +
+        " ON m." + MediaEntry.COLUMN_NAME_POINT_ID + " = p." + PointEntry._ID +
+      " WHERE m." + MediaEntry._ID + " = ?";
+  
+  private static final String STATS_QUERY =
+      "SELECT " +
+        TripStatsEntry.COLUMN_NAME_POINT_COUNT + "," +
+        TripStatsEntry.COLUMN_NAME_MEDIA_COUNT + "," +
+        TripStatsEntry.COLUMN_NAME_DISTANCE + "," +
+        TripStatsEntry.COLUMN_NAME_ELEVATION_GAIN + "," +
+        TripStatsEntry.COLUMN_NAME_START_TIME + "," +
+        TripStatsEntry.COLUMN_NAME_END_TIME + "," +
+        TripStatsEntry.COLUMN_NAME_MIN_LATITUDE + "," +
+        TripStatsEntry.COLUMN_NAME_MIN_LONGITUDE + "," +
+        TripStatsEntry.COLUMN_NAME_MAX_LATITUDE + "," +
+        TripStatsEntry.COLUMN_NAME_MAX_LONGITUDE +
+      " FROM " + TripStatsEntry.TABLE_NAME +
+      " WHERE " + TripStatsEntry.COLUMN_NAME_TRIP + " = ?";
+  
+  private static final String WRITE_STATS =
+      "INSERT OR REPLACE INTO " + TripStatsEntry.TABLE_NAME + "(" +
+        TripStatsEntry.COLUMN_NAME_TRIP + "," +
+        TripStatsEntry.COLUMN_NAME_POINT_COUNT + "," +
+        TripStatsEntry.COLUMN_NAME_MEDIA_COUNT + "," +
+        TripStatsEntry.COLUMN_NAME_DISTANCE + "," +
+        TripStatsEntry.COLUMN_NAME_ELEVATION_GAIN + "," +
+        TripStatsEntry.COLUMN_NAME_START_TIME + "," +
+        TripStatsEntry.COLUMN_NAME_END_TIME + "," +
+        TripStatsEntry.COLUMN_NAME_MIN_LATITUDE + "," +
+        TripStatsEntry.COLUMN_NAME_MIN_LONGITUDE + "," +
+        TripStatsEntry.COLUMN_NAME_MAX_LATITUDE + "," +
+        TripStatsEntry.COLUMN_NAME_MAX_LONGITUDE +
+      ") VALUES (?,?,?,?,?,?,?,?,?,?,?)";
+  
+  private static final String REBUILD_POINTS_QUERY =
+      "SELECT " +
+        PointEntry.COLUMN_NAME_LATITUDE + "," +
+        PointEntry.COLUMN_NAME_LONGITUDE + "," +
+        PointEntry.COLUMN_NAME_ALTITUDE + "," +
+        PointEntry.COLUMN_NAME_TIME +
+      " FROM " + PointEntry.TABLE_NAME +
+      " WHERE " + PointEntry.COLUMN_NAME_TRIP + " = ?" +
+      " ORDER BY " + PointEntry.COLUMN_NAME_TIME + ", " + PointEntry._ID;
+  
+  private static final String REBUILD_MEDIA_QUERY =
+      "SELECT COUNT(*)" +
+      " FROM " + MediaEntry.TABLE_NAME + " m" +
+      " INNER JOIN " + PointEntry.TABLE_NAME + " p" +
+        " ON m." + MediaEntry.COLUMN_NAME_POINT_ID + " = p." + PointEntry._ID +
+      " WHERE p." + PointEntry.COLUMN_NAME_TRIP + " = ?";
+  
+  private final SQLiteDatabase db;
+  
+  // Statements are compiled the first time they are needed
+  private SQLiteStatement writeStats;
+  
+  /**
+   * Creates an updater for the given database. The caller is responsible for
+   * the surrounding transaction and for calling close().
+   * @param db The database to update
+   */
+  TripStatsUpdater(SQLiteDatabase db) {
+    this.db = db;
+  }
+  
+  /**
+   * Counts a Point, and the MediaItems attached to it, in the statistics of
+   * its Trip. Call after the Point has been inserted, or after an update.
+   * @param pointId The id of the Point
+   */
+  void pointAdded(long pointId) {
+    PointRow point = readPoint(pointId);
+    if (point == null) {
+      return;
+    }
+    double[] previous = neighbour(PREVIOUS_QUERY, point, pointId);
+    double[] next = neighbour(NEXT_QUERY, point, pointId);
+    
+    TripStats stats = readStats(point.tripId);
+    stats.addPoint(point.latitude,
+                   point.longitude,
+                   point.time,
+                   distanceChange(previous, point, next),
+                   gainChange(previous, point, next));
+    stats.addMedia(point.mediaCount);
+    writeStats(stats);
+  }
+  
+  /**
+   * Uncounts a Point, and the MediaItems attached to it, from the statistics
+   * of its Trip. Call before the Point is deleted, or before an update.
+   * @param pointId The id of the Point
+   */
+  void pointRemoved(long pointId) {
+    PointRow point = readPoint(pointId);
+    if (point == null) {
+      return;
+    }
+    double[] previous = neighbour(PREVIOUS_QUERY, point, pointId);
+    double[] next = neighbour(NEXT_QUERY, point, pointId);
+    
+    TripStats stats = readStats(point.tripId);
+    boolean onEdge = stats.removePoint(point.latitude,
+                                       point.longitude,
+                                       point.time,
+                                       -distanceChange(previous, point, next),
+                                       -gainChange(previous, point, next));
+    stats.addMedia(-point.mediaCount);
+    if (onEdge) {
+      readExtent(stats, pointId);
+    }
+    writeStats(stats);
+  }
+  
+  /**
+   * Counts a MediaItem in the statistics of the Trip of its Point. Call after
+   * the MediaItem has been inserted, or after an update.
+   * @param mediaId The id of the MediaItem
+   */
+  void mediaAdded(long mediaId) {
+    addMedia(mediaId, 1);
+  }
+  
+  /**
+   * Uncounts a MediaItem from the statistics of the Trip of its Point. Call
+   * before the MediaItem is deleted, or before an update.
+   * @param mediaId The id of the MediaItem
+   */
+  void mediaRemoved(long mediaId) {
+    addMedia(mediaId, -1);
+  }
+  
+  /**
+   * Recomputes the statistics of a Trip from all of its Points, replacing the
+   * stored ones. Used to fill the table when it is created and to repair it.
+   * @param tripId The id of the Trip
+   */
+  void rebuild(long tripId) {
+    String[] tripArgs = { String.valueOf(tripId) };
+    TripStats stats = new TripStats(new Trip(tripId, null, null, null));
+    double[] previous = null;
+    Cursor c = db.rawQuery(REBUILD_POINTS_QUERY, tripArgs);
+    try {
+      while (c.moveToNext()) {
+        double[] current = { c.getDouble(0), c.getDouble(1), c.getDouble(2) };
+        stats.addPoint(current[0],
+                       current[1],
+                       c.getInt(3),
+                       previous == null ? 0 : distance(previous, current),
+                       previous == null ? 0 : gain(previous, current));
+        previous = current;
+      }
+    } finally {
+      c.close();
+    }
+    c = db.rawQuery(REBUILD_MEDIA_QUERY, tripArgs);
+    try {
+      c.moveToFirst();
+      stats.addMedia(c.getInt(0));
+    } finally {
+      c.close();
+    }
+    writeStats(stats);
+  }
+  
+  /**
+   * Recomputes the statistics of every Trip.
+   */
+  void rebuildAll() {
+    Cursor c = db.rawQuery("SELECT " + TripEntry._ID +
+                           " FROM " + TripEntry.TABLE_NAME, null);
+    try {
+      while (c.moveToNext()) {
+        rebuild(c.getLong(0));
+      }
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Releases every compiled statement.
+   */
+  void close() {
+    if (writeStats != null) {
+      writeStats.close();
+    }
+  }
+  
+  /**
+   * Helper method to change the media count of the Trip a MediaItem belongs
+   * to.
+   */
+  private void addMedia(long mediaId, int change) {
+    Cursor c = db.rawQuery(TRIP_OF_MEDIA_QUERY,
+                           new String[] { String.valueOf(mediaId) });
+    long tripId;
+    try {
+      if (!c.moveToFirst()) {
+        return;
+      }
+      tripId = c.getLong(0);
+    } finally {
+      c.close();
+    }
+    TripStats stats = readStats(tripId);
+    stats.addMedia(change);
+    writeStats(stats);
+  }
+  
+  /**
+   * Helper method to read the columns of a Point that the statistics use.
+   * @return The Point, or null if there is no such Point
+   */
+  private PointRow readPoint(long pointId) {
+    String id = String.valueOf(pointId);
+    Cursor c = db.rawQuery(POINT_QUERY, new String[] { id, id });
+    try {
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      return new PointRow(c.getLong(0),
+                          c.getDouble(1),
+                          c.getDouble(2),
+                          c.getDouble(3),
+                          c.getInt(4),
+                          c.getInt(5));
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Helper method to find the Point just before or just after the given one.
+   * @param sql PREVIOUS_QUERY or NEXT_QUERY
+   * @return The latitude, longitude and altitude of the neighbour, or null if
+   *         the Point is first or last
+   */
+  private double[] neighbour(String sql, PointRow point, long pointId) {
+    String time = String.valueOf(point.time);
+    Cursor c = db.rawQuery(sql, new String[] { String.valueOf(point.tripId),
+                                               time,
+                                               time,
+                                               String.valueOf(pointId) });
+    try {
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      return new double[] { c.getDouble(0), c.getDouble(1), c.getDouble(2) };
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Helper method to read the stored statistics of a Trip.
+   * @return The statistics, or empty statistics if none are stored
+   */
+  private TripStats readStats(long tripId) {
+    Trip trip = new Trip(tripId, null, null, null);
+    Cursor c = db.rawQuery(STATS_QUERY,
+                           new String[] { String.valueOf(tripId) });
+    try {
+      if (!c.moveToFirst()) {
+        return new TripStats(trip);
+      }
+      return new TripStats(trip,
+                           c.getInt(0),
+                           c.getInt(1),
+                           c.getDouble(2),
+                           c.getDouble(3),
+                           c.getInt(4),
+                           c.getInt(5),
+                           c.getDouble(6),
+                           c.getDouble(7),
+                           c.getDouble(8),
+                           c.getDouble(9));
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Helper method to reset the bounding box and time range of a Trip from
+   * its Points, leaving out the given one.
+   */
+  private void readExtent(TripStats stats, long excludedPointId) {
+    Cursor c = db.rawQuery(EXTENT_QUERY,
+                           new String[] { String.valueOf(stats.getTripId()),
+                                          String.valueOf(excludedPointId) });
+    try {
+      c.moveToFirst();
+      stats.setExtent(c.getDouble(0),
+                      c.getDouble(1),
+                      c.getDouble(2),
+                      c.getDouble(3),
+                      c.getInt(4),
+                      c.getInt(5));
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Helper method to store the statistics of a Trip, replacing any stored
+   * ones.
+   */
+  private void writeStats(TripStats stats) {
+    if (writeStats == null) {
+      writeStats = db.compileStatement(WRITE_STATS);
+    }
+    writeStats.bindLong(1, stats.getTripId());
+    writeStats.bindLong(2, stats.getPointCount());
+    writeStats.bindLong(3, stats.getMediaCount());
+    writeStats.bindDouble(4, stats.getDistance());
+    writeStats.bindDouble(5, stats.getElevationGain());
+    writeStats.bindLong(6, stats.getStartTime());
+    writeStats.bindLong(7, stats.getEndTime());
+    writeStats.bindDouble(8, stats.getMinLatitude());
+    writeStats.bindDouble(9, stats.getMinLongitude());
+    writeStats.bindDouble(10, stats.getMaxLatitude());
+    writeStats.bindDouble(11, stats.getMaxLongitude());
+    writeStats.executeInsert();
+  }
+  
+  /**
+   * Helper method for the change in path length from putting a Point between
+   * its neighbours, either of which may be null.
+   */
+  private static double distanceChange(double[] previous,
+                                       PointRow point,
+                                       double[] next) {
+    double[] current = point.location();
+    double change = 0;
+    if (previous != null) {
+      change += distance(previous, current);
+    }
+    if (next != null) {
+      change += distance(current, next);
+    }
+    if (previous != null && next != null) {
+      change -= distance(previous, next);
+    }
+    return change;
+  }
+  
+  /**
+   * Helper method for the change in elevation gain from putting a Point
+   * between its neighbours, either of which may be null.
+   */
+  private static double gainChange(double[] previous,
+                                   PointRow point,
+                                   double[] next) {
+    double[] current = point.location();
+    double change = 0;
+    if (previous != null) {
+      change += gain(previous, current);
+    }
+    if (next != null) {
+      change += gain(current, next);
+    }
+    if (previous != null && next != null) {
+      change -= gain(previous, next);
+    }
+    return change;
+  }
+  
+  private static double distance(double[] from, double[] to) {
+    return PointIndex.distance(from[0], from[1], to[0], to[1]);
+  }
+  
+  private static double gain(double[] from, double[] to) {
+    return Math.max(0, to[2] - from[2]);
+  }
+  
+  /**
+   * The columns of a Point row that the statistics use.
+   */
+  private static class PointRow {
+    final long tripId;
+    final double latitude;
+    final double longitude;
+    final double altitude;
+    final int time;
+    final int mediaCount;
+    
+    PointRow(long tripId,
+             double latitude,
+             double longitude,
+             double altitude,
+             int time,
+             int mediaCount) {
+      this.tripId = tripId;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.altitude = altitude;
+      this.time = time;
+      this.mediaCount = mediaCount;
+    }
+    
+    double[] location() {
+      return new double[] { latitude, longitude, altitude };
+    }
+  }
+}
@@ -0,0 +1,306 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.service;
+
+import com.example.mapjournal.model.BatchWriter;
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.TrackSegment;
+import com.example.mapjournal.model.TrackSimplifier;
+import com.example.mapjournal.model.Trip;
+
+import android.util.Log;
+
+/**
+ * Buffers location fixes in a bounded ring buffer and writes them to the
+ * database from a background thread. Fixes are flushed as a TrackSegment
+ * once a batch is full or the oldest buffered fix has waited for the flush
+ * interval, so a crash loses at most the fixes of one unflushed batch.
+ * offer() never blocks or touches the database and is safe to call from the
+ * main thread. When the writer falls behind and the buffer is full, new fixes
+ * are rejected rather than letting memory grow. With simplifyWithin(),
+ * redundant fixes are dropped before they reach the buffer.
+ * @author ericzeng
+ */
+public class TrackRecorder {
+  private static final String TAG = "TrackRecorder";
+  
+  /**
+   * Told when the recorder saves a Trip that had not been saved yet.
+   */
+  public interface TripListener {
+    /**
+     * Called on the writer thread once the Trip has its id, before any fix
+     * is written to it.
+     * @param trip The saved Trip
+     */
+    void onTripCreated(Trip trip);
+  }
+  
+  private final MapJournalDAO dao;
+  private final Trip trip;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final Thread writerThread;
+  
+  // Ring buffer of fixes, guarded by this
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final float[] altitudes;
+  private final long[] times;
+  private int head;               // Index of the oldest buffered fix
+  private int count;              // Number of buffered fixes
+  private long oldestOfferedAt;   // Uptime when the oldest fix was offered
+  private long dropped;           // Fixes rejected because the buffer was full
+  private boolean stopping;
+  private TrackSimplifier.Stream simplifier;
+  private boolean lastBuffered;   // Whether the simplifier's last fix fit
+  private TripListener tripListener;
+  
+  /**
+   * Creates a recorder. Call start() to begin writing.
+   * @param dao The DAO to write with. The recorder opens and closes it on the
+   *            writer thread.
+   * @param trip The Trip being recorded. If it has not been saved yet
+   *             (its id is negative) it is created on the writer thread.
+   * @param capacity The maximum number of fixes waiting to be written
+   * @param batchSize The number of fixes written in each transaction
+   * @param flushIntervalMillis The longest a fix waits before being written
+   */
+  public TrackRecorder(MapJournalDAO dao,
+                       Trip trip,
+                       int capacity,
+                       int batchSize,
+                       long flushIntervalMillis) {
+    if (batchSize < 1 || capacity < batchSize) {
+      throw new IllegalArgumentException(
+          "Need 0 < batchSize <= capacity: " + batchSize + ", " + capacity);
+    }
+    this.dao = dao;
+    this.trip = trip;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    latitudes = new double[capacity];
+    longitudes = new double[capacity];
+    altitudes = new float[capacity];
+    times = new long[capacity];
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, TAG);
+  }
+  
+  /**
+   * Drops fixes that lie within a tolerance of the line through the fixes
+   * that are kept. Call before start().
+   * @param tolerance The largest allowed error in metres
+   */
+  public synchronized void simplifyWithin(double tolerance) {
+    simplifier = new TrackSimplifier.Stream(tolerance,
+                                            new TrackSimplifier.Sink() {
+      @Override
+      public void fix(double latitude,
+                      double longitude,
+                      float altitude,
+                      long time) {
+        lastBuffered = buffer(latitude, longitude, altitude, time);
+      }
+    });
+  }
+  
+  /**
+   * Sets the listener told when an unsaved Trip is created. Call before
+   * start().
+   * @param listener The listener, or null for none
+   */
+  public synchronized void setTripListener(TripListener listener) {
+    tripListener = listener;
+  }
+  
+  /**
+   * Starts the writer thread.
+   */
+  public void start() {
+    writerThread.start();
+  }
+  
+  /**
+   * Adds a fix to the buffer without blocking.
+   * @param latitude Latitude of the fix
+   * @param longitude Longitude of the fix
+   * @param altitude Altitude of the fix
+   * @param time Time of the fix in milliseconds since the epoch
+   * @return false if the fix was rejected because the buffer is full or the
+   *         recorder is stopping
+   */
+  public synchronized boolean offer(double latitude,
+                                    double longitude,
+                                    float altitude,
+                                    long time) {
+    if (stopping) {
+      return false;
+    }
+    if (simplifier == null) {
+      return buffer(latitude, longitude, altitude, time);
+    }
+    lastBuffered = true;
+    simplifier.add(latitude, longitude, altitude, time);
+    return lastBuffered;
+  }
+  
+  /**
+   * Helper method that appends a fix to the ring buffer. Must hold the lock.
+   */
+  private boolean buffer(double latitude,
+                         double longitude,
+                         float altitude,
+                         long time) {
+    if (count == times.length) {
+      dropped++;
+      notify();
+      return false;
+    }
+    int tail = (head + count) % times.length;
+    latitudes[tail] = latitude;
+    longitudes[tail] = longitude;
+    altitudes[tail] = altitude;
+    times[tail] = time;
+    if (count == 0) {
+      oldestOfferedAt = System.nanoTime();
+    }
+    count++;
+    if (count >= batchSize) {
+      notify();
+    }
+    return true;
+  }
+  
+  /**
+   * Get the number of fixes rejected because the buffer was full.
+   * @return the number of dropped fixes
+   */
+  public synchronized long getDroppedCount() {
+    return dropped;
+  }
+  
+  /**
+   * Asks the writer thread to flush every buffered fix and finish. Returns
+   * without waiting; use awaitTermination() to wait.
+   */
+  public synchronized void stop() {
+    if (simplifier != null && !stopping) {
+      // The last fix of the track is always kept
+      simplifier.flush();
+    }
+    stopping = true;
+    notify();
+  }
+  
+  /**
+   * Waits for the writer thread to finish after stop().
+   * @param timeoutMillis The longest time to wait
+   * @return true if the writer thread has finished
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitTermination(long timeoutMillis)
+      throws InterruptedException {
+    writerThread.join(timeoutMillis);
+    return !writerThread.isAlive();
+  }
+  
+  /**
+   * Body of the writer thread: waits for a full batch, the flush interval or
+   * stop(), and writes what is buffered.
+   */
+  private void writeLoop() {
+    dao.open();
+    try {
+      if (trip.getId() < 0) {
+        dao.createTrip(trip);
+        TripListener listener;
+        synchronized (this) {
+          listener = tripListener;
+        }
+        if (listener != null) {
+          listener.onTripCreated(trip);
+        }
+      }
+      TrackSegment batch;
+      while ((batch = takeBatch()) != null) {
+        write(batch);
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Writer interrupted, unflushed fixes are lost");
+    } finally {
+      dao.close();
+    }
+  }
+  
+  /**
+   * Helper method that waits until a batch should be written and removes it
+   * from the buffer.
+   * @return The next batch, or null once stopped and empty
+   */
+  private synchronized TrackSegment takeBatch() throws InterruptedException {
+    while (true) {
+      if (count >= batchSize || (stopping && count > 0)) {
+        break;
+      }
+      if (stopping) {
+        return null;
+      }
+      if (count == 0) {
+        wait();
+        continue;
+      }
+      long waitedMillis = (System.nanoTime() - oldestOfferedAt) / 1000000;
+      if (waitedMillis >= flushIntervalMillis) {
+        break;
+      }
+      wait(flushIntervalMillis - waitedMillis);
+    }
+    
+    int n = Math.min(count, batchSize);
+    TrackSegment batch = new TrackSegment(-1, trip.getId());
+    for (int i = 0; i < n; i++) {
+      int index = (head + i) % times.length;
+      batch.add(latitudes[index], longitudes[index], altitudes[index],
+                times[index]);
+    }
+    head = (head + n) % times.length;
+    count -= n;
+    oldestOfferedAt = System.nanoTime();
+    return batch;
+  }
+  
+  /**
+   * Helper method that writes one batch in its own transaction.
+   */
+  private void write(final TrackSegment batch) {
+    try {
+      dao.writeBatch(new BatchWriter.Job() {
+        @Override
+        public void run(BatchWriter writer) {
+          writer.insertTrackSegment(batch);
+        }
+      });
+    } catch (RuntimeException e) {
+      // Keep recording; a failed batch is lost like a crashed one
+      Log.e(TAG, "Failed to write " + batch.size() + " fixes", e);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.service;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.Trip;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationListener;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Records the device's track in the background. Location fixes from the
+ * fused location provider are handed to a TrackRecorder, which writes them to
+ * the database on its own thread, so neither this service nor the UI touches
+ * the database on the main thread.
+ * <p>
+ * Whether a track is being recorded, and into which Trip, is kept in
+ * SharedPreferences rather than in the UI. The service is sticky, so if the
+ * process is killed while recording the system restarts it and it carries
+ * on with the same Trip. isRecording() reads the state for the UI, which
+ * survives rotation and process death the same way.
+ * @author ericzeng
+ */
+public class TrackRecorderService extends Service implements
+    GoogleApiClient.ConnectionCallbacks,
+    GoogleApiClient.OnConnectionFailedListener,
+    LocationListener {
+  private static final String TAG = "TrackRecorderService";
+  
+  /** Intent extra with the id of the Trip to record into. */
+  public static final String EXTRA_TRIP_ID =
+      "com.example.mapjournal.extra.TRIP_ID";
+  
+  // Recording state, kept until the service is stopped
+  private static final String PREFS_NAME = "TrackRecorderService";
+  private static final String PREF_RECORDING = "recording";
+  private static final String PREF_TRIP_ID = "tripId";
+  
+  private static final long UPDATE_INTERVAL = 1000;
+  private static final long FASTEST_UPDATE_INTERVAL = 500;
+  
+  // One minute of fixes per transaction, at most ten minutes buffered
+  private static final int BATCH_SIZE = 60;
+  private static final int BUFFER_CAPACITY = 600;
+  private static final long FLUSH_INTERVAL = 30 * 1000;
+  
+  // Fixes closer than this to the simplified track are not stored
+  private static final double TOLERANCE_METRES = 3;
+  
+  private GoogleApiClient googleApiClient;
+  private TrackRecorder recorder;
+  
+  /**
+   * Checks whether a track is being recorded. Stays true across process
+   * death until stop() is called.
+   * @param context Any context of the app
+   * @return true if the service was started and not stopped
+   */
+  public static boolean isRecording(Context context) {
+    return prefs(context).getBoolean(PREF_RECORDING, false);
+  }
+  
+  /**
+   * Starts recording into a new Trip. If a recording was interrupted by the
+   * process dying, it continues in its Trip instead.
+   * @param context The context to start the service from
+   */
+  public static void start(Context context) {
+    prefs(context).edit().putBoolean(PREF_RECORDING, true).apply();
+    context.startService(new Intent(context, TrackRecorderService.class));
+  }
+  
+  /**
+   * Starts recording into an existing Trip.
+   * @param context The context to start the service from
+   * @param tripId The id of the Trip to add the track to
+   */
+  public static void start(Context context, long tripId) {
+    Intent intent = new Intent(context, TrackRecorderService.class);
+    intent.putExtra(EXTRA_TRIP_ID, tripId);
+    prefs(context).edit().putBoolean(PREF_RECORDING, true).apply();
+    context.startService(intent);
+  }
+  
+  /**
+   * Stops recording. Buffered fixes are still written.
+   * @param context The context to stop the service from
+   */
+  public static void stop(Context context) {
+    prefs(context).edit().remove(PREF_RECORDING).remove(PREF_TRIP_ID).apply();
+    context.stopService(new Intent(context, TrackRecorderService.class));
+  }
+  
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (recorder != null) {
+      // Already recording
+      return START_STICKY;
+    }
+    
+    SharedPreferences prefs = prefs(this);
+    long tripId;
+    if (intent != null && intent.hasExtra(EXTRA_TRIP_ID)) {
+      tripId = intent.getLongExtra(EXTRA_TRIP_ID, -1);
+    } else if (prefs.getBoolean(PREF_RECORDING, false)) {
+      // Carry on with the Trip of a recording the process died during, or
+      // start a new one if it never got that far
+      tripId = prefs.getLong(PREF_TRIP_ID, -1);
+    } else if (intent == null) {
+      // Restarted after recording was stopped
+      stopSelf(startId);
+      return START_NOT_STICKY;
+    } else {
+      tripId = -1;
+    }
+    prefs.edit()
+        .putBoolean(PREF_RECORDING, true)
+        .putLong(PREF_TRIP_ID, tripId)
+        .apply();
+    
+    Trip trip;
+    if (tripId < 0) {
+      String now = DateFormat.getDateTimeInstance().format(new Date());
+      trip = new Trip(-1, "Track " + now, "", null);
+    } else {
+      trip = new Trip(tripId, null, null, null);
+    }
+    recorder = new TrackRecorder(new MapJournalDAO(this),
+                                 trip,
+                                 BUFFER_CAPACITY,
+                                 BATCH_SIZE,
+                                 FLUSH_INTERVAL);
+    recorder.simplifyWithin(TOLERANCE_METRES);
+    recorder.setTripListener(new TrackRecorder.TripListener() {
+      @Override
+      public void onTripCreated(Trip trip) {
+        prefs(TrackRecorderService.this).edit()
+            .putLong(PREF_TRIP_ID, trip.getId())
+            .apply();
+      }
+    });
+    recorder.start();
+    
+    googleApiClient = new GoogleApiClient.Builder(this)
+        .addApi(LocationServices.API)
+        .addConnectionCallbacks(this)
+        .addOnConnectionFailedListener(this)
+        .build();
+    googleApiClient.connect();
+    return START_STICKY;
+  }
+  
+  @Override
+  public void onDestroy() {
+    if (googleApiClient != null) {
+      if (googleApiClient.isConnected()) {
+        LocationServices.FusedLocationApi.removeLocationUpdates(
+            googleApiClient, this);
+      }
+      googleApiClient.disconnect();
+      googleApiClient = null;
+    }
+    if (recorder != null) {
+      // The writer thread flushes the rest of the buffer and closes the DAO
+      recorder.stop();
+      recorder = null;
+    }
+    prefs(this).edit()
+        .remove(PREF_RECORDING)
+        .remove(PREF_TRIP_ID)
+        .apply();
+    super.onDestroy();
+  }
+  
+  @Override
+  public IBinder onBind(Intent intent) {
+    return null;
+  }
+  
+  @Override
+  public void onConnected(Bundle connectionHint) {
+    LocationRequest request = LocationRequest.create()
+        .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
+        .setInterval(UPDATE_INTERVAL)
+        .setFastestInterval(FASTEST_UPDATE_INTERVAL);
+    LocationServices.FusedLocationApi.requestLocationUpdates(
+        googleApiClient, request, this);
+  }
+  
+  @Override
+  public void onConnectionSuspended(int cause) {
+    Log.w(TAG, "Location client suspended: " + cause);
+  }
+  
+  @Override
+  public void onConnectionFailed(ConnectionResult connectionResult) {
+    Log.e(TAG, "Location client failed: " + connectionResult.getErrorCode());
+    stopSelf();
+  }
+  
+  @Override
+  public void onLocationChanged(Location location) {
+    if (recorder != null && !recorder.offer(location.getLatitude(),
+                                            location.getLongitude(),
+                                            (float) location.getAltitude(),
+                                            location.getTime())) {
+      Log.w(TAG, "Track buffer full, dropped a fix");
+    }
+  }
+  
+  /**
+   * Helper method to get the preferences that hold the recording state.
+   */
+  private static SharedPreferences prefs(Context context) {
+    return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+}
@@ -0,0 +1,217 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.tile;
+
+/**
+ * Conversions between coordinates and the tiles of the Web Mercator tile
+ * pyramid used by Google Maps and OpenStreetMap. At zoom z the world is
+ * 2^z by 2^z tiles, numbered from the north-west corner.
+ * <p>
+ * A tile is often passed around as a single long holding its zoom, x and
+ * y; see pack().
+ * @author ericzeng
+ */
+public final class TileMath {
+  /** Deepest zoom level a packed tile can hold. */
+  public static final int MAX_ZOOM = 28;
+  
+  /** Latitude at which the Web Mercator projection is cut off. */
+  public static final double MAX_LATITUDE = 85.0511287798;
+  
+  private static final int COORD_BITS = 28;
+  private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+  
+  private TileMath() {
+  }
+  
+  /**
+   * Get the column of the tile that holds a longitude.
+   * @param lng The longitude, between -180 and 180
+   * @param zoom The zoom level
+   * @return the tile column, between 0 and 2^zoom - 1
+   */
+  public static int tileX(double lng, int zoom) {
+    int n = 1 << zoom;
+    int x = (int) Math.floor((lng + 180.0) / 360.0 * n);
+    return Math.max(0, Math.min(n - 1, x));
+  }
+  
+  /**
+   * Get the row of the tile that holds a latitude. Latitudes beyond
+   * MAX_LATITUDE fall in the first or last row.
+   * @param lat The latitude, between -90 and 90
+   * @param zoom The zoom level
+   * @return the tile row, between 0 and 2^zoom - 1
+   */
+  public static int tileY(double lat, int zoom) {
+    int n = 1 << zoom;
+    double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat));
+    double rad = Math.toRadians(clamped);
+    double y = (1.0 - Math.log(Math.tan(rad) + 1.0 / Math.cos(rad)) / Math.PI)
+               / 2.0 * n;
+    return Math.max(0, Math.min(n - 1, (int) Math.floor(y)));
+  }
+  
+  /**
+   * Get the longitude of the western edge of a tile column.
+   * @param x The tile column
+   * @param zoom The zoom level
+   * @return the longitude
+   */
+  public static double tileLongitude(int x, int zoom) {
+    return x / (double) (1 << zoom) * 360.0 - 180.0;
+  }
+  
+  /**
+   * Get the latitude of the northern edge of a tile row.
+   * @param y The tile row
+   * @param zoom The zoom level
+   * @return the latitude
+   */
+  public static double tileLatitude(int y, int zoom) {
+    double n = Math.PI - 2.0 * Math.PI * y / (1 << zoom);
+    return Math.toDegrees(Math.atan(Math.sinh(n)));
+  }
+  
+  /**
+   * Packs a tile into a long: the zoom in the top bits, then the column,
+   * then the row. Packed tiles sort by zoom, then column, then row.
+   * @param zoom The zoom level, up to MAX_ZOOM
+   * @param x The tile column
+   * @param y The tile row
+   * @return the packed tile
+   */
+  public static long pack(int zoom, int x, int y) {
+    if (zoom < 0 || zoom > MAX_ZOOM) {
+      throw new IllegalArgumentException("Invalid zoom: " + zoom);
+    }
+    return ((long) zoom << (2 * COORD_BITS)) | ((long) x << COORD_BITS) | y;
+  }
+  
+  /**
+   * Get the zoom level of a packed tile.
+   * @param tile The packed tile
+   * @return the zoom level
+   */
+  public static int zoom(long tile) {
+    return (int) (tile >>> (2 * COORD_BITS));
+  }
+  
+  /**
+   * Get the column of a packed tile.
+   * @param tile The packed tile
+   * @return the tile column
+   */
+  public static int x(long tile) {
+    return (int) ((tile >>> COORD_BITS) & COORD_MASK);
+  }
+  
+  /**
+   * Get the row of a packed tile.
+   * @param tile The packed tile
+   * @return the tile row
+   */
+  public static int y(long tile) {
+    return (int) (tile & COORD_MASK);
+  }
+  
+  /**
+   * Counts the tiles covering a bounding box at every zoom level in a
+   * range, without listing them. A box whose western edge is east of its
+   * eastern edge crosses the antimeridian.
+   * @param minLat Southern edge of the box
+   * @param minLng Western edge of the box
+   * @param maxLat Northern edge of the box
+   * @param maxLng Eastern edge of the box
+   * @param minZoom The shallowest zoom level
+   * @param maxZoom The deepest zoom level
+   * @return the number of tiles
+   */
+  public static long countTiles(double minLat,
+                                double minLng,
+                                double maxLat,
+                                double maxLng,
+                                int minZoom,
+                                int maxZoom) {
+    long count = 0;
+    for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+      long columns = columns(minLng, maxLng, zoom);
+      long rows = tileY(minLat, zoom) - tileY(maxLat, zoom) + 1;
+      count += columns * rows;
+    }
+    return count;
+  }
+  
+  /**
+   * Lists the tiles covering a bounding box at every zoom level in a range,
+   * shallowest zoom first, so that a partial download still covers the
+   * whole box at some zoom. A box whose western edge is east of its eastern
+   * edge crosses the antimeridian.
+   * @param minLat Southern edge of the box
+   * @param minLng Western edge of the box
+   * @param maxLat Northern edge of the box
+   * @param maxLng Eastern edge of the box
+   * @param minZoom The shallowest zoom level
+   * @param maxZoom The deepest zoom level
+   * @return the packed tiles
+   * @throws IllegalArgumentException if there are more than
+   *         Integer.MAX_VALUE tiles
+   */
+  public static long[] coveringTiles(double minLat,
+                                     double minLng,
+                                     double maxLat,
+                                     double maxLng,
+                                     int minZoom,
+                                     int maxZoom) {
+    long count = countTiles(minLat, minLng, maxLat, maxLng, minZoom, maxZoom);
+    if (count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many tiles: " + count);
+    }
+    long[] tiles = new long[(int) count];
+    int i = 0;
+    for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+      int n = 1 << zoom;
+      int minX = tileX(minLng, zoom);
+      int minY = tileY(maxLat, zoom);
+      int maxY = tileY(minLat, zoom);
+      // Across the antimeridian the columns run to the east edge of the
+      // world and continue from the west edge
+      int columns = columns(minLng, maxLng, zoom);
+      for (int column = 0; column < columns; column++) {
+        int x = (minX + column) % n;
+        for (int y = minY; y <= maxY; y++) {
+          tiles[i++] = pack(zoom, x, y);
+        }
+      }
+    }
+    return tiles;
+  }
+  
+  /**
+   * Helper method to count the tile columns between two longitudes at a
+   * zoom level. If the western longitude is east of the eastern one, the
+   * columns wrap around the antimeridian, and are capped at the width of
+   * the world where the two sides meet in one tile.
+   */
+  private static int columns(double minLng, double maxLng, int zoom) {
+    int n = 1 << zoom;
+    int columns = tileX(maxLng, zoom) - tileX(minLng, zoom) + 1;
+    if (minLng > maxLng) {
+      columns = Math.min(n, columns + n);
+    }
+    return columns;
+  }
+}
@@ -0,0 +1,445 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.tile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointVisitor;
+import com.example.mapjournal.model.TrackSegment;
+import com.example.mapjournal.model.TrackSegmentVisitor;
+
+/**
+ * Downloads map tiles into a TileStore so they can be shown offline. Tiles
+ * come from a tile server given as a URL template such as
+ * "https://tile.example.com/{z}/{x}/{y}.png", and are downloaded on a small
+ * pool of threads. Tiles already in the store are skipped.
+ * <p>
+ * The OpenStreetMap Foundation's servers forbid bulk downloading, so
+ * prefetch() refuses to run against tile.openstreetmap.org; only fetch(),
+ * for tiles the map is showing, may use them. Every request carries a
+ * User-Agent naming the app, as the usage policies of public tile servers
+ * ask.
+ * <p>
+ * prefetch() runs on the calling thread, which should not be the main
+ * thread, until every tile is done. It can be cancelled from any thread.
+ * @author ericzeng
+ */
+public class TilePrefetcher {
+  /**
+   * Default number of download threads. Public tile servers usually ask
+   * clients to keep to two connections.
+   */
+  public static final int DEFAULT_THREADS = 2;
+  
+  /** Most tiles a single prefetch may download. */
+  public static final int MAX_TILES = 20000;
+  
+  // Share of a trip's bounding box added on each side, so the map around
+  // the first and last points is cached too
+  private static final double PADDING = 0.1;
+  private static final int TIMEOUT = 15000;   // Milliseconds
+  private static final String USER_AGENT = "MapJournal";
+  
+  // Tile servers that forbid bulk downloads
+  private static final String OSM_HOST = "tile.openstreetmap.org";
+  
+  private static final int FETCHED = 0;
+  private static final int CACHED = 1;
+  private static final int FAILED = 2;
+  
+  /**
+   * Receives the progress of a prefetch on the prefetching thread.
+   */
+  public interface ProgressListener {
+    /**
+     * Called after each tile is done.
+     * @param done Tiles done so far, including failures
+     * @param total Tiles in the prefetch
+     */
+    void onProgress(int done, int total);
+  }
+  
+  /**
+   * What a prefetch did.
+   */
+  public static class Result {
+    private final int fetchedCount;
+    private final int cachedCount;
+    private final int failedCount;
+    
+    Result(int fetchedCount, int cachedCount, int failedCount) {
+      this.fetchedCount = fetchedCount;
+      this.cachedCount = cachedCount;
+      this.failedCount = failedCount;
+    }
+    
+    /**
+     * Get the number of tiles downloaded.
+     * @return the number of tiles downloaded
+     */
+    public int getFetchedCount() {
+      return fetchedCount;
+    }
+    
+    /**
+     * Get the number of tiles that were already in the store.
+     * @return the number of tiles skipped
+     */
+    public int getCachedCount() {
+      return cachedCount;
+    }
+    
+    /**
+     * Get the number of tiles that could not be downloaded.
+     * @return the number of failed tiles
+     */
+    public int getFailedCount() {
+      return failedCount;
+    }
+  }
+  
+  private final TileStore store;
+  private final String urlTemplate;
+  private final int threads;
+  private final boolean bulkAllowed;
+  private String userAgent = USER_AGENT;
+  private ProgressListener progressListener;
+  private volatile boolean cancelled;
+  
+  /**
+   * Creates a prefetcher with DEFAULT_THREADS download threads.
+   * @param store The store to download into
+   * @param urlTemplate The tile server's URL, with {z}, {x} and {y} in place
+   *                    of the zoom, column and row
+   */
+  public TilePrefetcher(TileStore store, String urlTemplate) {
+    this(store, urlTemplate, DEFAULT_THREADS);
+  }
+  
+  /**
+   * Creates a prefetcher.
+   * @param store The store to download into
+   * @param urlTemplate The tile server's URL, with {z}, {x} and {y} in place
+   *                    of the zoom, column and row
+   * @param threads The number of download threads
+   * @throws IllegalArgumentException if the URL is not valid
+   */
+  public TilePrefetcher(TileStore store, String urlTemplate, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.store = store;
+    this.urlTemplate = urlTemplate;
+    this.threads = threads;
+    String host;
+    try {
+      host = new URL(tileUrl(0, 0, 0)).getHost().toLowerCase();
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException("Bad tile URL: " + urlTemplate, e);
+    }
+    bulkAllowed = !host.equals(OSM_HOST) && !host.endsWith("." + OSM_HOST);
+  }
+  
+  /**
+   * Sets the User-Agent sent with every request. Tile servers ask for one
+   * that identifies the app, and it defaults to "MapJournal".
+   * @param userAgent The User-Agent
+   */
+  public void setUserAgent(String userAgent) {
+    this.userAgent = userAgent;
+  }
+  
+  /**
+   * Get whether the tile server allows prefetch().
+   * @return false if the server forbids bulk downloads
+   */
+  public boolean isBulkAllowed() {
+    return bulkAllowed;
+  }
+  
+  /**
+   * Sets the listener told of each tile done by prefetch().
+   * @param listener The listener, or null for none
+   */
+  public void setProgressListener(ProgressListener listener) {
+    progressListener = listener;
+  }
+  
+  /**
+   * Stops a running prefetch. Tiles already downloaded stay in the store.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+  
+  /**
+   * Downloads the tiles covering a Trip's Points and recorded tracks, with
+   * some padding around them, at every zoom level in a range. A Trip that
+   * crosses the antimeridian is covered on both sides of it, by the
+   * narrower of the two ways around the world.
+   * @param dao An open DAO
+   * @param tripId The id of the Trip
+   * @param minZoom The shallowest zoom level
+   * @param maxZoom The deepest zoom level
+   * @return What the prefetch did
+   * @throws IllegalArgumentException if the tiles number more than
+   *         MAX_TILES
+   * @throws IllegalStateException if the tile server forbids bulk
+   *         downloads
+   * @throws CancellationException if cancel() was called
+   */
+  public Result prefetchTrip(MapJournalDAO dao,
+                             long tripId,
+                             int minZoom,
+                             int maxZoom) {
+    final Bounds bounds = new Bounds();
+    dao.forEachPoint(tripId, new PointVisitor() {
+      @Override
+      public void visit(Point point) {
+        bounds.add(point.getLatitude(), point.getLongitude());
+      }
+    });
+    dao.forEachTrackSegment(tripId, new TrackSegmentVisitor() {
+      @Override
+      public void visit(TrackSegment segment) {
+        for (int i = 0; i < segment.size(); i++) {
+          bounds.add(segment.getLatitude(i), segment.getLongitude(i));
+        }
+      }
+    });
+    return prefetch(bounds.coveringTiles(minZoom, maxZoom));
+  }
+  
+  /**
+   * Downloads every tile in a list that is not already stored.
+   * @param tiles The tiles, packed by TileMath.pack()
+   * @return What the prefetch did
+   * @throws IllegalArgumentException if there are more than MAX_TILES
+   * @throws IllegalStateException if the tile server forbids bulk
+   *         downloads
+   * @throws CancellationException if cancel() was called or the thread was
+   *         interrupted
+   */
+  public Result prefetch(long[] tiles) {
+    if (!bulkAllowed) {
+      throw new IllegalStateException("Tile server forbids bulk downloads");
+    }
+    if (tiles.length > MAX_TILES) {
+      throw new IllegalArgumentException("Too many tiles: " + tiles.length);
+    }
+    cancelled = false;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CompletionService<Integer> results =
+        new ExecutorCompletionService<Integer>(pool);
+    try {
+      for (final long tile : tiles) {
+        results.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return fetchIfMissing(tile);
+          }
+        });
+      }
+      
+      int[] counts = new int[3];
+      for (int done = 1; done <= tiles.length; done++) {
+        if (cancelled) {
+          throw new CancellationException("Prefetch cancelled");
+        }
+        counts[results.take().get()]++;
+        if (progressListener != null) {
+          progressListener.onProgress(done, tiles.length);
+        }
+      }
+      return new Result(counts[FETCHED], counts[CACHED], counts[FAILED]);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Prefetch interrupted");
+    } catch (ExecutionException e) {
+      // fetchIfMissing() catches IOExceptions, so this is a bug or a
+      // problem with the store
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Downloads one tile and stores it. Used to fill the store on demand when
+   * the map shows a tile that was not prefetched.
+   * @param zoom The zoom level
+   * @param x The tile column
+   * @param y The tile row, counted from the north
+   * @return the tile's image data
+   * @throws IOException if the tile could not be downloaded
+   */
+  public byte[] fetch(int zoom, int x, int y) throws IOException {
+    byte[] data = download(tileUrl(zoom, x, y));
+    store.put(zoom, x, y, data);
+    return data;
+  }
+  
+  /**
+   * Get the URL of a tile on the tile server.
+   * @param zoom The zoom level
+   * @param x The tile column
+   * @param y The tile row, counted from the north
+   * @return the URL
+   */
+  public String tileUrl(int zoom, int x, int y) {
+    return urlTemplate.replace("{z}", String.valueOf(zoom))
+                      .replace("{x}", String.valueOf(x))
+                      .replace("{y}", String.valueOf(y));
+  }
+  
+  /**
+   * Helper method that downloads one tile of a prefetch unless it is
+   * stored or the prefetch was cancelled.
+   * @return FETCHED, CACHED or FAILED
+   */
+  private int fetchIfMissing(long tile) {
+    int zoom = TileMath.zoom(tile);
+    int x = TileMath.x(tile);
+    int y = TileMath.y(tile);
+    if (store.contains(zoom, x, y)) {
+      return CACHED;
+    }
+    if (cancelled) {
+      return FAILED;
+    }
+    try {
+      fetch(zoom, x, y);
+      return FETCHED;
+    } catch (IOException e) {
+      return FAILED;
+    }
+  }
+  
+  /**
+   * Helper method that reads the body of a successful GET.
+   */
+  private byte[] download(String url) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(url).openConnection();
+    try {
+      connection.setConnectTimeout(TIMEOUT);
+      connection.setReadTimeout(TIMEOUT);
+      connection.setRequestProperty("User-Agent", userAgent);
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("HTTP " + status + " for " + url);
+      }
+      int length = connection.getContentLength();
+      ByteArrayOutputStream out =
+          new ByteArrayOutputStream(length > 0 ? length : 16 * 1024);
+      InputStream in = connection.getInputStream();
+      try {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+      return out.toByteArray();
+    } finally {
+      connection.disconnect();
+    }
+  }
+  
+  /**
+   * The bounding box of a Trip, grown one position at a time. Longitudes
+   * are tracked both as they are and shifted to 0..360, so that a Trip
+   * crossing the antimeridian gets a narrow box across it rather than one
+   * spanning the rest of the world.
+   */
+  static class Bounds {
+    private double minLat = 90;
+    private double maxLat = -90;
+    private double minLng = 180;
+    private double maxLng = -180;
+    private double minShifted = 360;
+    private double maxShifted = 0;
+    
+    /**
+     * Grows the box to include a position.
+     * @param latitude The latitude
+     * @param longitude The longitude, from -180 to 180
+     */
+    void add(double latitude, double longitude) {
+      double shifted = longitude < 0 ? longitude + 360 : longitude;
+      minLat = Math.min(minLat, latitude);
+      maxLat = Math.max(maxLat, latitude);
+      minLng = Math.min(minLng, longitude);
+      maxLng = Math.max(maxLng, longitude);
+      minShifted = Math.min(minShifted, shifted);
+      maxShifted = Math.max(maxShifted, shifted);
+    }
+    
+    /**
+     * Lists the tiles covering the box, with PADDING added on each side.
+     * @param minZoom The shallowest zoom level
+     * @param maxZoom The deepest zoom level
+     * @return the tiles, as TileMath.coveringTiles() lists them, or none if
+     *         nothing was added
+     */
+    long[] coveringTiles(int minZoom, int maxZoom) {
+      if (minLat > maxLat) {
+        return new long[0];
+      }
+      double west = minLng;
+      double east = maxLng;
+      if (maxShifted - minShifted < maxLng - minLng) {
+        west = minShifted;
+        east = maxShifted;
+      }
+      double latPad = (maxLat - minLat) * PADDING;
+      double lngPad = (east - west) * PADDING;
+      west -= lngPad;
+      east += lngPad;
+      if (east - west >= 360) {
+        west = -180;
+        east = 180;
+      } else {
+        // Back to -180..180; west ends up east of east across the
+        // antimeridian, as TileMath expects
+        west = west < -180 ? west + 360 : west > 180 ? west - 360 : west;
+        east = east > 180 ? east - 360 : east;
+      }
+      return TileMath.coveringTiles(Math.max(-90, minLat - latPad),
+                                    west,
+                                    Math.min(90, maxLat + latPad),
+                                    east,
+                                    minZoom,
+                                    maxZoom);
+    }
+  }
+}
@@ -0,0 +1,351 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.tile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * A single-file store of map tiles, in the MBTiles layout: a SQLite
+ * database with a metadata table and a tiles table keyed by zoom, column and
+ * TMS row, so the file can be opened by other MBTiles tools. Where the
+ * platform's SQLite allows it, the file is read through a memory map, so
+ * reading a cached tile is an index lookup and a copy out of the page cache.
+ * <p>
+ * The tiles together are kept under a quota of bytes. Each tile carries a
+ * last-used tick, and when a write goes over the quota the least recently
+ * used tiles are deleted until the store is back under 90% of it. Reading
+ * a tile only writes its tick if it has fallen more than TOUCH_DISTANCE
+ * ticks behind, so a map redrawing the same tiles does not write on every
+ * frame.
+ * <p>
+ * Every method is synchronized, so a store can be shared by the map's tile
+ * threads and a TilePrefetcher.
+ * @author ericzeng
+ */
+public class TileStore {
+  /** How far behind the clock a tile's tick may be before a read bumps it. */
+  static final long TOUCH_DISTANCE = 64;
+  
+  private static final double LOW_WATER = 0.9;
+  
+  private static final String TABLE_TILES = "tiles";
+  private static final String COLUMN_ZOOM = "zoom_level";
+  private static final String COLUMN_X = "tile_column";
+  private static final String COLUMN_ROW = "tile_row";
+  private static final String COLUMN_DATA = "tile_data";
+  private static final String COLUMN_LAST_USED = "last_used";
+  private static final String TILE_KEY =
+      COLUMN_ZOOM + " = ? AND " + COLUMN_X + " = ? AND " + COLUMN_ROW + " = ?";
+  
+  private final SQLiteDatabase db;
+  private final long quota;
+  private final SQLiteStatement insert;
+  private final SQLiteStatement touch;
+  private final SQLiteStatement delete;
+  private long size;
+  private long clock;
+  
+  /**
+   * Opens a tile store, creating the file if it does not exist. If the
+   * quota is smaller than the tiles already in the file, the least recently
+   * used are deleted.
+   * @param file The MBTiles file
+   * @param quota The most bytes of tile data to keep
+   * @throws android.database.sqlite.SQLiteException if the file cannot be
+   *         opened
+   */
+  public TileStore(File file, long quota) {
+    if (quota <= 0) {
+      throw new IllegalArgumentException("quota must be positive");
+    }
+    this.quota = quota;
+    db = SQLiteDatabase.openOrCreateDatabase(file, null);
+    db.enableWriteAheadLogging();
+    pragma("mmap_size = " + quota);
+    db.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_TILES + " (" +
+        COLUMN_ZOOM + " INTEGER, " +
+        COLUMN_X + " INTEGER, " +
+        COLUMN_ROW + " INTEGER, " +
+        COLUMN_DATA + " BLOB, " +
+        COLUMN_LAST_USED + " INTEGER NOT NULL DEFAULT 0, " +
+        "PRIMARY KEY (" + COLUMN_ZOOM + ", " + COLUMN_X + ", " +
+        COLUMN_ROW + "))");
+    db.execSQL("CREATE INDEX IF NOT EXISTS tiles_last_used ON " +
+        TABLE_TILES + " (" + COLUMN_LAST_USED + ")");
+    writeMetadata();
+    
+    insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_TILES +
+        " (" + COLUMN_ZOOM + ", " + COLUMN_X + ", " + COLUMN_ROW + ", " +
+        COLUMN_DATA + ", " + COLUMN_LAST_USED + ") VALUES (?, ?, ?, ?, ?)");
+    touch = db.compileStatement("UPDATE " + TABLE_TILES + " SET " +
+        COLUMN_LAST_USED + " = ? WHERE " + TILE_KEY);
+    delete = db.compileStatement("DELETE FROM " + TABLE_TILES +
+        " WHERE " + TILE_KEY);
+    
+    Cursor c = db.rawQuery("SELECT IFNULL(SUM(LENGTH(" + COLUMN_DATA +
+        ")), 0), IFNULL(MAX(" + COLUMN_LAST_USED + "), 0) FROM " +
+        TABLE_TILES, null);
+    try {
+      c.moveToFirst();
+      size = c.getLong(0);
+      clock = c.getLong(1);
+    } finally {
+      c.close();
+    }
+    if (size > quota) {
+      evict();
+    }
+  }
+  
+  /**
+   * Reads a tile.
+   * @param zoom The zoom level
+   * @param x The tile column
+   * @param y The tile row, counted from the north as in TileMath
+   * @return the tile's image data, or null if it is not stored
+   */
+  public synchronized byte[] get(int zoom, int x, int y) {
+    String[] key = key(zoom, x, y);
+    Cursor c = db.query(TABLE_TILES,
+                        new String[] { COLUMN_DATA, COLUMN_LAST_USED },
+                        TILE_KEY,
+                        key,
+                        null,
+                        null,
+                        null);
+    byte[] data;
+    long lastUsed;
+    try {
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      data = c.getBlob(0);
+      lastUsed = c.getLong(1);
+    } finally {
+      c.close();
+    }
+    if (clock - lastUsed > TOUCH_DISTANCE) {
+      touch.bindLong(1, ++clock);
+      bindKey(touch, 2, zoom, x, y);
+      touch.executeUpdateDelete();
+    }
+    return data;
+  }
+  
+  /**
+   * Checks whether a tile is stored, without marking it as used.
+   * @param zoom The zoom level
+   * @param x The tile column
+   * @param y The tile row, counted from the north
+   * @return true if the tile is stored
+   */
+  public synchronized boolean contains(int zoom, int x, int y) {
+    Cursor c = db.query(TABLE_TILES,
+                        new String[] { COLUMN_LAST_USED },
+                        TILE_KEY,
+                        key(zoom, x, y),
+                        null,
+                        null,
+                        null);
+    try {
+      return c.moveToFirst();
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Stores a tile, replacing any stored copy, and evicts the least recently
+   * used tiles if the store goes over its quota. A tile larger than the
+   * whole quota is not stored.
+   * @param zoom The zoom level
+   * @param x The tile column
+   * @param y The tile row, counted from the north
+   * @param data The tile's image data
+   */
+  public synchronized void put(int zoom, int x, int y, byte[] data) {
+    if (data.length > quota) {
+      return;
+    }
+    long old = storedLength(zoom, x, y);
+    bindKey(insert, 1, zoom, x, y);
+    insert.bindBlob(4, data);
+    insert.bindLong(5, ++clock);
+    insert.executeInsert();
+    size += data.length - old;
+    if (size > quota) {
+      evict();
+    }
+  }
+  
+  /**
+   * Get the bytes of tile data stored.
+   * @return the total size of the stored tiles
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+  
+  /**
+   * Get the most bytes of tile data the store keeps.
+   * @return the quota
+   */
+  public long getQuota() {
+    return quota;
+  }
+  
+  /**
+   * Closes the file. The store cannot be used afterwards.
+   */
+  public synchronized void close() {
+    insert.close();
+    touch.close();
+    delete.close();
+    db.close();
+  }
+  
+  /**
+   * Helper method that deletes the least recently used tiles until the
+   * store is under LOW_WATER of its quota, in one transaction.
+   */
+  private void evict() {
+    long target = (long) (quota * LOW_WATER);
+    List<long[]> victims = new ArrayList<long[]>();
+    long remaining = size;
+    Cursor c = db.query(TABLE_TILES,
+                        new String[] { COLUMN_ZOOM, COLUMN_X, COLUMN_ROW,
+                                       "LENGTH(" + COLUMN_DATA + ")" },
+                        null,
+                        null,
+                        null,
+                        null,
+                        COLUMN_LAST_USED);
+    try {
+      while (remaining > target && c.moveToNext()) {
+        victims.add(new long[] { c.getLong(0), c.getLong(1), c.getLong(2) });
+        remaining -= c.getLong(3);
+      }
+    } finally {
+      c.close();
+    }
+    
+    db.beginTransaction();
+    try {
+      for (long[] victim : victims) {
+        delete.bindLong(1, victim[0]);
+        delete.bindLong(2, victim[1]);
+        delete.bindLong(3, victim[2]);
+        delete.executeUpdateDelete();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    size = remaining;
+  }
+  
+  /**
+   * Helper method that reads the stored size of a tile, or 0 if it is not
+   * stored.
+   */
+  private long storedLength(int zoom, int x, int y) {
+    Cursor c = db.query(TABLE_TILES,
+                        new String[] { "LENGTH(" + COLUMN_DATA + ")" },
+                        TILE_KEY,
+                        key(zoom, x, y),
+                        null,
+                        null,
+                        null);
+    try {
+      return c.moveToFirst() ? c.getLong(0) : 0;
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Helper method that fills in the MBTiles metadata of a new file.
+   */
+  private void writeMetadata() {
+    Cursor c = db.rawQuery("SELECT COUNT(*) FROM metadata", null);
+    try {
+      c.moveToFirst();
+      if (c.getLong(0) > 0) {
+        return;
+      }
+    } finally {
+      c.close();
+    }
+    String[][] metadata = {
+      { "name", "MapJournal offline tiles" },
+      { "type", "baselayer" },
+      { "version", "1" },
+      { "description", "Tiles cached for offline use" },
+      { "format", "png" }
+    };
+    for (String[] entry : metadata) {
+      db.execSQL("INSERT INTO metadata (name, value) VALUES (?, ?)", entry);
+    }
+  }
+  
+  /**
+   * Helper method that runs a PRAGMA, which returns a row and so cannot go
+   * through execSQL() on every version of Android.
+   */
+  private void pragma(String pragma) {
+    Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+    try {
+      c.moveToFirst();
+    } finally {
+      c.close();
+    }
+  }
+  
+  /**
+   * Helper method that converts a tile to the selection arguments of
+   * TILE_KEY. MBTiles numbers rows from the south, as TMS does.
+   */
+  private static String[] key(int zoom, int x, int y) {
+    return new String[] { String.valueOf(zoom),
+                          String.valueOf(x),
+                          String.valueOf(tmsRow(zoom, y)) };
+  }
+  
+  /**
+   * Helper method that binds a tile's key to three parameters of a
+   * statement, starting at the given index.
+   */
+  private static void bindKey(SQLiteStatement statement,
+                              int index,
+                              int zoom,
+                              int x,
+                              int y) {
+    statement.bindLong(index, zoom);
+    statement.bindLong(index + 1, x);
+    statement.bindLong(index + 2, tmsRow(zoom, y));
+  }
+  
+  private static int tmsRow(int zoom, int y) {
+    return (1 << zoom) - 1 - y;
+  }
+}
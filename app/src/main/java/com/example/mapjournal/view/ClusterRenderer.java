@@ -0,0 +1,181 @@
+package com.example.mapjournal.view;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.example.mapjournal.HandlerExecutor;
+import com.example.mapjournal.cluster.Cluster;
+import com.example.mapjournal.cluster.ClusterDiff;
+import com.example.mapjournal.cluster.ClusterEngine;
+import com.example.mapjournal.model.Point;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+/**
+ * Draws journal Points on the map as clustered markers. Clusters are computed
+ * by a ClusterEngine on a background thread whenever the camera moves, and
+ * only the markers that changed are added, moved or removed on the main
+ * thread. Camera moves that arrive while clustering is running are coalesced
+ * into one recomputation.
+ * @author ericzeng
+ */
+public class ClusterRenderer implements GoogleMap.OnCameraChangeListener {
+  private static final int CELL_PIXELS = 80;
+  
+  private final GoogleMap map;
+  private final ClusterEngine engine = new ClusterEngine(CELL_PIXELS);
+  private final ExecutorService worker = Executors.newSingleThreadExecutor();
+  private final Executor mainThread = new HandlerExecutor();
+  
+  // Only touched on the worker thread
+  private final Map<Long, Cluster> shown = new HashMap<Long, Cluster>();
+  private final Map<Long, String> titles = new HashMap<Long, String>();
+  
+  // Only touched on the main thread
+  private final Map<Long, Marker> markers = new HashMap<Long, Marker>();
+  private boolean destroyed;
+  
+  // Incremented for every camera move; older requests are skipped
+  private volatile int generation;
+  
+  public ClusterRenderer(GoogleMap map) {
+    this.map = map;
+  }
+  
+  /**
+   * Replaces the Points drawn on the map.
+   * @param points The Points to draw
+   */
+  public void setPoints(final List<Point> points) {
+    if (destroyed) {
+      return;
+    }
+    worker.execute(new Runnable() {
+      @Override
+      public void run() {
+        setPointsOnWorker(points);
+      }
+    });
+    refresh();
+  }
+  
+  @Override
+  public void onCameraChange(CameraPosition position) {
+    if (!destroyed) {
+      refresh();
+    }
+  }
+  
+  /**
+   * Stops the worker thread. Call on the main thread when the map is
+   * destroyed; diffs still queued for the main thread are then dropped, and
+   * later calls do nothing.
+   */
+  public void shutdown() {
+    destroyed = true;
+    worker.shutdownNow();
+    markers.clear();
+  }
+  
+  /**
+   * Reads the camera on the main thread and queues a recomputation.
+   */
+  private void refresh() {
+    final int zoom = (int) map.getCameraPosition().zoom;
+    final LatLngBounds bounds = map.getProjection().getVisibleRegion()
+        .latLngBounds;
+    final int requested = ++generation;
+    worker.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (requested != generation) {
+          // A newer camera position is already queued
+          return;
+        }
+        List<Cluster> clusters = engine.getClusters(zoom,
+                                                    bounds.southwest.latitude,
+                                                    bounds.southwest.longitude,
+                                                    bounds.northeast.latitude,
+                                                    bounds.northeast.longitude);
+        final ClusterDiff diff = ClusterDiff.apply(shown, clusters);
+        if (diff.isEmpty()) {
+          return;
+        }
+        final Map<Long, String> changedTitles = new HashMap<Long, String>();
+        for (Cluster cluster : diff.getAdded()) {
+          changedTitles.put(cluster.getKey(), titleOf(cluster));
+        }
+        for (Cluster cluster : diff.getChanged()) {
+          changedTitles.put(cluster.getKey(), titleOf(cluster));
+        }
+        mainThread.execute(new Runnable() {
+          @Override
+          public void run() {
+            applyDiff(diff, changedTitles);
+          }
+        });
+      }
+    });
+  }
+  
+  private void setPointsOnWorker(List<Point> points) {
+    int count = points.size();
+    long[] ids = new long[count];
+    double[] latitudes = new double[count];
+    double[] longitudes = new double[count];
+    titles.clear();
+    for (int i = 0; i < count; i++) {
+      Point point = points.get(i);
+      ids[i] = point.getId();
+      latitudes[i] = point.getLatitude();
+      longitudes[i] = point.getLongitude();
+      titles.put(point.getId(), point.getTitle());
+    }
+    engine.setPoints(ids, latitudes, longitudes, count);
+  }
+  
+  private String titleOf(Cluster cluster) {
+    if (cluster.getCount() == 1) {
+      return titles.get(cluster.getPointId());
+    }
+    return cluster.getCount() + " points";
+  }
+  
+  /**
+   * Applies a diff to the markers on the main thread.
+   */
+  private void applyDiff(ClusterDiff diff, Map<Long, String> changedTitles) {
+    if (destroyed) {
+      // The map may already be gone
+      return;
+    }
+    for (Long key : diff.getRemoved()) {
+      Marker marker = markers.remove(key);
+      if (marker != null) {
+        marker.remove();
+      }
+    }
+    for (Cluster cluster : diff.getChanged()) {
+      Marker marker = markers.get(cluster.getKey());
+      if (marker != null) {
+        marker.setPosition(new LatLng(cluster.getLatitude(),
+                                      cluster.getLongitude()));
+        marker.setTitle(changedTitles.get(cluster.getKey()));
+      }
+    }
+    for (Cluster cluster : diff.getAdded()) {
+      Marker marker = map.addMarker(new MarkerOptions()
+          .position(new LatLng(cluster.getLatitude(), cluster.getLongitude()))
+          .title(changedTitles.get(cluster.getKey())));
+      markers.put(cluster.getKey(), marker);
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package com.example.mapjournal.view;
 
+import java.io.File;
+
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.DialogFragment;
@@ -7,6 +9,7 @@ import android.content.Intent;
 import android.content.IntentSender;
 import android.content.res.Configuration;
 import android.location.Location;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.view.GravityCompat;
 import android.support.v4.widget.DrawerLayout;
@@ -16,10 +19,18 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.mapjournal.MapJournalApplication;
 import com.example.mapjournal.R;
+import com.example.mapjournal.model.AsyncMapJournalDAO;
+import com.example.mapjournal.model.PointIndex;
+import com.example.mapjournal.service.TrackRecorderService;
+import com.example.mapjournal.tile.TilePrefetcher;
+import com.example.mapjournal.tile.TileStore;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
@@ -33,6 +44,7 @@ import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 
 public class MainActivity extends ActionBarActivity implements
         GoogleApiClient.ConnectionCallbacks,
@@ -44,6 +56,11 @@ public class MainActivity extends ActionBarActivity implements
    */
   private final static int CONNECTION_FAILURE_RESOLUTION_REQUEST = 9000;
   
+  // Map tiles, kept on disk so the map works offline. The tile server is
+  // set by the tile_url string resource
+  private final static String TILE_FILE = "tiles.mbtiles";
+  private final static long TILE_QUOTA = 256L * 1024 * 1024;
+  
   // Drawer components
   private String[] drawerItems;
   private DrawerLayout drawerLayout;
@@ -55,11 +72,26 @@ public class MainActivity extends ActionBarActivity implements
   private GoogleApiClient mGoogleApiClient;
   private boolean moveCameraToCurrentLocationFlag;
   private Marker currentLocation;
+  private ClusterRenderer clusterRenderer;
+  private MapPointLoader pointLoader;
+  private AsyncTask<Void, Void, TileStore> tileStoreTask;
+  private TileStore tileStore;
+  
+  // Database access, kept off the UI thread and shared with the rest of
+  // the app
+  private AsyncMapJournalDAO dao;
   
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_main);
+    dao = ((MapJournalApplication) getApplication()).getDao();
+    
+    // Carry on with a recording the process died during, in case the
+    // system has not restarted the service yet
+    if (TrackRecorderService.isRecording(this)) {
+      TrackRecorderService.start(this);
+    }
     
     // Populate the navigation drawer data
     drawerItems = getResources().getStringArray(R.array.drawer_array);
@@ -122,6 +154,23 @@ public class MainActivity extends ActionBarActivity implements
       
       // Set flag to center on location after location client is connected
       moveCameraToCurrentLocationFlag = true;
+      
+      // Draw the journal's points, clustered, once the map exists. Points
+      // loaded before the Activity stopped are kept
+      setUpMapIfNeeded();
+      if (map != null && clusterRenderer == null) {
+        clusterRenderer = new ClusterRenderer(map);
+        PointIndex mapIndex =
+            ((MapJournalApplication) getApplication()).getMapIndex();
+        pointLoader = new MapPointLoader(map, dao, clusterRenderer, mapIndex);
+        map.setOnCameraChangeListener(pointLoader);
+      }
+      if (map != null && tileStoreTask == null) {
+        setUpTileOverlay();
+      }
+      if (pointLoader != null) {
+        pointLoader.refresh();
+      }
   }
   
   /*
@@ -130,6 +179,27 @@ public class MainActivity extends ActionBarActivity implements
   @Override
   protected void onStop() {
       super.onStop();
+      
+      // The DAO is shared with the rest of the app, so only this Activity's
+      // load is dropped
+      if (pointLoader != null) {
+        pointLoader.cancel();
+      }
+  }
+  
+  @Override
+  protected void onDestroy() {
+    if (clusterRenderer != null) {
+      clusterRenderer.shutdown();
+    }
+    if (tileStoreTask != null) {
+      // A store still being opened is closed by the task
+      tileStoreTask.cancel(false);
+    }
+    if (tileStore != null) {
+      tileStore.close();
+    }
+    super.onDestroy();
   }
   
   @Override
@@ -143,6 +213,10 @@ public class MainActivity extends ActionBarActivity implements
     // Inflate the menu items for use in the action bar
     MenuInflater inflater = getMenuInflater();
     inflater.inflate(R.menu.activity_main_actions, menu);
+    if (TrackRecorderService.isRecording(this)) {
+      menu.findItem(R.id.action_record_track)
+          .setTitle(R.string.action_stop_recording);
+    }
     return super.onCreateOptionsMenu(menu);
   }
   
@@ -157,6 +231,10 @@ public class MainActivity extends ActionBarActivity implements
     switch (item.getItemId()) {
       case R.id.action_current_location:
         moveCameraToCurrentLocation();
+        break;
+      case R.id.action_record_track:
+        toggleTrackRecording(item);
+        break;
     }
     return super.onOptionsItemSelected(item);
   }
@@ -261,6 +339,17 @@ public class MainActivity extends ActionBarActivity implements
     map.animateCamera(CameraUpdateFactory.newCameraPosition(p));
   }
   
+  private void toggleTrackRecording(MenuItem item) {
+    // The service keeps the state, so it survives rotation and process death
+    if (TrackRecorderService.isRecording(this)) {
+      TrackRecorderService.stop(this);
+      item.setTitle(R.string.action_record_track);
+    } else {
+      TrackRecorderService.start(this);
+      item.setTitle(R.string.action_stop_recording);
+    }
+  }
+  
   private void setUpMapIfNeeded() {
     // Do a null check to confirm that we have not already instantiated the map.
     if (map == null) {
@@ -273,6 +362,47 @@ public class MainActivity extends ActionBarActivity implements
     }
 }
   
+  /*
+   * Draws tiles from the offline tile store over Google's map, if a tile
+   * server is configured. The store is opened off the UI thread, since
+   * opening it may create or upgrade the database.
+   */
+  private void setUpTileOverlay() {
+    final String url = getString(R.string.tile_url);
+    if (url.length() == 0) {
+      return;
+    }
+    final File file = new File(getFilesDir(), TILE_FILE);
+    tileStoreTask = new AsyncTask<Void, Void, TileStore>() {
+      @Override
+      protected TileStore doInBackground(Void... params) {
+        return new TileStore(file, TILE_QUOTA);
+      }
+      
+      @Override
+      protected void onPostExecute(TileStore store) {
+        tileStore = store;
+        TilePrefetcher fetcher = new TilePrefetcher(store, url);
+        fetcher.setUserAgent(getString(R.string.tile_user_agent));
+        map.addTileOverlay(new TileOverlayOptions()
+            .tileProvider(new OfflineTileProvider(store, fetcher)));
+        
+        // The tile server's terms ask for its attribution on the map
+        TextView attribution = (TextView) findViewById(R.id.tile_attribution);
+        attribution.setText(R.string.tile_attribution);
+        attribution.setVisibility(View.VISIBLE);
+      }
+      
+      @Override
+      protected void onCancelled(TileStore store) {
+        if (store != null) {
+          store.close();
+        }
+      }
+    };
+    tileStoreTask.execute();
+  }
+  
   private void showErrorDialog(int errorCode) {
     // Get the error dialog from Google Play services
     Dialog errorDialog = GooglePlayServicesUtil.getErrorDialog(
@@ -0,0 +1,188 @@
+package com.example.mapjournal.view;
+
+import java.util.List;
+
+import android.util.Log;
+
+import com.example.mapjournal.model.AsyncMapJournalDAO;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointIndex;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Loads the journal Points in and around the visible part of the map and
+ * draws them with a ClusterRenderer. Points are queried again only when the
+ * camera leaves the area last loaded, or when the camera zooms into an area
+ * that held more Points than could be loaded. Otherwise the Points already
+ * drawn are kept, so stopping and starting the Activity does not query the
+ * database.
+ * <p>
+ * The loaded Points are kept in a PointIndex that follows every write
+ * through the shared DAO, so after a Point is saved or deleted the map is
+ * redrawn from the index instead of querying the whole area again.
+ */
+public class MapPointLoader implements GoogleMap.OnCameraChangeListener {
+  private static final String TAG = "MapPointLoader";
+  
+  // Most Points loaded onto the map at once
+  private static final int MAX_POINTS = 5000;
+  
+  // Share of the visible region loaded beyond each of its edges, so that
+  // small pans don't query again
+  private static final double MARGIN = 0.5;
+  
+  private final GoogleMap map;
+  private final AsyncMapJournalDAO dao;
+  private final ClusterRenderer renderer;
+  private final PointIndex index;
+  
+  // The area requested last. Its longitudes start at west and run east for
+  // width degrees, across the antimeridian if need be.
+  private double minLat;
+  private double maxLat;
+  private double west;
+  private double width;
+  private int changeCount;    // Of the index when last loaded or drawn
+  private AsyncMapJournalDAO.Request request;
+  private boolean loaded;
+  private boolean complete;   // Whether every Point in the area was loaded
+  
+  /**
+   * @param map The map to read the camera from
+   * @param dao Loads the Points
+   * @param renderer Draws the Points
+   * @param index Holds the loaded Points; must be a listener of the DAO
+   */
+  public MapPointLoader(GoogleMap map,
+                        AsyncMapJournalDAO dao,
+                        ClusterRenderer renderer,
+                        PointIndex index) {
+    this.map = map;
+    this.dao = dao;
+    this.renderer = renderer;
+    this.index = index;
+  }
+  
+  @Override
+  public void onCameraChange(CameraPosition position) {
+    renderer.onCameraChange(position);
+    refresh();
+  }
+  
+  /**
+   * Loads the Points around the visible region, unless the Points already
+   * loaded or being loaded cover it.
+   */
+  public void refresh() {
+    LatLngBounds visible = map.getProjection().getVisibleRegion()
+        .latLngBounds;
+    double south = visible.southwest.latitude;
+    double north = visible.northeast.latitude;
+    double visibleWest = visible.southwest.longitude;
+    double visibleWidth = visible.northeast.longitude - visibleWest;
+    if (visibleWidth < 0) {
+      visibleWidth += 360;   // Across the antimeridian
+    }
+    if (loaded && changeCount != index.getChangeCount()) {
+      // Points were written since the area was loaded
+      changeCount = index.getChangeCount();
+      renderer.setPoints(index.inBounds(minLat, west, maxLat, east()));
+    }
+    if (covers(south, north, visibleWest, visibleWidth)) {
+      return;
+    }
+    
+    double latMargin = (north - south) * MARGIN;
+    double lngMargin = visibleWidth * MARGIN;
+    minLat = Math.max(-90, south - latMargin);
+    maxLat = Math.min(90, north + latMargin);
+    width = visibleWidth + 2 * lngMargin;
+    if (width >= 360) {
+      west = -180;
+      width = 360;
+    } else {
+      west = wrap180(visibleWest - lngMargin);
+    }
+    changeCount = index.getChangeCount();
+    loaded = false;
+    cancel();
+    
+    request = dao.getPointsInBounds(minLat, west, maxLat, east(), MAX_POINTS,
+        new AsyncMapJournalDAO.Callback<List<Point>>() {
+          @Override
+          public void onResult(List<Point> points) {
+            request = null;
+            if (changeCount != index.getChangeCount()) {
+              // A write finished during the read, which may have missed it
+              refresh();
+              return;
+            }
+            index.bulkLoad(points);
+            loaded = true;
+            complete = points.size() < MAX_POINTS;
+            renderer.setPoints(points);
+          }
+          
+          @Override
+          public void onError(Exception e) {
+            Log.e(TAG, "Could not load points", e);
+          }
+        });
+  }
+  
+  /**
+   * Drops the load in progress, if any. The Points already drawn are kept.
+   */
+  public void cancel() {
+    if (request != null) {
+      request.cancel();
+      request = null;
+    }
+  }
+  
+  /**
+   * Helper method that checks whether the area loaded, or being loaded,
+   * covers a region and is still up to date.
+   */
+  private boolean covers(double south,
+                         double north,
+                         double visibleWest,
+                         double visibleWidth) {
+    boolean pending = request != null && request.isPending();
+    if (!loaded && !pending) {
+      return false;
+    }
+    if (loaded && !complete && width > 3 * visibleWidth) {
+      // Zoomed in on an area that was cut short by MAX_POINTS
+      return false;
+    }
+    return south >= minLat
+        && north <= maxLat
+        && (width == 360
+            || wrap360(visibleWest - west) + visibleWidth <= width);
+  }
+  
+  /**
+   * Helper method that finds the eastern edge of the area last requested.
+   */
+  private double east() {
+    return width == 360 ? 180 : wrap180(west + width);
+  }
+  
+  /**
+   * Helper method that brings a longitude into -180 to 180.
+   */
+  private static double wrap180(double longitude) {
+    return wrap360(longitude + 180) - 180;
+  }
+  
+  /**
+   * Helper method that brings an angle into 0 to 360.
+   */
+  private static double wrap360(double degrees) {
+    double wrapped = degrees % 360;
+    return wrapped < 0 ? wrapped + 360 : wrapped;
+  }
+}
@@ -0,0 +1,47 @@
+package com.example.mapjournal.view;
+
+import java.io.IOException;
+
+import com.example.mapjournal.tile.TilePrefetcher;
+import com.example.mapjournal.tile.TileStore;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+
+/**
+ * Serves map tiles from a TileStore. A tile that is not stored is
+ * downloaded and stored while the device is online; while it is offline the
+ * map is told to ask again later. Called by the map on its own tile threads.
+ */
+public class OfflineTileProvider implements TileProvider {
+  private static final int TILE_SIZE = 256;
+  
+  private final TileStore store;
+  private final TilePrefetcher fetcher;
+  
+  /**
+   * @param store The store to serve tiles from
+   * @param fetcher Downloads missing tiles into the store, or null to serve
+   *                only stored tiles
+   */
+  public OfflineTileProvider(TileStore store, TilePrefetcher fetcher) {
+    this.store = store;
+    this.fetcher = fetcher;
+  }
+  
+  @Override
+  public Tile getTile(int x, int y, int zoom) {
+    byte[] data = store.get(zoom, x, y);
+    if (data == null) {
+      if (fetcher == null) {
+        return NO_TILE;
+      }
+      try {
+        data = fetcher.fetch(zoom, x, y);
+      } catch (IOException e) {
+        // Offline or the server failed; null makes the map retry later
+        return null;
+      }
+    }
+    return new Tile(TILE_SIZE, TILE_SIZE, data);
+  }
+}
@@ -0,0 +1,128 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.benchmark;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.mapjournal.cluster.Cluster;
+import com.example.mapjournal.cluster.ClusterDiff;
+import com.example.mapjournal.cluster.ClusterEngine;
+
+/**
+ * Measures ClusterEngine on synthetic journals: dense groups of points around
+ * a few hundred places plus points scattered over the world.
+ * @author ericzeng
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClusterBenchmark {
+  private static final int CELL_PIXELS = 80;
+  private static final int ZOOM = 11;
+  // About a phone screen at zoom 11 near Seattle
+  private static final double VIEW_HEIGHT = 0.35;
+  private static final double VIEW_WIDTH = 0.25;
+  private static final int PAN_STEPS = 64;
+  
+  @Param({ "10000", "100000" })
+  public int points;
+  
+  private long[] ids;
+  private double[] latitudes;
+  private double[] longitudes;
+  private ClusterEngine warmEngine;
+  private Map<Long, Cluster> shown;
+  private int step;
+  
+  @Setup
+  public void setUp() {
+    ids = new long[points];
+    latitudes = new double[points];
+    longitudes = new double[points];
+    Random random = new Random(42);
+    double[][] places = new double[300][];
+    places[0] = new double[] { 47.6, -122.3 };
+    for (int i = 1; i < places.length; i++) {
+      places[i] = new double[] { random.nextDouble() * 120 - 60,
+                                 random.nextDouble() * 360 - 180 };
+    }
+    for (int i = 0; i < points; i++) {
+      ids[i] = i;
+      if (i % 10 == 0) {
+        latitudes[i] = random.nextDouble() * 170 - 85;
+        longitudes[i] = random.nextDouble() * 360 - 180;
+      } else {
+        // A third of the grouped points are around the viewport
+        double[] place = places[i % 3 == 0 ? 0 : random.nextInt(places.length)];
+        latitudes[i] = place[0] + random.nextGaussian() * 0.1;
+        longitudes[i] = place[1] + random.nextGaussian() * 0.1;
+      }
+    }
+    
+    warmEngine = new ClusterEngine(CELL_PIXELS);
+    warmEngine.setPoints(ids, latitudes, longitudes, points);
+    shown = new HashMap<Long, Cluster>();
+    ClusterDiff.apply(shown, viewport(warmEngine, 0));
+  }
+  
+  /**
+   * First frame at a new zoom: every point is bucketed.
+   */
+  @Benchmark
+  public List<Cluster> clusterNewZoom() {
+    ClusterEngine engine = new ClusterEngine(CELL_PIXELS);
+    engine.setPoints(ids, latitudes, longitudes, points);
+    return viewport(engine, 0);
+  }
+  
+  /**
+   * A camera move at a zoom that has been shown before, with the diff that
+   * decides which markers to touch.
+   */
+  @Benchmark
+  public ClusterDiff panAndDiff() {
+    step = (step + 1) % PAN_STEPS;
+    return ClusterDiff.apply(shown, viewport(warmEngine, step));
+  }
+  
+  private static List<Cluster> viewport(ClusterEngine engine, int step) {
+    double east = step * VIEW_WIDTH / 16;
+    return engine.getClusters(ZOOM,
+                              47.6 - VIEW_HEIGHT / 2,
+                              -122.3 - VIEW_WIDTH / 2 + east,
+                              47.6 + VIEW_HEIGHT / 2,
+                              -122.3 + VIEW_WIDTH / 2 + east);
+  }
+}
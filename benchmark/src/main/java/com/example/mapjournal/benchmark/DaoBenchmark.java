@@ -0,0 +1,177 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.mapjournal.model.BatchWriter;
+import com.example.mapjournal.model.BenchmarkDatabases;
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.MediaItem;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.SearchResult;
+import com.example.mapjournal.model.Trip;
+
+/**
+ * Measures MapJournalDAO inserts, lookups, queries and deletes against a
+ * journal of the given size, on SQLite through sqlite-jdbc. Inserts run
+ * alongside deletes so the journal stays the same size during a run.
+ * @author ericzeng
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DaoBenchmark {
+  private static final int BATCH = 100;
+  private static final String[] WORDS = {
+    "beach", "museum", "sunset", "hike", "lake", "market", "cathedral",
+    "harbor", "bridge", "forest", "cafe", "summit", "garden", "castle"
+  };
+  
+  @Param({ "1000", "10000", "100000" })
+  public int points;
+  
+  private File dir;
+  private MapJournalDAO dao;
+  private Trip trip;
+  private long[] ids;
+  private Random random;
+  
+  @Setup
+  public void setUp() throws IOException {
+    dir = BenchmarkDatabases.createDirectory();
+    dao = BenchmarkDatabases.open(dir, "DaoBenchmark.db");
+    trip = new Trip(-1, "Benchmark", null, null);
+    dao.createTrip(trip);
+    random = new Random(42);
+    ids = dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        for (int i = 0; i < points; i++) {
+          writer.insertPoint(newPoint());
+        }
+      }
+    });
+  }
+  
+  @TearDown
+  public void tearDown() {
+    dao.close();
+    BenchmarkDatabases.delete(dir);
+  }
+  
+  /**
+   * One insert in its own transaction, then deleting it again.
+   */
+  @Benchmark
+  public long createAndDeletePoint() {
+    Point point = newPoint();
+    dao.createPoint(point);
+    dao.deletePoint(point);
+    return point.getId();
+  }
+  
+  /**
+   * Insert then delete of the same rows, each phase a single transaction.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public long[] batchCreateAndDelete() {
+    final Point[] batch = new Point[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      batch[i] = newPoint();
+    }
+    long[] inserted = dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        for (Point point : batch) {
+          writer.insertPoint(point);
+        }
+      }
+    });
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        for (Point point : batch) {
+          writer.deletePoint(point);
+        }
+      }
+    });
+    return inserted;
+  }
+  
+  @Benchmark
+  public Point getPoint() {
+    return dao.getPoint(ids[random.nextInt(points)]);
+  }
+  
+  @Benchmark
+  public void updatePoint() {
+    Point point = dao.getPoint(ids[random.nextInt(points)]);
+    point.setJournal(WORDS[random.nextInt(WORDS.length)]);
+    dao.updatePoint(point);
+  }
+  
+  /**
+   * A city-sized viewport somewhere in the populated band.
+   */
+  @Benchmark
+  public List<Point> getPointsInBounds() {
+    double lat = random.nextDouble() * 100 - 50;
+    double lng = random.nextDouble() * 340 - 170;
+    return dao.getPointsInBounds(lat, lng, lat + 2, lng + 2, 1000);
+  }
+  
+  @Benchmark
+  public List<SearchResult> search() {
+    return dao.search(WORDS[random.nextInt(WORDS.length)], 20, 0);
+  }
+  
+  private Point newPoint() {
+    String title = WORDS[random.nextInt(WORDS.length)] + " " +
+                   WORDS[random.nextInt(WORDS.length)];
+    return new Point(-1, title, trip.getId(),
+                     random.nextDouble() * 120 - 60,
+                     random.nextDouble() * 360 - 180,
+                     random.nextDouble() * 1000,
+                     random.nextInt(),
+                     null,
+                     "Went to the " + WORDS[random.nextInt(WORDS.length)],
+                     new ArrayList<MediaItem>());
+  }
+}
@@ -0,0 +1,96 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.mapjournal.model.MediaItem;
+import com.example.mapjournal.model.Point;
+
+/**
+ * Measures building a Point, the validating setters, and finding a
+ * MediaItem by path in Points with the given number of items.
+ * @author ericzeng
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PointBenchmark {
+  @Param({ "1", "10", "100" })
+  public int media;
+  
+  private Point point;
+  private MediaItem last;
+  private double latitude;
+  private int time;
+  
+  @Setup
+  public void setUp() {
+    List<MediaItem> items = new ArrayList<MediaItem>(media);
+    for (int i = 0; i < media; i++) {
+      items.add(new MediaItem(i, 1, "/sdcard/DCIM/IMG_" + i + ".jpg", null));
+    }
+    point = new Point(1, "Point", 1, 47.6, -122.3, 50, 1400000000,
+                      null, null, items);
+    last = items.get(items.size() - 1);
+  }
+  
+  @Benchmark
+  public Point construct() {
+    return new Point(-1, "Space Needle", 1, 47.6205, -122.3493, 184,
+                     1400000000, "400 Broad St", "Went up the tower",
+                     new ArrayList<MediaItem>());
+  }
+  
+  @Benchmark
+  public Point setters() {
+    latitude = latitude > 80 ? -80 : latitude + 0.001;
+    time++;
+    point.setLatitude(latitude);
+    point.setLongitude(-122.3);
+    point.setTime(time);
+    point.setTitle("Space Needle");
+    return point;
+  }
+  
+  /**
+   * Removes the last MediaItem, the worst case for the lookup, then puts it
+   * back so the list is the same for the next call.
+   */
+  @Benchmark
+  public Point removeMediaItem() {
+    point.RemoveMediaItem(last.getFilePath());
+    point.AddMediaItem(last);
+    return point;
+  }
+}
@@ -0,0 +1,192 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.mapjournal.model.MediaItem;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointIndex;
+
+/**
+ * Compares PointIndex queries with a linear scan over the same Points.
+ * @author ericzeng
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PointIndexBenchmark {
+  private static final int K = 10;
+  private static final double RADIUS = 500;
+  private static final int QUERIES = 1024;
+  
+  @Param({ "1000", "10000", "100000" })
+  public int points;
+  
+  private List<Point> list;
+  private PointIndex index;
+  private double[] queryLats;
+  private double[] queryLngs;
+  private int next;
+  
+  @Setup
+  public void setUp() {
+    // Most of a journal is in a few cities, with the rest spread out
+    Random random = new Random(42);
+    double[][] cities = { { 47.6, -122.3 }, { 51.5, -0.1 }, { 35.7, 139.7 } };
+    list = new ArrayList<Point>(points);
+    for (int i = 0; i < points; i++) {
+      double lat;
+      double lng;
+      if (i % 5 == 0) {
+        lat = random.nextDouble() * 140 - 70;
+        lng = random.nextDouble() * 360 - 180;
+      } else {
+        double[] city = cities[i % cities.length];
+        lat = city[0] + random.nextGaussian() * 0.05;
+        lng = city[1] + random.nextGaussian() * 0.05;
+      }
+      list.add(new Point(i, "Point " + i, 1, lat, lng, 0, i, null, null,
+                         new ArrayList<MediaItem>()));
+    }
+    index = new PointIndex(list);
+    
+    queryLats = new double[QUERIES];
+    queryLngs = new double[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      Point near = list.get(random.nextInt(points));
+      queryLats[i] = near.getLatitude() + random.nextGaussian() * 0.01;
+      queryLngs[i] = near.getLongitude() + random.nextGaussian() * 0.01;
+    }
+  }
+  
+  @Benchmark
+  public List<Point> nearestIndex() {
+    int q = nextQuery();
+    return index.nearest(queryLats[q], queryLngs[q], K);
+  }
+  
+  @Benchmark
+  public List<Point> nearestScan() {
+    final int q = nextQuery();
+    // Keep the K nearest in a max-heap
+    PriorityQueue<Object[]> heap = new PriorityQueue<Object[]>(K + 1,
+        new Comparator<Object[]>() {
+          @Override
+          public int compare(Object[] a, Object[] b) {
+            return Double.compare((Double) b[0], (Double) a[0]);
+          }
+        });
+    for (Point point : list) {
+      double d = PointIndex.distance(queryLats[q], queryLngs[q],
+                                     point.getLatitude(), point.getLongitude());
+      if (heap.size() < K || d < (Double) heap.peek()[0]) {
+        heap.add(new Object[] { d, point });
+        if (heap.size() > K) {
+          heap.poll();
+        }
+      }
+    }
+    List<Point> result = new ArrayList<Point>(K);
+    while (!heap.isEmpty()) {
+      result.add((Point) heap.poll()[1]);
+    }
+    Collections.reverse(result);
+    return result;
+  }
+  
+  @Benchmark
+  public List<Point> withinIndex() {
+    int q = nextQuery();
+    return index.withinDistance(queryLats[q], queryLngs[q], RADIUS);
+  }
+  
+  @Benchmark
+  public List<Point> withinScan() {
+    int q = nextQuery();
+    List<Point> result = new ArrayList<Point>();
+    for (Point point : list) {
+      if (PointIndex.distance(queryLats[q], queryLngs[q], point.getLatitude(),
+                              point.getLongitude()) <= RADIUS) {
+        result.add(point);
+      }
+    }
+    return result;
+  }
+  
+  @Benchmark
+  public List<Point> viewportIndex() {
+    int q = nextQuery();
+    return index.inBounds(queryLats[q] - 0.02, queryLngs[q] - 0.015,
+                          queryLats[q] + 0.02, queryLngs[q] + 0.015);
+  }
+  
+  @Benchmark
+  public List<Point> viewportScan() {
+    int q = nextQuery();
+    double minLat = queryLats[q] - 0.02;
+    double maxLat = queryLats[q] + 0.02;
+    double minLng = queryLngs[q] - 0.015;
+    double maxLng = queryLngs[q] + 0.015;
+    List<Point> result = new ArrayList<Point>();
+    for (Point point : list) {
+      if (point.getLatitude() >= minLat && point.getLatitude() <= maxLat
+          && point.getLongitude() >= minLng && point.getLongitude() <= maxLng) {
+        result.add(point);
+      }
+    }
+    return result;
+  }
+  
+  @Benchmark
+  public PointIndex bulkLoad() {
+    return new PointIndex(list);
+  }
+  
+  @Benchmark
+  public boolean insertAndRemove() {
+    Point point = list.get(nextQuery() % points);
+    index.remove(point.getId());
+    index.insert(point);
+    return true;
+  }
+  
+  private int nextQuery() {
+    next = (next + 1) % QUERIES;
+    return next;
+  }
+}
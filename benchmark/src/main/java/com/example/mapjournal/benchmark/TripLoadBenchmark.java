@@ -0,0 +1,161 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.example.mapjournal.model.BatchWriter;
+import com.example.mapjournal.model.BenchmarkDatabases;
+import com.example.mapjournal.model.MapJournalDAO;
+import com.example.mapjournal.model.MediaItem;
+import com.example.mapjournal.model.Point;
+import com.example.mapjournal.model.PointVisitor;
+import com.example.mapjournal.model.Trip;
+
+/**
+ * Measures the ways of reading a whole Trip: the object graph with media,
+ * streaming with and without media, and page by page. Each point has two
+ * MediaItems.
+ * @author ericzeng
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TripLoadBenchmark {
+  private static final int MEDIA_PER_POINT = 2;
+  private static final int PAGE_SIZE = 50;
+  
+  @Param({ "100", "1000", "10000" })
+  public int points;
+  
+  private File dir;
+  private MapJournalDAO dao;
+  private long tripId;
+  
+  @Setup
+  public void setUp() throws IOException {
+    dir = BenchmarkDatabases.createDirectory();
+    dao = BenchmarkDatabases.open(dir, "TripLoadBenchmark.db");
+    // Another trip of the same size, so queries have rows to skip
+    fill(new Random(7));
+    tripId = fill(new Random(42));
+  }
+  
+  @TearDown
+  public void tearDown() {
+    dao.close();
+    BenchmarkDatabases.delete(dir);
+  }
+  
+  @Benchmark
+  public Trip loadTripGraph() {
+    return dao.loadTripGraph(tripId);
+  }
+  
+  @Benchmark
+  public void forEachPoint(final Blackhole blackhole) {
+    dao.forEachPoint(tripId, new PointVisitor() {
+      @Override
+      public void visit(Point point) {
+        blackhole.consume(point.getLatitude());
+      }
+    });
+  }
+  
+  @Benchmark
+  public void forEachPointWithMedia(final Blackhole blackhole) {
+    dao.forEachPointWithMedia(tripId, new PointVisitor() {
+      @Override
+      public void visit(Point point) {
+        blackhole.consume(point.getAllMedia().size());
+      }
+    });
+  }
+  
+  @Benchmark
+  public int pages() {
+    int count = 0;
+    long afterTime = Long.MIN_VALUE;
+    long afterId = -1;
+    List<Point> page;
+    do {
+      page = dao.getPointsPage(tripId, afterTime, afterId, PAGE_SIZE);
+      if (!page.isEmpty()) {
+        Point last = page.get(page.size() - 1);
+        afterTime = last.getTime();
+        afterId = last.getId();
+      }
+      count += page.size();
+    } while (page.size() == PAGE_SIZE);
+    return count;
+  }
+  
+  /**
+   * Helper method that adds a trip of the benchmark's size.
+   */
+  private long fill(final Random random) {
+    final Trip trip = new Trip(-1, "Trip", null, null);
+    dao.createTrip(trip);
+    dao.writeBatch(new BatchWriter.Job() {
+      @Override
+      public void run(BatchWriter writer) {
+        List<Point> created = new ArrayList<Point>(points);
+        for (int i = 0; i < points; i++) {
+          Point point = new Point(-1, "Point " + i, trip.getId(),
+                                  47 + random.nextGaussian(),
+                                  -122 + random.nextGaussian(),
+                                  random.nextDouble() * 500,
+                                  1400000000 + i * 60,
+                                  i + " Main St",
+                                  "Journal entry for point " + i,
+                                  null);
+          writer.insertPoint(point);
+          created.add(point);
+        }
+        for (Point point : created) {
+          for (int m = 0; m < MEDIA_PER_POINT; m++) {
+            writer.insertMedia(new MediaItem(-1, point.getId(),
+                "/sdcard/DCIM/IMG_" + point.getId() + "_" + m + ".jpg",
+                "Photo " + m));
+          }
+        }
+      }
+    });
+    return trip.getId();
+  }
+}
@@ -0,0 +1,71 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.example.mapjournal.model;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+
+/**
+ * Opens MapJournal databases in a scratch directory for benchmarks. Lives in
+ * the model package to bypass the app's shared MapJournalDbHelper, so every
+ * benchmark state gets a fresh database.
+ * @author ericzeng
+ */
+public final class BenchmarkDatabases {
+  private BenchmarkDatabases() {
+  }
+  
+  /**
+   * Creates an empty directory for databases.
+   * @return The new directory
+   */
+  public static File createDirectory() throws IOException {
+    File dir = File.createTempFile("mapjournal-benchmark", "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    return dir;
+  }
+  
+  /**
+   * Opens a DAO on a new database in the given directory.
+   * @param dir The directory for the database files
+   * @param name The file name of the database
+   * @return An open DAO
+   */
+  public static MapJournalDAO open(File dir, String name) {
+    MapJournalDAO dao = new MapJournalDAO(
+        new MapJournalDbHelper(new Context(dir), name));
+    dao.open();
+    return dao;
+  }
+  
+  /**
+   * Deletes a directory created by createDirectory() and its files.
+   * @param dir The directory to delete
+   */
+  public static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+}
@@ -0,0 +1,68 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stand-in for the Android ContentValues: column values in insertion order.
+ * @author ericzeng
+ */
+public final class ContentValues {
+  private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+  
+  public void put(String key, String value) {
+    values.put(key, value);
+  }
+  
+  public void put(String key, Integer value) {
+    values.put(key, value);
+  }
+  
+  public void put(String key, Long value) {
+    values.put(key, value);
+  }
+  
+  public void put(String key, Double value) {
+    values.put(key, value);
+  }
+  
+  public void put(String key, Float value) {
+    values.put(key, value);
+  }
+  
+  public void put(String key, byte[] value) {
+    values.put(key, value);
+  }
+  
+  public void putNull(String key) {
+    values.put(key, null);
+  }
+  
+  public Object get(String key) {
+    return values.get(key);
+  }
+  
+  public Set<String> keySet() {
+    return values.keySet();
+  }
+  
+  public int size() {
+    return values.size();
+  }
+}
@@ -0,0 +1,43 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in for the Android Context when the model layer runs on a desktop
+ * JVM. It only knows where database files live.
+ * @author ericzeng
+ */
+public class Context {
+  private final File databaseDir;
+  
+  /**
+   * Creates a context whose databases are stored in the given directory.
+   * @param databaseDir The directory for database files
+   */
+  public Context(File databaseDir) {
+    this.databaseDir = databaseDir;
+  }
+  
+  public Context getApplicationContext() {
+    return this;
+  }
+  
+  public File getDatabasePath(String name) {
+    return new File(databaseDir, name);
+  }
+}
@@ -0,0 +1,41 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.database;
+
+import java.io.Closeable;
+
+/**
+ * Stand-in for the Android Cursor, with the methods the model layer uses.
+ * @author ericzeng
+ */
+public interface Cursor extends Closeable {
+  int getCount();
+  int getPosition();
+  boolean moveToFirst();
+  boolean moveToNext();
+  boolean moveToPosition(int position);
+  int getColumnIndex(String columnName);
+  int getColumnIndexOrThrow(String columnName);
+  long getLong(int column);
+  int getInt(int column);
+  double getDouble(int column);
+  float getFloat(int column);
+  String getString(int column);
+  byte[] getBlob(int column);
+  boolean isNull(int column);
+  void close();
+  boolean isClosed();
+}
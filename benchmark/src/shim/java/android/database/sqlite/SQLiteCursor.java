@@ -0,0 +1,164 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * A Cursor over rows copied out of a JDBC ResultSet, much as Android copies
+ * rows into a CursorWindow.
+ * @author ericzeng
+ */
+class SQLiteCursor implements Cursor {
+  private final String[] columns;
+  private final List<Object[]> rows = new ArrayList<Object[]>();
+  private int position = -1;
+  private boolean closed;
+  
+  SQLiteCursor(ResultSet results) throws SQLException {
+    ResultSetMetaData metaData = results.getMetaData();
+    columns = new String[metaData.getColumnCount()];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = metaData.getColumnLabel(i + 1);
+    }
+    while (results.next()) {
+      Object[] row = new Object[columns.length];
+      for (int i = 0; i < row.length; i++) {
+        row[i] = results.getObject(i + 1);
+      }
+      rows.add(row);
+    }
+  }
+  
+  @Override
+  public int getCount() {
+    return rows.size();
+  }
+  
+  @Override
+  public int getPosition() {
+    return position;
+  }
+  
+  @Override
+  public boolean moveToFirst() {
+    return moveToPosition(0);
+  }
+  
+  @Override
+  public boolean moveToNext() {
+    return moveToPosition(position + 1);
+  }
+  
+  @Override
+  public boolean moveToPosition(int newPosition) {
+    position = Math.max(-1, Math.min(newPosition, rows.size()));
+    return position >= 0 && position < rows.size();
+  }
+  
+  @Override
+  public int getColumnIndex(String columnName) {
+    // Qualified names such as m._id match the bare column label
+    int dot = columnName.lastIndexOf('.');
+    String name = dot < 0 ? columnName : columnName.substring(dot + 1);
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  @Override
+  public int getColumnIndexOrThrow(String columnName) {
+    int index = getColumnIndex(columnName);
+    if (index < 0) {
+      throw new IllegalArgumentException("column '" + columnName +
+                                         "' does not exist");
+    }
+    return index;
+  }
+  
+  @Override
+  public long getLong(int column) {
+    Object value = get(column);
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    return value == null ? 0 : Long.parseLong(value.toString());
+  }
+  
+  @Override
+  public int getInt(int column) {
+    return (int) getLong(column);
+  }
+  
+  @Override
+  public double getDouble(int column) {
+    Object value = get(column);
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    return value == null ? 0 : Double.parseDouble(value.toString());
+  }
+  
+  @Override
+  public float getFloat(int column) {
+    return (float) getDouble(column);
+  }
+  
+  @Override
+  public String getString(int column) {
+    Object value = get(column);
+    return value == null ? null : value.toString();
+  }
+  
+  @Override
+  public byte[] getBlob(int column) {
+    return (byte[]) get(column);
+  }
+  
+  @Override
+  public boolean isNull(int column) {
+    return get(column) == null;
+  }
+  
+  @Override
+  public void close() {
+    closed = true;
+  }
+  
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+  
+  private Object get(int column) {
+    if (closed) {
+      throw new IllegalStateException("Cursor is closed");
+    }
+    if (position < 0 || position >= rows.size()) {
+      throw new IllegalStateException("Cursor is not on a row");
+    }
+    return rows.get(position)[column];
+  }
+}
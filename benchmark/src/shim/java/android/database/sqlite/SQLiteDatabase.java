@@ -0,0 +1,351 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Stand-in for the Android SQLiteDatabase, backed by a single sqlite-jdbc
+ * connection so the model layer can be benchmarked on a desktop JVM. Like
+ * Android it keeps a small cache of compiled statements for execSQL(),
+ * rawQuery() and the convenience methods. It is meant for one thread.
+ * @author ericzeng
+ */
+public final class SQLiteDatabase {
+  private static final int STATEMENT_CACHE_SIZE = 25;
+  
+  /**
+   * Unused; present so code written for Android compiles.
+   */
+  public interface CursorFactory {
+  }
+  
+  private final Connection connection;
+  private final Map<String, PreparedStatement> statementCache =
+      new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, PreparedStatement> eldest) {
+          if (size() > STATEMENT_CACHE_SIZE) {
+            closeQuietly(eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+  private PreparedStatement lastInsertRowId;
+  private int transactionDepth;
+  private boolean transactionSuccessful;
+  private boolean transactionFailed;
+  
+  private SQLiteDatabase(String path) {
+    try {
+      connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+      lastInsertRowId = connection.prepareStatement("SELECT last_insert_rowid()");
+    } catch (SQLException e) {
+      throw wrap(e, path);
+    }
+  }
+  
+  static SQLiteDatabase open(String path) {
+    return new SQLiteDatabase(path);
+  }
+  
+  public void execSQL(String sql) {
+    execSQL(sql, new Object[0]);
+  }
+  
+  public void execSQL(String sql, Object[] bindArgs) {
+    try {
+      PreparedStatement statement = prepare(sql);
+      bind(statement, bindArgs);
+      statement.execute();
+    } catch (SQLException e) {
+      throw wrap(e, sql);
+    }
+  }
+  
+  public Cursor rawQuery(String sql, String[] selectionArgs) {
+    try {
+      PreparedStatement statement = prepare(sql);
+      bind(statement, selectionArgs);
+      ResultSet results = statement.executeQuery();
+      try {
+        return new SQLiteCursor(results);
+      } finally {
+        results.close();
+      }
+    } catch (SQLException e) {
+      throw wrap(e, sql);
+    }
+  }
+  
+  public Cursor query(String table,
+                      String[] columns,
+                      String selection,
+                      String[] selectionArgs,
+                      String groupBy,
+                      String having,
+                      String orderBy) {
+    return query(table, columns, selection, selectionArgs, groupBy, having,
+                 orderBy, null);
+  }
+  
+  public Cursor query(String table,
+                      String[] columns,
+                      String selection,
+                      String[] selectionArgs,
+                      String groupBy,
+                      String having,
+                      String orderBy,
+                      String limit) {
+    StringBuilder sql = new StringBuilder("SELECT ");
+    if (columns == null) {
+      sql.append('*');
+    } else {
+      for (int i = 0; i < columns.length; i++) {
+        sql.append(i == 0 ? "" : ", ").append(columns[i]);
+      }
+    }
+    sql.append(" FROM ").append(table);
+    appendClause(sql, " WHERE ", selection);
+    appendClause(sql, " GROUP BY ", groupBy);
+    appendClause(sql, " HAVING ", having);
+    appendClause(sql, " ORDER BY ", orderBy);
+    appendClause(sql, " LIMIT ", limit);
+    return rawQuery(sql.toString(), selectionArgs);
+  }
+  
+  public long insert(String table, String nullColumnHack, ContentValues values) {
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                                                         .append('(');
+    StringBuilder placeholders = new StringBuilder();
+    Object[] args = new Object[values.size()];
+    int i = 0;
+    for (String column : values.keySet()) {
+      sql.append(i == 0 ? "" : ",").append(column);
+      placeholders.append(i == 0 ? "?" : ",?");
+      args[i++] = values.get(column);
+    }
+    sql.append(") VALUES (").append(placeholders).append(')');
+    try {
+      PreparedStatement statement = prepare(sql.toString());
+      bind(statement, args);
+      statement.executeUpdate();
+      return lastInsertRowId();
+    } catch (SQLException e) {
+      // Android logs the error and returns -1
+      return -1;
+    }
+  }
+  
+  public int update(String table,
+                    ContentValues values,
+                    String whereClause,
+                    String[] whereArgs) {
+    StringBuilder sql = new StringBuilder("UPDATE ").append(table)
+                                                    .append(" SET ");
+    int argCount = values.size() + (whereArgs == null ? 0 : whereArgs.length);
+    Object[] args = new Object[argCount];
+    int i = 0;
+    for (String column : values.keySet()) {
+      sql.append(i == 0 ? "" : ",").append(column).append(" = ?");
+      args[i++] = values.get(column);
+    }
+    appendClause(sql, " WHERE ", whereClause);
+    if (whereArgs != null) {
+      System.arraycopy(whereArgs, 0, args, i, whereArgs.length);
+    }
+    return executeUpdateDelete(sql.toString(), args);
+  }
+  
+  public int delete(String table, String whereClause, String[] whereArgs) {
+    StringBuilder sql = new StringBuilder("DELETE FROM ").append(table);
+    appendClause(sql, " WHERE ", whereClause);
+    return executeUpdateDelete(sql.toString(), whereArgs);
+  }
+  
+  public SQLiteStatement compileStatement(String sql) {
+    try {
+      return new SQLiteStatement(this, sql, connection.prepareStatement(sql));
+    } catch (SQLException e) {
+      throw wrap(e, sql);
+    }
+  }
+  
+  public void beginTransaction() {
+    beginTransaction("BEGIN EXCLUSIVE");
+  }
+  
+  public void beginTransactionNonExclusive() {
+    beginTransaction("BEGIN IMMEDIATE");
+  }
+  
+  public void setTransactionSuccessful() {
+    if (transactionDepth == 0) {
+      throw new IllegalStateException("no transaction pending");
+    }
+    transactionSuccessful = true;
+  }
+  
+  public void endTransaction() {
+    if (transactionDepth == 0) {
+      throw new IllegalStateException("no transaction pending");
+    }
+    if (!transactionSuccessful) {
+      transactionFailed = true;
+    }
+    transactionSuccessful = false;
+    if (--transactionDepth == 0) {
+      execSQL(transactionFailed ? "ROLLBACK" : "COMMIT");
+    }
+  }
+  
+  public boolean inTransaction() {
+    return transactionDepth > 0;
+  }
+  
+  public boolean enableWriteAheadLogging() {
+    rawQuery("PRAGMA journal_mode = WAL", null).close();
+    return true;
+  }
+  
+  public int getVersion() {
+    Cursor c = rawQuery("PRAGMA user_version", null);
+    try {
+      return c.moveToFirst() ? c.getInt(0) : 0;
+    } finally {
+      c.close();
+    }
+  }
+  
+  public void setVersion(int version) {
+    execSQL("PRAGMA user_version = " + version);
+  }
+  
+  public boolean isReadOnly() {
+    return false;
+  }
+  
+  public boolean isOpen() {
+    try {
+      return !connection.isClosed();
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+  
+  public void close() {
+    for (PreparedStatement statement : statementCache.values()) {
+      closeQuietly(statement);
+    }
+    statementCache.clear();
+    closeQuietly(lastInsertRowId);
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      throw wrap(e, "close");
+    }
+  }
+  
+  long lastInsertRowId() throws SQLException {
+    ResultSet results = lastInsertRowId.executeQuery();
+    try {
+      results.next();
+      return results.getLong(1);
+    } finally {
+      results.close();
+    }
+  }
+  
+  static SQLiteException wrap(SQLException e, String sql) {
+    return new SQLiteException(e.getMessage() + ", while compiling: " + sql, e);
+  }
+  
+  private void beginTransaction(String sql) {
+    if (transactionDepth == 0) {
+      execSQL(sql);
+      transactionFailed = false;
+    }
+    transactionDepth++;
+    transactionSuccessful = false;
+  }
+  
+  private int executeUpdateDelete(String sql, Object[] args) {
+    try {
+      PreparedStatement statement = prepare(sql);
+      bind(statement, args);
+      return statement.executeUpdate();
+    } catch (SQLException e) {
+      throw wrap(e, sql);
+    }
+  }
+  
+  private PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement statement = statementCache.get(sql);
+    if (statement == null) {
+      statement = connection.prepareStatement(sql);
+      statementCache.put(sql, statement);
+    }
+    statement.clearParameters();
+    return statement;
+  }
+  
+  private static void bind(PreparedStatement statement, Object[] args)
+      throws SQLException {
+    if (args == null) {
+      return;
+    }
+    for (int i = 0; i < args.length; i++) {
+      Object arg = args[i];
+      if (arg == null) {
+        statement.setNull(i + 1, java.sql.Types.NULL);
+      } else if (arg instanceof byte[]) {
+        statement.setBytes(i + 1, (byte[]) arg);
+      } else if (arg instanceof Double || arg instanceof Float) {
+        statement.setDouble(i + 1, ((Number) arg).doubleValue());
+      } else if (arg instanceof Number) {
+        statement.setLong(i + 1, ((Number) arg).longValue());
+      } else {
+        statement.setString(i + 1, arg.toString());
+      }
+    }
+  }
+  
+  private static void appendClause(StringBuilder sql, String name, String clause) {
+    if (clause != null && clause.length() > 0) {
+      sql.append(name).append(clause);
+    }
+  }
+  
+  private static void closeQuietly(Statement statement) {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      // Closing is best effort
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the Android SQLiteOpenHelper. Opens the database file named
+ * in the constructor and creates or upgrades it to the requested version.
+ * @author ericzeng
+ */
+public abstract class SQLiteOpenHelper {
+  private final Context context;
+  private final String name;
+  private final int version;
+  private SQLiteDatabase database;
+  
+  public SQLiteOpenHelper(Context context,
+                          String name,
+                          SQLiteDatabase.CursorFactory factory,
+                          int version) {
+    this.context = context;
+    this.name = name;
+    this.version = version;
+  }
+  
+  public synchronized SQLiteDatabase getWritableDatabase() {
+    if (database != null && database.isOpen()) {
+      return database;
+    }
+    SQLiteDatabase db =
+        SQLiteDatabase.open(context.getDatabasePath(name).getPath());
+    onConfigure(db);
+    int current = db.getVersion();
+    if (current != version) {
+      db.beginTransaction();
+      try {
+        if (current == 0) {
+          onCreate(db);
+        } else {
+          onUpgrade(db, current, version);
+        }
+        db.setVersion(version);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+    onOpen(db);
+    database = db;
+    return db;
+  }
+  
+  public SQLiteDatabase getReadableDatabase() {
+    return getWritableDatabase();
+  }
+  
+  public synchronized void close() {
+    if (database != null) {
+      database.close();
+      database = null;
+    }
+  }
+  
+  public String getDatabaseName() {
+    return name;
+  }
+  
+  public void onConfigure(SQLiteDatabase db) {
+  }
+  
+  public abstract void onCreate(SQLiteDatabase db);
+  
+  public abstract void onUpgrade(SQLiteDatabase db,
+                                 int oldVersion,
+                                 int newVersion);
+  
+  public void onOpen(SQLiteDatabase db) {
+  }
+}
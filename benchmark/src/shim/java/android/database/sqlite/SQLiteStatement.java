@@ -0,0 +1,117 @@
+/*  Copyright 2014 Eric Zeng
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Stand-in for the Android SQLiteStatement: a statement compiled once and
+ * re-bound for every execution.
+ * @author ericzeng
+ */
+public final class SQLiteStatement {
+  private final SQLiteDatabase db;
+  private final String sql;
+  private final PreparedStatement statement;
+  
+  SQLiteStatement(SQLiteDatabase db, String sql, PreparedStatement statement) {
+    this.db = db;
+    this.sql = sql;
+    this.statement = statement;
+  }
+  
+  public void bindLong(int index, long value) {
+    try {
+      statement.setLong(index, value);
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public void bindDouble(int index, double value) {
+    try {
+      statement.setDouble(index, value);
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public void bindString(int index, String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("the bind value at index " + index +
+                                         " is null");
+    }
+    try {
+      statement.setString(index, value);
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public void bindBlob(int index, byte[] value) {
+    if (value == null) {
+      throw new IllegalArgumentException("the bind value at index " + index +
+                                         " is null");
+    }
+    try {
+      statement.setBytes(index, value);
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public void bindNull(int index) {
+    try {
+      statement.setNull(index, java.sql.Types.NULL);
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public void execute() {
+    try {
+      statement.execute();
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public long executeInsert() {
+    try {
+      statement.executeUpdate();
+      return db.lastInsertRowId();
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public int executeUpdateDelete() {
+    try {
+      return statement.executeUpdate();
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+  
+  public void close() {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      throw SQLiteDatabase.wrap(e, sql);
+    }
+  }
+}